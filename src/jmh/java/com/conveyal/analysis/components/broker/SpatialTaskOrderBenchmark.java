@@ -0,0 +1,118 @@
+package com.conveyal.analysis.components.broker;
+
+import com.conveyal.r5.analyst.TravelTimeComputer;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.network.GridLayout;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+
+/**
+ * Measure how many tasks per second a worker completes when a Job hands out its tasks in spatial order and in task ID
+ * (row-major) order. Each invocation takes one batch of tasks from the job, as a worker does when it polls, and
+ * computes travel times from all their origins on a thread per processor. SpatialTaskOrderTest checks that batches in
+ * spatial order cover a much smaller area, which is what lets the threads share more of their working data in caches.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(SpatialTaskOrderBenchmark.BATCH_SIZE)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpatialTaskOrderBenchmark {
+
+    static final int BATCH_SIZE = 256;
+
+    @Param({"false", "true"})
+    public boolean spatialTaskOrder;
+
+    private TransportNetwork network;
+
+    /** The single-origin task whose origin is replaced by that of each regional task delivered. */
+    private AnalysisWorkerTask originTask;
+
+    private RegionalTask templateTask;
+
+    private Job job;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setup () {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 100);
+        for (int row = 10; row <= 90; row += 10) {
+            gridLayout.addHorizontalRoute(row, 10);
+            gridLayout.addVerticalRoute(row, 10);
+        }
+        network = gridLayout.generateNetwork();
+        originTask = gridLayout.newTaskBuilder()
+                .weekdayMorningPeak()
+                .uniformOpportunityDensity(10)
+                .monteCarloDraws(120)
+                .build();
+        // Regional origins on the same web Mercator grid as the destinations.
+        templateTask = new RegionalTask();
+        templateTask.jobId = "benchmark";
+        templateTask.graphId = "graph";
+        templateTask.workerVersion = "v1";
+        templateTask.zoom = originTask.zoom;
+        templateTask.west = originTask.west;
+        templateTask.north = originTask.north;
+        templateTask.width = originTask.width;
+        templateTask.height = originTask.height;
+        job = newJob();
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown () {
+        executor.shutdown();
+    }
+
+    private Job newJob () {
+        return new Job(templateTask, new WorkerTags("group", "user", "region"), spatialTaskOrder);
+    }
+
+    @Benchmark
+    public void computeBatch () throws Exception {
+        List<RegionalTask> tasks = job.generateSomeTasksToDeliver(BATCH_SIZE);
+        if (tasks.size() < BATCH_SIZE) {
+            // Start the job over rather than measure a short batch at its end.
+            job = newJob();
+            tasks = job.generateSomeTasksToDeliver(BATCH_SIZE);
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for (RegionalTask regionalTask : tasks) {
+            AnalysisWorkerTask task = originTask.clone();
+            task.fromLat = regionalTask.fromLat;
+            task.fromLon = regionalTask.fromLon;
+            futures.add(executor.submit(() -> new TravelTimeComputer(task, network).computeTravelTimes()));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.conveyal.osmlib;
+
+import com.conveyal.r5.BenchmarkResources;
+import com.conveyal.r5.streets.StreetLayer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measure the time to read OSM data and build a street layer from it, with OSM data stored in MapDB and in off-heap
+ * columns (OSM.PACKED). Each storage backend runs in its own JVM, which prints its heap use and resident set size
+ * after each iteration. Run with -prof gc to also compare allocation. PackedOSMTest checks that both backends give
+ * the same street layer.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreetLayerBuildBenchmark {
+
+    @Param({"mapdb", "packed"})
+    public String storage;
+
+    /** An OSM PBF file path, or the name of a file among the test resources. */
+    @Param({"porto_portugal.osm.pbf"})
+    public String osmFile;
+
+    private String osmPath;
+
+    private StreetLayer streetLayer;
+
+    @Setup
+    public void setup () throws IOException {
+        osmPath = BenchmarkResources.resolve(osmFile).getAbsolutePath();
+    }
+
+    @Benchmark
+    public StreetLayer buildStreetLayer () {
+        OSM osm = new OSM(storage.equals("packed") ? OSM.PACKED : null);
+        osm.intersectionDetection = true;
+        osm.readFromFile(osmPath);
+        streetLayer = new StreetLayer();
+        streetLayer.loadFromOsm(osm);
+        osm.close();
+        return streetLayer;
+    }
+
+    /** Report memory use while the street layer just built is still reachable. */
+    @TearDown(Level.Iteration)
+    public void reportMemory () {
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("%s storage: %d edges, heap used %d MiB, %s%n", storage, streetLayer.edgeStore.nEdges(),
+                (runtime.totalMemory() - runtime.freeMemory()) / 1024 / 1024, residentSetSize());
+        streetLayer = null;
+    }
+
+    /** @return the resident set size line from the proc filesystem, which only exists on Linux. */
+    private static String residentSetSize () {
+        Path status = Paths.get("/proc/self/status");
+        try (Stream<String> lines = Files.lines(status)) {
+            return lines.filter(l -> l.startsWith("VmRSS")).findFirst().orElse("VmRSS unknown");
+        } catch (IOException e) {
+            return "VmRSS unknown";
+        }
+    }
+
+}
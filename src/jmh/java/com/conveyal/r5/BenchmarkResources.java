@@ -0,0 +1,35 @@
+package com.conveyal.r5;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input files for benchmarks, which default to small files among the test resources but can be replaced with larger
+ * real-world files by passing their paths as benchmark parameters.
+ */
+public abstract class BenchmarkResources {
+
+    /**
+     * @return the file at the given path if there is one, or else a temporary copy of the test resource of that name.
+     *         The copy keeps the name's extension, as some readers choose a format by extension.
+     */
+    public static File resolve (String name) throws IOException {
+        File file = new File(name);
+        if (file.exists()) return file;
+        String extension = name.contains(".") ? name.substring(name.indexOf('.')) : "";
+        File tempFile = File.createTempFile("benchmark", extension);
+        tempFile.deleteOnExit();
+        try (InputStream is = BenchmarkResources.class.getResourceAsStream("/" + name);
+             OutputStream os = new FileOutputStream(tempFile)) {
+            if (is == null) throw new IllegalArgumentException("No such file or test resource: " + name);
+            ByteStreams.copy(is, os);
+        }
+        return tempFile;
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.conveyal.r5.common.JsonUtilities;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.conveyal.r5.analyst.cluster.BinaryWorkResultsTest.N_ORIGINS;
+
+/**
+ * Compare the CPU time per origin to encode and decode the regional results in a worker status as JSON, in the binary
+ * format, and in the gzipped binary format. The encoded sizes are printed once in setup, as they do not vary.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@OperationsPerInvocation(N_ORIGINS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BinaryWorkResultsBenchmark {
+
+    @Param({"json", "binary", "gzip"})
+    public String format;
+
+    private WorkerStatus workerStatus;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setup () throws IOException {
+        workerStatus = BinaryWorkResultsTest.makeWorkerStatus(new Random(43));
+        encoded = encode();
+        System.out.printf("%s: %d bytes per origin%n", format, encoded.length / N_ORIGINS);
+    }
+
+    @Benchmark
+    public byte[] encode () throws IOException {
+        if (format.equals("json")) {
+            return JsonUtilities.objectMapper.writeValueAsBytes(workerStatus);
+        }
+        return BinaryWorkResults.encode(workerStatus, format.equals("gzip"));
+    }
+
+    @Benchmark
+    public WorkerStatus decode () throws IOException {
+        if (format.equals("json")) {
+            return JsonUtilities.lenientObjectMapper.readValue(encoded, WorkerStatus.class);
+        }
+        return BinaryWorkResults.decode(new ByteArrayInputStream(encoded), format.equals("gzip"));
+    }
+
+}
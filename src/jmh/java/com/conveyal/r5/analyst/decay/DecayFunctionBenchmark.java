@@ -0,0 +1,106 @@
+package com.conveyal.r5.analyst.decay;
+
+import org.apache.commons.math3.util.FastMath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.conveyal.r5.analyst.decay.DecayFunction.TWO_HOURS_IN_SECONDS;
+
+/**
+ * Compare the time to find the decay weights of many travel times at several cutoffs, by computing each weight and by
+ * looking it up in the per-cutoff weight table, for every type of decay function. TestDecayFunctions checks that the
+ * tables exactly reproduce the computed weights.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(DecayFunctionBenchmark.N_TRAVEL_TIMES)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecayFunctionBenchmark {
+
+    static final int N_TRAVEL_TIMES = 100_000;
+
+    private static final int[] CUTOFFS_SECONDS = new int[] {15 * 60, 30 * 60, 45 * 60, 60 * 60, 90 * 60};
+
+    @Param({"step", "linear", "logistic", "exponential", "fixed-exponential"})
+    public String type;
+
+    private DecayFunction function;
+
+    private double[][] tables;
+
+    private int[] travelTimes;
+
+    @Setup
+    public void setup () {
+        if (type.equals("step")) {
+            function = new StepDecayFunction();
+        } else if (type.equals("linear")) {
+            LinearDecayFunction linear = new LinearDecayFunction();
+            linear.widthMinutes = 10;
+            function = linear;
+        } else if (type.equals("logistic")) {
+            LogisticDecayFunction logistic = new LogisticDecayFunction();
+            logistic.standardDeviationMinutes = 10;
+            function = logistic;
+        } else if (type.equals("exponential")) {
+            function = new ExponentialDecayFunction();
+        } else {
+            FixedExponentialDecayFunction fixedExponential = new FixedExponentialDecayFunction();
+            fixedExponential.decayConstant = -(FastMath.log(0.5) / (10 * 60));
+            function = fixedExponential;
+        }
+        function.prepare();
+        tables = new double[CUTOFFS_SECONDS.length][];
+        for (int c = 0; c < CUTOFFS_SECONDS.length; c++) {
+            tables[c] = function.getWeightTable(CUTOFFS_SECONDS[c]);
+        }
+        Random random = new Random(42);
+        travelTimes = new int[N_TRAVEL_TIMES];
+        for (int i = 0; i < N_TRAVEL_TIMES; i++) {
+            travelTimes[i] = random.nextInt(TWO_HOURS_IN_SECONDS);
+        }
+    }
+
+    @Benchmark
+    public double computed () {
+        double sum = 0;
+        for (int travelTime : travelTimes) {
+            for (int c = 0; c < CUTOFFS_SECONDS.length; c++) {
+                if (travelTime < tables[c].length) {
+                    sum += function.computeWeight(CUTOFFS_SECONDS[c], travelTime);
+                }
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double table () {
+        double sum = 0;
+        for (int travelTime : travelTimes) {
+            for (int c = 0; c < CUTOFFS_SECONDS.length; c++) {
+                if (travelTime < tables[c].length) {
+                    sum += tables[c][travelTime];
+                }
+            }
+        }
+        return sum;
+    }
+
+}
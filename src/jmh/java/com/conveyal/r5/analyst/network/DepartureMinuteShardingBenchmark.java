@@ -0,0 +1,66 @@
+package com.conveyal.r5.analyst.network;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.TravelTimeComputer;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+
+/**
+ * Measure the wall clock time of a single-origin search on a frequency-heavy network, where most of the time is spent
+ * in Monte Carlo draws, when its departure minutes are split into different numbers of shards routed in parallel.
+ * The speedup depends on the number of available processors. DepartureMinuteShardingTest checks that the sharded
+ * results are correct.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DepartureMinuteShardingBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private TransportNetwork network;
+
+    private AnalysisWorkerTask task;
+
+    @Setup
+    public void setup () {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 100);
+        for (int row = 10; row <= 90; row += 10) {
+            gridLayout.addHorizontalFrequencyRoute(row, 20);
+            gridLayout.addVerticalFrequencyRoute(row, 20);
+        }
+        network = gridLayout.generateNetwork();
+        AnalysisWorkerTask unshardedTask = gridLayout.newTaskBuilder()
+                .weekdayMorningPeak()
+                .setOrigin(20, 20)
+                .uniformOpportunityDensity(10)
+                .monteCarloDraws(2400)
+                .build();
+        task = gridLayout.copyTask(unshardedTask).departureMinuteShards(shards).build();
+    }
+
+    @Benchmark
+    public OneOriginResult computeTravelTimes () {
+        return new TravelTimeComputer(task, network).computeTravelTimes();
+    }
+
+}
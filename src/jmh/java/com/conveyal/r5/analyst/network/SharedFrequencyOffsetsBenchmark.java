@@ -0,0 +1,72 @@
+package com.conveyal.r5.analyst.network;
+
+import com.conveyal.r5.analyst.TravelTimeComputer;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the time per origin for a batch of origins on a frequency-heavy network, as a worker would process them in
+ * a regional job, with frequency offsets randomized independently for each origin and taken from the shared bank.
+ * The bank is only generated once per network, during warmup. SharedFrequencyOffsetsTest checks that both give the
+ * same travel time distributions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@OperationsPerInvocation(SharedFrequencyOffsetsBenchmark.N_ORIGINS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SharedFrequencyOffsetsBenchmark {
+
+    static final int N_ORIGINS = 16;
+
+    @Param({"false", "true"})
+    public boolean shared;
+
+    private TransportNetwork network;
+
+    private List<AnalysisWorkerTask> tasks;
+
+    @Setup
+    public void setup () {
+        GridLayout gridLayout = SharedFrequencyOffsetsTest.frequencyGrid();
+        network = gridLayout.generateNetwork();
+        AnalysisWorkerTask task = gridLayout.newTaskBuilder()
+                .weekdayMorningPeak()
+                .uniformOpportunityDensity(10)
+                .monteCarloDraws(1200)
+                .build();
+        tasks = new ArrayList<>();
+        for (int x = 20; x <= 80; x += 20) {
+            for (int y = 20; y <= 80; y += 20) {
+                tasks.add(gridLayout.copyTask(task).setOrigin(x, y).sharedFrequencyOffsets(shared).build());
+            }
+        }
+    }
+
+    @Benchmark
+    public void computeTravelTimes (Blackhole blackhole) {
+        for (AnalysisWorkerTask task : tasks) {
+            blackhole.consume(new TravelTimeComputer(task, network).computeTravelTimes());
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.transit.TransitLayer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
+
+/**
+ * Compare the serialized size and Kryo read time of the transfers of a network, stored as the per-stop lists of
+ * transfers or packed in a TransferGraph. Sizes are printed once in setup. KryoNetworkSerializerTest checks that the
+ * packed transfers survive a round trip and unpack to the same per-stop lists.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferSerializationBenchmark {
+
+    @Param({"transfersForStop", "transferGraph"})
+    public String representation;
+
+    private Kryo kryo;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setup () {
+        TransitLayer transitLayer = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES).transitLayer;
+        Object transfers = representation.equals("transferGraph")
+                ? transitLayer.transferGraph
+                : transitLayer.transfersForStop;
+        kryo = KryoNetworkSerializer.makeKryo();
+        Output output = new Output(4096, -1);
+        kryo.writeClassAndObject(output, transfers);
+        bytes = output.toBytes();
+        System.out.printf("%d transfers as %s: %d bytes%n", transitLayer.transferGraph.getTransferCount(),
+                representation, bytes.length);
+    }
+
+    @Benchmark
+    public Object read () {
+        return kryo.readClassAndObject(new Input(bytes));
+    }
+
+}
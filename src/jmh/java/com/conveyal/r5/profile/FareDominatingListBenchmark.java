@@ -0,0 +1,75 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.analyst.fare.SimpleInRoutingFareCalculator;
+import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter.McRaptorState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.conveyal.r5.profile.FareDominatingListTest.MAX_CLOCK_TIME;
+import static com.conveyal.r5.profile.FareDominatingListTest.MAX_FARE;
+import static com.conveyal.r5.profile.FareDominatingListTest.N_STATES;
+
+/**
+ * Compare the time to add a state to a FareDominatingList, which compares transfer allowances by ints and interned
+ * redemption rules, against a list comparing New York transfer allowances field by field as they did before. The
+ * states are the ones FareDominatingListTest uses to check that both lists keep the same states.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(FareDominatingListBenchmark.N_LISTS * N_STATES)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FareDominatingListBenchmark {
+
+    static final int N_LISTS = 50;
+
+    private List<List<McRaptorState>> statesForLists;
+
+    private SimpleInRoutingFareCalculator fareCalculator;
+
+    @Setup
+    public void setup () {
+        Random random = new Random(43);
+        statesForLists = new ArrayList<>();
+        for (int l = 0; l < N_LISTS; l++) {
+            statesForLists.add(FareDominatingListTest.makeStates(random));
+        }
+        fareCalculator = new SimpleInRoutingFareCalculator();
+    }
+
+    @Benchmark
+    public void objectComparison (Blackhole blackhole) {
+        for (List<McRaptorState> states : statesForLists) {
+            List<McRaptorState> list = new ArrayList<>();
+            for (McRaptorState state : states) FareDominatingListTest.addByObjectComparison(list, state);
+            blackhole.consume(list);
+        }
+    }
+
+    @Benchmark
+    public void internedComparison (Blackhole blackhole) {
+        for (List<McRaptorState> states : statesForLists) {
+            FareDominatingList list = new FareDominatingList(fareCalculator, MAX_FARE, MAX_CLOCK_TIME);
+            for (McRaptorState state : states) list.add(state);
+            blackhole.consume(list);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.r5.analyst.network.GridLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+
+/**
+ * Measure the time to build the stop-to-vertex distance tables of a grid network with multi-source street searches
+ * and with one search per stop. MultiSourceStreetSearchTest checks that both give the same tables.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DistanceTableBenchmark {
+
+    @Param({"false", "true"})
+    public boolean multiSource;
+
+    private TransitLayer transitLayer;
+
+    @Setup
+    public void setup () {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 100);
+        for (int row = 10; row <= 90; row += 10) {
+            gridLayout.addHorizontalFrequencyRoute(row, 20);
+            gridLayout.addVerticalFrequencyRoute(row, 20);
+        }
+        transitLayer = gridLayout.generateNetwork().transitLayer;
+    }
+
+    @Benchmark
+    public Object buildDistanceTables () {
+        transitLayer.buildDistanceTables(null, multiSource);
+        return transitLayer.stopToVertexDistanceTables;
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.r5.BenchmarkResources;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare boarding by binary search over the departure columns of FilteredPattern against the linear scan over
+ * TripSchedules it replaced, on the patterns of a real GTFS feed. The default is the small feed bundled with the
+ * tests. Pass the path of a larger feed with -p gtfsFile=... to see the difference on dense patterns.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(FilteredPatternBenchmark.N_LOOKUPS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilteredPatternBenchmark {
+
+    static final int N_LOOKUPS = 4096;
+
+    /** A GTFS file path, or the name of a feed among the test resources. */
+    @Param({"fake-agency.zip"})
+    public String gtfsFile;
+
+    // Each lookup is on a randomly chosen pattern, stop and time, so they are not all served from the same cache lines.
+    private FilteredPattern[] patterns;
+    private int[] stops;
+    private int[] times;
+
+    @Setup
+    public void setup () throws IOException {
+        TransitLayer transitLayer = new TransitLayer();
+        GTFSFeed feed = GTFSFeed.readOnlyTempFileFromGtfs(BenchmarkResources.resolve(gtfsFile).getAbsolutePath());
+        transitLayer.loadFromGtfs(feed);
+        feed.close();
+        BitSet servicesActive = new BitSet();
+        servicesActive.set(0, transitLayer.services.size());
+        List<FilteredPattern> filteredPatterns = new ArrayList<>();
+        for (TripPattern pattern : transitLayer.tripPatterns) {
+            FilteredPattern filteredPattern = new FilteredPattern(pattern, servicesActive);
+            if (!filteredPattern.runningScheduledTrips.isEmpty()) filteredPatterns.add(filteredPattern);
+        }
+        if (filteredPatterns.isEmpty()) {
+            throw new IllegalArgumentException("Feed has no scheduled trips: " + gtfsFile);
+        }
+        Random random = new Random(42);
+        patterns = new FilteredPattern[N_LOOKUPS];
+        stops = new int[N_LOOKUPS];
+        times = new int[N_LOOKUPS];
+        for (int i = 0; i < N_LOOKUPS; i++) {
+            patterns[i] = filteredPatterns.get(random.nextInt(filteredPatterns.size()));
+            stops[i] = random.nextInt(patterns[i].sortedDepartures.length);
+            times[i] = random.nextInt(24 * 60 * 60);
+        }
+    }
+
+    @Benchmark
+    public int binarySearch () {
+        int sum = 0;
+        for (int i = 0; i < N_LOOKUPS; i++) {
+            sum += patterns[i].findEarliestDeparture(times[i], stops[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int linearScan () {
+        int sum = 0;
+        for (int i = 0; i < N_LOOKUPS; i++) {
+            sum += FilteredPatternTest.linearScan(patterns[i], times[i], stops[i]);
+        }
+        return sum;
+    }
+
+}
@@ -18,8 +18,6 @@ import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
 import com.conveyal.r5.analyst.cluster.WorkerStatus;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.util.ExceptionUtils;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.MultimapBuilder;
 import gnu.trove.TCollections;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.TObjectLongMap;
@@ -32,9 +30,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.conveyal.analysis.components.eventbus.RegionalAnalysisEvent.State.CANCELED;
 import static com.conveyal.analysis.components.eventbus.RegionalAnalysisEvent.State.COMPLETED;
@@ -74,10 +73,11 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * is serviced, it is taken out of the queue and put at its end. Jobs that have not been serviced
  * float to the top.
  * <p>
- * Most methods on this class are synchronized, because they can be called from many HTTP handler
- * threads at once.
- *
- * TODO evaluate whether synchronizing all methods to make this threadsafe is a performance issue.
+ * The methods on this class can be called from many HTTP handler threads at once: hundreds of workers polling
+ * and returning results, as well as UI status requests. Rather than synchronizing on the broker, which made all
+ * these threads contend for a single lock, jobs are held in concurrent maps with one queue per worker category,
+ * and each Job tracks delivered and completed tasks with atomic operations. Status requests read snapshots of the
+ * jobs without blocking workers.
  */
 public class Broker implements Component {
 
@@ -97,12 +97,23 @@ public class Broker implements Component {
     private final EventBus eventBus;
     private final WorkerLauncher workerLauncher;
 
-    private final ListMultimap<WorkerCategory, Job> jobs =
-            MultimapBuilder.hashKeys().arrayListValues().build();
+    /**
+     * The active jobs for each category of worker, in the order they were enqueued. Workers only poll the queue for
+     * their own category, so polls from different categories never touch the same queue. The lists are copy-on-write
+     * because they are iterated on every poll but only change when jobs are enqueued or removed. Each list is only
+     * modified inside a compute call on this map, so an empty list can be removed without losing concurrent additions.
+     */
+    private final Map<WorkerCategory, List<Job>> jobsByCategory = new ConcurrentHashMap<>();
 
-    /** The most tasks to deliver to a worker at a time. */
+    /** All the jobs in jobsByCategory, keyed on their job ID. */
+    private final Map<String, Job> jobsById = new ConcurrentHashMap<>();
+
+    /** The most tasks to deliver to a worker at a time, when the worker does not say how many it wants. */
     public final int MAX_TASKS_PER_WORKER = 16;
 
+    /** The most tasks to deliver in response to a single poll, however many the worker asks for. */
+    public final int MAX_TASKS_PER_POLL = 1024;
+
     /**
      * Used when auto-starting spot instances. Set to a smaller value to increase the number of
      * workers requested automatically
@@ -113,7 +124,7 @@ public class Broker implements Component {
     /**
      * We want to request spot instances to "boost" regional analyses after a few regional task
      * results are received for a given workerCategory. Do so after receiving results for an
-     * arbitrary task toward the beginning of the job
+     * arbitrary task toward the beginning of the job's delivery sequence.
      */
     public final int AUTO_START_SPOT_INSTANCES_AT_TASK = 42;
 
@@ -134,7 +145,7 @@ public class Broker implements Component {
      * These objects piece together results received from workers into one regional analysis result
      * file per job.
      */
-    private static Map<String, MultiOriginAssembler> resultAssemblers = new HashMap<>();
+    private static Map<String, MultiOriginAssembler> resultAssemblers = new ConcurrentHashMap<>();
 
     /**
      * keep track of which graphs we have launched workers on and how long ago we launched them, so
@@ -154,27 +165,26 @@ public class Broker implements Component {
      * Enqueue a set of tasks for a regional analysis.
      * Only a single task is passed in, which the broker will expand into all the individual tasks for a regional job.
      */
-    public synchronized void enqueueTasksForRegionalJob (RegionalAnalysis regionalAnalysis) {
+    public void enqueueTasksForRegionalJob (RegionalAnalysis regionalAnalysis) {
 
         // Make a copy of the regional task inside the RegionalAnalysis, replacing the scenario with a scenario ID.
         RegionalTask templateTask = templateTaskFromRegionalAnalysis(regionalAnalysis);
 
         LOG.info("Enqueuing tasks for job {} using template task.", templateTask.jobId);
-        if (findJob(templateTask.jobId) != null) {
-            LOG.error("Someone tried to enqueue job {} but it already exists.", templateTask.jobId);
-            throw new RuntimeException("Enqueued duplicate job " + templateTask.jobId);
-        }
         WorkerTags workerTags = WorkerTags.fromRegionalAnalysis(regionalAnalysis);
         Job job = new Job(templateTask, workerTags);
-        jobs.put(job.workerCategory, job);
+        registerJob(job);
 
         // Register the regional job so results received from multiple workers can be assembled into one file.
         // TODO encapsulate MultiOriginAssemblers in a new Component
-        // Note: if this fails with an exception we'll have a job enqueued, possibly being processed, with no assembler.
-        // That is not catastrophic, but the user may need to recognize and delete the stalled regional job.
+        // Note: if this fails with an exception we'll have a job registered but never delivering tasks, with no
+        // assembler. That is not catastrophic, but the user may need to recognize and delete the stalled regional job.
         MultiOriginAssembler assembler = new MultiOriginAssembler(regionalAnalysis, job, fileStorage);
         resultAssemblers.put(templateTask.jobId, assembler);
 
+        // Only make the tasks visible to workers once the assembler exists, so no results arrive before it.
+        addToQueue(job);
+
         if (config.testTaskRedelivery()) {
             // This is a fake job for testing, don't confuse the worker startup code below with null graph ID.
             return;
@@ -212,8 +222,6 @@ public class Broker implements Component {
         try {
             File localScenario = FileUtils.createScratchFile("json");
             JsonUtil.objectMapper.writeValue(localScenario, scenario);
-            // FIXME this is using a network service in a method called from a synchronized broker method.
-            //  Move file into storage before entering the synchronized block.
             fileStorage.moveIntoStorage(fileStorageKey, localScenario);
         } catch (IOException e) {
             LOG.error("Error storing scenario for retrieval by workers.", e);
@@ -233,6 +241,45 @@ public class Broker implements Component {
         return templateTask;
     }
 
+    /**
+     * Enqueue a job whose results are not assembled into a regional analysis, such as fake jobs used to simulate load
+     * on the broker. Results for such jobs must be acknowledged with markTaskCompleted.
+     */
+    void enqueueJob (Job job) {
+        registerJob(job);
+        addToQueue(job);
+    }
+
+    private void registerJob (Job job) {
+        if (jobsById.putIfAbsent(job.jobId, job) != null) {
+            LOG.error("Someone tried to enqueue job {} but it already exists.", job.jobId);
+            throw new RuntimeException("Enqueued duplicate job " + job.jobId);
+        }
+    }
+
+    private void addToQueue (Job job) {
+        jobsByCategory.compute(job.workerCategory, (category, queue) -> {
+            if (queue == null) queue = new CopyOnWriteArrayList<>();
+            queue.add(job);
+            return queue;
+        });
+    }
+
+    /**
+     * Remove the given job from the broker so its tasks are no longer delivered.
+     * @return true if the job was removed by this call, false if it had already been removed by another thread.
+     */
+    private boolean removeJob (Job job) {
+        if (!jobsById.remove(job.jobId, job)) {
+            return false;
+        }
+        jobsByCategory.computeIfPresent(job.workerCategory, (category, queue) -> {
+            queue.remove(job);
+            return queue.isEmpty() ? null : queue;
+        });
+        return true;
+    }
+
     /**
      * Create on-demand worker for a given job.
      */
@@ -245,8 +292,11 @@ public class Broker implements Component {
      * @param nOnDemand EC2 on-demand instances to request
      * @param nSpot Target number of EC2 spot instances to request. The actual number requested may be lower if the
      *              total number of workers running is approaching the maximum specified in the Broker config.
+     *
+     * This is synchronized even though most of the broker no longer is: the capacity and recent request checks and the
+     * recording of the request must happen together, or concurrent callers could launch duplicate workers.
      */
-    public void createWorkersInCategory (WorkerCategory category, WorkerTags workerTags, int nOnDemand, int nSpot) {
+    public synchronized void createWorkersInCategory (WorkerCategory category, WorkerTags workerTags, int nOnDemand, int nSpot) {
 
         // Log error messages rather than throwing exceptions, as this code often runs in worker poll handlers.
         // Throwing an exception there would not report any useful information to anyone.
@@ -319,36 +369,46 @@ public class Broker implements Component {
      * Attempt to find some tasks that match what a worker is requesting.
      * Always returns a list, which may be empty if there is nothing to deliver.
      */
-    public synchronized List<RegionalTask> getSomeWork (WorkerCategory workerCategory) {
+    public List<RegionalTask> getSomeWork (WorkerCategory workerCategory) {
+        return getSomeWork(workerCategory, MAX_TASKS_PER_WORKER);
+    }
+
+    /**
+     * Attempt to find up to the given number of tasks that match what a worker is requesting. Workers measure how
+     * long their tasks take, and ask for as many as they can handle before their next poll.
+     * Always returns a list, which may be empty if there is nothing to deliver.
+     */
+    public List<RegionalTask> getSomeWork (WorkerCategory workerCategory, int maxTasks) {
+        if (maxTasks <= 0) {
+            return Collections.EMPTY_LIST;
+        }
         Job job;
         if (config.offline()) {
             // Working in offline mode; get tasks from the first job that has any tasks to deliver.
-            job = jobs.values().stream()
+            job = jobsByCategory.values().stream().flatMap(List::stream)
                     .filter(j -> j.hasTasksToDeliver()).findFirst().orElse(null);
         } else {
             // This worker has a preferred network, get tasks from a job on that network.
-            job = jobs.get(workerCategory).stream()
+            job = jobsByCategory.getOrDefault(workerCategory, Collections.emptyList()).stream()
                     .filter(j -> j.hasTasksToDeliver()).findFirst().orElse(null);
         }
         if (job == null) {
             // No matching job was found.
             return Collections.EMPTY_LIST;
         }
-        // Return up to N tasks that are waiting to be processed.
-        return job.generateSomeTasksToDeliver(MAX_TASKS_PER_WORKER);
+        // Return up to N tasks that are waiting to be processed. Tasks are claimed atomically, so if several workers
+        // chose the same job they will receive different tasks, and the last ones may receive an empty list.
+        return job.generateSomeTasksToDeliver(Math.min(maxTasks, MAX_TASKS_PER_POLL));
     }
 
     /**
      * Take a normal (non-priority) task out of a job queue, marking it as completed so it will not
      * be re-delivered. The result of the computation is supplied. This could potentially be merged
-     * with handleRegionalWorkResult, but they have different synchronization requirements.
-     * TODO separate marking complete from returning the work product, since they have different
-     *      synchronization requirements. This would also allow returning errors as JSON and the
-     *      grid result separately.
-     *
-     * @return whether the task was found and removed.
+     * with handleRegionalWorkResult.
+     * TODO separate marking complete from returning the work product. This would also allow returning
+     *      errors as JSON and the grid result separately.
      */
-    public synchronized void markTaskCompleted (Job job, int taskId) {
+    public void markTaskCompleted (Job job, int taskId) {
         checkNotNull(job);
         if (!job.markTaskCompleted(taskId)) {
             LOG.error("Failed to mark task {} completed on job {}.", taskId, job.jobId);
@@ -356,9 +416,9 @@ public class Broker implements Component {
         // Once the last task is marked as completed, the job is finished.
         // Remove it and its associated result assembler from the maps.
         // The caller should already have a reference to the result assembler so it can process the final results.
-        if (job.isComplete()) {
+        // Several threads may see the job complete at once, but only the one that removes it finishes it.
+        if (job.isComplete() && removeJob(job)) {
             job.verifyComplete();
-            jobs.remove(job.workerCategory, job);
             resultAssemblers.remove(job.jobId);
             eventBus.send(new RegionalAnalysisEvent(job.jobId, COMPLETED).forUser(job.workerTags.user, job.workerTags.group));
         }
@@ -368,22 +428,23 @@ public class Broker implements Component {
      * When job.errors is non-empty, job.isErrored() becomes true and job.isActive() becomes false.
      * The Job will stop delivering tasks, allowing workers to shut down, but will continue to exist allowing the user
      * to see the error message. User will then need to manually delete it, which will remove the result assembler.
-     * This method ensures synchronization of writes to Jobs from the unsynchronized worker poll HTTP handler.
+     * The set of errors on each job is concurrent, so this can be called from any worker poll HTTP handler thread.
      */
-    private synchronized void recordJobError (Job job, String error) {
+    private void recordJobError (Job job, String error) {
         if (job != null) {
             job.errors.add(error);
         }
     }
 
     /**
-     * Simple method for querying all current job statuses.
+     * Simple method for querying all current job statuses. This does not block workers polling for tasks or
+     * returning results: each JobStatus is a snapshot of a job, which may be updated while this method runs.
      * @return List of JobStatuses
      */
-    public synchronized Collection<JobStatus> getAllJobStatuses () {
+    public Collection<JobStatus> getAllJobStatuses () {
         TObjectIntMap<String> workersPerJob = workerCatalog.activeWorkersPerJob();
         Collection<JobStatus> jobStatuses = new ArrayList<>();
-        for (Job job : jobs.values()) {
+        for (Job job : jobsById.values()) {
             JobStatus jobStatus = new JobStatus(job);
             jobStatus.activeWorkers = workersPerJob.get(job.jobId);
             jobStatuses.add(jobStatus);
@@ -392,21 +453,18 @@ public class Broker implements Component {
     }
 
     /** Find the job for the given jobId, returning null if that job does not exist. */
-    public synchronized Job findJob (String jobId) {
-        return jobs.values().stream()
-                .filter(job -> job.jobId.equals(jobId))
-                .findFirst()
-                .orElse(null);
+    public Job findJob (String jobId) {
+        return jobId == null ? null : jobsById.get(jobId);
     }
 
     /**
      * Delete the job with the given ID.
      */
-    public synchronized boolean deleteJob (String jobId) {
+    public boolean deleteJob (String jobId) {
         // Remove the job from the broker so we stop distributing its tasks to workers.
         Job job = findJob(jobId);
-        if (job == null) return false;
-        boolean success = jobs.remove(job.workerCategory, job);
+        if (job == null || !removeJob(job)) return false;
+        boolean success = true;
         // Shut down the object used for assembling results, removing its associated temporary disk file.
         // TODO just put the assembler in the Job object
         MultiOriginAssembler assembler = resultAssemblers.remove(jobId);
@@ -428,7 +486,7 @@ public class Broker implements Component {
      * Given a worker commit ID and transport network, return the IP or DNS name of a worker that has that software
      * and network already loaded. If none exist, return null. The caller can then try to start one.
      */
-    public synchronized String getWorkerAddress(WorkerCategory workerCategory) {
+    public String getWorkerAddress(WorkerCategory workerCategory) {
         if (config.offline()) {
             return "localhost";
         }
@@ -447,7 +505,7 @@ public class Broker implements Component {
         return workerCatalog.getAllWorkerObservations();
     }
 
-    public synchronized void unregisterSinglePointWorker (WorkerCategory category) {
+    public void unregisterSinglePointWorker (WorkerCategory category) {
         workerCatalog.tryToReassignSinglePointWork(category);
     }
 
@@ -464,34 +522,30 @@ public class Broker implements Component {
      * @param workResult an object representing accessibility results for a single origin point, sent by a worker.
      */
     public void handleRegionalWorkResult(RegionalWorkResult workResult) {
-        // Retrieving the job and assembler from their maps is not thread safe, so we use synchronized block here.
-        // Once the job is retrieved, it can be used below to requestExtraWorkersIfAppropriate without synchronization,
-        // because that method only uses final fields of the job.
+        // The job and assembler are retrieved from concurrent maps, and the job tracks completed tasks atomically,
+        // so results from many workers can be handled at once without synchronizing on the broker.
         Job job = null;
         MultiOriginAssembler assembler;
         try {
-            synchronized (this) {
-                job = findJob(workResult.jobId);
-                assembler = resultAssemblers.get(workResult.jobId);
-                if (job == null || assembler == null || !job.isActive()) {
-                    // This will happen naturally for all delivered tasks after a job is deleted or it errors out.
-                    LOG.debug("Ignoring result for unrecognized, deleted, or inactive job ID {}.", workResult.jobId);
-                    return;
-                }
-                if (workResult.error != null) {
-                    // Record any error reported by the worker and don't pass bad results on to regional result assembly.
-                    recordJobError(job, workResult.error);
-                    return;
-                }
-                // Mark tasks completed first before passing results to the assembler. On the final result received,
-                // this will minimize the risk of race conditions by quickly making the job invisible to incoming stray
-                // results from spurious redeliveries, before the assembler is busy finalizing and uploading results.
-                markTaskCompleted(job, workResult.taskId);
+            job = findJob(workResult.jobId);
+            assembler = resultAssemblers.get(workResult.jobId);
+            if (job == null || assembler == null || !job.isActive()) {
+                // This will happen naturally for all delivered tasks after a job is deleted or it errors out.
+                LOG.debug("Ignoring result for unrecognized, deleted, or inactive job ID {}.", workResult.jobId);
+                return;
+            }
+            if (workResult.error != null) {
+                // Record any error reported by the worker and don't pass bad results on to regional result assembly.
+                recordJobError(job, workResult.error);
+                return;
             }
-            // Unlike everything above, result assembly (like starting workers below) does not synchronize on the broker.
-            // It contains some slow nested operations to move completed results into storage. Really we should not do
-            // these things synchronously in an HTTP handler called by the worker. We should probably synchronize this
-            // entire method, then somehow enqueue slower async completion and cleanup tasks in the caller.
+            // Mark tasks completed first before passing results to the assembler. On the final result received,
+            // this will minimize the risk of race conditions by quickly making the job invisible to incoming stray
+            // results from spurious redeliveries, before the assembler is busy finalizing and uploading results.
+            markTaskCompleted(job, workResult.taskId);
+            // Result assembly contains some slow nested operations to move completed results into storage. Really we
+            // should not do these things synchronously in an HTTP handler called by the worker. We should somehow
+            // enqueue slower async completion and cleanup tasks in the caller.
             assembler.handleMessage(workResult);
         } catch (Throwable t) {
             recordJobError(job, ExceptionUtils.stackTraceString(t));
@@ -500,7 +554,8 @@ public class Broker implements Component {
         }
         // When non-error results are received for several tasks we assume the regional analysis is running smoothly.
         // Consider accelerating the job by starting an appropriate number of EC2 spot instances.
-        if (workResult.taskId == AUTO_START_SPOT_INSTANCES_AT_TASK) {
+        // Tasks are not delivered in task ID order, so look for the task delivered at that position in the sequence.
+        if (workResult.taskId == job.taskIdAtDeliveryPosition(AUTO_START_SPOT_INSTANCES_AT_TASK)) {
             requestExtraWorkersIfAppropriate(job);
         }
     }
@@ -538,15 +593,15 @@ public class Broker implements Component {
         }
     }
 
-    public synchronized boolean anyJobsActive () {
-        for (Job job : jobs.values()) {
+    public boolean anyJobsActive () {
+        for (Job job : jobsById.values()) {
             if (job.isActive()) return true;
         }
         return false;
     }
 
-    public synchronized void logJobStatus() {
-        for (Job job : jobs.values()) {
+    public void logJobStatus() {
+        for (Job job : jobsById.values()) {
             LOG.info(job.toString());
         }
     }
@@ -0,0 +1,137 @@
+package com.conveyal.analysis.components.broker;
+
+import com.conveyal.analysis.components.eventbus.EventBus;
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.JobSimulator;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is not an automatic unit test. Like JobSimulator it enqueues fake regional jobs, but rather than sending them
+ * to a backend over HTTP it hands them straight to a Broker, then simulates hundreds of workers polling for tasks and
+ * acknowledging results as fast as they can, while other threads repeatedly request job statuses as the UI does.
+ * No routing is performed and no results are assembled, so this measures only the broker's own task distribution
+ * and bookkeeping: the number of polls and result acknowledgements it can handle per second.
+ */
+public class BrokerLoadSimulator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BrokerLoadSimulator.class);
+
+    /** The number of different networks that jobs are run on. Each simulated worker only polls for one of them. */
+    public int nCategories = 4;
+
+    public int nJobsPerCategory = 4;
+
+    public int nTasksPerJob = 50_000;
+
+    public int nWorkers = 256;
+
+    /** The number of threads repeatedly requesting the status of all jobs. */
+    public int nStatusThreads = 2;
+
+    // Totals recorded by the last call to run().
+    public long nPolls;
+    public long nAcks;
+    public long nStatusRequests;
+    public long elapsedMillis;
+
+    public static void main (String[] args) {
+        BrokerLoadSimulator simulator = new BrokerLoadSimulator();
+        // Run once to warm up the JVM before measuring.
+        simulator.run();
+        simulator.run();
+        LOG.info("{} workers: {} polls/sec, {} acks/sec, {} status requests/sec.", simulator.nWorkers,
+                simulator.nPolls * 1000 / simulator.elapsedMillis,
+                simulator.nAcks * 1000 / simulator.elapsedMillis,
+                simulator.nStatusRequests * 1000 / simulator.elapsedMillis);
+    }
+
+    /** Enqueue all the jobs on a new Broker and run the simulated workers until they have completed every task. */
+    public void run () {
+        Broker broker = new Broker(new Broker.Config() {
+            @Override public boolean offline () { return false; }
+            @Override public int maxWorkers () { return nWorkers; }
+            @Override public boolean testTaskRedelivery () { return true; }
+        }, null, new EventBus(null), null);
+
+        List<List<Job>> jobsByCategory = new ArrayList<>();
+        for (int c = 0; c < nCategories; c++) {
+            List<Job> jobs = new ArrayList<>();
+            for (int j = 0; j < nJobsPerCategory; j++) {
+                Job job = new Job(makeTemplateTask(c), new WorkerTags("group", "user", "region"));
+                broker.enqueueJob(job);
+                jobs.add(job);
+            }
+            jobsByCategory.add(jobs);
+        }
+
+        AtomicLong polls = new AtomicLong();
+        AtomicLong acks = new AtomicLong();
+        AtomicLong statusRequests = new AtomicLong();
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Thread> workers = new ArrayList<>();
+        for (int w = 0; w < nWorkers; w++) {
+            List<Job> jobs = jobsByCategory.get(w % nCategories);
+            WorkerCategory category = jobs.get(0).workerCategory;
+            workers.add(new Thread(() -> {
+                while (jobs.stream().anyMatch(Job::isActive)) {
+                    List<RegionalTask> tasks = broker.getSomeWork(category);
+                    polls.incrementAndGet();
+                    for (RegionalTask task : tasks) {
+                        // The job is looked up by ID, as it is when a real result arrives.
+                        Job job = broker.findJob(task.jobId);
+                        if (job != null) {
+                            broker.markTaskCompleted(job, task.taskId);
+                            acks.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        List<Thread> statusThreads = new ArrayList<>();
+        for (int s = 0; s < nStatusThreads; s++) {
+            statusThreads.add(new Thread(() -> {
+                while (!done.get()) {
+                    broker.getAllJobStatuses();
+                    statusRequests.incrementAndGet();
+                }
+            }));
+        }
+
+        long startTime = System.currentTimeMillis();
+        statusThreads.forEach(Thread::start);
+        workers.forEach(Thread::start);
+        try {
+            for (Thread worker : workers) worker.join();
+            done.set(true);
+            for (Thread statusThread : statusThreads) statusThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        elapsedMillis = Math.max(System.currentTimeMillis() - startTime, 1);
+        nPolls = polls.get();
+        nAcks = acks.get();
+        nStatusRequests = statusRequests.get();
+    }
+
+    private RegionalTask makeTemplateTask (int category) {
+        RegionalTask templateTask = new RegionalTask();
+        templateTask.jobId = JobSimulator.compactUUID();
+        templateTask.graphId = "graph" + category;
+        templateTask.workerVersion = "v1";
+        templateTask.scenarioId = "FAKE";
+        templateTask.zoom = 9;
+        templateTask.west = 0;
+        templateTask.north = 0;
+        templateTask.height = 1;
+        templateTask.width = nTasksPerJob;
+        return templateTask;
+    }
+
+}
@@ -3,14 +3,15 @@ package com.conveyal.analysis.components.broker;
 import com.conveyal.r5.analyst.Grid;
 import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.util.AtomicBitSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.conveyal.r5.common.Util.notNullOrEmpty;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -18,6 +19,11 @@ import static com.google.common.base.Preconditions.checkNotNull;
 /**
  * A Job is a collection of tasks that represent all the origins in a regional analysis. All the
  * tasks in a Job must have the same network ID and be run against the same R5 version on the workers.
+ * <p>
+ * Jobs are threadsafe without locking in the common case: many worker poll and result handler threads
+ * may claim tasks for delivery and mark tasks completed at the same time. Tasks are claimed by atomically
+ * advancing a delivery cursor, and completed tasks are recorded in an atomic bitset so that each task is
+ * counted as completed exactly once. Only the rare transition to a new redelivery pass takes a lock.
  */
 public class Job {
 
@@ -40,7 +46,12 @@ public class Job {
     // On the other hand, working on tasks from the same geographic area might be more efficient because
     // they probably use all the same transit lines and roads, which will already be in cache.
     // So let's just keep track of where we're at in the sequence.
-    private int nextTaskToDeliver;
+    // The sequence itself follows a Hilbert curve over the origins (see SpatialTaskOrder), so that each batch of
+    // tasks covers a compact area and workers reuse more of their working data in CPU caches.
+    private final AtomicInteger nextTaskToDeliver = new AtomicInteger();
+
+    /** The task ID at each position in the delivery sequence, or null to deliver tasks in task ID order. */
+    private final int[] deliveryOrder;
 
     /** A unique identifier for this job, we use random UUIDs. */
     public final String jobId;
@@ -55,19 +66,19 @@ public class Job {
      * Each task will be checked off when it a result is returned by the worker.
      * Once the worker has returned a result, the task will never be redelivered.
      */
-    private final BitSet completedTasks;
+    private final AtomicBitSet completedTasks;
 
     /**
-     * The number of remaining tasks can be derived from the deliveredTasks BitSet, but as an
+     * The number of remaining tasks can be derived from the completedTasks bitset, but as an
      * optimization we keep a separate counter to avoid constantly scanning over that whole bitset.
      */
-    protected int nTasksCompleted;
+    protected final AtomicInteger nTasksCompleted = new AtomicInteger();
 
     /**
      * The total number of task deliveries that have occurred. A task may be counted more than
      * once if it is redelivered.
      */
-    protected int nTasksDelivered;
+    protected final AtomicInteger nTasksDelivered = new AtomicInteger();
 
     /** Every task in this job will be based on this template task, but have its origin coordinates changed. */
     public final RegionalTask templateTask;
@@ -114,52 +125,76 @@ public class Job {
      * the epoch. Enables a quiet period after all tasks have been delivered, before we attempt any
      * re-delivery.
      */
-    long lastDeliveryTime = 0;
+    volatile long lastDeliveryTime = 0;
 
     /**
      * How many times we have started over delivering tasks, working through those that were not
-     * marked complete.
+     * marked complete. Only changed while holding the lock on this Job.
      */
-    public int deliveryPass = 0;
+    public volatile int deliveryPass = 0;
 
     /**
      * If any error compromises the usabilty or quality of results from any origin, it is recorded here.
      * This is a Set because identical errors are likely to be reported from many workers or individual tasks.
+     * It is a concurrent set because errors are recorded by result handler threads without locking.
      */
-    public final Set<String> errors = new HashSet();
+    public final Set<String> errors = ConcurrentHashMap.newKeySet();
 
     public Job (RegionalTask templateTask, WorkerTags workerTags) {
+        this(templateTask, workerTags, true);
+    }
+
+    /**
+     * @param spatialTaskOrder whether to deliver tasks in the spatial order of their origins rather than in task ID
+     *                         order, which is row-major for grids. False is only useful to compare the two orders.
+     */
+    public Job (RegionalTask templateTask, WorkerTags workerTags, boolean spatialTaskOrder) {
         this.jobId = templateTask.jobId;
         this.templateTask = templateTask;
         this.workerCategory = new WorkerCategory(templateTask.graphId, templateTask.workerVersion);
-        this.nTasksCompleted = 0;
-        this.nextTaskToDeliver = 0;
 
         if (templateTask.originPointSetKey != null) {
             checkNotNull(templateTask.originPointSet);
             this.nTasksTotal = templateTask.originPointSet.featureCount();
+            this.deliveryOrder = spatialTaskOrder ? SpatialTaskOrder.forPointSet(templateTask.originPointSet) : null;
         } else {
             this.nTasksTotal = templateTask.width * templateTask.height;
+            this.deliveryOrder = spatialTaskOrder
+                    ? SpatialTaskOrder.forGrid(templateTask.width, templateTask.height) : null;
         }
 
-        this.completedTasks = new BitSet(nTasksTotal);
+        this.completedTasks = new AtomicBitSet(nTasksTotal);
         this.workerTags = workerTags;
 
     }
 
+    /**
+     * Check off the given task. If several threads mark the same task completed at once, exactly one of them
+     * will see a return value of true, and the completed task counter is only incremented once.
+     * @return true if the task was not already marked completed.
+     */
     public boolean markTaskCompleted(int taskId) {
-        // Don't allow negative or huge task numbers to avoid exceptions or expanding the bitset to
-        // a huge size.
-        if (taskId < 0 || taskId > nTasksTotal) {
+        // Don't allow negative or huge task numbers to avoid indexing outside the bitset.
+        if (taskId < 0 || taskId >= nTasksTotal) {
             return false;
         }
-        if (completedTasks.get(taskId)) {
-            return false;
-        } else {
-            completedTasks.set(taskId);
-            nTasksCompleted += 1;
+        if (completedTasks.set(taskId)) {
+            nTasksCompleted.incrementAndGet();
             return true;
         }
+        return false;
+    }
+
+    /** @return the ID of the task at the given position in the delivery sequence, or -1 if there is no such task. */
+    public int taskIdAtDeliveryPosition (int position) {
+        if (position < 0 || position >= nTasksTotal) {
+            return -1;
+        }
+        return deliveryOrder == null ? position : deliveryOrder[position];
+    }
+
+    private boolean isTaskCompleted (int taskId) {
+        return completedTasks.get(taskId);
     }
 
     public boolean isActive() {
@@ -167,7 +202,7 @@ public class Job {
     }
 
     public boolean isComplete() {
-        return nTasksCompleted == nTasksTotal;
+        return nTasksCompleted.get() == nTasksTotal;
     }
 
     public boolean isErrored () {
@@ -175,23 +210,33 @@ public class Job {
     }
 
     /**
+     * Claim tasks for delivery by atomically advancing the delivery cursor, so tasks are never handed out twice
+     * in the same delivery pass even when many workers poll at once.
      * @param maxTasks the maximum number of tasks to return.
      * @return some tasks that are not yet marked as completed and have not yet been delivered in
      *         this delivery pass.
      */
     public List<RegionalTask> generateSomeTasksToDeliver (int maxTasks) {
         List<RegionalTask> tasks = new ArrayList<>(maxTasks);
-        // TODO use special bitset iteration syntax.
-        while (nextTaskToDeliver < nTasksTotal && tasks.size() < maxTasks) {
-            if (!completedTasks.get(nextTaskToDeliver)) {
-                tasks.add(makeOneTask(nextTaskToDeliver));
+        // Completed tasks are skipped, so on redelivery passes we may need to claim several ranges of tasks.
+        while (tasks.size() < maxTasks) {
+            int nWanted = maxTasks - tasks.size();
+            int start = nextTaskToDeliver.getAndAccumulate(nWanted, (next, n) -> Math.min(next + n, nTasksTotal));
+            if (start >= nTasksTotal) {
+                break;
+            }
+            int end = Math.min(start + nWanted, nTasksTotal);
+            for (int position = start; position < end; position++) {
+                int taskId = deliveryOrder == null ? position : deliveryOrder[position];
+                if (!isTaskCompleted(taskId)) {
+                    tasks.add(makeOneTask(taskId));
+                }
             }
-            nextTaskToDeliver += 1;
         }
         if (!tasks.isEmpty()) {
             this.lastDeliveryTime = System.currentTimeMillis();
         }
-        nTasksDelivered += tasks.size();
+        nTasksDelivered.addAndGet(tasks.size());
         return tasks;
     }
 
@@ -199,23 +244,29 @@ public class Job {
         if (!(this.isActive())) {
             return false;
         }
-        if (nextTaskToDeliver < nTasksTotal) {
+        if (nextTaskToDeliver.get() < nTasksTotal) {
             return true;
         }
         // Check whether we should start redelivering tasks - this will be triggered by workers polling.
         // The method that generates more tasks to deliver knows to skip already completed tasks.
-        if (System.currentTimeMillis() >= lastDeliveryTime + (REDELIVERY_WAIT_SEC * 1000)) {
+        if (System.currentTimeMillis() < lastDeliveryTime + (REDELIVERY_WAIT_SEC * 1000)) {
+            return false;
+        }
+        synchronized (this) {
+            // Another polling thread may have started a new delivery pass while we were waiting for the lock.
+            if (nextTaskToDeliver.get() < nTasksTotal) {
+                return true;
+            }
             if (deliveryPass >= MAX_DELIVERY_PASSES) {
                 LOG.error("Job {} has been delivered {} times and it's still not finished. Not redelivering.", jobId, deliveryPass);
                 return false;
             }
-            nextTaskToDeliver = 0;
             deliveryPass += 1;
+            nextTaskToDeliver.set(0);
             LOG.warn("Delivered all tasks for job {}, but {} seconds later {} results have not been received. Starting redelivery pass {}.",
-                    jobId, REDELIVERY_WAIT_SEC, nTasksTotal - nTasksCompleted, deliveryPass);
+                    jobId, REDELIVERY_WAIT_SEC, nTasksTotal - nTasksCompleted.get(), deliveryPass);
             return true;
         }
-        return false;
     }
 
     /**
@@ -2,6 +2,7 @@ package com.conveyal.analysis.components.broker;
 
 import com.conveyal.analysis.models.RegionalAnalysis;
 
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -45,16 +46,19 @@ public class JobStatus {
     /** default constructor for JSON deserialization */
     public JobStatus () { /* do nothing */ }
 
-    /** Summarize the given job to return its status over the REST API. */
+    /**
+     * Summarize the given job to return its status over the REST API. The job may be updated by other threads while
+     * this is running, so this is a snapshot that copies all the values it needs rather than referencing the job.
+     */
     public JobStatus (Job job) {
         this.jobId = job.jobId;
         this.graphId = job.workerCategory.graphId;
         this.workerCommit = job.workerCategory.workerVersion;
         this.total = job.nTasksTotal;
-        this.complete = job.nTasksCompleted;
+        this.complete = job.nTasksCompleted.get();
         this.incomplete = total - complete;
-        this.deliveries = job.nTasksDelivered;
+        this.deliveries = job.nTasksDelivered.get();
         this.deliveryPass = job.deliveryPass;
-        this.errors = job.errors;
+        this.errors = new HashSet<>(job.errors);
     }
 }
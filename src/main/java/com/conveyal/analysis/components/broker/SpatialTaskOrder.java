@@ -0,0 +1,103 @@
+package com.conveyal.analysis.components.broker;
+
+import com.conveyal.r5.analyst.PointSet;
+
+import java.util.Arrays;
+
+/**
+ * Orders the tasks of a regional job along a Hilbert curve over their origins, so that each batch of tasks delivered
+ * to a worker covers a compact area rather than a strip of one or two grid rows. Neighboring origins use mostly the
+ * same streets, stops, and egress cost tables, so the threads of a worker processing one batch share much more of
+ * their working data in CPU caches. A Hilbert curve is used rather than a Z-order curve because it never jumps across
+ * the region between consecutive cells.
+ */
+abstract class SpatialTaskOrder {
+
+    /** Coordinates are scaled down to at most this many bits so that Hilbert indexes fit in 30 bits. */
+    private static final int MAX_BITS = 15;
+
+    /**
+     * @return the task IDs of a job whose origins are the cells of a web Mercator grid, in which task IDs are assigned
+     *         in row-major order, sorted along a Hilbert curve.
+     */
+    public static int[] forGrid (int width, int height) {
+        int nTasks = width * height;
+        int bits = bitsFor(Math.max(width, height));
+        int shift = Math.max(bits - MAX_BITS, 0);
+        long[] keys = new long[nTasks];
+        for (int taskId = 0; taskId < nTasks; taskId++) {
+            int x = taskId % width;
+            int y = taskId / width;
+            keys[taskId] = key(hilbertIndex(bits - shift, x >> shift, y >> shift), taskId);
+        }
+        return sortedTaskIds(keys);
+    }
+
+    /** @return the task IDs of a job whose origins are the given freeform points, sorted along a Hilbert curve. */
+    public static int[] forPointSet (PointSet pointSet) {
+        int nTasks = pointSet.featureCount();
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < nTasks; i++) {
+            minLat = Math.min(minLat, pointSet.getLat(i));
+            maxLat = Math.max(maxLat, pointSet.getLat(i));
+            minLon = Math.min(minLon, pointSet.getLon(i));
+            maxLon = Math.max(maxLon, pointSet.getLon(i));
+        }
+        // Scale the points to a square grid of cells. Guard against all points being on one line.
+        int maxCell = (1 << MAX_BITS) - 1;
+        double scale = maxCell / Math.max(Math.max(maxLat - minLat, maxLon - minLon), 1e-9);
+        long[] keys = new long[nTasks];
+        for (int taskId = 0; taskId < nTasks; taskId++) {
+            int x = (int) ((pointSet.getLon(taskId) - minLon) * scale);
+            int y = (int) ((maxLat - pointSet.getLat(taskId)) * scale);
+            keys[taskId] = key(hilbertIndex(MAX_BITS, Math.min(x, maxCell), Math.min(y, maxCell)), taskId);
+        }
+        return sortedTaskIds(keys);
+    }
+
+    /** Pack the Hilbert index above the task ID, so sorting the keys sorts on the index and then the task ID. */
+    private static long key (long hilbertIndex, int taskId) {
+        return (hilbertIndex << 32) | taskId;
+    }
+
+    private static int[] sortedTaskIds (long[] keys) {
+        Arrays.sort(keys);
+        int[] taskIds = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            taskIds[i] = (int) keys[i];
+        }
+        return taskIds;
+    }
+
+    /** The number of bits needed to represent coordinates from zero to size - 1. */
+    private static int bitsFor (int size) {
+        return Math.max(32 - Integer.numberOfLeadingZeros(size - 1), 1);
+    }
+
+    /**
+     * The distance along a Hilbert curve filling a square of 2^bits cells on a side to the cell at the given
+     * coordinates, which must be less than 2^bits. This is the usual iterative algorithm, rotating the quadrant at
+     * each level so that the curve within it starts and ends next to the neighboring quadrants.
+     */
+    static long hilbertIndex (int bits, int x, int y) {
+        int n = 1 << bits;
+        long index = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return index;
+    }
+
+}
@@ -16,6 +16,7 @@ import com.conveyal.analysis.util.HttpStatus;
 import com.conveyal.analysis.util.JsonUtil;
 import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.analyst.cluster.AnalysisWorker;
+import com.conveyal.r5.analyst.cluster.BinaryWorkResults;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
 import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
@@ -43,6 +44,7 @@ import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 
+import java.io.ByteArrayInputStream;
 import java.net.NoRouteToHostException;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
@@ -345,10 +347,13 @@ public class BrokerController implements HttpController {
      * completed work via this same object. The broker should preferentially send them work they can do efficiently
      * using already loaded networks and scenarios. The method is POST because unlike GETs (which fetch status) it
      * modifies the contents of the task queue.
+     * Workers may instead send their status and results in the more compact BinaryWorkResults format, which we
+     * advertise on every response.
      */
     private Object workerPoll (Request request, Response response) {
 
-        WorkerStatus workerStatus = objectFromRequestBody(request, WorkerStatus.class);
+        WorkerStatus workerStatus = workerStatusFromRequestBody(request);
+        response.header(BinaryWorkResults.ACCEPT_HEADER, BinaryWorkResults.GZIP);
         List<RegionalWorkResult> perOriginResults = workerStatus.results;
 
         // Record any regional analysis results that were supplied by the worker and mark them completed.
@@ -362,7 +367,10 @@ public class BrokerController implements HttpController {
         broker.recordWorkerObservation(workerStatus);
         WorkerCategory workerCategory = workerStatus.getWorkerCategory();
         // See if any appropriate tasks exist for this worker.
-        List<RegionalTask> tasks = broker.getSomeWork(workerCategory);
+        // Older workers do not say how many tasks they want, so the broker decides.
+        List<RegionalTask> tasks = (workerStatus.maxTasksRequested == null)
+                ? broker.getSomeWork(workerCategory)
+                : broker.getSomeWork(workerCategory, workerStatus.maxTasksRequested);
         // If there is no work for the worker, signal this clearly with a "no content" code,
         // so the worker can sleep a while before the next polling attempt.
         if (tasks.isEmpty()) {
@@ -372,6 +380,19 @@ public class BrokerController implements HttpController {
         }
     }
 
+    /** Deserializes a WorkerStatus from the body of the supplied Spark request, as JSON or BinaryWorkResults. */
+    private static WorkerStatus workerStatusFromRequestBody (Request request) {
+        if (!BinaryWorkResults.CONTENT_TYPE.equals(request.contentType())) {
+            return objectFromRequestBody(request, WorkerStatus.class);
+        }
+        boolean gzip = BinaryWorkResults.GZIP.equals(request.headers("Content-Encoding"));
+        try {
+            return BinaryWorkResults.decode(new ByteArrayInputStream(request.bodyAsBytes()), gzip);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Deserializes an object of the given type from JSON in the body of the supplied Spark request.
      */
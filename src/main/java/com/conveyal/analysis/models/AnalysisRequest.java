@@ -78,6 +78,18 @@ public class AnalysisRequest {
     public int streetTime = 90;
     public int suboptimalMinutes = 5;
 
+    /**
+     * Number of departure time sub-windows to route in parallel on the worker. Only useful for single point requests,
+     * see AnalysisWorkerTask.departureMinuteShards.
+     */
+    public int departureMinuteShards = 1;
+
+    /**
+     * Whether to take frequency route offsets from a bank of draws shared by all origins, rather than randomizing them
+     * separately for each origin. See AnalysisWorkerTask.sharedFrequencyOffsets.
+     */
+    public boolean sharedFrequencyOffsets = false;
+
     /**
      * Whether the R5 worker should log an analysis request it receives from the broker.
      * analysis-backend translates front-end requests to the format expected by R5. To debug this
@@ -238,6 +250,8 @@ public class AnalysisRequest {
         task.minCarTime = minCarTime;
         task.streetTime = streetTime;
         task.suboptimalMinutes = suboptimalMinutes;
+        task.departureMinuteShards = departureMinuteShards;
+        task.sharedFrequencyOffsets = sharedFrequencyOffsets;
 
         task.monteCarloDraws = monteCarloDraws;
         task.percentiles = percentiles;
@@ -11,6 +11,12 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -23,10 +29,36 @@ public abstract class CsvResultWriter extends BaseResultWriter implements Region
 
     private static final Logger LOG = LoggerFactory.getLogger(CsvResultWriter.class);
 
+    /**
+     * The maximum number of origins whose rows may be waiting to be written. When the writer thread falls this far
+     * behind, threads delivering results will block, rather than accumulating an unbounded number of rows in memory.
+     */
+    private static final int MAX_QUEUED_ORIGINS = 1024;
+
+    /**
+     * How long a thread delivering results waits for space on the queue before checking again whether the writer
+     * thread is still running, so that it cannot block forever if the writer thread has died.
+     */
+    private static final long QUEUE_WAIT_MILLIS = 1000;
+
+    /** Placed on the queue to tell the writer thread that no more rows will arrive. */
+    private static final List<String[]> END_OF_ROWS = Collections.emptyList();
+
     public final String fileName;
     private final CsvWriter csvWriter;
     private int nDataColumns;
 
+    /**
+     * Rows for each origin, generated concurrently by the threads delivering results, waiting to be written to the
+     * file. CsvWriter is not threadsafe, so a single writer thread takes rows off this queue and writes them.
+     */
+    private final BlockingQueue<List<String[]>> rowQueue = new ArrayBlockingQueue<>(MAX_QUEUED_ORIGINS);
+
+    private final Thread writerThread;
+
+    /** Any exception or error that stopped the writer thread, to be reported to the next caller. */
+    private volatile Throwable writerException;
+
     /**
      * Keep a reference to the task, for fetching percentiles, cutoffs, etc. in iteration over multidimensional results.
      * We could copy only the fields we need, but we end up copying six of them to identically named fields.
@@ -61,9 +93,69 @@ public abstract class CsvResultWriter extends BaseResultWriter implements Region
         csvWriter = new CsvWriter(bufferedWriter, ',');
         setDataColumns(columnHeaders());
         this.task = task;
+        writerThread = new Thread(this::writeQueuedRows, "csv-result-writer-" + task.jobId);
+        writerThread.setDaemon(true);
+        writerThread.start();
         LOG.info("Created CSV file to hold {} results for regional job {}", resultType(), task.jobId);
     }
 
+    /** Run by the writer thread, writing rows in the order they were queued until END_OF_ROWS is received. */
+    private void writeQueuedRows () {
+        try {
+            while (true) {
+                List<String[]> rows = rowQueue.take();
+                if (rows == END_OF_ROWS) {
+                    return;
+                }
+                for (String[] values : rows) {
+                    csvWriter.writeRecord(values);
+                }
+            }
+        } catch (InterruptedException e) {
+            // The writer has been terminated, the file will be discarded.
+        } catch (Throwable t) {
+            LOG.error("Error writing CSV results for regional job {}", task.jobId, t);
+            writerException = t;
+            // Unblock any threads waiting to queue rows, which will then see the exception.
+            rowQueue.clear();
+        }
+    }
+
+    /** Wait for all queued rows to be written, and stop the writer thread. */
+    private void stopWriterThread () throws Exception {
+        if (writerThread.isAlive()) {
+            enqueue(END_OF_ROWS);
+            writerThread.join();
+        }
+        checkWriterException();
+    }
+
+    /**
+     * Hand rows off to the writer thread, waiting while the queue is full. Rather than blocking indefinitely, this
+     * periodically checks that the writer thread is still running and fails if it is not.
+     */
+    private void enqueue (List<String[]> rows) throws Exception {
+        while (!rowQueue.offer(rows, QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            checkWriterThreadAlive();
+        }
+    }
+
+    private void checkWriterThreadAlive () throws Exception {
+        checkWriterException();
+        if (!writerThread.isAlive()) {
+            throw new IllegalStateException("CSV writer thread has stopped for regional job " + task.jobId);
+        }
+    }
+
+    /** Report any exception or error that stopped the writer thread. */
+    private void checkWriterException () throws Exception {
+        if (writerException instanceof Exception) {
+            throw (Exception) writerException;
+        } else if (writerException != null) {
+            throw new RuntimeException("Error writing CSV results for regional job " + task.jobId, writerException);
+        }
+    }
+
     /**
      * Writes a header row containing the supplied data columns.
      */
@@ -79,7 +171,8 @@ public abstract class CsvResultWriter extends BaseResultWriter implements Region
      * Downloads through another channel (e.g. aws s3 cp), will need to be decompressed manually.
      */
     @Override
-    public synchronized void finish () throws IOException {
+    public synchronized void finish () throws Exception {
+        stopWriterThread();
         csvWriter.close();
         super.finish(this.fileName);
     }
@@ -89,22 +182,24 @@ public abstract class CsvResultWriter extends BaseResultWriter implements Region
      */
     @Override
     public void writeOneWorkResult (RegionalWorkResult workResult) throws Exception {
-        // CsvWriter is not threadsafe and multiple threads may call this, so after values are generated,
-        // the actual writing is synchronized (TODO confirm)
-        // Is result row generation slow enough to bother synchronizing only the following block?
+        // Rows are generated concurrently on the calling threads, then handed off to the single writer thread.
         checkDimension(workResult);
-        Iterable<String[]> rows = rowValues(workResult);
-        synchronized (this) {
-            for (String[] values : rows) {
-                Preconditions.checkArgument(values.length == nDataColumns,
-                        "Attempted to write the wrong number of columns to a result CSV");
-                csvWriter.writeRecord(values);
-            }
+        List<String[]> rows = new ArrayList<>();
+        for (String[] values : rowValues(workResult)) {
+            Preconditions.checkArgument(values.length == nDataColumns,
+                    "Attempted to write the wrong number of columns to a result CSV");
+            rows.add(values);
         }
+        checkWriterThreadAlive();
+        enqueue(rows);
     }
 
     @Override
     public synchronized void terminate () throws Exception {
+        writerThread.interrupt();
+        writerThread.join();
+        // Release the memory held by any rows that will never be written, and unblock threads waiting to queue more.
+        rowQueue.clear();
         csvWriter.close();
         bufferFile.delete();
     }
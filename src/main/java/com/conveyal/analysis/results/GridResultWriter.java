@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import static com.conveyal.r5.common.Util.human;
 
@@ -43,6 +44,13 @@ public class GridResultWriter extends BaseResultWriter {
 
     private RandomAccessFile randomAccessFile;
 
+    /**
+     * The channel of randomAccessFile, used for positional writes. Positional writes do not move a shared file
+     * pointer, so results for different origins (which occupy disjoint regions of the file) can be written
+     * concurrently by many threads without locking.
+     */
+    private FileChannel fileChannel;
+
     /** The version of the access grids we produce */
     private static final int ACCESS_GRID_VERSION = 0;
 
@@ -101,7 +109,8 @@ public class GridResultWriter extends BaseResultWriter {
             // would overwrite every byte in the file with a result for some origin point, so the initial values are only
             // important when visualizing or debugging partially completed analysis results.
             this.randomAccessFile = new RandomAccessFile(bufferFile, "rw");
-            randomAccessFile.setLength(HEADER_LENGTH_BYTES + (width * height * channels * Integer.BYTES));
+            randomAccessFile.setLength(HEADER_LENGTH_BYTES + ((long) width * height * channels * Integer.BYTES));
+            this.fileChannel = randomAccessFile.getChannel();
             LOG.info(
                     "Created temporary file to accumulate results from workers, size is {}.",
                     human(randomAccessFile.length(), "B")
@@ -118,38 +127,27 @@ public class GridResultWriter extends BaseResultWriter {
         randomAccessFile.close();
     }
 
-    /**
-     * TODO is this inefficient? Would it be reasonable to just store the regional results in memory
-     *      in a byte buffer instead of writing mini byte buffers into files? We should also be able
-     *      to use a filechannel with native order.
-     */
-    private static byte[] intToLittleEndianByteArray (int i) {
-        final ByteBuffer byteBuffer = ByteBuffer.allocate(Integer.BYTES);
-        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        byteBuffer.putInt(i);
-        return byteBuffer.array();
-    }
-
     /**
      * Write all channels at once to the proper subregion of the buffer for this origin. The origins we receive have 2d
      * coordinates. Flatten them to compute file offsets and for the origin checklist.
+     * This is not synchronized: each origin has its own region of the file, and positional writes to a FileChannel
+     * are safe to perform concurrently. The caller must not finish or terminate this writer while writes are ongoing.
      */
-    synchronized void writeOneOrigin (int taskNumber, int[] values) throws IOException {
+    void writeOneOrigin (int taskNumber, int[] values) throws IOException {
         if (values.length != channels) {
             throw new IllegalArgumentException("Number of channels to be written does not match this writer.");
         }
-        long offset = HEADER_LENGTH_BYTES + (taskNumber * channels * Integer.BYTES);
-        // RandomAccessFile is not threadsafe and multiple threads may call this, so synchronize.
-        // TODO why is the method also synchronized then?
-        synchronized (this) {
-            randomAccessFile.seek(offset);
-            // FIXME should this be delta-coded? The Selecting grid reducer seems to expect it to be.
-            int lastValue = 0;
-            for (int value : values) {
-                int delta = value - lastValue;
-                randomAccessFile.write(intToLittleEndianByteArray(delta));
-                lastValue = value;
-            }
+        long offset = HEADER_LENGTH_BYTES + ((long) taskNumber * channels * Integer.BYTES);
+        ByteBuffer buffer = ByteBuffer.allocate(channels * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        // FIXME should this be delta-coded? The Selecting grid reducer seems to expect it to be.
+        int lastValue = 0;
+        for (int value : values) {
+            buffer.putInt(value - lastValue);
+            lastValue = value;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            offset += fileChannel.write(buffer, offset);
         }
     }
 
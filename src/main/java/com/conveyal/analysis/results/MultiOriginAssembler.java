@@ -8,13 +8,16 @@ import com.conveyal.file.FileStorage;
 import com.conveyal.file.FileStorageFormat;
 import com.conveyal.r5.analyst.PointSet;
 import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.conveyal.r5.util.AtomicBitSet;
 import com.conveyal.r5.util.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.conveyal.r5.common.Util.notNullOrEmpty;
 import static com.google.common.base.Preconditions.checkArgument;
@@ -53,20 +56,30 @@ public class MultiOriginAssembler {
     /**
      * The number of distinct origin points for which we've received at least one result. If for
      * whatever reason we receive two or more results for the same origin this should only be
-     * incremented once). It's incremented in a synchronized block to avoid race conditions.
+     * incremented once).
      */
-    public int nComplete = 0;
+    public final AtomicInteger nComplete = new AtomicInteger();
 
     /**
      * We need to keep track of which specific origins are completed, to avoid double counting if we
-     * receive more than one result for the same origin. As with nComplete, access must be
-     * synchronized to avoid race conditions. The nComplete field could be derived from this BitSet,
-     * but nComplete can be read in constant time whereas counting true bits in a BitSet takes
+     * receive more than one result for the same origin. Setting a bit reports whether this thread was the first to
+     * do so, which allows results to be received concurrently without synchronization. The nComplete field could be
+     * derived from this bitset, but nComplete can be read in constant time whereas counting set bits takes
      * linear time.
      * FIXME it doesn't seem like both the Job and the MultiOriginAssembler should be tracking job progress.
      *       Might be preferable to track this only in the job, and have it close the assembler when the job finishes.
      */
-    private final BitSet originsReceived;
+    private final AtomicBitSet originsReceived;
+
+    /**
+     * Results for many origins are written concurrently under the read lock: each writer either writes to disjoint
+     * regions of its file or hands rows off to its own writer thread. Finishing or terminating takes the write lock,
+     * so it waits for any results still being written and excludes any that arrive later.
+     */
+    private final ReadWriteLock writersLock = new ReentrantReadWriteLock();
+
+    /** Set under the write lock once the result writers have been finished or terminated. */
+    private boolean closed = false;
 
     /**
      * Total number of origin points for which we're expecting results. Note that the total
@@ -88,7 +101,7 @@ public class MultiOriginAssembler {
             this.regionalAnalysis = regionalAnalysis;
             this.job = job;
             this.nOriginsTotal = job.nTasksTotal;
-            this.originsReceived = new BitSet(job.nTasksTotal);
+            this.originsReceived = new AtomicBitSet(job.nTasksTotal);
             // Check that origin and destination sets are not too big for generating CSV files.
             if (!job.templateTask.makeTauiSite &&
                  job.templateTask.destinationPointSetKeys[0].endsWith(FileStorageFormat.FREEFORM.extension)
@@ -144,9 +157,11 @@ public class MultiOriginAssembler {
     /**
      * Gzip the output files and persist them to cloud storage.
      */
-    private synchronized void finish() {
+    private void finish() {
         LOG.info("Finished receiving data for multi-origin analysis {}", job.jobId);
+        writersLock.writeLock().lock();
         try {
+            closed = true;
             for (RegionalResultWriter writer : resultWriters) {
                 writer.finish();
             }
@@ -157,36 +172,49 @@ public class MultiOriginAssembler {
             Persistence.regionalAnalyses.put(regionalAnalysis);
         } catch (Exception e) {
             LOG.error("Error uploading results of multi-origin analysis {}", job.jobId, e);
+        } finally {
+            writersLock.writeLock().unlock();
         }
     }
 
     /**
-     * There is a bit of logic in this method that wouldn't strictly need to be synchronized (the dimension checks) but
-     * those should take a trivial amount of time. For safety and simplicity we synchronize the whole method. The
-     * downside is that this prevents one thread from writing accessibility while another was writing travel time CSV,
-     * but this should not be assumed to have any impact on performance unless measured. The writeOneValue methods on
-     * this class are also synchronized for good measure. There should be no additional cost to retaining the lock when
-     * entering those methods.
+     * This method may be called by many threads at once, for results from different origins (or the same origin,
+     * on redelivery). It only takes a shared lock, so the results are written concurrently. The thread that records
+     * the last origin finishes the analysis once all results have been written.
      */
-    public synchronized void handleMessage (RegionalWorkResult workResult) throws Exception {
-        for (RegionalResultWriter writer : resultWriters) {
-            writer.writeOneWorkResult(workResult);
-        }
-        // Don't double-count origins if we receive them more than once. Atomic get-and-increment requires
-        // synchronization, currently achieved by synchronizing this entire method.
-        if (!originsReceived.get(workResult.taskId)) {
-            originsReceived.set(workResult.taskId);
-            nComplete += 1;
+    public void handleMessage (RegionalWorkResult workResult) throws Exception {
+        boolean lastOrigin = false;
+        writersLock.readLock().lock();
+        try {
+            if (closed) {
+                LOG.debug("Ignoring result for origin {} received after job {} was closed.", workResult.taskId, job.jobId);
+                return;
+            }
+            for (RegionalResultWriter writer : resultWriters) {
+                writer.writeOneWorkResult(workResult);
+            }
+            // Don't double-count origins if we receive them more than once.
+            if (originsReceived.set(workResult.taskId)) {
+                lastOrigin = nComplete.incrementAndGet() == nOriginsTotal;
+            }
+        } finally {
+            writersLock.readLock().unlock();
         }
-        if (nComplete == nOriginsTotal) {
+        if (lastOrigin) {
             finish();
         }
     }
 
     /** Clean up and cancel this grid assembler, typically when a job is canceled while still being processed. */
-    public synchronized void terminate () throws Exception {
-        for (RegionalResultWriter writer : resultWriters) {
-            writer.terminate();
+    public void terminate () throws Exception {
+        writersLock.writeLock().lock();
+        try {
+            closed = true;
+            for (RegionalResultWriter writer : resultWriters) {
+                writer.terminate();
+            }
+        } finally {
+            writersLock.writeLock().unlock();
         }
     }
 
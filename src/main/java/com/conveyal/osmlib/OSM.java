@@ -54,6 +54,9 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
     /** The nodes which are referenced more than once by ways in this OSM. */
     public NodeTracker intersectionNodes = new NodeTracker();
 
+    /** Pass this as the diskPath to the constructor to store nodes and ways in off-heap primitive columns. */
+    public static final String PACKED = "__PACKED__";
+
     /** The MapDB backing this OSM, if any. */
     DB db = null;
 
@@ -76,16 +79,24 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
      * Construct a new MapDB-based random-access OSM data store.
      * If diskPath is null, OSM will be loaded into a temporary file and deleted on shutdown.
      * If diskPath is the string "__MEMORY__" the OSM will be stored entirely in memory. 
+     * If diskPath is PACKED, nodes and ways will be stored as primitive values in off-heap columns rather than in
+     * MapDB (see PackedEntityMap), which is much faster to fill and read back when building networks from large
+     * extracts. The entities must not be modified in place when stored this way, as their tags are shared.
      * 
-     * @param diskPath - the file in which to save the data, null for a temp file, or "__MEMORY__" for in-memory.
+     * @param diskPath - the file in which to save the data, null for a temp file, "__MEMORY__" for in-memory, or
+     *                   PACKED for off-heap columns.
      */
     public OSM (String diskPath) {
         DBMaker dbMaker;
+        boolean packed = PACKED.equals(diskPath);
         if (diskPath == null) {
             LOG.info("OSM will be stored in a temporary file.");
             dbMaker = DBMaker.newTempFileDB().deleteFilesAfterClose();
         } else {
-            if (diskPath.equals("__MEMORY__")) {
+            if (packed) {
+                LOG.info("OSM nodes and ways will be stored in off-heap columns, other entities in memory.");
+                dbMaker = DBMaker.newMemoryDirectDB();
+            } else if (diskPath.equals("__MEMORY__")) {
                 LOG.info("OSM will be stored in memory.");
                 // 'direct' means off-heap memory, no garbage collection overhead
                 dbMaker = DBMaker.newMemoryDirectDB(); 
@@ -129,15 +140,21 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
             LOG.info("No OSM tables exist yet, they will be created.");
         }
         
-        nodes = db.createTreeMap("nodes")
-                .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
-                .valueSerializer(new NodeSerializer())
-                .makeOrGet();
-        
-        ways =  db.createTreeMap("ways")
-                .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
-                .valueSerializer(new WaySerializer())
-                .makeOrGet();
+        if (packed) {
+            TagInterner tagInterner = new TagInterner();
+            nodes = new PackedNodeMap(tagInterner);
+            ways = new PackedWayMap(tagInterner);
+        } else {
+            nodes = db.createTreeMap("nodes")
+                    .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                    .valueSerializer(new NodeSerializer())
+                    .makeOrGet();
+
+            ways = db.createTreeMap("ways")
+                    .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                    .valueSerializer(new WaySerializer())
+                    .makeOrGet();
+        }
 
         // need as btreemap below to bind function
         BTreeMap<Long, Relation> relations = db.createTreeMap("relations")
@@ -385,6 +402,10 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
 
     /** Close the database file to ensure clean shutdown and avoid leaving the async write thread running. */
     public void close() {
+        if (nodes instanceof PackedEntityMap) {
+            ((PackedEntityMap) nodes).close();
+            ((PackedEntityMap) ways).close();
+        }
         db.close();
     }
 
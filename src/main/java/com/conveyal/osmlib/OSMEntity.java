@@ -34,6 +34,11 @@ public abstract class OSMEntity implements Serializable {
             return this.key.equals(otherTag.key) && this.value.equals(otherTag.value);
         }
 
+        @Override
+        public int hashCode () {
+            return 31 * key.hashCode() + value.hashCode();
+        }
+
     }
 
     /** Return the tag value for the given key. Returns null if the tag key is not present. */
@@ -0,0 +1,108 @@
+package com.conveyal.osmlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A growable array of fixed-width primitive values (ints or longs) stored outside the Java heap, in memory-mapped
+ * chunks of a temporary file. The values are never seen by the garbage collector, and the operating system can page
+ * them out to the backing file when a large OSM extract does not fit in memory.
+ *
+ * Values can only be appended, or read back by index. Chunk sizes are a multiple of the element width, so no value
+ * ever straddles two chunks.
+ */
+class OffHeapColumn {
+
+    /** Each chunk of the backing file is mapped separately, as a single mapping is limited to 2GiB. */
+    private static final int CHUNK_SHIFT = 26;
+
+    private static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+
+    private final int elementBytes;
+
+    private final File file;
+
+    private final FileChannel channel;
+
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    private long size = 0;
+
+    /** @param elementBytes the width of each value, Integer.BYTES or Long.BYTES. */
+    OffHeapColumn (int elementBytes) {
+        this.elementBytes = elementBytes;
+        try {
+            file = File.createTempFile("osm-column-", ".bin");
+            file.deleteOnExit();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create temporary file for OSM storage.", e);
+        }
+    }
+
+    long size () {
+        return size;
+    }
+
+    void addLong (long value) {
+        long position = nextPosition();
+        chunkFor(position).putLong((int) (position & (CHUNK_BYTES - 1)), value);
+    }
+
+    void addInt (int value) {
+        long position = nextPosition();
+        chunkFor(position).putInt((int) (position & (CHUNK_BYTES - 1)), value);
+    }
+
+    long getLong (long index) {
+        long position = index * elementBytes;
+        return chunkFor(position).getLong((int) (position & (CHUNK_BYTES - 1)));
+    }
+
+    int getInt (long index) {
+        long position = index * elementBytes;
+        return chunkFor(position).getInt((int) (position & (CHUNK_BYTES - 1)));
+    }
+
+    /** Reserve space for one more value, mapping a new chunk if needed, and return its position in bytes. */
+    private long nextPosition () {
+        long position = size * elementBytes;
+        if ((position >> CHUNK_SHIFT) == chunks.size()) {
+            try {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK_BYTES);
+                chunk.order(ByteOrder.nativeOrder());
+                chunks.add(chunk);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not extend temporary file for OSM storage.", e);
+            }
+        }
+        size += 1;
+        return position;
+    }
+
+    private MappedByteBuffer chunkFor (long position) {
+        return chunks.get((int) (position >> CHUNK_SHIFT));
+    }
+
+    /**
+     * Release the backing file. The mappings themselves are released when this object is garbage collected, so it
+     * must not be used after closing.
+     */
+    void close () {
+        chunks.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        file.delete();
+    }
+
+}
@@ -13,32 +13,61 @@ package com.conveyal.osmlib;
  */
 
 import com.conveyal.osmlib.OSMEntity.Type;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
 import org.openstreetmap.osmosis.osmbinary.BinaryParser;
+import org.openstreetmap.osmosis.osmbinary.Fileformat;
 import org.openstreetmap.osmosis.osmbinary.Osmformat;
-import org.openstreetmap.osmosis.osmbinary.file.BlockInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * An OpenStreetMap entity source that reads from the PBF Format. This class implements callbacks for
  * the crosby.binary OSMPBF library. It loads OSM data into the osm-lib model classes, then sends those
  * objects through to the specified OSM entity sink.
+ *
+ * PBF files are a series of independently compressed blocks, so they are decoded in a pipeline: one thread reads the
+ * raw bytes of each block from the input stream, a pool of threads inflates and parses the blocks into osm-lib
+ * objects (each with its own PBFInput instance, as the parser keeps per-block state), and the thread that called
+ * copyTo hands the decoded entities to the sink one block at a time, in the order they appear in the file.
  */
 public class PBFInput extends BinaryParser implements OSMEntitySource {
 
     protected static final Logger LOG = LoggerFactory.getLogger(PBFInput.class);
 
+    /** How many blocks may be read or decoded ahead of the sink, per decoding thread. Bounds memory consumption. */
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+    /** Marks the end of the stream of decoded blocks. */
+    private static final DecodedBlock END_OF_FILE = new DecodedBlock();
+
     private long nodeCount = 0;
     private long wayCount = 0;
     private long relationCount = 0;
     private InputStream inputStream;
     private OSMEntitySink entitySink;
 
+    /** The number of threads that will inflate and parse blocks in parallel. */
+    public int decodingThreads = Runtime.getRuntime().availableProcessors();
+
     private static final String[] retainKeys = new String[] {
         "highway", "parking", "bicycle", "name"
     };
@@ -63,9 +92,6 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
     protected void parseNodes(List<Osmformat.Node> nodes) {
         try {
             for (Osmformat.Node n : nodes) {
-                if (nodeCount++ % 10000000 == 0) {
-                    LOG.info("node {}", human(nodeCount));
-                }
                 Node node = new Node(parseLat(n.getLat()), parseLon(n.getLon()));
                 for (int k = 0; k < n.getKeysCount(); k++) {
                     String key = getStringById(n.getKeys(k));
@@ -90,9 +116,6 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
         int kv = 0; // index into the keysvals array
         try {
             for (int n = 0; n < nodes.getIdCount(); n++) {
-                if (nodeCount++ % 5000000 == 0) {
-                    LOG.info("node {}", human(nodeCount));
-                }
                 Node node = new Node();
                 long id = nodes.getId(n) + lastId;
                 long lat = nodes.getLat(n) + lastLat;
@@ -124,9 +147,6 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
     protected void parseWays(List<Osmformat.Way> ways) {
         try {
             for (Osmformat.Way w : ways) {
-                if (wayCount++ % 1000000 == 0) {
-                    LOG.info("way {}", human(wayCount));
-                }
                 Way way = new Way();
                 /* Handle tags */
                 for (int k = 0; k < w.getKeysCount(); k++) {
@@ -155,9 +175,6 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
     protected void parseRelations(List<Osmformat.Relation> rels) {
         try {
             for (Osmformat.Relation r : rels) {
-                if (relationCount++ % 100000 == 0) {
-                    LOG.info("relation {}", human(relationCount));
-                }
                 Relation rel = new Relation();
                 /* Handle Tags */
                 for (int k = 0; k < r.getKeysCount(); k++) {
@@ -234,8 +251,174 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
     public void copyTo(OSMEntitySink sink) throws IOException {
         entitySink = sink;
         entitySink.writeBegin();
-        new BlockInputStream(inputStream, this).process();
+        ExecutorService decoders = Executors.newFixedThreadPool(decodingThreads, runnable -> {
+            Thread thread = new Thread(runnable, "pbf-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        BlockingQueue<Future<DecodedBlock>> decodedBlocks =
+                new ArrayBlockingQueue<>(decodingThreads * BLOCKS_IN_FLIGHT_PER_THREAD);
+        Thread reader = new Thread(() -> readBlocks(decoders, decodedBlocks), "pbf-reader");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            // Blocks are queued in file order, so waiting on each one in turn delivers entities in file order.
+            while (true) {
+                DecodedBlock block = decodedBlocks.take().get();
+                if (block == END_OF_FILE) {
+                    break;
+                }
+                if (block.header != null) {
+                    parse(block.header);
+                }
+                block.copyTo(this);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading PBF.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to decode PBF block.", e.getCause());
+        } finally {
+            reader.interrupt();
+            decoders.shutdownNow();
+        }
+        complete();
         entitySink.writeEnd();
     }
 
+    /**
+     * Read the raw bytes of each block in the input stream, and submit them to the decoders in file order. Runs on
+     * its own thread. Exceptions are passed to the consuming thread in place of the next block.
+     */
+    private void readBlocks (ExecutorService decoders, BlockingQueue<Future<DecodedBlock>> decodedBlocks) {
+        try {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream))) {
+                while (true) {
+                    int headerLength;
+                    try {
+                        headerLength = input.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    byte[] headerBytes = new byte[headerLength];
+                    input.readFully(headerBytes);
+                    Fileformat.BlobHeader header = Fileformat.BlobHeader.parseFrom(headerBytes);
+                    byte[] blobBytes = new byte[header.getDatasize()];
+                    input.readFully(blobBytes);
+                    decodedBlocks.put(decoders.submit(() -> decodeBlock(header.getType(), blobBytes)));
+                }
+            } catch (IOException e) {
+                CompletableFuture<DecodedBlock> failure = new CompletableFuture<>();
+                failure.completeExceptionally(e);
+                decodedBlocks.put(failure);
+                return;
+            }
+            decodedBlocks.put(CompletableFuture.completedFuture(END_OF_FILE));
+        } catch (InterruptedException e) {
+            // The consumer has stopped, nothing is waiting for more blocks.
+        }
+    }
+
+    /** Inflate a single block and parse it into osm-lib objects. Runs on one of the decoder threads. */
+    private static DecodedBlock decodeBlock (String type, byte[] blobBytes) throws IOException, DataFormatException {
+        Fileformat.Blob blob = Fileformat.Blob.parseFrom(blobBytes);
+        byte[] data;
+        if (blob.hasRaw()) {
+            data = blob.getRaw().toByteArray();
+        } else if (blob.hasZlibData()) {
+            data = new byte[blob.getRawSize()];
+            Inflater inflater = new Inflater();
+            inflater.setInput(blob.getZlibData().toByteArray());
+            inflater.inflate(data);
+            boolean finished = inflater.finished();
+            inflater.end();
+            if (!finished) {
+                throw new DataFormatException("PBF block did not inflate to its declared size.");
+            }
+        } else {
+            throw new IOException("PBF block uses an unsupported compression method.");
+        }
+        DecodedBlock block = new DecodedBlock();
+        if (type.equals("OSMHeader")) {
+            block.header = Osmformat.HeaderBlock.parseFrom(data);
+        } else if (type.equals("OSMData")) {
+            PBFInput blockParser = new PBFInput(null);
+            blockParser.entitySink = block;
+            blockParser.parse(Osmformat.PrimitiveBlock.parseFrom(data));
+        }
+        // Other block types are not defined by the PBF specification and are skipped.
+        return block;
+    }
+
+    /** Count the entities passing through to the sink, logging progress. */
+    private void writeEntity (long id, OSMEntity entity) throws IOException {
+        switch (entity.getType()) {
+            case NODE:
+                if (nodeCount++ % 5000000 == 0) {
+                    LOG.info("node {}", human(nodeCount));
+                }
+                entitySink.writeNode(id, (Node) entity);
+                break;
+            case WAY:
+                if (wayCount++ % 1000000 == 0) {
+                    LOG.info("way {}", human(wayCount));
+                }
+                entitySink.writeWay(id, (Way) entity);
+                break;
+            case RELATION:
+                if (relationCount++ % 100000 == 0) {
+                    LOG.info("relation {}", human(relationCount));
+                }
+                entitySink.writeRelation(id, (Relation) entity);
+                break;
+        }
+    }
+
+    /**
+     * The header or entities decoded from one block of the PBF file, buffered in file order until all previous blocks
+     * have been passed to the sink.
+     */
+    private static class DecodedBlock implements OSMEntitySink {
+
+        Osmformat.HeaderBlock header;
+
+        final TLongList ids = new TLongArrayList();
+
+        final List<OSMEntity> entities = new ArrayList<>();
+
+        void copyTo (PBFInput pbfInput) throws IOException {
+            for (int i = 0; i < entities.size(); i++) {
+                pbfInput.writeEntity(ids.get(i), entities.get(i));
+            }
+        }
+
+        @Override
+        public void writeNode (long id, Node node) {
+            ids.add(id);
+            entities.add(node);
+        }
+
+        @Override
+        public void writeWay (long id, Way way) {
+            ids.add(id);
+            entities.add(way);
+        }
+
+        @Override
+        public void writeRelation (long id, Relation relation) {
+            ids.add(id);
+            entities.add(relation);
+        }
+
+        @Override
+        public void writeBegin () { }
+
+        @Override
+        public void setReplicationTimestamp (long secondsSinceEpoch) { }
+
+        @Override
+        public void writeEnd () { }
+
+    }
+
 }
@@ -0,0 +1,202 @@
+package com.conveyal.osmlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A map from OSM entity IDs to entities, storing the entities as primitive values in off-heap columns sorted by ID,
+ * rather than as serialized objects in a MapDB tree. Entities are looked up by binary search on the ID column, and
+ * are only materialized as Java objects when they are requested.
+ *
+ * PBF files list the entities of each type in ascending ID order, so normally every entity is simply appended to the
+ * columns. Entities that arrive out of order, replacements and removals (e.g. from replication updates) are kept in a
+ * small on-heap map of overrides, which is consulted before the columns.
+ */
+abstract class PackedEntityMap<T extends OSMEntity> extends AbstractMap<Long, T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PackedEntityMap.class);
+
+    protected final TagInterner tagInterner;
+
+    private final OffHeapColumn ids = new OffHeapColumn(Long.BYTES);
+
+    private final OffHeapColumn tagLists = new OffHeapColumn(Integer.BYTES);
+
+    /** Entities not stored in the columns. A null value means the entity with that ID in the columns was removed. */
+    private final NavigableMap<Long, T> overrides = new TreeMap<>();
+
+    private int size = 0;
+
+    PackedEntityMap (TagInterner tagInterner) {
+        this.tagInterner = tagInterner;
+    }
+
+    /** Append the type-specific fields of the entity to the subclass columns. */
+    protected abstract void appendFields (T entity);
+
+    /** Create a new entity from the type-specific fields stored at the given index in the subclass columns. */
+    protected abstract T materialize (long index);
+
+    @Override
+    public T get (Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        long id = (Long) key;
+        if (!overrides.isEmpty() && overrides.containsKey(id)) {
+            return overrides.get(id);
+        }
+        long index = indexOf(id);
+        return index < 0 ? null : materializeWithTags(index);
+    }
+
+    @Override
+    public boolean containsKey (Object key) {
+        if (!(key instanceof Long)) {
+            return false;
+        }
+        long id = (Long) key;
+        if (!overrides.isEmpty() && overrides.containsKey(id)) {
+            return overrides.get(id) != null;
+        }
+        return indexOf(id) >= 0;
+    }
+
+    @Override
+    public T put (Long id, T entity) {
+        long nPacked = ids.size();
+        if ((nPacked == 0 || id > ids.getLong(nPacked - 1)) && !overrides.containsKey(id)) {
+            ids.addLong(id);
+            tagLists.addInt(tagInterner.intern(entity.tags));
+            appendFields(entity);
+            size += 1;
+            return null;
+        }
+        if (overrides.isEmpty()) {
+            LOG.warn("OSM entity IDs are not in ascending order. Entities out of order will be stored on the heap.");
+        }
+        T previous = get(id);
+        overrides.put(id, entity);
+        if (previous == null) {
+            size += 1;
+        }
+        return previous;
+    }
+
+    @Override
+    public T remove (Object key) {
+        T previous = get(key);
+        if (previous != null) {
+            long id = (Long) key;
+            if (indexOf(id) >= 0) {
+                overrides.put(id, null);
+            } else {
+                overrides.remove(id);
+            }
+            size -= 1;
+        }
+        return previous;
+    }
+
+    @Override
+    public int size () {
+        return size;
+    }
+
+    /** @return the index of the given ID in the columns, or -1 if it is not present. */
+    private long indexOf (long id) {
+        long low = 0;
+        long high = ids.size() - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long midId = ids.getLong(mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private T materializeWithTags (long index) {
+        T entity = materialize(index);
+        entity.tags = tagInterner.get(tagLists.getInt(index));
+        return entity;
+    }
+
+    /**
+     * Iterates over the entities in the columns in ID order, followed by any overrides. Entities are materialized one
+     * by one as the iteration proceeds.
+     */
+    @Override
+    public Set<Entry<Long, T>> entrySet () {
+        return new AbstractSet<Entry<Long, T>>() {
+            @Override
+            public Iterator<Entry<Long, T>> iterator () {
+                Iterator<Entry<Long, T>> overrideIterator = overrides.entrySet().iterator();
+                return new Iterator<Entry<Long, T>>() {
+                    long index = 0;
+                    Entry<Long, T> next = advance();
+
+                    private Entry<Long, T> advance () {
+                        while (index < ids.size()) {
+                            long i = index++;
+                            long id = ids.getLong(i);
+                            if (overrides.isEmpty() || !overrides.containsKey(id)) {
+                                return new SimpleImmutableEntry<>(id, materializeWithTags(i));
+                            }
+                        }
+                        while (overrideIterator.hasNext()) {
+                            Entry<Long, T> override = overrideIterator.next();
+                            if (override.getValue() != null) {
+                                return override;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext () {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Entry<Long, T> next () {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<Long, T> result = next;
+                        next = advance();
+                        return result;
+                    }
+                };
+            }
+
+            @Override
+            public int size () {
+                return size;
+            }
+        };
+    }
+
+    /** Release the off-heap storage. This map must not be used afterward. */
+    void close () {
+        ids.close();
+        tagLists.close();
+        closeFields();
+    }
+
+    protected abstract void closeFields ();
+
+}
@@ -0,0 +1,36 @@
+package com.conveyal.osmlib;
+
+/**
+ * Stores OSM nodes as fixed-point coordinates in off-heap columns. See PackedEntityMap.
+ */
+class PackedNodeMap extends PackedEntityMap<Node> {
+
+    private final OffHeapColumn fixedLats = new OffHeapColumn(Integer.BYTES);
+
+    private final OffHeapColumn fixedLons = new OffHeapColumn(Integer.BYTES);
+
+    PackedNodeMap (TagInterner tagInterner) {
+        super(tagInterner);
+    }
+
+    @Override
+    protected void appendFields (Node node) {
+        fixedLats.addInt(node.fixedLat);
+        fixedLons.addInt(node.fixedLon);
+    }
+
+    @Override
+    protected Node materialize (long index) {
+        Node node = new Node();
+        node.fixedLat = fixedLats.getInt(index);
+        node.fixedLon = fixedLons.getInt(index);
+        return node;
+    }
+
+    @Override
+    protected void closeFields () {
+        fixedLats.close();
+        fixedLons.close();
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.conveyal.osmlib;
+
+/**
+ * Stores OSM ways in off-heap columns, with the node references of all ways packed end to end in a single column.
+ * Each way records the position of its first node reference, and its last reference is just before the first one of
+ * the next way. See PackedEntityMap.
+ */
+class PackedWayMap extends PackedEntityMap<Way> {
+
+    private final OffHeapColumn firstNodeRef = new OffHeapColumn(Long.BYTES);
+
+    private final OffHeapColumn nodeRefs = new OffHeapColumn(Long.BYTES);
+
+    PackedWayMap (TagInterner tagInterner) {
+        super(tagInterner);
+    }
+
+    @Override
+    protected void appendFields (Way way) {
+        firstNodeRef.addLong(nodeRefs.size());
+        for (long nodeId : way.nodes) {
+            nodeRefs.addLong(nodeId);
+        }
+    }
+
+    @Override
+    protected Way materialize (long index) {
+        long begin = firstNodeRef.getLong(index);
+        long end = index + 1 < firstNodeRef.size() ? firstNodeRef.getLong(index + 1) : nodeRefs.size();
+        Way way = new Way();
+        way.nodes = new long[(int) (end - begin)];
+        for (int n = 0; n < way.nodes.length; n++) {
+            way.nodes[n] = nodeRefs.getLong(begin + n);
+        }
+        return way;
+    }
+
+    @Override
+    protected void closeFields () {
+        firstNodeRef.close();
+        nodeRefs.close();
+    }
+
+}
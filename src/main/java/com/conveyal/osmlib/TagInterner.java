@@ -0,0 +1,56 @@
+package com.conveyal.osmlib;
+
+import com.conveyal.osmlib.OSMEntity.Tag;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deduplicates the tag lists of OSM entities, so each distinct list of tags is stored only once and entities can refer
+ * to it by a single int. Most ways and tagged nodes share their exact tags with many others (highway=residential,
+ * highway=crossing etc.), and the individual tags and strings are shared even when the whole list is not.
+ *
+ * The interned lists are unmodifiable and their Tag objects are shared, so the tags of entities read from storage
+ * backed by this class must not be modified in place.
+ */
+class TagInterner {
+
+    /** The index used for entities with no tags. */
+    static final int NO_TAGS = -1;
+
+    private final Map<Tag, Tag> tags = new HashMap<>();
+
+    private final Map<List<Tag>, Integer> indexForTagList = new HashMap<>();
+
+    private final List<List<Tag>> tagLists = new ArrayList<>();
+
+    synchronized int intern (List<Tag> entityTags) {
+        if (entityTags == null || entityTags.isEmpty()) {
+            return NO_TAGS;
+        }
+        Integer index = indexForTagList.get(entityTags);
+        if (index == null) {
+            List<Tag> internedTags = new ArrayList<>(entityTags.size());
+            for (Tag tag : entityTags) {
+                internedTags.add(tags.computeIfAbsent(tag, t -> new Tag(t.key.intern(), t.value.intern())));
+            }
+            index = tagLists.size();
+            tagLists.add(Collections.unmodifiableList(internedTags));
+            indexForTagList.put(tagLists.get(index), index);
+        }
+        return index;
+    }
+
+    /** @return the tag list with the given index, or null for NO_TAGS. */
+    synchronized List<Tag> get (int index) {
+        return index == NO_TAGS ? null : tagLists.get(index);
+    }
+
+    synchronized int size () {
+        return tagLists.size();
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.conveyal.r5.analyst;
 
 import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.EgressCostTable;
 import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetLayer;
 import com.google.common.cache.CacheBuilder;
@@ -56,6 +57,12 @@ public class LinkageCache {
      */
     protected Map<Key, LinkedPointSet> linkageMap = new HashMap<>();
 
+    /**
+     * If non-null, linkages and their egress cost tables are persisted here once built, and read back in instead of
+     * being rebuilt when a new worker needs the same linkage. This is set by whatever loaded the network.
+     */
+    public transient LinkageDiskCache diskCache;
+
     /**
      * The logic for lazy-loading linkages into the cache.
      *
@@ -102,7 +109,17 @@ public class LinkageCache {
                 }
             }
 
-            // Case 2: We may already have a linkage for exactly the same PointSet, but for the base street layer
+            // Case 2: A previous worker may already have built exactly this linkage with its cost tables and stored it.
+            // This is checked before fetching any base linkage, which is not needed when reading a stored linkage.
+            // Cropped linkages are not stored, as cutting them out of a larger linkage (case 1) is fast.
+            if (diskCache != null) {
+                LinkedPointSet storedLinkage = diskCache.read(key.pointSet, key.streetLayer, key.streetMode);
+                if (storedLinkage != null) {
+                    return storedLinkage;
+                }
+            }
+
+            // Case 3: We may already have a linkage for exactly the same PointSet, but for the base street layer
             // on which a scenario street layer was built.
             // If this StreetLayer is a part of a scenario and is therefore wrapping a base StreetLayer we need
             // to recursively fetch / create a linkage for that base StreetLayer so we don't duplicate work.
@@ -145,6 +162,18 @@ public class LinkageCache {
         linkageMap.put(key, newLinkage);
     }
 
+    /**
+     * Called when a linkage has finished building its egress cost tables, to persist them for other workers.
+     * Cropped linkages and those serialized with the network are not passed to this method.
+     */
+    public void egressCostTableBuilt (LinkedPointSet linkage, EgressCostTable egressCostTable) {
+        if (diskCache == null) return;
+        Key key = new Key(linkage.pointSet, linkage.streetLayer, linkage.streetMode);
+        if (linkageMap.get(key) != linkage) {
+            diskCache.writeBehind(linkage, egressCostTable);
+        }
+    }
+
     public LinkageCache () {
         this.linkageCache = CacheBuilder.newBuilder()
                 .maximumSize(LINKAGE_CACHE_SIZE)
@@ -0,0 +1,325 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.file.FileStorage;
+import com.conveyal.file.FileStorageKey;
+import com.conveyal.r5.kryo.KryoNetworkSerializer;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.EgressCostTable;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.StreetLayer;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.locationtech.jts.geom.Envelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.conveyal.file.FileCategory.BUNDLES;
+
+/**
+ * Persists LinkedPointSets and their EgressCostTables in FileStorage, so that a freshly started worker does not have
+ * to relink the same PointSets and rebuild the same tables as the workers before it. Linking and building tables for
+ * a full-extent grid takes tens of seconds per mode, which delays the first results of every autoscaled worker.
+ *
+ * Files are content-addressed: the name is derived from the network and scenario IDs (which identify the street
+ * layer and transit stops, as scenarios are immutable once given an ID), a checksum of the point coordinates, and the
+ * street mode. A file is only written once the egress cost tables have been built, on a background thread so the
+ * worker can carry on using the tables in memory. Linkages whose cost tables are never built (e.g. those used only
+ * for access) are not persisted.
+ *
+ * The file is memory-mapped when read. The linkage and tables are held in int arrays, so they are bulk-copied out of
+ * the mapped file rather than used in place, but this avoids decoding them and is limited mainly by disk speed.
+ * The file consists of a header followed by little-endian ints: the point count and four linkage columns, the stop
+ * count, per-stop egress delays and reached envelopes (each preceded by a flag saying whether they are present), then
+ * each stop's cost table preceded by its length, or -1 for a null table.
+ */
+public class LinkageDiskCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LinkageDiskCache.class);
+
+    public static final byte[] HEADER = "R5LINKAGE".getBytes();
+
+    /** Increment this when the layout of the files changes, so files in the old layout are ignored. */
+    private static final String FILE_FORMAT_VERSION = "l1";
+
+    private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /** Size of the buffer used to stream ints out to the file. */
+    private static final int WRITE_BUFFER_BYTES = 1024 * 1024;
+
+    /** Maximum number of bytes mapped at once when reading, as a single mapping is limited to 2GB. */
+    private static final int MAP_WINDOW_BYTES = 256 * 1024 * 1024;
+
+    private final FileStorage fileStorage;
+
+    /** If false, this cache neither reads nor writes any linkage files. */
+    private final boolean enabled;
+
+    /** Writes files in the order they were requested, on a single daemon thread. */
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "linkage-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LinkageDiskCache (FileStorage fileStorage) {
+        this(fileStorage, true);
+    }
+
+    public LinkageDiskCache (FileStorage fileStorage, boolean enabled) {
+        this.fileStorage = fileStorage;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return a linkage with its egress cost tables already in place, read from a file written by an earlier call to
+     *         writeBehind, or null if there is no such file or it could not be read.
+     */
+    public LinkedPointSet read (PointSet pointSet, StreetLayer streetLayer, StreetMode streetMode) {
+        FileStorageKey key = fileStorageKey(pointSet, streetLayer, streetMode);
+        if (key == null) return null;
+        try {
+            if (!fileStorage.exists(key)) return null;
+            LOG.info("Memory-mapping linkage and egress cost tables for ({}, {}, {}).", pointSet, streetLayer, streetMode);
+            return read(fileStorage.getFile(key), pointSet, streetLayer, streetMode);
+        } catch (Exception e) {
+            LOG.error("Could not read linkage file {}, linking from scratch.", key.path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the supplied linkage and its egress cost tables to storage on a background thread. The tables are captured
+     * immediately, as the linkage may destructively transpose them for propagation before the file is written.
+     * @return a Future that completes when the file has been stored (or storing it has failed), or null if the
+     *         linkage will not be stored.
+     */
+    public Future<?> writeBehind (LinkedPointSet linkage, EgressCostTable egressCostTable) {
+        FileStorageKey key = fileStorageKey(linkage.pointSet, linkage.streetLayer, linkage.streetMode);
+        if (key == null) return null;
+        List<int[]> stopToPointTables = egressCostTable.stopToPointLinkageCostTables;
+        int[] egressStopDelaysSeconds = egressCostTable.egressStopDelaysSeconds;
+        Envelope[] stopReachedEnvelopes = egressCostTable.getStopReachedEnvelopes();
+        return writeExecutor.submit(() -> {
+            try {
+                if (fileStorage.exists(key)) return;
+                File file = File.createTempFile("linkage", ".tmp");
+                write(file, linkage, stopToPointTables, egressStopDelaysSeconds, stopReachedEnvelopes);
+                fileStorage.moveIntoStorage(key, file);
+                LOG.info("Stored linkage and egress cost tables as {}.", key.path);
+            } catch (Exception e) {
+                LOG.error("Could not store linkage file {}.", key.path, e);
+            }
+        });
+    }
+
+    /**
+     * @return the key under which the linkage is stored, or null if it should not be stored because this cache is
+     *         disabled or the network or scenario has no ID to distinguish it from others.
+     */
+    private FileStorageKey fileStorageKey (PointSet pointSet, StreetLayer streetLayer, StreetMode streetMode) {
+        StreetLayer baseStreetLayer = streetLayer.isScenarioCopy() ? streetLayer.baseStreetLayer : streetLayer;
+        if (!enabled || streetLayer.parentNetwork == null || streetLayer.parentNetwork.scenarioId == null
+                || baseStreetLayer.parentNetwork == null || baseStreetLayer.parentNetwork.scenarioId == null) {
+            return null;
+        }
+        String filename = String.format("%s_%s_%s_%s_%s_%s.linkage",
+                baseStreetLayer.parentNetwork.scenarioId,
+                streetLayer.parentNetwork.scenarioId,
+                pointSetChecksum(pointSet),
+                streetMode.toString().toLowerCase(),
+                KryoNetworkSerializer.NETWORK_FORMAT_VERSION,
+                FILE_FORMAT_VERSION
+        );
+        return new FileStorageKey(BUNDLES, filename);
+    }
+
+    /** A hash of the coordinates of all points, which are the only characteristic of a PointSet affecting linkage. */
+    private static String pointSetChecksum (PointSet pointSet) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (int p = 0; p < pointSet.featureCount(); p++) {
+            hasher.putDouble(pointSet.getLat(p));
+            hasher.putDouble(pointSet.getLon(p));
+        }
+        return hasher.hash().toString();
+    }
+
+    private static void write (File file, LinkedPointSet linkage, List<int[]> stopToPointTables,
+                               int[] egressStopDelaysSeconds, Envelope[] stopReachedEnvelopes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            IntWriter writer = new IntWriter(channel);
+            writer.buffer.put(HEADER);
+            while (writer.buffer.position() % Integer.BYTES != 0) writer.buffer.put((byte) 0);
+            writer.putInt(linkage.size());
+            writer.putInts(linkage.edges);
+            writer.putInts(linkage.distancesToEdge_mm);
+            writer.putInts(linkage.distances0_mm);
+            writer.putInts(linkage.distances1_mm);
+            int nStops = stopToPointTables.size();
+            writer.putInt(nStops);
+            writer.putInt(egressStopDelaysSeconds == null ? 0 : 1);
+            if (egressStopDelaysSeconds != null) {
+                writer.putInts(egressStopDelaysSeconds);
+            }
+            writer.putInt(stopReachedEnvelopes == null ? 0 : 1);
+            if (stopReachedEnvelopes != null) {
+                for (Envelope envelope : stopReachedEnvelopes) {
+                    if (envelope == null) {
+                        writer.putInt(0);
+                    } else {
+                        // Round outward to whole fixed-point units, so the stored envelope still contains everything.
+                        writer.putInt(1);
+                        writer.putInt((int) Math.floor(envelope.getMinX()));
+                        writer.putInt((int) Math.ceil(envelope.getMaxX()));
+                        writer.putInt((int) Math.floor(envelope.getMinY()));
+                        writer.putInt((int) Math.ceil(envelope.getMaxY()));
+                    }
+                }
+            }
+            for (int[] table : stopToPointTables) {
+                if (table == null) {
+                    writer.putInt(-1);
+                } else {
+                    writer.putInt(table.length);
+                    writer.putInts(table);
+                }
+            }
+            writer.flush();
+        }
+    }
+
+    private static LinkedPointSet read (File file, PointSet pointSet, StreetLayer streetLayer, StreetMode streetMode)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER.length);
+            channel.read(header, 0);
+            if (!Arrays.equals(HEADER, header.array())) {
+                throw new RuntimeException("Unrecognized file header. Is this an R5 linkage file?");
+            }
+            IntReader reader = new IntReader(channel, (HEADER.length + Integer.BYTES - 1) / Integer.BYTES);
+            int nPoints = reader.getInt();
+            if (nPoints != pointSet.featureCount()) {
+                throw new RuntimeException("Linkage file does not have the same number of points as the PointSet.");
+            }
+            int[] edges = reader.getInts(nPoints);
+            int[] distancesToEdge_mm = reader.getInts(nPoints);
+            int[] distances0_mm = reader.getInts(nPoints);
+            int[] distances1_mm = reader.getInts(nPoints);
+            LinkedPointSet linkage = new LinkedPointSet(pointSet, streetLayer, streetMode,
+                    edges, distancesToEdge_mm, distances0_mm, distances1_mm);
+            int nStops = reader.getInt();
+            int[] egressStopDelaysSeconds = reader.getInt() == 0 ? null : reader.getInts(nStops);
+            Envelope[] stopReachedEnvelopes = null;
+            if (reader.getInt() != 0) {
+                stopReachedEnvelopes = new Envelope[nStops];
+                for (int s = 0; s < nStops; s++) {
+                    if (reader.getInt() != 0) {
+                        int[] bounds = reader.getInts(4);
+                        stopReachedEnvelopes[s] = new Envelope(bounds[0], bounds[1], bounds[2], bounds[3]);
+                    }
+                }
+            }
+            List<int[]> stopToPointTables = new ArrayList<>(nStops);
+            for (int s = 0; s < nStops; s++) {
+                int length = reader.getInt();
+                stopToPointTables.add(length < 0 ? null : reader.getInts(length));
+            }
+            linkage.setEgressCostTable(EgressCostTable.fromStoredTables(
+                    linkage, stopToPointTables, egressStopDelaysSeconds, stopReachedEnvelopes));
+            return linkage;
+        }
+    }
+
+    /** Streams ints out to a file through a buffer, in the same way as MappedStreetColumns. */
+    private static class IntWriter {
+
+        final FileChannel channel;
+
+        final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES).order(BYTE_ORDER);
+
+        IntWriter (FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt (int value) throws IOException {
+            if (buffer.remaining() < Integer.BYTES) flush();
+            buffer.putInt(value);
+        }
+
+        void putInts (int[] values) throws IOException {
+            for (int value : values) putInt(value);
+        }
+
+        void flush () throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+    }
+
+    /**
+     * Reads ints sequentially from a file by mapping successive windows of it, as the tables for car egress can
+     * exceed the 2GB limit of a single mapping.
+     */
+    private static class IntReader {
+
+        final FileChannel channel;
+
+        final long fileInts;
+
+        /** The position in the file, in ints, of the start of the current window. */
+        long windowStart;
+
+        IntBuffer window = IntBuffer.allocate(0);
+
+        IntReader (FileChannel channel, long startInts) throws IOException {
+            this.channel = channel;
+            this.fileInts = channel.size() / Integer.BYTES;
+            this.windowStart = startInts;
+        }
+
+        int getInt () throws IOException {
+            if (!window.hasRemaining()) mapNextWindow();
+            return window.get();
+        }
+
+        int[] getInts (int n) throws IOException {
+            int[] values = new int[n];
+            int copied = 0;
+            while (copied < n) {
+                if (!window.hasRemaining()) mapNextWindow();
+                int count = Math.min(n - copied, window.remaining());
+                window.get(values, copied, count);
+                copied += count;
+            }
+            return values;
+        }
+
+        private void mapNextWindow () throws IOException {
+            windowStart += window.capacity();
+            long windowInts = Math.min(MAP_WINDOW_BYTES / Integer.BYTES, fileInts - windowStart);
+            if (windowInts <= 0) {
+                throw new IOException("Unexpected end of linkage file.");
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart * Integer.BYTES,
+                    windowInts * Integer.BYTES).order(BYTE_ORDER).asIntBuffer();
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.conveyal.r5.analyst;
+
+import java.util.Arrays;
+
+/**
+ * Finds the values that would appear at a few given indexes of an array of ints if it were sorted, without sorting
+ * the whole array. This is a multi-quickselect: the array is partitioned around a pivot as in quicksort, but only the
+ * partitions containing one of the requested indexes are processed further. With the handful of percentiles requested
+ * in an analysis, this does much less work than a full sort of the travel times at each destination.
+ *
+ * Because we are only dealing with ints, the values found are exactly those a full sort would place at the same
+ * indexes. To guarantee good worst-case behavior, after too many unproductive partitioning steps the remaining range
+ * falls back on a full sort (as in introselect). Nothing is allocated, so this can be called in tight loops.
+ */
+public abstract class PercentileSelector {
+
+    /** Below this many elements, partitioning is not worth it and ranges are simply insertion sorted. */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /**
+     * Rearrange the values in place so that at each of the given indexes, the array holds the value that a full sort
+     * would place there. The values are then copied out into the result array.
+     * @param values the values to select from, which will be partially sorted in place.
+     * @param sortedIndexes the indexes of the values to find, in ascending order. Repeated indexes are allowed.
+     * @param result an array of the same length as sortedIndexes, which will receive the values at those indexes.
+     */
+    public static void select (int[] values, int[] sortedIndexes, int[] result) {
+        int maxDepth = 2 * (32 - Integer.numberOfLeadingZeros(values.length));
+        select(values, 0, values.length, sortedIndexes, 0, sortedIndexes.length, maxDepth);
+        for (int i = 0; i < sortedIndexes.length; i++) {
+            result[i] = values[sortedIndexes[i]];
+        }
+    }
+
+    /**
+     * Recursive step: ensure that the requested indexes from indexFrom (inclusive) to indexTo (exclusive), which all
+     * fall within the range of values from (inclusive) to (exclusive), hold their sorted values.
+     */
+    private static void select (
+            int[] values, int from, int to, int[] indexes, int indexFrom, int indexTo, int depthRemaining
+    ) {
+        if (indexFrom >= indexTo) {
+            return;
+        }
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(values, from, to);
+            return;
+        }
+        if (depthRemaining == 0) {
+            Arrays.sort(values, from, to);
+            return;
+        }
+        // Three-way partition around the median of the first, middle and last values: values less than the pivot
+        // end up in [from, lessEnd), values equal to the pivot in [lessEnd, greaterStart), and greater values in
+        // [greaterStart, to). This keeps runs of identical travel times (e.g. unreachable) from degrading performance.
+        int pivot = medianOfThree(values[from], values[(from + to) >>> 1], values[to - 1]);
+        int lessEnd = from;
+        int greaterStart = to;
+        int i = from;
+        while (i < greaterStart) {
+            int value = values[i];
+            if (value < pivot) {
+                swap(values, i++, lessEnd++);
+            } else if (value > pivot) {
+                swap(values, i, --greaterStart);
+            } else {
+                i++;
+            }
+        }
+        // Split the requested indexes between the lower and upper partitions. Those falling in the middle partition
+        // already hold their final values.
+        int lowerIndexTo = indexFrom;
+        while (lowerIndexTo < indexTo && indexes[lowerIndexTo] < lessEnd) lowerIndexTo++;
+        int upperIndexFrom = lowerIndexTo;
+        while (upperIndexFrom < indexTo && indexes[upperIndexFrom] < greaterStart) upperIndexFrom++;
+        select(values, from, lessEnd, indexes, indexFrom, lowerIndexTo, depthRemaining - 1);
+        select(values, greaterStart, to, indexes, upperIndexFrom, indexTo, depthRemaining - 1);
+    }
+
+    private static int medianOfThree (int a, int b, int c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private static void insertionSort (int[] values, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            int value = values[i];
+            int j = i - 1;
+            while (j >= from && values[j] > value) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+    }
+
+    private static void swap (int[] values, int i, int j) {
+        int tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+
+}
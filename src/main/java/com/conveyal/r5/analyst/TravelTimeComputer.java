@@ -295,6 +295,7 @@ public class TravelTimeComputer {
                 // TODO do we really need to save all states just to get the travel time breakdown?
                 worker.retainPaths = true;
             }
+            worker.departureMinuteShards = request.departureMinuteShards;
             // Run the main RAPTOR algorithm to find paths and travel times to all stops in the network.
             // Returns the total travel times as a 2D array of [searchIteration][destinationStopIndex].
             // Additional detailed path information is retained in the FastRaptorWorker after routing.
@@ -308,6 +309,7 @@ public class TravelTimeComputer {
                             departureTime + request.maxTripDurationMinutes * FastRaptorWorker.SECONDS_PER_MINUTE);
             McRaptorSuboptimalPathProfileRouter mcRaptorWorker = new McRaptorSuboptimalPathProfileRouter(network,
                     request, null, null, listSupplier, InRoutingFareCalculator.getCollator(request));
+            mcRaptorWorker.allowRangeRaptor = request.fareSearchRangeRaptor;
             mcRaptorWorker.route();
             transitTravelTimesToStops = mcRaptorWorker.getBestTimes();
         }
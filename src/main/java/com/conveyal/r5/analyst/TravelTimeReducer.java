@@ -68,6 +68,13 @@ public class TravelTimeReducer {
      */
     private int[] zeroPointsForCutoffs;
 
+    /**
+     * For each cutoff, the decay function weights for every travel time in seconds below the zero point for that
+     * cutoff, so the inner accumulation loop does not evaluate the decay function. These are shared with every other
+     * reducer using the same prepared decay function.
+     */
+    private double[][] weightTablesForCutoffs;
+
     /**
      * The number of travel times we will record at each destination.
      * This is affected by the number of Monte Carlo draws requested and the departure time window.
@@ -77,6 +84,13 @@ public class TravelTimeReducer {
     /** Provides a weighting factor for opportunities at a given travel time. */
     private final DecayFunction decayFunction;
 
+    /**
+     * Scratch buffers reused for every target, to avoid allocating small arrays in tight loops. Note that this means
+     * a reducer must only be used by one thread at a time.
+     */
+    private final int[] percentileTravelTimesSeconds;
+    private final int[] percentileTravelTimesMinutes;
+
     /**
      * Reduce travel time values to requested summary outputs for each origin. The type of output (a single
      * cumulative opportunity accessibility value per origin, or selected percentiles of travel times to all
@@ -109,6 +123,8 @@ public class TravelTimeReducer {
         for (int p = 0; p < nPercentiles; p++) {
             percentileIndexes[p] = findPercentileIndex(timesPerDestination, task.percentiles[p]);
         }
+        this.percentileTravelTimesSeconds = new int[nPercentiles];
+        this.percentileTravelTimesMinutes = new int[nPercentiles];
 
         // Decide whether we want to retain travel times to all destinations for this origin.
         // This is currently only used with regional tasks when origins are freeform pointsets.
@@ -151,10 +167,12 @@ public class TravelTimeReducer {
             this.nCutoffs = task.cutoffsMinutes.length;
             this.cutoffsSeconds = new int[nCutoffs];
             this.zeroPointsForCutoffs = new int[nCutoffs];
+            this.weightTablesForCutoffs = new double[nCutoffs][];
             for (int c = 0; c < nCutoffs; c++) {
                 final int cutoffSeconds = task.cutoffsMinutes[c] * 60;
                 this.cutoffsSeconds[c] = cutoffSeconds;
-                this.zeroPointsForCutoffs[c] = decayFunction.reachesZeroAt(cutoffSeconds);
+                this.weightTablesForCutoffs[c] = decayFunction.getWeightTable(cutoffSeconds);
+                this.zeroPointsForCutoffs[c] = weightTablesForCutoffs[c].length;
             }
         }
 
@@ -185,17 +203,17 @@ public class TravelTimeReducer {
      * @param timeSeconds a single travel time for results with no variation, e.g. from walking, biking, or driving.
      */
     public void recordUnvaryingTravelTimeAtTarget (int target, int timeSeconds){
-        int[] travelTimePercentilesSeconds = new int[nPercentiles];
-        Arrays.fill(travelTimePercentilesSeconds, timeSeconds);
-        recordTravelTimePercentilesForTarget(target, travelTimePercentilesSeconds);
+        Arrays.fill(percentileTravelTimesSeconds, timeSeconds);
+        recordTravelTimePercentilesForTarget(target, percentileTravelTimesSeconds);
     }
 
     /**
      * Given a list of travel times of the expected length, extract the requested percentiles, then record those values
-     * at the specified target. WARNING: this method destructively sorts the supplied times travel in place.
-     * Their positions in the array will no longer correspond to the raptor iterations that produced them.
+     * at the specified target. WARNING: this method destructively reorders the supplied travel times in place.
+     * Their positions in the array will no longer correspond to the raptor iterations that produced them, but they
+     * are only partially sorted: only the percentile indexes are guaranteed to hold their sorted values.
      *
-     * @param timesSeconds which will be destructively sorted in place to extract percentiles.
+     * @param timesSeconds which will be destructively reordered in place to extract percentiles.
      */
     public void extractTravelTimePercentilesAndRecord (int target, int[] timesSeconds) {
         checkArgument(timesSeconds.length == timesPerDestination,
@@ -206,15 +224,12 @@ public class TravelTimeReducer {
         if (travelTimeResult != null) {
             travelTimeResult.recordHistogramIfEnabled(target, timesSeconds);
         }
-        // Sort the travel times to this target and extract percentiles at the pre-calculated percentile indexes.
+        // Extract percentiles at the pre-calculated percentile indexes, giving exactly the values a full sort would.
         // We used to convert these to minutes before sorting, which may allow the sort to be more efficient.
         // We even had a prototype counting sort that would take advantage of this detail. However, applying distance
         // decay functions with one-second resolution decreases sensitivity to randomization error in travel times.
-        Arrays.sort(timesSeconds);
-        int[] percentileTravelTimesSeconds = new int[nPercentiles];
-        for (int p = 0; p < nPercentiles; p++) {
-            percentileTravelTimesSeconds[p] = timesSeconds[percentileIndexes[p]];
-        }
+        // With only a few percentiles, selecting them is much faster than sorting all the travel times.
+        PercentileSelector.select(timesSeconds, percentileIndexes, percentileTravelTimesSeconds);
         recordTravelTimePercentilesForTarget(target, percentileTravelTimesSeconds);
     }
 
@@ -230,7 +245,6 @@ public class TravelTimeReducer {
             checkArgument(i >= 0, "Travel times must be positive.");
         }
         if (calculateTravelTimes) {
-            int[] percentileTravelTimesMinutes = new int[nPercentiles];
             for (int p = 0; p < nPercentiles; p++) {
                 percentileTravelTimesMinutes[p] = convertToMinutes(travelTimePercentilesSeconds[p]);
             }
@@ -255,14 +269,13 @@ public class TravelTimeReducer {
                     // Iterate backward through sorted cutoffs, to allow early bail-out when travel time exceeds the
                     // point where the decay function reaches zero weight.
                     for (int c = nCutoffs - 1; c >= 0; c--) {
-                        final int cutoffSeconds = cutoffsSeconds[c];
                         if (travelTimeSeconds >= zeroPointsForCutoffs[c]) {
                             break;
                         }
-                        // Precomputing travel weight factors does not seem practical, as it would involve a
-                        // 7200x7200 matrix containing about 415MB of coefficients. Reading through that much memory
-                        // may well be slower than computing the coefficient each time it's needed.
-                        double weightFactor = decayFunction.computeWeight(cutoffSeconds, travelTimeSeconds);
+                        // A full table of weight factors for every cutoff and travel time in seconds would be a
+                        // 7200x7200 matrix containing about 415MB of coefficients. But the tables only need to cover
+                        // the requested cutoffs, and only the travel times below each zero point.
+                        double weightFactor = weightTablesForCutoffs[c][travelTimeSeconds];
                         if (weightFactor > 0) {
                             double weightedOpportunityCount = opportunityCountAtTarget * weightFactor;
                             accessibilityResult.incrementAccessibility(d, p, c, weightedOpportunityCount);
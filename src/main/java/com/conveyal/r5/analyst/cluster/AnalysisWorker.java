@@ -11,6 +11,7 @@ import com.conveyal.r5.analyst.NetworkPreloader;
 import com.conveyal.r5.analyst.PersistenceBuffer;
 import com.conveyal.r5.analyst.PointSetCache;
 import com.conveyal.r5.analyst.TravelTimeComputer;
+import com.conveyal.r5.analyst.decay.DecayFunction;
 import com.conveyal.r5.analyst.error.TaskError;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.transit.TransportNetwork;
@@ -19,12 +20,16 @@ import com.conveyal.r5.transitive.TransitiveNetwork;
 import com.conveyal.r5.util.AsyncLoader;
 import com.conveyal.r5.util.ExceptionUtils;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.io.LittleEndianDataOutputStream;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
@@ -41,11 +46,9 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 import static com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask.Format.GEOTIFF;
@@ -69,6 +72,14 @@ public class AnalysisWorker implements Component {
         String brokerAddress();
         String brokerPort();
         String initialGraphId();
+
+        /**
+         * Whether to send work results to the broker in the compact BinaryWorkResults format when the broker says it
+         * accepts them, rather than as JSON. This is a hidden option, override to return false to compare the two.
+         */
+        default boolean binaryWorkResults () {
+            return true;
+        }
     }
 
     // CONSTANTS
@@ -85,6 +96,17 @@ public class AnalysisWorker implements Component {
      */
     private static final int HTTP_CLIENT_TIMEOUT_SEC = 55;
 
+    /**
+     * The worker tries to keep enough regional tasks queued or running to keep all its processors busy for this many
+     * seconds, at the recently measured time per task. It requests more tasks from the broker as soon as half of them
+     * are done, so the next batch arrives before the current one drains.
+     */
+    public static final int TASK_BACKLOG_SECONDS = 10;
+
+    /** Limits on the number of regional tasks to keep queued or running per processor, however long tasks take. */
+    public static final int MIN_TASKS_PER_PROCESSOR = 2;
+    public static final int MAX_TASKS_PER_PROCESSOR = 64;
+
     // STATIC FIELDS
 
     /**
@@ -129,6 +151,12 @@ public class AnalysisWorker implements Component {
     /** The last time (in milliseconds since the epoch) that we polled for work. */
     private long lastPollingTime;
 
+    /**
+     * The value of the BinaryWorkResults.ACCEPT_HEADER on the last poll response from the broker: the content encoding
+     * to use when sending results in binary, or null if the broker only accepts JSON.
+     */
+    private String brokerBinaryResultEncoding;
+
     /** Keep track of how many tasks per minute this worker is processing, broken down by scenario ID. */
     private final ThroughputTracker throughputTracker = new ThroughputTracker();
 
@@ -154,6 +182,13 @@ public class AnalysisWorker implements Component {
      */
     private final PointSetCache pointSetCache;
 
+    /**
+     * Every task in a regional job has the same decay function, but each task is deserialized with its own copy.
+     * Tasks are given the single prepared copy for their job, so that weight tables it computes for each cutoff are
+     * reused across all origins of the job rather than rebuilt for every origin. Keyed on job ID.
+     */
+    private final Cache<String, DecayFunction> preparedDecayFunctions = Caffeine.newBuilder().maximumSize(16).build();
+
     /** Information about the EC2 instance (if any) this worker is running on. */
     public EC2Info ec2info;
 
@@ -161,14 +196,17 @@ public class AnalysisWorker implements Component {
     protected String networkId = null;
 
     /**
-     * A queue to hold a backlog of regional analysis tasks.
+     * A work-stealing pool holding a backlog of regional analysis tasks, with one thread per processor.
      * This avoids "slow joiner" syndrome where we wait to poll for more work until all N fetched tasks have finished,
      * but one of the tasks takes much longer than all the rest.
-     * This should be long enough to hold all that have come in - we don't need to block on polling the manager.
+     * Its queue is unbounded: the size of the backlog is controlled by how many tasks we request from the broker.
      * Can this be replaced with the general purpose TaskScheduler component?
      * That will depend whether all TaskScheduler Tasks are tracked in a way intended to be visible to users.
      */
-    private ThreadPoolExecutor regionalTaskExecutor;
+    private ExecutorService regionalTaskExecutor;
+
+    /** The number of regional tasks handed to the regionalTaskExecutor that have not yet finished. */
+    private final AtomicInteger nRegionalTasksInFlight = new AtomicInteger();
 
     private final EventBus eventBus;
 
@@ -199,75 +237,88 @@ public class AnalysisWorker implements Component {
     /** The main worker event loop which fetches tasks from a broker and schedules them for execution. */
     public void startPolling () {
 
-        // Create executors with up to one thread per processor.
-        // The default task rejection policy is "Abort".
-        // The executor's queue is rather long because some tasks complete very fast and we poll max once per second.
+        // Create a work-stealing executor with one thread per processor.
         int availableProcessors = Runtime.getRuntime().availableProcessors();
         LOG.debug("Java reports the number of available processors is: {}", availableProcessors);
-        int maxThreads = availableProcessors;
-        int taskQueueLength = availableProcessors * 6;
-        LOG.debug("Maximum number of regional processing threads is {}, length of task queue is {}.", maxThreads, taskQueueLength);
-        BlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<>(taskQueueLength);
-        regionalTaskExecutor = new ThreadPoolExecutor(1, maxThreads, 60, TimeUnit.SECONDS, taskQueue);
+        regionalTaskExecutor = Executors.newWorkStealingPool(availableProcessors);
 
         // Main polling loop to fill the regional work queue.
         // Go into an endless loop polling for regional tasks that can be computed asynchronously.
-        // You'd think the ThreadPoolExecutor could just block when the blocking queue is full, but apparently
-        // people all over the world have been jumping through hoops to try to achieve this simple behavior
-        // with no real success, at least without writing bug and deadlock-prone custom executor services.
-        // Two alternative approaches are trying to keep the queue full and waiting for the queue to be almost empty.
-        // To keep the queue full, we repeatedly try to add each task to the queue, pausing and retrying when
-        // it's full. To wait until it's almost empty, we could use wait() in a loop and notify() as tasks are handled.
-        // see https://stackoverflow.com/a/15185004/778449
-        // A simpler approach might be to spin-wait checking whether the queue is low and sleeping briefly,
-        // then fetch more work only when the queue is getting empty.
+        // Previously the executor had a fixed-length queue, and we repeatedly tried to add each fetched task to it,
+        // sleeping a second whenever it was full. Origins vary in cost by orders of magnitude, so a fixed queue was
+        // either far too short for cheap rural origins, leaving processors idle during the sleep, or far too long
+        // for expensive downtown ones. Instead we request from the broker only as many tasks as we expect to finish
+        // in the next few seconds, and fetch the next batch as soon as half of those are done.
         while (true) {
-            List<RegionalTask> tasks = getSomeWork();
+            int targetTasksInFlight = targetRegionalTasksInFlight(availableProcessors);
+            // Poll anyway every POLL_WAIT_SECONDS while waiting, to return results and show the broker we're alive.
+            while (nRegionalTasksInFlight.get() > targetTasksInFlight / 2
+                    && System.currentTimeMillis() - lastPollingTime < POLL_WAIT_SECONDS * 1000) {
+                sleepMillis(100);
+            }
+            int nTasksWanted = Math.max(targetTasksInFlight - nRegionalTasksInFlight.get(), 0);
+            List<RegionalTask> tasks = getSomeWork(nTasksWanted);
             if (tasks == null || tasks.isEmpty()) {
-                // Either there was no work, or some kind of error occurred.
-                // Sleep for a while before polling again, adding a random component to spread out the polling load.
-                // TODO only randomize delay on the first round, after that it's excessive.
-                int randomWait = random.nextInt(POLL_MAX_RANDOM_WAIT);
-                LOG.debug("Polling the broker did not yield any regional tasks. Sleeping {} + {} sec.", POLL_WAIT_SECONDS, randomWait);
-                sleepSeconds(POLL_WAIT_SECONDS + randomWait);
+                if (nTasksWanted > 0) {
+                    // Either there was no work, or some kind of error occurred.
+                    // Sleep for a while before polling again, adding a random component to spread out the polling load.
+                    // TODO only randomize delay on the first round, after that it's excessive.
+                    int randomWait = random.nextInt(POLL_MAX_RANDOM_WAIT);
+                    LOG.debug("Polling the broker did not yield any regional tasks. Sleeping {} + {} sec.", POLL_WAIT_SECONDS, randomWait);
+                    sleepSeconds(POLL_WAIT_SECONDS + randomWait);
+                }
                 continue;
             }
             for (RegionalTask task : tasks) {
-                // Try to enqueue each task for execution, repeatedly failing until the queue is not full.
-                // The list of fetched tasks essentially serves as a secondary queue, which is awkward. This is using
-                // exceptions for normal flow control, which is nasty. We should do this differently (#596).
-                while (true) {
-                    try {
-                        // TODO define non-anonymous runnable class to instantiate here, specifically for async regional tasks.
-                        regionalTaskExecutor.execute(() -> {
-                            try {
-                                this.handleOneRegionalTask(task);
-                            } catch (Throwable t) {
-                                LOG.error(
-                                    "An error occurred while handling a regional task, reporting to backend. {}",
-                                    ExceptionUtils.stackTraceString(t)
-                                );
-                                synchronized (workResults) {
-                                    workResults.add(new RegionalWorkResult(t, task));
-                                }
-                            }
-                        });
-                        break;
-                    } catch (RejectedExecutionException e) {
-                        // Queue is full, wait a bit and try to feed it more tasks. If worker handles all tasks in its
-                        // internal queue in less than 1 second, this is a speed bottleneck. This happens with regions
-                        // unconnected to transit and with very small travel time cutoffs.
-                        sleepSeconds(1);
-                    }
-                }
+                executeRegionalTask(task);
             }
         }
     }
 
+    /**
+     * The number of regional tasks to keep queued or running, enough to keep every processor busy for
+     * TASK_BACKLOG_SECONDS at the recently measured time per task. Before any tasks have finished, this is the minimum.
+     */
+    private int targetRegionalTasksInFlight (int nProcessors) {
+        double meanTaskMillis = throughputTracker.getMeanTaskMillis();
+        int tasksPerProcessor = MIN_TASKS_PER_PROCESSOR;
+        if (meanTaskMillis > 0) {
+            tasksPerProcessor = (int) Math.ceil(TASK_BACKLOG_SECONDS * 1000 / meanTaskMillis);
+            tasksPerProcessor = Math.max(MIN_TASKS_PER_PROCESSOR, Math.min(tasksPerProcessor, MAX_TASKS_PER_PROCESSOR));
+        }
+        return nProcessors * tasksPerProcessor;
+    }
+
+    private void executeRegionalTask (RegionalTask task) {
+        nRegionalTasksInFlight.incrementAndGet();
+        // TODO define non-anonymous runnable class to instantiate here, specifically for async regional tasks.
+        regionalTaskExecutor.execute(() -> {
+            long startTime = System.currentTimeMillis();
+            try {
+                this.handleOneRegionalTask(task);
+            } catch (Throwable t) {
+                LOG.error(
+                    "An error occurred while handling a regional task, reporting to backend. {}",
+                    ExceptionUtils.stackTraceString(t)
+                );
+                synchronized (workResults) {
+                    workResults.add(new RegionalWorkResult(t, task));
+                }
+            } finally {
+                throughputTracker.recordTaskDuration(System.currentTimeMillis() - startTime);
+                nRegionalTasksInFlight.decrementAndGet();
+            }
+        });
+    }
+
     /** Bypass idiotic java checked exceptions. */
     public static void sleepSeconds (int seconds) {
+        sleepMillis(seconds * 1000L);
+    }
+
+    public static void sleepMillis (long millis) {
         try {
-            Thread.sleep(seconds * 1000L);
+            Thread.sleep(millis);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
@@ -386,7 +437,11 @@ public class AnalysisWorker implements Component {
         // Save the existing hard-cutoff value which is used when saving travel times.
         // TODO this needs to happen for both regional and single point tasks when calculating accessibility on the worker
         {
-            task.decayFunction.prepare();
+            final DecayFunction taskDecayFunction = task.decayFunction;
+            task.decayFunction = preparedDecayFunctions.get(task.jobId, jobId -> {
+                taskDecayFunction.prepare();
+                return taskDecayFunction;
+            });
             int maxCutoffMinutes = Arrays.stream(task.cutoffsMinutes).max().getAsInt();
             int maxTripDurationSeconds = task.decayFunction.reachesZeroAt(maxCutoffMinutes * SECONDS_PER_MINUTE);
             int maxTripDurationMinutes = (int)(Math.ceil(maxTripDurationSeconds / 60D));
@@ -537,12 +592,14 @@ public class AnalysisWorker implements Component {
      * Ask the backend if it has any work for this worker, considering its software version and loaded networks.
      * Also report the worker status to the backend, serving as a heartbeat so the backend knows this worker is alive.
      * Also returns any accumulated work results to the backend.
+     * @param maxTasks the most tasks the broker should send. This may be zero to only report status and results.
      * @return a list of work tasks, or null if there was no work to do, or if no work could be fetched.
      */
-    public List<RegionalTask> getSomeWork () {
+    public List<RegionalTask> getSomeWork (int maxTasks) {
         String url = brokerBaseUrl + "/poll";
         HttpPost httpPost = new HttpPost(url);
         WorkerStatus workerStatus = new WorkerStatus(this);
+        workerStatus.maxTasksRequested = maxTasks;
         // Include all completed work results when polling the backend.
         // Atomically copy and clear the accumulated work results, while blocking writes from other threads.
         synchronized (workResults) {
@@ -560,11 +617,23 @@ public class AnalysisWorker implements Component {
         workerStatus.secondsSinceLastPoll = (timeNow - lastPollingTime) / 1000D;
         lastPollingTime = timeNow;
 
-        httpPost.setEntity(JsonUtilities.objectToJsonHttpEntity(workerStatus));
         HttpEntity responseEntity = null;
         try {
+            if (config.binaryWorkResults() && brokerBinaryResultEncoding != null) {
+                boolean gzip = BinaryWorkResults.GZIP.equals(brokerBinaryResultEncoding);
+                ByteArrayEntity entity = new ByteArrayEntity(BinaryWorkResults.encode(workerStatus, gzip));
+                entity.setContentType(BinaryWorkResults.CONTENT_TYPE);
+                if (gzip) entity.setContentEncoding(BinaryWorkResults.GZIP);
+                httpPost.setEntity(entity);
+            } else {
+                httpPost.setEntity(JsonUtilities.objectToJsonHttpEntity(workerStatus));
+            }
             HttpResponse response = httpClient.execute(httpPost);
             responseEntity = response.getEntity();
+            // The broker says on every response whether it accepts binary results, so workers keep working with older
+            // brokers, and switch formats after the first poll to a newer broker.
+            Header binaryResultHeader = response.getFirstHeader(BinaryWorkResults.ACCEPT_HEADER);
+            brokerBinaryResultEncoding = binaryResultHeader == null ? null : binaryResultHeader.getValue();
             if (response.getStatusLine().getStatusCode() == 204) {
                 // Broker said there's no work to do.
                 return null;
@@ -131,6 +131,29 @@ public abstract class AnalysisWorkerTask extends ProfileRequest {
      */
     public boolean logRequest = false;
 
+    /**
+     * Hidden feature: split the departure time window into this many contiguous sub-windows, each routed on its own
+     * thread by an independent range-RAPTOR search. This can reduce the response time of single point requests with
+     * wide time windows or many Monte Carlo draws. Values of zero or one perform a single search over the whole window.
+     * See FastRaptorWorker.departureMinuteShards.
+     */
+    public int departureMinuteShards = 1;
+
+    /**
+     * Hidden feature: rather than randomizing the offsets of frequency routes anew for every Monte Carlo iteration,
+     * take them from a bank of draws generated once per network and scenario and shared by all tasks using the same
+     * number of iterations. This saves work in regional analyses, and gives every origin the same randomized schedules
+     * so that differences between nearby origins are not just sampling noise. See FrequencyOffsetBank.
+     */
+    public boolean sharedFrequencyOffsets = false;
+
+    /**
+     * Hidden feature: set to false to make fare-constrained searches start afresh at every departure minute, rather
+     * than reusing the states found for later minutes as range-RAPTOR does. This should not change results, and is
+     * intended for checking that it does not. See McRaptorSuboptimalPathProfileRouter.allowRangeRaptor.
+     */
+    public boolean fareSearchRangeRaptor = true;
+
     /**
      * The distance decay function applied to make more distant opportunities
      * Deserialized into various subtypes from JSON.
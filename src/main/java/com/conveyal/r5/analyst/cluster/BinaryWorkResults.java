@@ -0,0 +1,254 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.conveyal.osmlib.VarIntInputStream;
+import com.conveyal.osmlib.VarIntOutputStream;
+import com.conveyal.r5.common.JsonUtilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compact binary alternative to sending WorkerStatus objects from workers to the broker as JSON. The status fields
+ * themselves are small and change from one version to the next, so they are still sent as JSON. But the regional
+ * work results can contain travel times to hundreds of thousands of destinations, and writing and parsing them as
+ * JSON used to dominate both worker and broker CPU.
+ *
+ * All numbers are written as protobuf-style varints. Travel times and accessibility values are delta coded: each value
+ * in the first row (percentile) is stored relative to the value before it in the same row, and each value in the
+ * following rows relative to the value for the same destination or cutoff in the row above. Travel times to nearby
+ * destinations are similar, and values increase steadily across percentiles and cutoffs, so most deltas fit in a
+ * single byte. Deltas are computed with wrapping integer arithmetic, so any int values survive the round trip, even
+ * the very large ones used for unreached destinations. The whole body may be gzipped on top of this.
+ *
+ * The format is negotiated on each poll: the broker advertises that it accepts this format in a header on its poll
+ * responses, and the worker sends JSON until it has seen that header. This allows workers and backends of different
+ * versions to keep working together.
+ */
+public abstract class BinaryWorkResults {
+
+    /** The content type of request bodies in this format. */
+    public static final String CONTENT_TYPE = "application/vnd.conveyal.worker-status";
+
+    /**
+     * The name of the header on poll responses advertising that the broker accepts this format. Its value is the
+     * content encoding the worker should use to compress request bodies, or "identity" for none.
+     */
+    public static final String ACCEPT_HEADER = "X-Accept-Binary-Results";
+
+    public static final String GZIP = "gzip";
+
+    /** Increment this when the format changes. */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * @param gzip whether to compress the encoded status. Results are so repetitive that this usually pays for itself
+     *             in bandwidth, but it can be disabled when the broker is on the same fast network.
+     */
+    public static byte[] encode (WorkerStatus workerStatus, boolean gzip) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        // Varints are written one byte at a time, so buffer them before they reach the compressor.
+        OutputStream outputStream = new BufferedOutputStream(gzip ? new GZIPOutputStream(byteStream) : byteStream);
+        write(workerStatus, outputStream);
+        outputStream.close();
+        return byteStream.toByteArray();
+    }
+
+    public static WorkerStatus decode (InputStream inputStream, boolean gzip) throws IOException {
+        return read(new BufferedInputStream(gzip ? new GZIPInputStream(inputStream) : inputStream));
+    }
+
+    private static void write (WorkerStatus workerStatus, OutputStream outputStream) throws IOException {
+        VarIntOutputStream out = new VarIntOutputStream(outputStream);
+        out.writeUInt32(FORMAT_VERSION);
+        List<RegionalWorkResult> results = workerStatus.results;
+        // Serialize the status without its results, leaving the caller's object as we found it.
+        workerStatus.results = null;
+        try {
+            byte[] json = JsonUtilities.objectMapper.writeValueAsBytes(workerStatus);
+            out.writeUInt32(json.length);
+            out.writeBytes(json);
+        } finally {
+            workerStatus.results = results;
+        }
+        if (results == null) {
+            out.writeUInt32(0);
+            return;
+        }
+        out.writeUInt32(results.size() + 1);
+        for (RegionalWorkResult result : results) {
+            writeString(out, result.jobId);
+            out.writeUInt32(result.taskId);
+            writeString(out, result.error);
+            writeRows(out, result.travelTimeValues);
+            if (result.accessibilityValues == null) {
+                out.writeUInt32(0);
+            } else {
+                out.writeUInt32(result.accessibilityValues.length + 1);
+                for (int[][] rows : result.accessibilityValues) {
+                    writeRows(out, rows);
+                }
+            }
+            writePaths(out, result.pathResult);
+        }
+    }
+
+    private static WorkerStatus read (InputStream inputStream) throws IOException {
+        VarIntInputStream in = new VarIntInputStream(inputStream);
+        int version = in.readUInt32();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unrecognized binary work result format version " + version);
+        }
+        byte[] json = readBytes(inputStream, in.readUInt32());
+        WorkerStatus workerStatus = JsonUtilities.lenientObjectMapper.readValue(json, WorkerStatus.class);
+        int nResults = in.readUInt32() - 1;
+        if (nResults < 0) {
+            return workerStatus;
+        }
+        workerStatus.results = new ArrayList<>(nResults);
+        for (int r = 0; r < nResults; r++) {
+            RegionalWorkResult result = new RegionalWorkResult();
+            result.jobId = readString(inputStream, in);
+            result.taskId = in.readUInt32();
+            result.error = readString(inputStream, in);
+            result.travelTimeValues = readRows(in);
+            int nGrids = in.readUInt32() - 1;
+            if (nGrids >= 0) {
+                result.accessibilityValues = new int[nGrids][][];
+                for (int g = 0; g < nGrids; g++) {
+                    result.accessibilityValues[g] = readRows(in);
+                }
+            }
+            result.pathResult = readPaths(inputStream, in);
+            workerStatus.results.add(result);
+        }
+        return workerStatus;
+    }
+
+    /** Write a possibly null and possibly ragged 2D array of ints, delta coding the values as described above. */
+    private static void writeRows (VarIntOutputStream out, int[][] rows) throws IOException {
+        if (rows == null) {
+            out.writeUInt32(0);
+            return;
+        }
+        out.writeUInt32(rows.length + 1);
+        for (int r = 0; r < rows.length; r++) {
+            int[] row = rows[r];
+            int[] rowAbove = r > 0 ? rows[r - 1] : null;
+            out.writeUInt32(row.length);
+            for (int i = 0; i < row.length; i++) {
+                out.writeSInt32(row[i] - reference(row, rowAbove, i));
+            }
+        }
+    }
+
+    private static int[][] readRows (VarIntInputStream in) throws IOException {
+        int nRows = in.readUInt32() - 1;
+        if (nRows < 0) {
+            return null;
+        }
+        int[][] rows = new int[nRows][];
+        for (int r = 0; r < nRows; r++) {
+            int[] row = new int[in.readUInt32()];
+            int[] rowAbove = r > 0 ? rows[r - 1] : null;
+            for (int i = 0; i < row.length; i++) {
+                row[i] = reference(row, rowAbove, i) + in.readSInt32();
+            }
+            rows[r] = row;
+        }
+        return rows;
+    }
+
+    /** The value that the delta for element i of a row is relative to. Only elements before i are used. */
+    private static int reference (int[] row, int[] rowAbove, int i) {
+        if (rowAbove != null && i < rowAbove.length) {
+            return rowAbove[i];
+        }
+        return i > 0 ? row[i - 1] : 0;
+    }
+
+    private static void writePaths (VarIntOutputStream out, ArrayList<String[]>[] paths) throws IOException {
+        if (paths == null) {
+            out.writeUInt32(0);
+            return;
+        }
+        out.writeUInt32(paths.length + 1);
+        for (ArrayList<String[]> pathsToTarget : paths) {
+            if (pathsToTarget == null) {
+                out.writeUInt32(0);
+                continue;
+            }
+            out.writeUInt32(pathsToTarget.size() + 1);
+            for (String[] path : pathsToTarget) {
+                out.writeUInt32(path.length);
+                for (String field : path) {
+                    writeString(out, field);
+                }
+            }
+        }
+    }
+
+    private static ArrayList<String[]>[] readPaths (InputStream inputStream, VarIntInputStream in) throws IOException {
+        int nTargets = in.readUInt32() - 1;
+        if (nTargets < 0) {
+            return null;
+        }
+        ArrayList<String[]>[] paths = new ArrayList[nTargets];
+        for (int t = 0; t < nTargets; t++) {
+            int nPaths = in.readUInt32() - 1;
+            if (nPaths < 0) {
+                continue;
+            }
+            paths[t] = new ArrayList<>(nPaths);
+            for (int p = 0; p < nPaths; p++) {
+                String[] path = new String[in.readUInt32()];
+                for (int f = 0; f < path.length; f++) {
+                    path[f] = readString(inputStream, in);
+                }
+                paths[t].add(path);
+            }
+        }
+        return paths;
+    }
+
+    /** Unlike VarIntOutputStream.writeString this allows nulls, by storing the length plus one. */
+    private static void writeString (VarIntOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeUInt32(0);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeUInt32(bytes.length + 1);
+        out.writeBytes(bytes);
+    }
+
+    /**
+     * The VarIntInputStream methods for reading strings refuse long ones, but error messages can be long stack traces,
+     * so this reads the bytes directly from the underlying stream.
+     */
+    private static String readString (InputStream inputStream, VarIntInputStream in) throws IOException {
+        int length = in.readUInt32() - 1;
+        if (length < 0) {
+            return null;
+        }
+        return new String(readBytes(inputStream, length), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes (InputStream inputStream, int length) throws IOException {
+        byte[] bytes = inputStream.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("Binary work results were truncated.");
+        }
+        return bytes;
+    }
+
+}
@@ -45,8 +45,11 @@ public class RegionalWorkResult {
      */
     public String error;
 
-    /** Trivial no-arg constructor for deserialization. Private to prevent usage outside deserialization. */
-    private RegionalWorkResult() { }
+    /**
+     * Trivial no-arg constructor for deserialization, from JSON or by BinaryWorkResults.
+     * Package-private to prevent usage outside deserialization.
+     */
+    RegionalWorkResult() { }
 
     /**
      * Convert the supplied internal R5 OneOriginResult into this more compact form intended for serialization
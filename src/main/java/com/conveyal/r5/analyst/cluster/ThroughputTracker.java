@@ -19,6 +19,15 @@ public class ThroughputTracker {
      */
     private Map<String, List<Long>> recentTaskCompletionTimesByJob = new HashMap<>();
 
+    /** The weight of each new task in meanTaskMillis. Smaller values average over more tasks. */
+    private static final double TASK_DURATION_SMOOTHING = 0.05;
+
+    /**
+     * An exponential moving average of the time taken to handle each task in milliseconds, or zero before any tasks
+     * have finished. Unlike the number of tasks per minute, this does not depend on whether the worker was busy.
+     */
+    private double meanTaskMillis = 0;
+
     /**
      * Indicate to the tracker that a task has just been completed for the specified job.
      */
@@ -32,6 +41,19 @@ public class ThroughputTracker {
         times.add(System.currentTimeMillis());
     }
 
+    /** Record how long one task took from start to finish on a single thread. */
+    public synchronized void recordTaskDuration (long millis) {
+        if (meanTaskMillis == 0) {
+            meanTaskMillis = Math.max(millis, 1);
+        } else {
+            meanTaskMillis += (millis - meanTaskMillis) * TASK_DURATION_SMOOTHING;
+        }
+    }
+
+    public synchronized double getMeanTaskMillis () {
+        return meanTaskMillis;
+    }
+
     /**
      * @return the number of tasks completed in the last minute, broken down by job. Intended to be serialized as JSON.
      */
@@ -54,4 +54,12 @@ public class TransportNetworkConfig {
      */
     public Set<StreetMode> buildGridsForModes;
 
+    /**
+     * If true, the largest primitive columns of the street layer will be stored in a separate file alongside the
+     * serialized network, and memory-mapped rather than deserialized when workers load the network (see
+     * MappedStreetColumns). This makes loading large networks faster and reduces heap usage. This is a Boolean rather
+     * than a boolean so that it is not serialized when unused (see class Javadoc).
+     */
+    public Boolean memoryMapStreetColumns;
+
 }
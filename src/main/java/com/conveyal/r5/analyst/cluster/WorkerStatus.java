@@ -50,6 +50,12 @@ public class WorkerStatus {
     public String ipAddress;
     public List<RegionalWorkResult> results;
 
+    /**
+     * How many regional tasks the worker would like in response to this poll, based on how long its recent tasks took.
+     * Null if the worker is an older version that lets the broker decide.
+     */
+    public Integer maxTasksRequested;
+
     /** No-arg constructor used when deserializing. */
     public WorkerStatus() { }
 
@@ -3,6 +3,9 @@ package com.conveyal.r5.analyst.decay;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * A family of monotonically decreasing functions from travel times to weight factors in the range [0...1].
  * This determines how much an opportunity at a given travel time is weighted when included in an accessibility value.
@@ -27,6 +30,9 @@ public abstract class DecayFunction {
 
     protected static final double ZERO_EPSILON = 0.001;
 
+    /** Weight tables already produced by this function, keyed on cutoff in seconds. */
+    private final Map<Integer, double[]> weightTables = new ConcurrentHashMap<>();
+
     /**
      * For a given cutoff, returns the minimum travel time at or beyond which this function will always return a zero
      * weight, i.e. the point at which the decreasing weight curve has reached zero. Some functions approach zero
@@ -60,6 +66,30 @@ public abstract class DecayFunction {
      */
     public abstract double computeWeight (int cutoffSeconds, int travelTimeSeconds);
 
+    /**
+     * Tabulate the weights produced by this function for a single cutoff, at one-second resolution from zero up to
+     * (but not including) the zero point for that cutoff. Beyond the zero point all weights are treated as zero, so
+     * the table is only as long as the region where weights are nonzero, and accumulating accessibility becomes a
+     * table lookup rather than (for some functions) a call to exp(). The values are exactly those returned by
+     * computeWeight(), so results are unchanged. This should only be called on a prepared function.
+     */
+    public double[] computeWeightTable (int cutoffSeconds) {
+        int zeroPointSeconds = reachesZeroAt(cutoffSeconds);
+        double[] weights = new double[zeroPointSeconds];
+        for (int s = 0; s < zeroPointSeconds; s++) {
+            weights[s] = computeWeight(cutoffSeconds, s);
+        }
+        return weights;
+    }
+
+    /**
+     * Return the same table as computeWeightTable, but only compute it the first time it is requested for each cutoff.
+     * The returned array is shared by all callers and must not be modified.
+     */
+    public double[] getWeightTable (int cutoffSeconds) {
+        return weightTables.computeIfAbsent(cutoffSeconds, this::computeWeightTable);
+    }
+
     /**
      * Call this method on a deserialized DecayFunction to prepare it for use.
      * It should validate any parameters supplied via JSON into instance fields.
@@ -198,9 +198,13 @@ public class BostonInRoutingFareCalculator extends InRoutingFareCalculator {
         }
 
         @Override
-        public boolean atLeastAsGoodForAllFutureRedemptions(TransferAllowance other) {
-            return super.atLeastAsGoodForAllFutureRedemptions(other) &&
-                    this.transferRuleGroup == ((BostonTransferAllowance) other).transferRuleGroup;
+        public Object redemptionRules() {
+            return transferRuleGroup;
+        }
+
+        @Override
+        public boolean redemptionRulesAtLeastAsGood(TransferAllowance other) {
+            return this.transferRuleGroup == ((BostonTransferAllowance) other).transferRuleGroup;
         }
 
     }
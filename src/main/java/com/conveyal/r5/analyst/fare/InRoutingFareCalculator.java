@@ -6,6 +6,7 @@ import com.conveyal.r5.profile.FastRaptorWorker;
 import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter.McRaptorState;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.transit.TransitLayer;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
@@ -46,10 +47,22 @@ public abstract class InRoutingFareCalculator implements Serializable {
     // injected on load
     public transient TransitLayer transitLayer;
 
+    /** Shared by all the FareDominatingLists in a search using this calculator, created when first needed. */
+    private transient TransferAllowanceInterner transferAllowanceInterner;
+
+    @JsonIgnore
+    public TransferAllowanceInterner getTransferAllowanceInterner () {
+        if (transferAllowanceInterner == null) transferAllowanceInterner = new TransferAllowanceInterner();
+        return transferAllowanceInterner;
+    }
+
     public static Collater getCollator (ProfileRequest request){
         return (states, maxClockTime) -> {
             McRaptorState best = null;
             for (McRaptorState state : states) {
+                // With range-RAPTOR, states found for later departure times may arrive after the time limit for this one.
+                if (state.time > maxClockTime) continue;
+
                 // check if this state falls below the fare cutoff.
                 // We generally try not to impose cutoffs at calculation time, but leaving two free cutoffs creates a grid
                 // of possibilities that is too large to be stored.
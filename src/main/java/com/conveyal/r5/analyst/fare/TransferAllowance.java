@@ -23,6 +23,10 @@ public class TransferAllowance {
     public final int number;
     public final int expirationTime;
 
+    /** The interner that last interned this allowance, and the ID it assigned to its redemption rules. */
+    TransferAllowanceInterner internedBy;
+    int redemptionRulesId;
+
     /**
      * Constructor used for no transfer allowance
       */
@@ -78,16 +82,37 @@ public class TransferAllowance {
      * no moral scruples about obtaining a transfer slip from someone else who is probably not supposed to be giving
      * them away).
      *
-     * In the base class, this is true iff this transfer allowance has the same or higher value, and the same or later
-     * expiration time, the same or higher number of transfers remaining. In subclasses for transit systems that have
-     * different services, this may need to be overridden because not all transfer allowances are comparable. For example,
-     * in Greater Boston, transfers from local bus can be applied to local bus, subway, or express bus; transfers from
-     * subway can be applied to other subway services at the same station, local bus, or express bus, and transfers from
-     * express bus can be applied to only local bus or subway. So the values of those three types of transfers are not
-     * comparable.
+     * This is true iff this transfer allowance has the same or higher value, and the same or later expiration time, the
+     * same or higher number of transfers remaining, and redemption rules at least as good as the other's. In
+     * subclasses for transit systems that have different services, not all transfer allowances are comparable. For
+     * example, in Greater Boston, transfers from local bus can be applied to local bus, subway, or express bus;
+     * transfers from subway can be applied to other subway services at the same station, local bus, or express bus,
+     * and transfers from express bus can be applied to only local bus or subway. So the values of those three types of
+     * transfers are not comparable. Such subclasses override redemptionRules and redemptionRulesAtLeastAsGood rather
+     * than this method, which allows FareDominatingList to compare the three numbers directly and look up the result
+     * of comparing the rules, see TransferAllowanceInterner.
+     */
+    public final boolean atLeastAsGoodForAllFutureRedemptions(TransferAllowance other){
+        return value >= other.value && expirationTime >= other.expirationTime && number >= other.number &&
+                redemptionRulesAtLeastAsGood(other);
+    }
+
+    /**
+     * @return an object with value semantics (equals and hashCode) representing everything other than the value,
+     *         number, and expiration time that redemptionRulesAtLeastAsGood looks at. Allowances of the same class
+     *         with equal redemption rules must compare the same way against any other allowance. Including more than
+     *         is needed is safe but makes for more distinct rules to compare. The base class has no such rules.
+     */
+    public Object redemptionRules () {
+        return null;
+    }
+
+    /**
+     * Are the rules about where and how this allowance can be redeemed at least as good as those of the other
+     * allowance, ignoring the value, number, and expiration time?
      */
-    public boolean atLeastAsGoodForAllFutureRedemptions(TransferAllowance other){
-        return value >= other.value && expirationTime >= other.expirationTime && number >= other.number;
+    public boolean redemptionRulesAtLeastAsGood (TransferAllowance other) {
+        return true;
     }
 
 }
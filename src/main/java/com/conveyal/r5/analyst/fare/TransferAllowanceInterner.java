@@ -0,0 +1,76 @@
+package com.conveyal.r5.analyst.fare;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Assigns small integer IDs to the distinct redemption rules of the transfer allowances seen in a search, and
+ * remembers the result of comparing each pair of rules. Dominance checks in FareDominatingList can then compare
+ * transfer allowances using only ints: the value, number, and expiration time directly, and the redemption rules by
+ * looking up their IDs in a table. This matters for fare systems like New York's, where comparing the rules involves
+ * many fields of nested allowances, but a search only ever sees a few hundred distinct combinations of them.
+ *
+ * The value and expiration time vary continuously, so they are not part of the rules, and the table of comparisons
+ * is filled in lazily as pairs of rules are first compared rather than computed in advance for every possible
+ * allowance. Like the fare calculators, this is not threadsafe; each request has its own calculator and interner.
+ */
+public class TransferAllowanceInterner {
+
+    private static final byte UNKNOWN = 0;
+    private static final byte AT_LEAST_AS_GOOD = 1;
+    private static final byte NOT_AT_LEAST_AS_GOOD = 2;
+
+    private final TObjectIntMap<List<Object>> idForRules = new TObjectIntHashMap<>(64, 0.5f, -1);
+
+    /** The first allowance interned with each ID, used to compare the rules with those of other IDs. */
+    private final List<TransferAllowance> exemplars = new ArrayList<>();
+
+    /** For each ID, the results of comparing its rules with those of each other ID, grown as needed. */
+    private byte[][] comparisons = new byte[16][];
+
+    /** @return the ID of the class and redemption rules of the given allowance. */
+    public int intern (TransferAllowance allowance) {
+        if (allowance.internedBy == this) return allowance.redemptionRulesId;
+        // Allowances of different classes never share rules, even if their rules are equal.
+        List<Object> key = Arrays.asList(allowance.getClass(), allowance.redemptionRules());
+        int id = idForRules.get(key);
+        if (id == -1) {
+            id = exemplars.size();
+            idForRules.put(key, id);
+            exemplars.add(allowance);
+            if (id == comparisons.length) comparisons = Arrays.copyOf(comparisons, id * 2);
+            comparisons[id] = new byte[Math.max(id + 1, 16)];
+        }
+        allowance.internedBy = this;
+        allowance.redemptionRulesId = id;
+        return id;
+    }
+
+    /**
+     * @return whether the redemption rules with the first ID are at least as good as those with the second, as
+     *         determined by TransferAllowance.redemptionRulesAtLeastAsGood.
+     */
+    public boolean redemptionRulesAtLeastAsGood (int id, int otherId) {
+        // Equal rules are always at least as good as each other.
+        if (id == otherId) return true;
+        byte[] row = comparisons[id];
+        if (otherId >= row.length) {
+            row = comparisons[id] = Arrays.copyOf(row, Math.max(row.length * 2, otherId + 1));
+        }
+        if (row[otherId] == UNKNOWN) {
+            boolean atLeastAsGood = exemplars.get(id).redemptionRulesAtLeastAsGood(exemplars.get(otherId));
+            row[otherId] = atLeastAsGood ? AT_LEAST_AS_GOOD : NOT_AT_LEAST_AS_GOOD;
+        }
+        return row[otherId] == AT_LEAST_AS_GOOD;
+    }
+
+    /** @return the number of distinct redemption rules seen so far. */
+    public int size () {
+        return exemplars.size();
+    }
+
+}
@@ -342,16 +342,23 @@ public class LIRRTransferAllowance extends TransferAllowance {
         return viaFare;
     }
 
+    /** The fields compared by redemptionRulesAtLeastAsGood. */
+    @Override
+    public Object redemptionRules () {
+        return Arrays.asList(boardStop, viaStop, initialDirection, peakBeforeDirectionChange, peakAfterDirectionChange);
+    }
+
     /**
      * Does this provide as good as or better than transfers to all future services?
      * Rather than actually figure this out, just treat only LIRR tickets that boarded at the same place, transferred at the same place,
      * alighted at the same place started in the same direction, used the same combo of peak and off-peak services as comparable.
      * Since the LIRR is a small network, and we clear LIRR transfers as soon as you leave the LIRR system, this should be tractable.
+     * The value, number, and expiration time inherited from TransferAllowance are always zero for LIRR allowances.
      * @param otherAllowance
      * @return
      */
     @Override
-    public boolean atLeastAsGoodForAllFutureRedemptions (TransferAllowance otherAllowance) {
+    public boolean redemptionRulesAtLeastAsGood (TransferAllowance otherAllowance) {
         LIRRTransferAllowance other = (LIRRTransferAllowance) otherAllowance;
         // it could be preferable to not have an LIRR transfer allowance, see note about Metro-North in NYCTransferAllowance.
         if (other == null) return false;
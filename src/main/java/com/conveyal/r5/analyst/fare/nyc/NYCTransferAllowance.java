@@ -2,6 +2,8 @@ package com.conveyal.r5.analyst.fare.nyc;
 
 import com.conveyal.r5.analyst.fare.TransferAllowance;
 
+import java.util.Arrays;
+
 /**
  * A transfer allowance for NYC. This has a bunch of sub-transfer TODO clarify this comment.
  */
@@ -37,8 +39,9 @@ public class NYCTransferAllowance extends TransferAllowance {
                                 int metrocardTransferExpiry, boolean inSubwayPaidArea,
                                 int metroNorthBoardStop, int metroNorthDirection, boolean metroNorthPeak,
                                 NYCInRoutingFareCalculator.MetroNorthLine metroNorthLine) {
-        // only the value needs to be set correctly. The expiration time and number of transfers left are only used in
-        // the second domination rule, which we override in atLeastAsGoodForAllFutureRedemptions
+        // only the value and expiration time need to be set correctly. The number of transfers left is only used in
+        // the second domination rule, and the expiration time is that of the Metrocard transfer, which is the only one
+        // that expires at a particular time. Everything else is compared in redemptionRulesAtLeastAsGood.
         // value is set to $100,000 - this effectively disables Theorem 3.1 from the paper
         // (https://files.indicatrix.org/Conway-Stewart-2019-Charlie-Fare-Constraints.pdf)
         // Theorem 3.1 depends on nonnegativity of transfer allowances, which we cannot guarantee in New York -
@@ -47,7 +50,7 @@ public class NYCTransferAllowance extends TransferAllowance {
         // will never be optimal. Virgin Galactic flights are $250,000, or $150,000 with your LIRR ticket, etc.
         // Theorem 3.2 does not depend on assumptions about nonnegativity of transfer allowances, as long as negative
         // transfer allowances are considered in atLeastAsGoodForAllFutureRedemptions.
-        super(100_000_00, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        super(100_000_00, Integer.MAX_VALUE, metrocardTransferExpiry);
         this.lirr = lirr;
         this.metrocardTransferSource = metrocardTransferSource;
         this.metrocardTransferExpiry = metrocardTransferExpiry;
@@ -58,16 +61,24 @@ public class NYCTransferAllowance extends TransferAllowance {
         this.metroNorthLine = metroNorthLine;
     }
 
+    /** The fields compared by redemptionRulesAtLeastAsGood, including only the redemption rules of the LIRR allowance. */
     @Override
-    public boolean atLeastAsGoodForAllFutureRedemptions(TransferAllowance other) {
-        // Note that we're not calling super here, all logic is reimplemented here.
+    public Object redemptionRules() {
+        return Arrays.asList(lirr == null ? null : lirr.redemptionRules(), metrocardTransferSource, inSubwayPaidArea,
+                metroNorthBoardStop, metroNorthDirection, metroNorthPeak, metroNorthLine);
+    }
+
+    @Override
+    public boolean redemptionRulesAtLeastAsGood(TransferAllowance other) {
+        // The value and number of transfers are the same for all NYC allowances, and whether the other's Metrocard
+        // transfer expires later is checked by TransferAllowance.atLeastAsGoodForAllFutureRedemptions.
         // This goes through lots of ways other could be better than this, and returns false if
         // other is possibly better in any way.
         if (other instanceof NYCTransferAllowance) {
             NYCTransferAllowance o = (NYCTransferAllowance) other;
             // if this LIRR is not at least as good as other for all future redemptions, this NYCTransferAllowance
             // is not as good as or better than the other for all future redemptions
-            if (lirr != null && !lirr.atLeastAsGoodForAllFutureRedemptions(o.lirr)) return false;
+            if (lirr != null && (o.lirr == null || !lirr.atLeastAsGoodForAllFutureRedemptions(o.lirr))) return false;
             // If the other has an LIRR transfer allowance and this doesn't, other could be better for some destinations
             // However, if both are null, they are equivalent
             if (lirr == null && o.lirr != null) return false;
@@ -80,9 +91,6 @@ public class NYCTransferAllowance extends TransferAllowance {
             // negativity of transfer allowances, where throwaway buses are ridden only to reduce the total fare.
             if (metrocardTransferSource != o.metrocardTransferSource && o.metrocardTransferSource != null) return false;
 
-            // If the other expires later, it could be better
-            if (metrocardTransferExpiry < o.metrocardTransferExpiry) return false; // expires sooner
-
             // if the other is in the subway and this is not, other could be better. All else equal, it is always better
             // to be in the subway than not in the subway - because leaving the subway is free.
             if (!inSubwayPaidArea && o.inSubwayPaidArea) return false; // free transfer with other and not with this
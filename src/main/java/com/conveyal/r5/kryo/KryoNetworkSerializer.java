@@ -25,6 +25,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.function.Consumer;
 
 /**
  * This class groups the static methods for saving and loading TransportNetworks.
@@ -44,7 +45,7 @@ public abstract class KryoNetworkSerializer {
      * the serialization format itself does not change. This will ensure newer workers will not load cached older files.
      * We considered using an ISO date string as the version but that could get confusing when seen in filenames.
      */
-    public static final String NETWORK_FORMAT_VERSION = "nv2";
+    public static final String NETWORK_FORMAT_VERSION = "nv4";
 
     public static final byte[] HEADER = "R5NETWORK".getBytes();
 
@@ -58,7 +59,7 @@ public abstract class KryoNetworkSerializer {
      * Because these networks are so big though, pre-registration should provide very little savings.
      * Registration is more important for small network messages.
      */
-    private static Kryo makeKryo () {
+    static Kryo makeKryo () {
         Kryo kryo;
         if (COUNT_CLASS_INSTANCES) {
             kryo = new Kryo(new InstanceCountingClassResolver(), new MapReferenceResolver(), new DefaultStreamFactory());
@@ -115,6 +116,15 @@ public abstract class KryoNetworkSerializer {
      * Transient fields that were not serialized will be rebuilt (indexes and cached PointSet linkage).
      */
     public static TransportNetwork read (File file) throws Exception {
+        return read(file, null);
+    }
+
+    /**
+     * Read the given file as in read(File), but let the caller fill in parts of the network that were not stored in
+     * the Kryo file (see MappedStreetColumns) before the transient indexes are rebuilt.
+     * @param beforeRebuild if non-null, will be called on the deserialized network before its indexes are rebuilt.
+     */
+    static TransportNetwork read (File file, Consumer<TransportNetwork> beforeRebuild) throws Exception {
         LOG.info("Reading transport network...");
         Input input = new Input(new FileInputStream(file));
         Kryo kryo = makeKryo();
@@ -137,6 +147,9 @@ public abstract class KryoNetworkSerializer {
         if (result.fareCalculator != null) {
             result.fareCalculator.transitLayer = result.transitLayer;
         }
+        if (beforeRebuild != null) {
+            beforeRebuild.accept(result);
+        }
         result.rebuildTransientIndexes();
         return result;
     }
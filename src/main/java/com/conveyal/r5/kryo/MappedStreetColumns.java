@@ -0,0 +1,200 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.trove.TByteMappedList;
+import com.conveyal.r5.trove.TIntMappedList;
+import gnu.trove.list.TByteList;
+import gnu.trove.list.TIntList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Stores the largest primitive columns of a TransportNetwork's street layer (the int and byte lists in the EdgeStore
+ * and VertexStore) in a separate flat file, which is memory-mapped when the network is loaded instead of being
+ * deserialized onto the heap. The rest of the network is still serialized with Kryo, with these columns left out.
+ *
+ * Loading a network stored this way does not need to read or decode these columns at all, so it is faster and needs
+ * less heap. The operating system pages the columns in as they are used, and processes on the same machine mapping
+ * the same file share those pages. The mapped columns are read-only, which is compatible with the way scenarios wrap
+ * the baseline street layer in extend-only copies rather than modifying it.
+ *
+ * The file consists of a header followed by each column in a fixed order. Each column is a long element count
+ * followed by the values in little-endian byte order, padded to a multiple of eight bytes.
+ */
+public abstract class MappedStreetColumns {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedStreetColumns.class);
+
+    public static final byte[] HEADER = "R5COLUMNS".getBytes();
+
+    private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /** Size of the buffer used to stream columns out to the file. */
+    private static final int WRITE_BUFFER_BYTES = 1024 * 1024;
+
+    /**
+     * Holds the columns of one network while they are removed from it for Kryo serialization, in the order in which
+     * they appear in the file.
+     */
+    private static class Columns {
+        TIntList[] intColumns;
+        TByteList[] byteColumns;
+
+        static Columns detach (TransportNetwork network) {
+            EdgeStore edges = network.streetLayer.edgeStore;
+            VertexStore vertices = network.streetLayer.vertexStore;
+            Columns columns = new Columns();
+            columns.intColumns = new TIntList[] {
+                edges.flags, edges.fromVertices, edges.toVertices, edges.lengths_mm,
+                vertices.fixedLats, vertices.fixedLons
+            };
+            columns.byteColumns = new TByteList[] {
+                edges.streetClasses, edges.inAngles, edges.outAngles, vertices.vertexFlags
+            };
+            columns.set(network, new TIntList[columns.intColumns.length], new TByteList[columns.byteColumns.length]);
+            return columns;
+        }
+
+        void reattach (TransportNetwork network) {
+            set(network, intColumns, byteColumns);
+        }
+
+        private static void set (TransportNetwork network, TIntList[] intColumns, TByteList[] byteColumns) {
+            EdgeStore edges = network.streetLayer.edgeStore;
+            VertexStore vertices = network.streetLayer.vertexStore;
+            edges.flags = intColumns[0];
+            edges.fromVertices = intColumns[1];
+            edges.toVertices = intColumns[2];
+            edges.lengths_mm = intColumns[3];
+            vertices.fixedLats = intColumns[4];
+            vertices.fixedLons = intColumns[5];
+            edges.streetClasses = byteColumns[0];
+            edges.inAngles = byteColumns[1];
+            edges.outAngles = byteColumns[2];
+            vertices.vertexFlags = byteColumns[3];
+        }
+    }
+
+    /**
+     * Write the supplied network to Kryo and column files. The columns are removed from the network while it is
+     * being serialized with Kryo, and restored afterward.
+     */
+    public static void write (TransportNetwork network, File kryoFile, File columnsFile) throws IOException {
+        if (network.streetLayer.edgeStore.isExtendOnlyCopy()) {
+            throw new IllegalArgumentException("Only baseline networks with no scenario applied can be written.");
+        }
+        Columns columns = Columns.detach(network);
+        try {
+            writeColumns(columns, columnsFile);
+            KryoNetworkSerializer.write(network, kryoFile);
+        } finally {
+            columns.reattach(network);
+        }
+    }
+
+    private static void writeColumns (Columns columns, File file) throws IOException {
+        LOG.info("Writing street layer columns...");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES).order(BYTE_ORDER);
+            buffer.put(HEADER);
+            padToLong(buffer);
+            for (TIntList column : columns.intColumns) {
+                buffer.putLong(column.size());
+                for (int i = 0; i < column.size(); i++) {
+                    if (buffer.remaining() < Integer.BYTES) flush(buffer, channel);
+                    buffer.putInt(column.get(i));
+                }
+                padToLong(buffer);
+                flush(buffer, channel);
+            }
+            for (TByteList column : columns.byteColumns) {
+                buffer.putLong(column.size());
+                for (int i = 0; i < column.size(); i++) {
+                    if (!buffer.hasRemaining()) flush(buffer, channel);
+                    buffer.put(column.get(i));
+                }
+                padToLong(buffer);
+                flush(buffer, channel);
+            }
+        }
+        LOG.info("Done writing street layer columns.");
+    }
+
+    /**
+     * Pad the contents of the buffer with zeros up to a multiple of eight bytes. The buffer is always flushed at such
+     * a multiple, so this keeps every column aligned in the file.
+     */
+    private static void padToLong (ByteBuffer buffer) {
+        while (buffer.position() % Long.BYTES != 0) buffer.put((byte) 0);
+    }
+
+    private static void flush (ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Read a network from a Kryo file written by write(), mapping its street layer columns from the columns file.
+     */
+    public static TransportNetwork read (File kryoFile, File columnsFile) throws Exception {
+        return KryoNetworkSerializer.read(kryoFile, network -> map(network, columnsFile));
+    }
+
+    private static void map (TransportNetwork network, File file) {
+        LOG.info("Memory-mapping street layer columns...");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER.length);
+            channel.read(header, 0);
+            if (!Arrays.equals(HEADER, header.array())) {
+                throw new RuntimeException("Unrecognized file header. Is this an R5 street columns file?");
+            }
+            long position = roundUpToLong(HEADER.length);
+            Columns columns = new Columns();
+            columns.intColumns = new TIntList[6];
+            columns.byteColumns = new TByteList[4];
+            for (int c = 0; c < columns.intColumns.length; c++) {
+                long size = readSize(channel, position);
+                position += Long.BYTES;
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size * Integer.BYTES);
+                columns.intColumns[c] = new TIntMappedList(mapped.order(BYTE_ORDER).asIntBuffer());
+                position += roundUpToLong(size * Integer.BYTES);
+            }
+            for (int c = 0; c < columns.byteColumns.length; c++) {
+                long size = readSize(channel, position);
+                position += Long.BYTES;
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                columns.byteColumns[c] = new TByteMappedList(mapped);
+                position += roundUpToLong(size);
+            }
+            columns.reattach(network);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map street layer columns.", e);
+        }
+        LOG.info("Done mapping street layer columns.");
+    }
+
+    private static long readSize (FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).order(BYTE_ORDER);
+        channel.read(buffer, position);
+        buffer.flip();
+        return buffer.getLong();
+    }
+
+    private static long roundUpToLong (long bytes) {
+        return (bytes + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+    }
+
+}
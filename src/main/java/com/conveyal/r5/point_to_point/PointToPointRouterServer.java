@@ -71,7 +71,9 @@ public class PointToPointRouterServer {
 
     public static final String BUILDER_CONFIG_FILENAME = "build-config.json";
 
-    private static final String USAGE = "It expects --build [path to directory with GTFS and PBF files] to build the graphs\nor --graphs [path to directory with graph] to start the server with provided graph";
+    private static final String USAGE = "It expects --build [path to directory with GTFS and PBF files] to build the graphs\n" +
+            "optionally followed by a comma-separated list of modes (e.g. CAR,BICYCLE) for which to build contraction hierarchies\n" +
+            "or --graphs [path to directory with graph] to start the server with provided graph";
 
     public static final int RADIUS_METERS = 200;
 
@@ -90,6 +92,12 @@ public class PointToPointRouterServer {
             }
 
             TransportNetwork transportNetwork = TransportNetwork.fromDirectory(dir);
+            // Contraction hierarchies speed up direct mode searches, and are saved with the network.
+            if (commandArguments.length > 2) {
+                for (String mode : commandArguments[2].split(",")) {
+                    transportNetwork.streetLayer.buildContractionHierarchy(StreetMode.valueOf(mode.trim()));
+                }
+            }
             //In memory doesn't save it to disk others do (build, preFlight)
             if (!inMemory) {
                 try {
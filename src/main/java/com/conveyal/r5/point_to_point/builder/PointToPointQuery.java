@@ -272,6 +272,7 @@ public class PointToPointQuery {
             } else {
                 streetRouter.streetMode = StreetMode.valueOf(mode.toString());
                 streetRouter.timeLimitSeconds = request.streetTime * 60;
+                streetRouter.allowContractionHierarchy = true;
                 if(streetRouter.setOrigin(request.fromLat, request.fromLon)) {
                     if(!streetRouter.setDestination(request.toLat, request.toLon)) {
                         LOG.warn("Direct mode {} destination wasn't found!", mode);
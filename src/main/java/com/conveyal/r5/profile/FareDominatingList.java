@@ -1,25 +1,61 @@
 package com.conveyal.r5.profile;
 
 import com.conveyal.r5.analyst.fare.InRoutingFareCalculator;
+import com.conveyal.r5.analyst.fare.TransferAllowance;
+import com.conveyal.r5.analyst.fare.TransferAllowanceInterner;
+import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter.McRaptorState;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
 
 /**
  * An implementation of DominatingList, retaining pareto-optimal paths on time and fare.
+ *
+ * The time and fare of each state are copied into arrays parallel to the list of states, so that the dominance checks,
+ * which are most of the work of a fare-based search, scan contiguous ints rather than following references to each
+ * state and its fare. The transfer allowances are also reduced to ints: their value, number, and expiration time, and
+ * an ID for the rest of their redemption rules, whose comparison depends on the fare system and is looked up in a table
+ * shared by all lists in the search (see TransferAllowanceInterner).
+ *
+ * With range-RAPTOR (see McRaptorSuboptimalPathProfileRouter.allowRangeRaptor) a list also holds states found for later
+ * departure minutes, in any round. A fresh search would have explored a state found in an early round before any state
+ * from a later round could replace it, so states from different departure minutes only dominate one another if the
+ * dominating state was found in the same round or an earlier one. Otherwise a state found late in the search for a
+ * later minute could prevent a state found early for this minute from using the rides it has left.
  */
 public class FareDominatingList implements DominatingList {
     private final int maxFare;
     private final int maxClockTime;
     private InRoutingFareCalculator fareCalculator;
+    private final TransferAllowanceInterner interner;
 
-    private LinkedList<McRaptorSuboptimalPathProfileRouter.McRaptorState> states = new LinkedList<>();
+    private ArrayList<McRaptorState> states = new ArrayList<>();
+
+    /** The clock time of each state in the list. */
+    private int[] times = new int[4];
+
+    /** The cumulative fare paid to reach each state in the list. */
+    private int[] faresPaid = new int[4];
+
+    /** The cumulative fare paid minus the value of the transfer allowance for each state in the list. */
+    private int[] consumedValues = new int[4];
+
+    /** The value, number, expiration time, and interned redemption rules of the transfer allowance of each state. */
+    private int[] allowanceValues = new int[4];
+    private int[] allowanceNumbers = new int[4];
+    private int[] allowanceExpirationTimes = new int[4];
+    private int[] allowanceRules = new int[4];
+
+    /** The round of the search in which each state was found, and the departure time of that search. */
+    private int[] rounds = new int[4];
+    private int[] departureTimes = new int[4];
 
     public FareDominatingList(InRoutingFareCalculator fareCalculator, int maxFare, int maxClockTime) {
         this.fareCalculator = fareCalculator;
         this.maxFare = maxFare;
         this.maxClockTime = maxClockTime;
+        this.interner = fareCalculator.getTransferAllowanceInterner();
     }
 
     /**
@@ -31,13 +67,17 @@ public class FareDominatingList implements DominatingList {
      * International Journal of Geographical Information Science, 33(9), 1759–1787. https://doi.org/10.1080/13658816.2019.1605075
      * available open-access at https://files.indicatrix.org/Conway-Stewart-2019-Charlie-Fare-Constraints.pdf
      */
-    private boolean betterOrEqual(McRaptorSuboptimalPathProfileRouter.McRaptorState dominator, McRaptorSuboptimalPathProfileRouter.McRaptorState dominatee) {
+    private boolean betterOrEqual(int dominator, int dominatee) {
         // FIXME add check for nonnegative
 
-        int dominateeConsumedValue = dominatee.fare.cumulativeFarePaid - dominatee.fare.transferAllowance.value;
-        if (dominator.time <= dominatee.time) {
+        // A state carried over from another departure minute may not replace one found in an earlier round.
+        if (departureTimes[dominator] != departureTimes[dominatee] && rounds[dominator] > rounds[dominatee]) {
+            return false;
+        }
+
+        if (times[dominator] <= times[dominatee]) {
             // this route is as good or better on time
-            if (dominator.fare.cumulativeFarePaid <= dominateeConsumedValue) {
+            if (faresPaid[dominator] <= consumedValues[dominatee]) {
                 // This route is as fast as the alternate route, and it costs no more than the fare paid for the other route
                 // minus any transfer priviliges that the user gets from the other route that could be realized in the future.
                 // This is Theorem 3.1 from Conway and Stewart (2019)
@@ -48,8 +88,12 @@ public class FareDominatingList implements DominatingList {
             // other transfer allowance (exact definition depends on the system, see javadoc), then there is no way that
             // dominatee could yield a better fare than dominator.
             // This is Theorem 3.2 from Conway and Stewart (2019)
-            if (dominator.fare.cumulativeFarePaid <= dominatee.fare.cumulativeFarePaid &&
-                    dominator.fare.transferAllowance.atLeastAsGoodForAllFutureRedemptions(dominatee.fare.transferAllowance)) {
+            // This is TransferAllowance.atLeastAsGoodForAllFutureRedemptions, using the ints copied from the allowances.
+            if (faresPaid[dominator] <= faresPaid[dominatee] &&
+                    allowanceValues[dominator] >= allowanceValues[dominatee] &&
+                    allowanceExpirationTimes[dominator] >= allowanceExpirationTimes[dominatee] &&
+                    allowanceNumbers[dominator] >= allowanceNumbers[dominatee] &&
+                    interner.redemptionRulesAtLeastAsGood(allowanceRules[dominator], allowanceRules[dominatee])) {
                 return true;
             }
         }
@@ -59,7 +103,7 @@ public class FareDominatingList implements DominatingList {
     }
 
     @Override
-    public boolean add(McRaptorSuboptimalPathProfileRouter.McRaptorState newState) {
+    public boolean add(McRaptorState newState) {
         // if it is past the time limit, drop it
         if (newState.time > maxClockTime) return false;
 
@@ -79,12 +123,24 @@ public class FareDominatingList implements DominatingList {
         // at some times of day when direct SFO-Millbrae service is not running. If we cut off the search when cumulativeFarePaid
         // exceeded, say, $5, we'd prevent this trip. But if cumulativeFarePaid is set to $7.85 when alighting at San
         // Bruno, and transferAllowance.value is set to $7.85 - $4.55 = $3.30, we will retain it properly.
-        if (newState.fare.cumulativeFarePaid - newState.fare.transferAllowance.value > maxFare) return false;
-
-        for (Iterator<McRaptorSuboptimalPathProfileRouter.McRaptorState> it = states.iterator(); it.hasNext();) {
-            McRaptorSuboptimalPathProfileRouter.McRaptorState existing = it.next();
-
-
+        TransferAllowance newAllowance = newState.fare.transferAllowance;
+        int newConsumedValue = newState.fare.cumulativeFarePaid - newAllowance.value;
+        if (newConsumedValue > maxFare) return false;
+
+        // Copy the new state into the slot after the existing ones, so that it can be compared with them by index.
+        int size = states.size();
+        if (size == times.length) grow();
+        times[size] = newState.time;
+        faresPaid[size] = newState.fare.cumulativeFarePaid;
+        consumedValues[size] = newConsumedValue;
+        allowanceValues[size] = newAllowance.value;
+        allowanceNumbers[size] = newAllowance.number;
+        allowanceExpirationTimes[size] = newAllowance.expirationTime;
+        allowanceRules[size] = interner.intern(newAllowance);
+        rounds[size] = newState.round;
+        departureTimes[size] = newState.departureTime;
+
+        for (int i = 0; i < size; i++) {
             // Check first if the existing state is better than or equal to the new state. We check the existing state
             // vs the new state before doing the opposite, because two states may be equal (for instance, in Boston,
             // a trip from the Conveyal office at Mass Ave and Newbury to Alewife using CT1 -> Red and 1 -> Red are
@@ -93,22 +149,55 @@ public class FareDominatingList implements DominatingList {
             // discounted transfer). We prefer to save the state that was found first, to minimize churn. This also prefers
             // fewer-transfer routes, all else equal, because fewer-transfer routes are found before more-transfer routes
             // due to the RAPTOR algorithm.
-            if (betterOrEqual(existing, newState)) {
+            if (betterOrEqual(i, size)) {
                 return false;
             }
-
-            if (betterOrEqual(newState, existing)) {
-                it.remove();
-            }
         }
 
-        // if we haven't returned false by now, state is nondominated.
+        // The new state is nondominated. Evict the states it dominates, compacting the remaining ones and the new one
+        // in place.
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (betterOrEqual(size, i)) continue;
+            states.set(kept, states.get(i));
+            move(i, kept);
+            kept++;
+        }
+        states.subList(kept, size).clear();
         states.add(newState);
+        move(size, kept);
         return true;
     }
 
+    /** Copy the dominance keys of one state to another slot. */
+    private void move (int from, int to) {
+        if (from == to) return;
+        times[to] = times[from];
+        faresPaid[to] = faresPaid[from];
+        consumedValues[to] = consumedValues[from];
+        allowanceValues[to] = allowanceValues[from];
+        allowanceNumbers[to] = allowanceNumbers[from];
+        allowanceExpirationTimes[to] = allowanceExpirationTimes[from];
+        allowanceRules[to] = allowanceRules[from];
+        rounds[to] = rounds[from];
+        departureTimes[to] = departureTimes[from];
+    }
+
+    private void grow () {
+        int capacity = times.length * 2;
+        times = Arrays.copyOf(times, capacity);
+        faresPaid = Arrays.copyOf(faresPaid, capacity);
+        consumedValues = Arrays.copyOf(consumedValues, capacity);
+        allowanceValues = Arrays.copyOf(allowanceValues, capacity);
+        allowanceNumbers = Arrays.copyOf(allowanceNumbers, capacity);
+        allowanceExpirationTimes = Arrays.copyOf(allowanceExpirationTimes, capacity);
+        allowanceRules = Arrays.copyOf(allowanceRules, capacity);
+        rounds = Arrays.copyOf(rounds, capacity);
+        departureTimes = Arrays.copyOf(departureTimes, capacity);
+    }
+
     @Override
-    public Collection<McRaptorSuboptimalPathProfileRouter.McRaptorState> getNonDominatedStates() {
+    public Collection<McRaptorState> getNonDominatedStates() {
         return states;
     }
 }
\ No newline at end of file
@@ -4,12 +4,12 @@ import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
 import com.conveyal.r5.transit.FilteredPattern;
 import com.conveyal.r5.transit.FilteredPatterns;
 import com.conveyal.r5.transit.PickDropType;
+import com.conveyal.r5.transit.TransferGraph;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
 import com.conveyal.r5.transit.path.Path;
 import gnu.trove.iterator.TIntIterator;
-import gnu.trove.list.TIntList;
 import gnu.trove.map.TIntIntMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +20,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.HALF_HEADWAY;
 import static com.conveyal.r5.profile.FastRaptorWorker.FrequencyBoardingMode.MONTE_CARLO;
@@ -107,15 +108,31 @@ public class FastRaptorWorker {
     /** The routing parameters. */
     private final AnalysisWorkerTask request;
 
-    /** Generates and stores departure time offsets for every frequency-based set of trips. */
-    private final FrequencyRandomOffsets offsets;
+    /** Generates and stores departure time offsets for every frequency-based set of trips. Set in route(). */
+    private FrequencyRandomOffsets offsets;
+
+    /**
+     * If the request asks for shared frequency offsets, the bank of draws they are taken from, with one draw for each
+     * iteration of the full departure time window. Null if offsets are randomized independently for each iteration.
+     */
+    private FrequencyOffsetBank offsetBank;
 
     /** Services active on the date of the search. */
     private final BitSet servicesActive;
 
+    /**
+     * The departure time window covered by this worker, in seconds since midnight. This is the full window of the
+     * request, except in the workers performing individual shards of a sharded search.
+     */
+    private final int windowFromTime;
+    private final int windowToTime;
+
     /** TripPatterns that have been prefiltered for the specific search date and modes. */
     private FilteredPatterns filteredPatterns;
 
+    /** The time in seconds to walk each transfer in the transit layer's TransferGraph at the requested walk speed. */
+    private int[] transferWalkSeconds;
+
     /**
      * The state resulting from the scheduled search at a particular departure minute.
      * This state is reused at each departure minute without re-initializing it (this is the range-raptor optimization).
@@ -123,6 +140,15 @@ public class FastRaptorWorker {
      */
     private RaptorState[] scheduleState;
 
+    /**
+     * A pool of states, one per round, which is reset from the scheduleState before each randomized frequency search
+     * rather than allocating a fresh copy of every array for each Monte Carlo iteration. It is private to this worker
+     * (and therefore to the single thread running it), and allocated lazily on the first frequency search. A worker
+     * only lives as long as one task, so each task still allocates one chain of states; only the per-iteration
+     * copies are avoided.
+     */
+    private RaptorState[] frequencyState;
+
     /**
      * This should be either HALF_HEADWAY or MONTE_CARLO.
      * The other value UPPER_BOUND is only used within a sub-search of MONTE_CARLO.
@@ -135,6 +161,20 @@ public class FastRaptorWorker {
     /** If we're going to store paths to every destination (e.g. for static sites) then they'll be retained here. */
     public List<Path[]> pathsPerIteration;
 
+    /**
+     * The number of contiguous sub-windows into which the departure time window is split. Each sub-window is routed
+     * by an independent range-RAPTOR search on its own thread, with its own round states and randomized frequency
+     * offsets, and the resulting iterations are concatenated back together in the usual order. A value of one (the
+     * default) performs a single range-RAPTOR search over the whole window on the calling thread. This is intended
+     * for single point requests: regional tasks are already parallelized across origins, so sharding them would only
+     * oversubscribe the available processors.
+     *
+     * Note that results are not necessarily identical to an unsharded search. Range-RAPTOR reuses results from later
+     * departure minutes, which can give riders "look-ahead" about overtaking trips (see comments on
+     * advanceScheduledSearchToPreviousMinute). That look-ahead does not extend across shard boundaries.
+     */
+    public int departureMinuteShards = 1;
+
     /**
      * Only fast initialization steps are performed in the constructor.
      * All slower work is done in route() so timing information can be collected.
@@ -145,8 +185,6 @@ public class FastRaptorWorker {
         this.accessStops = accessStops;
         this.servicesActive  = transit.getActiveServicesForDate(request.date);
 
-        offsets = new FrequencyRandomOffsets(transitLayer);
-
         // compute number of minutes for scheduled search
         nMinutes = request.getTimeWindowLengthMinutes();
 
@@ -158,6 +196,30 @@ public class FastRaptorWorker {
         // Hidden feature: activate half-headway boarding times by specifying zero Monte Carlo draws.
         // The UI requires one or more draws, so this can only be activated by editing request JSON directly.
         boardingMode = (request.monteCarloDraws == 0) ? HALF_HEADWAY : MONTE_CARLO;
+        windowFromTime = request.fromTime;
+        windowToTime = request.toTime;
+    }
+
+    /**
+     * Create a worker that will perform one shard of the parent worker's search, covering only the departure minutes
+     * in the given sub-window. The shard shares the parent's immutable inputs and prefiltered patterns, but has its own
+     * round states, randomized frequency offsets and timers so it can run concurrently with other shards.
+     */
+    private FastRaptorWorker (FastRaptorWorker parent, int windowFromTime, int windowToTime) {
+        this.transit = parent.transit;
+        this.request = parent.request;
+        this.accessStops = parent.accessStops;
+        this.servicesActive = parent.servicesActive;
+        this.filteredPatterns = parent.filteredPatterns;
+        this.transferWalkSeconds = parent.transferWalkSeconds;
+        this.offsetBank = parent.offsetBank;
+        this.offsets = (offsetBank == null) ? new FrequencyRandomOffsets(transit) : new FrequencyRandomOffsets(offsetBank);
+        this.nMinutes = (windowToTime - windowFromTime) / DEPARTURE_STEP_SEC;
+        this.iterationsPerMinute = parent.iterationsPerMinute;
+        this.boardingMode = parent.boardingMode;
+        this.retainPaths = parent.retainPaths;
+        this.windowFromTime = windowFromTime;
+        this.windowToTime = windowToTime;
     }
 
     /**
@@ -169,47 +231,105 @@ public class FastRaptorWorker {
     public int[][] route () {
         raptorTimer.fullSearch.start();
         raptorTimer.patternFiltering.start();
-        filteredPatterns = transit.filteredPatternCache.get(request.transitModes, servicesActive);
+        // Trips not running between the start of the window and the end of the window plus the maximum trip duration
+        // can never be boarded, because RaptorState rejects arrivals after that time.
+        filteredPatterns = transit.filteredPatternCache.get(request.transitModes, servicesActive,
+                request.fromTime, request.toTime + request.maxTripDurationMinutes * SECONDS_PER_MINUTE);
+        transferWalkSeconds = transit.transferGraph.getSeconds((int) (request.walkSpeed * 1000));
+        // The bank is generated by the first search requesting it on this transit layer, then reused by later ones.
+        if (request.sharedFrequencyOffsets && transit.hasFrequencies && boardingMode == MONTE_CARLO) {
+            offsetBank = transit.frequencyOffsetBanks.get(nMinutes * iterationsPerMinute);
+            offsets = new FrequencyRandomOffsets(offsetBank);
+        } else {
+            offsetBank = null;
+            offsets = new FrequencyRandomOffsets(transit);
+        }
         raptorTimer.patternFiltering.stop();
-        // Initialize result storage. Results are one arrival time at each stop, for every raptor iteration.
-        final int nStops = transit.getStopCount();
+        final int nShards = Math.max(1, Math.min(departureMinuteShards, nMinutes));
+        LOG.info("Performing {} total iterations ({} per minute) in {} shard(s); boarding {}; frequencies {}",
+                iterationsPerMinute * nMinutes, iterationsPerMinute, nShards, boardingMode, transit.hasFrequencies);
+        int[][] travelTimesToStopsPerIteration;
+        if (nShards > 1) {
+            travelTimesToStopsPerIteration = routeShards(nShards);
+        } else {
+            travelTimesToStopsPerIteration = routeWindow();
+        }
+        raptorTimer.fullSearch.stop();
+        raptorTimer.log();
+        // For debugging:
+        // dumpAllTimesToFile(travelTimesToStopsPerIteration, 45);
+        return travelTimesToStopsPerIteration;
+    }
+
+    /**
+     * Split the departure time window into the given number of contiguous sub-windows of (nearly) equal length, and
+     * perform an independent range-RAPTOR search over each one in parallel. The sub-window containing the latest
+     * departure minutes comes first, so concatenating the results of the shards in order reproduces the iteration
+     * order of a single search over the whole window, which works backward from the end of the window.
+     */
+    private int[][] routeShards (int nShards) {
+        final FastRaptorWorker[] shards = new FastRaptorWorker[nShards];
+        for (int s = 0; s < nShards; s++) {
+            // Minutes are counted backward from the end of the window, as in the main range-RAPTOR loop.
+            int firstMinute = s * nMinutes / nShards;
+            int endMinute = (s + 1) * nMinutes / nShards;
+            shards[s] = new FastRaptorWorker(this, windowToTime - endMinute * DEPARTURE_STEP_SEC,
+                    windowToTime - firstMinute * DEPARTURE_STEP_SEC);
+        }
+        int[][][] resultsPerShard = IntStream.range(0, nShards).parallel()
+                .mapToObj(s -> shards[s].routeWindow())
+                .toArray(int[][][]::new);
+        for (FastRaptorWorker shard : shards) {
+            raptorTimer.addAllocation(shard.raptorTimer);
+        }
+        int[][] travelTimesToStopsPerIteration = new int[iterationsPerMinute * nMinutes][];
+        if (retainPaths) pathsPerIteration = new ArrayList<>();
+        int currentIteration = 0;
+        for (int s = 0; s < nShards; s++) {
+            for (int[] travelTimesToStops : resultsPerShard[s]) {
+                travelTimesToStopsPerIteration[currentIteration++] = travelTimesToStops;
+            }
+            if (retainPaths) {
+                pathsPerIteration.addAll(shards[s].pathsPerIteration);
+            }
+        }
+        checkState(currentIteration == travelTimesToStopsPerIteration.length, "Unexpected number of iterations.");
+        return travelTimesToStopsPerIteration;
+    }
+
+    /**
+     * Perform a range-RAPTOR search over all departure minutes in this worker's window, which is the entire window
+     * of the request or a sub-window of it when sharding.
+     * @return the travel times to each stop for each iteration, ordered from the latest departure minute to the
+     *         earliest, as described on route().
+     */
+    private int[][] routeWindow () {
+        raptorTimer.startAllocation();
+        // Initialize result storage. Results are one travel time to each stop, for every raptor iteration.
         final int nIterations = iterationsPerMinute * nMinutes;
-        LOG.info("Performing {} total iterations ({} per minute); boarding {}; frequencies {}",
-                nIterations, iterationsPerMinute, boardingMode, transit.hasFrequencies);
         int[][] travelTimesToStopsPerIteration = new int[nIterations][];
         if (retainPaths) pathsPerIteration = new ArrayList<>();
 
         // This main outer loop iterates backward over all minutes in the departure times window.
         // TODO revise this loop so seconds are derived from minute numbers
         int currentIteration = 0;
-        for (int departureTime = request.toTime - DEPARTURE_STEP_SEC, minute = nMinutes;
-                 departureTime >= request.fromTime;
+        for (int departureTime = windowToTime - DEPARTURE_STEP_SEC, minute = nMinutes;
+                 departureTime >= windowFromTime;
                  departureTime -= DEPARTURE_STEP_SEC, minute--
         ) {
             if (minute % 15 == 0) LOG.debug("  minute {}", minute);
 
-            // Run the raptor search. For this particular departure time, we receive N arrays of arrival times at all
+            // Run the raptor search. For this particular departure time, we receive N arrays of travel times to all
             // stops, one for each randomized schedule: resultsForMinute[randScheduleNumber][transitStop]
             int[][] resultsForDepartureMinute = runRaptorForDepartureMinute(departureTime);
-            // Iterate over the results for different Monte Carlo draws at this departure minute.
-            for (int[] arrivalTimesAtStops : resultsForDepartureMinute) {
-                // Make a protective copy of the arrival times, transforming them into travel times (durations).
-                checkState(arrivalTimesAtStops.length == nStops, "Result should contain one value per stop.");
-                int[] travelTimesToStops = new int[nStops];
-                for (int s = 0; s < nStops; s++) {
-                    int arrivalTime = arrivalTimesAtStops[s];
-                    travelTimesToStops[s] = (arrivalTime == UNREACHED) ? UNREACHED : arrivalTime - departureTime;
-                }
-                // Accumulate the duration-transformed Monte Carlo iterations for the current minute
-                // into one big flattened array representing all iterations at all minutes.
+            // Accumulate the Monte Carlo iterations for the current minute into one big flattened array representing
+            // all iterations at all minutes. These arrays are already protective copies and can be retained as-is.
+            for (int[] travelTimesToStops : resultsForDepartureMinute) {
                 travelTimesToStopsPerIteration[currentIteration++] = travelTimesToStops;
             }
         }
         checkState(currentIteration == nIterations, "Unexpected number of iterations.");
-        raptorTimer.fullSearch.stop();
-        raptorTimer.log();
-        // For debugging:
-        // dumpAllTimesToFile(travelTimesToStopsPerIteration, 45);
+        raptorTimer.stopAllocation(nIterations);
         return travelTimesToStopsPerIteration;
     }
 
@@ -297,8 +417,8 @@ public class FastRaptorWorker {
      * time at each location at time t + n is an upper bound on the arrival time departing at time t.
      *
      * @param departureTime When this search departs.
-     * @return an array of length iterationsPerMinute, containing the arrival times at each stop for each
-     * iteration (clock times as opposed to durations).
+     * @return an array of length iterationsPerMinute, containing the travel times (durations as opposed to clock
+     * times) to each stop for each iteration. These are freshly allocated arrays that are safe to retain.
      */
     private int[][] runRaptorForDepartureMinute (int departureTime) {
         if (ENABLE_OPTIMIZATION_RANGE_RAPTOR && scheduleState != null) {
@@ -358,15 +478,26 @@ public class FastRaptorWorker {
         if (transit.hasFrequencies) {
             raptorTimer.frequencySearch.start();
             int[][] result = new int[iterationsPerMinute][];
+            // Iterations are numbered from the end of the request's window, matching the order of the results.
+            int firstIterationOfMinute = ((request.toTime - departureTime) / DEPARTURE_STEP_SEC - 1) * iterationsPerMinute;
 
             // In Monte Carlo mode, each iteration is a fresh randomization of frequency route offsets.
             // In half-headway mode, only one iteration will happen and schedules will not be randomized.
             for (int iteration = 0; iteration < iterationsPerMinute; iteration++) {
-                // Make a fresh copy of the upper bound travel times for each new randomized schedule (iteration).
+                // Reset the pooled states to the upper bound travel times for each new randomized schedule (iteration).
                 // Array contains one state per round we're going to perform with this schedule.
-                RaptorState[] frequencyState = copyMultiRoundState(scheduleState);
+                if (frequencyState == null) {
+                    frequencyState = copyMultiRoundState(scheduleState);
+                } else {
+                    resetMultiRoundState(frequencyState, scheduleState);
+                }
                 if (boardingMode == MONTE_CARLO) {
-                    offsets.randomize();
+                    if (offsetBank == null) {
+                        offsets.randomize();
+                    } else {
+                        // Use the draw for this iteration's position in the whole window, even when sharding.
+                        offsets.selectDraw(firstIterationOfMinute + iteration);
+                    }
                 }
                 // Proceed through one round per transit ride; round 0 represents walking to transit stops from origin.
                 // Scan both scheduled and frequency routes to allow transferring back and forth between them.
@@ -389,9 +520,9 @@ public class FastRaptorWorker {
                     }
 
                 }
-                // No need to make an additional protective copy, this state is already a copy of the scheduled state.
+                // The pooled state will be overwritten by the next iteration, so the results must be copied out of it.
                 RaptorState finalRoundState = frequencyState[request.maxRides];
-                result[iteration] = finalRoundState.bestNonTransferTimes;
+                result[iteration] = travelTimesToStops(finalRoundState);
                 if (retainPaths) {
                     pathsPerIteration.add(pathToEachStop(finalRoundState));
                 }
@@ -409,7 +540,7 @@ public class FastRaptorWorker {
             // This scheduleState is repeatedly modified as the outer loop progresses over departure minutes.
             // We have to be careful here that creating these paths does not modify the state, and makes
             // protective copies of any information we want to retain.
-            result[0] = finalRoundState.bestNonTransferTimes;
+            result[0] = travelTimesToStops(finalRoundState);
             if (retainPaths) {
                 Path[] paths = pathToEachStop(finalRoundState);
                 pathsPerIteration.add(paths);
@@ -433,6 +564,32 @@ public class FastRaptorWorker {
         return copy;
     }
 
+    /**
+     * Reset an array of pooled RaptorStates in place to match the original array of states for the same rounds,
+     * without allocating. Like copyMultiRoundState, this clears the sets of updated stops. The previous-round
+     * references of the pooled states already chain them together and are left untouched.
+     */
+    private static void resetMultiRoundState(RaptorState[] pooled, RaptorState[] original) {
+        checkArgument(pooled.length == original.length, "Pooled states must have the same number of rounds.");
+        for (int r = 0; r < original.length; r++) {
+            pooled[r].copyFrom(original[r]);
+        }
+    }
+
+    /**
+     * Make a protective copy of the best non-transfer arrival times in the given state, transforming them into travel
+     * times (durations) from the state's departure time.
+     */
+    private static int[] travelTimesToStops(RaptorState state) {
+        int nStops = state.bestNonTransferTimes.length;
+        int[] travelTimesToStops = new int[nStops];
+        for (int s = 0; s < nStops; s++) {
+            int arrivalTime = state.bestNonTransferTimes[s];
+            travelTimesToStops[s] = (arrivalTime == UNREACHED) ? UNREACHED : arrivalTime - state.departureTime;
+        }
+        return travelTimesToStops;
+    }
+
     /**
      * Create the optimal path to each stop in the transit network, based on the given RaptorState.
      */
@@ -461,10 +618,11 @@ public class FastRaptorWorker {
         checkArgument(filteredPattern.noScheduledOvertaking);
         int bestTrip  = currentTrip;
         int candidateTrip = currentTrip;
+        // The tripSchedules in the supplied pattern are known to be sorted by departure time at all stops, so the
+        // precomputed departure column for this stop is in trip order.
+        final int[] departures = filteredPattern.sortedDepartures[stopInPattern];
         while (--candidateTrip >= 0) {
-            // The tripSchedules in the supplied pattern are known to be sorted by departure time at all stops.
-            TripSchedule candidateSchedule = filteredPattern.runningScheduledTrips.get(candidateTrip);
-            final int candidateDeparture = candidateSchedule.departures[stopInPattern];
+            final int candidateDeparture = departures[candidateTrip];
             if (candidateDeparture > departAfter) {
                 bestTrip = candidateTrip;
             } else {
@@ -477,29 +635,15 @@ public class FastRaptorWorker {
 
 
     /**
-     * Perform a linear search through the trips in the supplied filteredPattern, finding the one that departs
-     * earliest from the given stop position in the pattern, and returning its index within the filtered pattern.
+     * Find the trip in the supplied filteredPattern that departs earliest from the given stop position in the pattern,
+     * and return its index within the filtered pattern. This is a binary search over departure times precomputed per
+     * stop in the FilteredPattern, so it remains cheap on dense patterns with hundreds of trips, with or without
+     * overtaking.
      */
     private int findEarliestScheduledDeparture (
             int departAfter, FilteredPattern filteredPattern, int stopInPattern
     ) {
-        // Trips are sorted in ascending order by time of departure from first stop
-        List<TripSchedule> trips = filteredPattern.runningScheduledTrips;
-        boolean noOvertaking = filteredPattern.noScheduledOvertaking;
-        int bestTrip = -1;
-        int bestDeparture = Integer.MAX_VALUE;
-        for (int t = 0; t < trips.size(); t++) {
-            TripSchedule ts = trips.get(t);
-            final int departure = ts.departures[stopInPattern];
-            if (departure > departAfter && departure < bestDeparture) {
-                bestTrip = t;
-                bestDeparture = departure;
-                // No overtaking plus sorting by time of departure from first stop guarantees sorting by time of
-                // departure at this stop; so we know this is the earliest departure and can break early.
-                if (noOvertaking) break;
-            }
-        }
-        return bestTrip;
+        return filteredPattern.findEarliestDeparture(departAfter, stopInPattern);
     }
 
     // Chosen to be completely invalid as an array index or time in order to fail fast.
@@ -848,9 +992,13 @@ public class FastRaptorWorker {
      * or transfer arrivals.
      */
     private void doTransfers (RaptorState state) {
-        // Cast and multiplication factored out of the tight loop below to ensure they are not repeatedly evaluated.
-        final int walkSpeedMillimetersPerSecond = (int) (request.walkSpeed * 1000);
-        final int maxWalkMillimeters = walkSpeedMillimetersPerSecond * (request.maxWalkTime * SECONDS_PER_MINUTE);
+        // Array lookups and multiplication factored out of the tight loop below. The walk time of every transfer at
+        // the requested speed is precomputed and shared between searches, so each transfer is a contiguous array read.
+        final TransferGraph transferGraph = transit.transferGraph;
+        final int[] offsets = transferGraph.offsets;
+        final int[] targetStops = transferGraph.targetStops;
+        final int[] walkSeconds = transferWalkSeconds;
+        final int maxWalkSeconds = request.maxWalkTime * SECONDS_PER_MINUTE;
         // Compute transfers only from stops updated pre-transfer within this departure minute / randomized schedule.
         // These transfers then update the post-transfers bitset (stopsUpdated) to avoid concurrent modification while
         // iterating.
@@ -858,17 +1006,14 @@ public class FastRaptorWorker {
                  stop >= 0;
                  stop = state.nonTransferStopsUpdated.nextSetBit(stop + 1)
         ) {
-            TIntList transfersFromStop = transit.transfersForStop.get(stop);
-            if (transfersFromStop != null) {
-                for (int i = 0; i < transfersFromStop.size(); i += 2) {
-                    int targetStop = transfersFromStop.get(i);
-                    int distanceToTargetStopMillimeters = transfersFromStop.get(i + 1);
-                    if (distanceToTargetStopMillimeters < maxWalkMillimeters) {
-                        int walkTimeToTargetStopSeconds = distanceToTargetStopMillimeters / walkSpeedMillimetersPerSecond;
-                        checkState(walkTimeToTargetStopSeconds >= 0, "Transfer walk time must be positive.");
-                        int timeAtTargetStop = state.bestNonTransferTimes[stop] + walkTimeToTargetStopSeconds;
-                        state.setTimeAtStop(targetStop, timeAtTargetStop, -1, stop, 0, 0, true);
-                    }
+            final int timeAtStop = state.bestNonTransferTimes[stop];
+            for (int t = offsets[stop], end = offsets[stop + 1]; t < end; t++) {
+                // Walk times are rounded down to whole seconds, so this is equivalent to comparing the distance
+                // against the distance walkable in maxWalkSeconds.
+                int walkTimeToTargetStopSeconds = walkSeconds[t];
+                if (walkTimeToTargetStopSeconds < maxWalkSeconds) {
+                    checkState(walkTimeToTargetStopSeconds >= 0, "Transfer walk time must be positive.");
+                    state.setTimeAtStop(targetStops[t], timeAtStop + walkTimeToTargetStopSeconds, -1, stop, 0, 0, true);
                 }
             }
         }
@@ -0,0 +1,97 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.apache.commons.math3.random.MersenneTwister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A fixed set of Monte Carlo draws of the offsets ("phases") of every frequency entry in a TransitLayer, generated in
+ * advance and shared read-only between searches. In a regional analysis every origin otherwise generates its own draws
+ * for every iteration, including the repeated passes needed to resolve phased frequency entries. Sharing one bank
+ * avoids that work, and means every origin sees the same randomized schedules in the same iteration, so differences
+ * between nearby origins are not obscured by independent sampling noise.
+ *
+ * The draws are generated with a fixed seed, so every worker builds an identical bank for the same network, scenario,
+ * and number of draws. They do not depend on the date of the search, as offsets are drawn for every frequency entry
+ * whether or not its service is running. Banks are cached on the TransitLayer, see TransitLayer.frequencyOffsetBanks.
+ */
+public class FrequencyOffsetBank {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FrequencyOffsetBank.class);
+
+    /** Seed for the random draws, fixed so that the bank is the same on every worker. */
+    private static final int SEED = 740;
+
+    /** The transit layer whose frequency entries are offset by these draws. */
+    final TransitLayer transitLayer;
+
+    /** The position of the first frequency entry of each frequency-based TripSchedule in the arrays of offsets. */
+    private final TObjectIntMap<TripSchedule> firstEntryIndexForTripSchedule = new TObjectIntHashMap<>(64, 0.5f, -1);
+
+    /** For each draw, the offset in seconds of every frequency entry of every TripSchedule. */
+    private final int[][] offsetsForDraw;
+
+    public FrequencyOffsetBank (TransitLayer transitLayer, int nDraws) {
+        checkArgument(nDraws > 0, "A bank of frequency offsets must contain at least one draw.");
+        this.transitLayer = transitLayer;
+        // Lay out the frequency entries of all TripSchedules end to end.
+        List<TripSchedule> frequencySchedules = new ArrayList<>();
+        int nEntries = 0;
+        for (TripPattern pattern : transitLayer.tripPatterns) {
+            if (!pattern.hasFrequencies) continue;
+            for (TripSchedule schedule : pattern.tripSchedules) {
+                if (schedule.headwaySeconds == null) continue;
+                firstEntryIndexForTripSchedule.put(schedule, nEntries);
+                frequencySchedules.add(schedule);
+                nEntries += schedule.nFrequencyEntries();
+            }
+        }
+        FrequencyRandomOffsets randomOffsets = new FrequencyRandomOffsets(transitLayer, new MersenneTwister(SEED));
+        offsetsForDraw = new int[nDraws][];
+        for (int draw = 0; draw < nDraws; draw++) {
+            randomOffsets.randomize();
+            int[] offsets = new int[nEntries];
+            for (TripSchedule schedule : frequencySchedules) {
+                int firstEntryIndex = firstEntryIndexForTripSchedule.get(schedule);
+                for (int entry = 0; entry < schedule.nFrequencyEntries(); entry++) {
+                    offsets[firstEntryIndex + entry] = randomOffsets.getOffsetSeconds(schedule, entry);
+                }
+            }
+            offsetsForDraw[draw] = offsets;
+        }
+        LOG.info("Generated {} draws of offsets for {} frequency entries.", nDraws, nEntries);
+    }
+
+    public int nDraws () {
+        return offsetsForDraw.length;
+    }
+
+    /** @return the total number of offsets in all draws, which determines the memory consumed by this bank. */
+    public long nOffsets () {
+        return (long) offsetsForDraw.length * offsetsForDraw[0].length;
+    }
+
+    /** @return the offsets of all frequency entries in the given draw, which must not be modified. */
+    int[] getDraw (int draw) {
+        return offsetsForDraw[draw % offsetsForDraw.length];
+    }
+
+    /** @return the position of the offset of the given TripSchedule's first frequency entry in the draws. */
+    int firstEntryIndex (TripSchedule tripSchedule) {
+        int firstEntryIndex = firstEntryIndexForTripSchedule.get(tripSchedule);
+        checkState(firstEntryIndex >= 0, "TripSchedule has no frequency offsets in this bank.");
+        return firstEntryIndex;
+    }
+
+}
@@ -22,6 +22,9 @@ import static com.google.common.base.Preconditions.checkState;
   * Therefore we have no memory of exactly which offsets were used in a particular Monte Carlo search.
   * It may be preferable to work with reproducible low-discrepancy sets instead of simple random samples, in which case
   * we'd need to make alternate implementations that pre-generate the entire set or use deterministic seeded generators.
+  *
+  * Alternatively, the offsets can be taken from a FrequencyOffsetBank of draws generated in advance and shared between
+  * searches. In that case selectDraw() is called before each Monte Carlo iteration instead of randomize().
   */
 public class FrequencyRandomOffsets {
 
@@ -44,10 +47,30 @@ public class FrequencyRandomOffsets {
     private final Map<TripSchedule, int[]> offsetsForTripSchedule = new HashMap<>();
 
     /** The mersenne twister is a higher quality random number generator than the one included with Java */
-    private MersenneTwister mt = new MersenneTwister();
+    private final MersenneTwister mt;
+
+    /** If non-null, offsets are taken from this bank of shared draws rather than randomized. */
+    private final FrequencyOffsetBank bank;
+
+    /** The offsets of all frequency entries in the draw most recently selected from the bank. */
+    private int[] bankOffsets;
 
     public FrequencyRandomOffsets(TransitLayer data) {
+        this(data, new MersenneTwister());
+    }
+
+    /** Create offsets that are not randomized, but selected one draw at a time from the given shared bank. */
+    public FrequencyRandomOffsets(FrequencyOffsetBank bank) {
+        this.data = bank.transitLayer;
+        this.mt = null;
+        this.bank = bank;
+    }
+
+    /** Create offsets randomized using the given generator, which may be seeded to make the offsets repeatable. */
+    FrequencyRandomOffsets(TransitLayer data, MersenneTwister mt) {
         this.data = data;
+        this.mt = mt;
+        this.bank = null;
         if (!data.hasFrequencies) {
             return;
         }
@@ -73,6 +96,11 @@ public class FrequencyRandomOffsets {
      * Lookup is now by TripSchedule object as trips are filtered, losing track of their int indexes in unfiltered lists.
      */
     public int getOffsetSeconds (TripSchedule tripSchedule, int freqEntryIndex) {
+        if (bank != null) {
+            checkState(bankOffsets != null, "No draw was selected from the bank of frequency offsets.");
+            checkElementIndex(freqEntryIndex, tripSchedule.nFrequencyEntries());
+            return bankOffsets[bank.firstEntryIndex(tripSchedule) + freqEntryIndex];
+        }
         int[] offsetsPerEntry = offsetsForTripSchedule.get(tripSchedule);
         checkState(
             tripSchedule.nFrequencyEntries() == offsetsPerEntry.length,
@@ -89,6 +117,7 @@ public class FrequencyRandomOffsets {
       * We run all Raptor rounds with one draw before proceeding to the next draw.
       */
     public void randomize () {
+        checkState(bank == null, "Offsets taken from a bank of shared draws cannot be randomized.");
         // The number of TripSchedules for which we still need to generate a random offset.
         int remaining = 0;
 
@@ -247,4 +276,13 @@ public class FrequencyRandomOffsets {
             }
         }
     }
+
+    /**
+     * Use the offsets of the given draw from the shared bank for the next Monte Carlo iteration, in place of a fresh
+     * randomization. Searches covering the same iterations therefore see the same schedules for frequency routes.
+     */
+    public void selectDraw (int draw) {
+        checkState(bank != null, "Draws can only be selected from a bank of shared offsets.");
+        bankOffsets = bank.getDraw(draw);
+    }
 }
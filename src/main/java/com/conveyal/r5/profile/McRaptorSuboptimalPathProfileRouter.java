@@ -6,12 +6,14 @@ import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.api.util.TransitModes;
 import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.transit.RouteInfo;
+import com.conveyal.r5.transit.TransferGraph;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TripFlag;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
 import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.TObjectIntMap;
@@ -25,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -34,8 +37,9 @@ import java.util.function.Supplier;
 
 /**
  * A profile routing implementation which uses McRAPTOR to store bags of arrival times and paths per
- * vertex, so we can find suboptimal paths. We're not using range-RAPTOR here, yet, as the obvious implementation
- * produces some very strange paths for reasons I do not fully understand.
+ * vertex, so we can find suboptimal paths. We only use range-RAPTOR when collating travel times to all stops on
+ * networks without frequency routes (see allowRangeRaptor), as the obvious implementation produces some very strange
+ * paths in point to point searches for reasons I do not fully understand.
  *
  * @author mattwigway
  */
@@ -60,12 +64,35 @@ public class McRaptorSuboptimalPathProfileRouter {
 
     private FrequencyRandomOffsets offsets;
 
+    /** The time in seconds to walk each transfer in the transit layer's TransferGraph at the requested walk speed. */
+    private final int[] transferWalkSeconds;
+
     private TIntObjectMap<McRaptorStateBag> bestStates = new TIntObjectHashMap<>();
 
     private int round = 0;
     private int departureTime;
 
+    /**
+     * If true, searches that collate travel times to all stops (fare-based analysis) keep their state bags from one
+     * departure minute to the next, working backward through the time window as range-RAPTOR does. Any state found
+     * for a later departure is still a valid way to reach a stop when leaving earlier and waiting at the origin, so
+     * only stops improved upon at each minute need to be explored again. This is never done on networks with
+     * frequency routes, whose schedules are randomized anew for every departure minute. Set before calling route().
+     */
+    public boolean allowRangeRaptor = true;
+
+    /** Whether state bags are reused across departure minutes in this search, see allowRangeRaptor. */
+    private boolean rangeRaptor;
+
+    /**
+     * The departure time passed to the listSupplier when creating state bags. With range-RAPTOR, bags are reused
+     * across departure minutes, so they must accept states for the latest departure minute.
+     */
+    private int bagDepartureTime;
+
     private BitSet touchedStops;
+    /** The stops touched in the previous round, where all states that can be boarded in this round are found. */
+    private BitSet stopsTouchedLastRound;
     private BitSet touchedPatterns;
     private BitSet patternsNearDestination;
     private BitSet servicesActive;
@@ -110,10 +137,12 @@ public class McRaptorSuboptimalPathProfileRouter {
         this.listSupplier = listSupplier;
         this.collapseParetoSurfaceToTime = collapseParetoSurfaceToTime;
         this.touchedStops = new BitSet(network.transitLayer.getStopCount());
+        this.stopsTouchedLastRound = new BitSet(network.transitLayer.getStopCount());
         this.touchedPatterns = new BitSet(network.transitLayer.tripPatterns.size());
         this.patternsNearDestination = new BitSet(network.transitLayer.tripPatterns.size());
         this.servicesActive = network.transitLayer.getActiveServicesForDate(req.date);
         this.offsets = new FrequencyRandomOffsets(network.transitLayer);
+        this.transferWalkSeconds = network.transitLayer.transferGraph.getSeconds((int) (req.walkSpeed * 1000));
         this.saveFinalStates = saveFinalStates;
         if (saveFinalStates) this.finalStatesByDepartureTime = new TIntObjectHashMap<>();
 
@@ -130,6 +159,9 @@ public class McRaptorSuboptimalPathProfileRouter {
         // TODO MWC - I think this can be removed now, I believe analysis now does pre-compute access times.
         if (accessTimes == null) computeAccessTimes();
 
+        rangeRaptor = allowRangeRaptor && collapseParetoSurfaceToTime != null && egressTimes == null &&
+                !network.transitLayer.hasFrequencies;
+
         long startTime = System.currentTimeMillis();
 
         // Optimization for modeify (PointToPointQuery): find patterns near destination
@@ -170,13 +202,19 @@ public class McRaptorSuboptimalPathProfileRouter {
             departureTimes = generateDepartureTimesToSample(request);
         }
 
-        for (int n = 0; n < departureTimes.size(); n++) {
-            departureTime = departureTimes.get(n);
+        // Range-RAPTOR must work backward from the end of the time window, reusing the bags from later minutes.
+        bagDepartureTime = departureTimes.get(departureTimes.size() - 1);
 
-            // we're not using range-raptor so it's safe to change the schedule on each search
-            offsets.randomize();
+        for (int i = 0; i < departureTimes.size(); i++) {
+            int n = rangeRaptor ? departureTimes.size() - 1 - i : i;
+            departureTime = departureTimes.get(n);
 
-            bestStates.clear();
+            if (!rangeRaptor) {
+                // we're not using range-raptor so it's safe to change the schedule on each search
+                offsets.randomize();
+                bestStates.clear();
+                bagDepartureTime = departureTime;
+            }
             touchedPatterns.clear();
             touchedStops.clear();
             // Round 0 is in essence non-transit access.
@@ -212,9 +250,12 @@ public class McRaptorSuboptimalPathProfileRouter {
                 collateTravelTimes(departureTime);
             }
 
-            LOG.info("minute {} / {}", n + 1, request.monteCarloDraws);
+            LOG.info("minute {} / {}", i + 1, request.monteCarloDraws);
         }
 
+        // Keep the iterations in chronological order regardless of the order in which they were routed.
+        if (rangeRaptor) Collections.reverse(timesAtStopsEachIteration);
+
         LOG.info("McRAPTOR took {}ms", System.currentTimeMillis() - startTime);
 
         // will be empty unless this is for a PointToPointQuery.
@@ -298,30 +339,34 @@ public class McRaptorSuboptimalPathProfileRouter {
         // make a protective copy of bestStates so we're not reading from the same structure we're writing to
         // Otherwise the router can ride multiple transit vehicles in a single round, if it explores the pattern of the first
         // before the pattern of the second
-        TIntObjectMap<Collection<McRaptorState>> bestStatesBeforeRound = new TIntObjectHashMap<>();
-        TIntObjectMap<Collection<McRaptorState>> bestNonTransferStatesBeforeRound = new TIntObjectHashMap<>();
-        bestStates.forEachEntry((stop, bag) -> {
-            bestStatesBeforeRound.put(stop, new ArrayList<>(bag.getBestStates()));
-            bestNonTransferStatesBeforeRound.put(stop, new ArrayList<>(bag.getNonTransferStates()));
-            return true; // continue iteration
-        });
+        // Only states found in the previous round of this search are boarded, and those can only be at stops touched
+        // in the previous round, so there is no need to copy the other states.
+        TIntObjectMap<List<McRaptorState>> bestStatesBeforeRound = new TIntObjectHashMap<>();
+        for (int stop = stopsTouchedLastRound.nextSetBit(0); stop >= 0; stop = stopsTouchedLastRound.nextSetBit(stop + 1)) {
+            List<McRaptorState> statesToBoard = new ArrayList<>();
+            for (McRaptorState state : bestStates.get(stop).getBestStates()) {
+                if (isNewInRound(state, round - 1)) statesToBoard.add(state);
+            }
+            if (!statesToBoard.isEmpty()) bestStatesBeforeRound.put(stop, statesToBoard);
+        }
 
         // optimization: on the last round, only explore patterns near the destination in a point to point search
         if (round == request.maxRides && egressTimes != null)
             touchedPatterns.and(patternsNearDestination);
 
         for (int patIdx = touchedPatterns.nextSetBit(0); patIdx >= 0; patIdx = touchedPatterns.nextSetBit(patIdx + 1)) {
-            // All states that have been propagated
+            // All states that have been propagated. The lists of ints below are parallel to this one, so that a state
+            // boarding more than one trip or at more than one stop on this pattern keeps each of those boardings.
             List<McRaptorState> states = new ArrayList<>();
 
             // The board stop position in the pattern for each state (not the R5 or GTFS stop ID)
-            TObjectIntMap<McRaptorState> boardStopPositionInPattern = new TObjectIntHashMap<>();
+            TIntList boardStopPositionInPattern = new TIntArrayList();
 
             // The board time, for frequency trips
-            TObjectIntMap<McRaptorState> boardTimeForFrequencyTrips = new TObjectIntHashMap<>();
+            TIntList boardTimeForFrequencyTrips = new TIntArrayList();
 
             // The trip index in the pattern (not GTFS Trip ID) that produced each state
-            TObjectIntMap<McRaptorState> tripIndicesInPattern = new TObjectIntHashMap<>();
+            TIntList tripIndicesInPattern = new TIntArrayList();
 
             TripPattern pattern = network.transitLayer.tripPatterns.get(patIdx);
             RouteInfo routeInfo = network.transitLayer.routes.get(pattern.routeIndex);
@@ -349,16 +394,17 @@ public class McRaptorSuboptimalPathProfileRouter {
                 boolean stopReachedViaDifferentPattern = bestStatesBeforeRound.containsKey(stop);
 
                 // get off the bus, if we can
-                for (McRaptorState state : states) {
-                    int tripIndexInPattern = tripIndicesInPattern.get(state);
+                for (int boarding = 0; boarding < states.size(); boarding++) {
+                    McRaptorState state = states.get(boarding);
+                    int tripIndexInPattern = tripIndicesInPattern.get(boarding);
                     TripSchedule sched = pattern.tripSchedules.get(tripIndexInPattern);
-                    int boardStopPosition = boardStopPositionInPattern.get(state);
+                    int boardStopPosition = boardStopPositionInPattern.get(boarding);
                     int arrival, boardTime;
 
                     // we know we have no mixed schedule/frequency patterns, see check on boarding
                     if (sched.headwaySeconds != null) {
                         int travelTimeToStop = sched.arrivals[stopPositionInPattern] - sched.departures[boardStopPosition];
-                        boardTime = boardTimeForFrequencyTrips.get(state);
+                        boardTime = boardTimeForFrequencyTrips.get(boarding);
                         arrival = boardTime + travelTimeToStop;
                     } else {
                         arrival = sched.arrivals[stopPositionInPattern];
@@ -372,9 +418,7 @@ public class McRaptorSuboptimalPathProfileRouter {
 
                 // get on the bus, if we can
                 if (stopReachedViaDifferentPattern) {
-                    STATES: for (McRaptorState state : bestStatesBeforeRound.get(stop)) {
-                        if (state.round != round - 1) continue; // don't continually reexplore states
-
+                    for (McRaptorState state : bestStatesBeforeRound.get(stop)) {
                         // don't reexplore patterns.
                         // NB checking and preventing reboarding any pattern that's been boarded in a previous
                         // round doesn't save a significant amount of search time (anecdotally), and forbids some rare
@@ -405,8 +449,9 @@ public class McRaptorSuboptimalPathProfileRouter {
                                 if (departure > state.time + BOARD_SLACK) {
                                     // boarding is possible here
                                     states.add(state);
-                                    tripIndicesInPattern.put(state, currentTrip);
-                                    boardStopPositionInPattern.put(state, stopPositionInPattern);
+                                    tripIndicesInPattern.add(currentTrip);
+                                    boardStopPositionInPattern.add(stopPositionInPattern);
+                                    boardTimeForFrequencyTrips.add(-1);
 
                                     // we found the best trip we can board at this stop based on travel time (we know this because trips
                                     // are sorted by departure time from first stop), break loop regardless of whether
@@ -460,9 +505,9 @@ public class McRaptorSuboptimalPathProfileRouter {
                                     if (departure > latestDeparture) continue;
 
                                     states.add(state);
-                                    tripIndicesInPattern.put(state, currentTrip);
-                                    boardTimeForFrequencyTrips.put(state, departure);
-                                    boardStopPositionInPattern.put(state, stopPositionInPattern);
+                                    tripIndicesInPattern.add(currentTrip);
+                                    boardStopPositionInPattern.add(stopPositionInPattern);
+                                    boardTimeForFrequencyTrips.add(departure);
                                 }
                             }
                         }
@@ -482,21 +527,21 @@ public class McRaptorSuboptimalPathProfileRouter {
     /** Perform transfers */
     private void doTransfers () {
         BitSet stopsTouchedByTransfer = new BitSet(network.transitLayer.getStopCount());
-        double walkSpeedMillimetersPerSecond = request.walkSpeed * 1000;
+        TransferGraph transferGraph = network.transitLayer.transferGraph;
         for (int stop = touchedStops.nextSetBit(0); stop >= 0; stop = touchedStops.nextSetBit(stop + 1)) {
-            TIntList transfers = network.transitLayer.transfersForStop.get(stop);
+            int firstTransfer = transferGraph.offsets[stop];
+            int endTransfer = transferGraph.offsets[stop + 1];
 
             // okay to use bestStates directly here, it doesn't allow the router to ride two transit vehicles in one round.
             // because doTransfers only creates transfer states, it does not affect nonTransfer states.
             for (McRaptorState state : bestStates.get(stop).getNonTransferStates()) {
-                for (int transfer = 0; transfer < transfers.size(); transfer += 2) {
-                    int toStop = transfers.get(transfer);
-                    int distanceMillimeters = transfers.get(transfer + 1);
-                    int walkTimeSeconds = (int)(distanceMillimeters / walkSpeedMillimetersPerSecond);
+                // States found for later departure minutes have already been transferred from.
+                if (state.departureTime != departureTime) continue;
+                for (int transfer = firstTransfer; transfer < endTransfer; transfer++) {
+                    int toStop = transferGraph.targetStops[transfer];
+                    int walkTimeSeconds = transferWalkSeconds[transfer];
                     if (addState(toStop, -1, -1, state.time + walkTimeSeconds, -1, -1, -1, state)) {
-                        String to = network.transitLayer.stopNames.get(transfers.get(transfer));
-                        //LOG.info("Transfer from {} to {} is optimal", from, to);
-
+                        //LOG.info("Transfer from {} to {} is optimal", from, network.transitLayer.stopNames.get(toStop));
                         stopsTouchedByTransfer.set(toStop);
                     }
                 }
@@ -590,9 +635,21 @@ public class McRaptorSuboptimalPathProfileRouter {
             });
         }
 
+        // Swap rather than copying the bitsets, the stops touched before the last round are no longer needed.
+        BitSet stopsTouchedBeforeLastRound = this.stopsTouchedLastRound;
+        this.stopsTouchedLastRound = this.touchedStops;
+        this.touchedStops = stopsTouchedBeforeLastRound;
         this.touchedStops.clear();
     }
 
+    /**
+     * Was this state found in the given round of the search for the current departure minute? Only these states need
+     * to be explored further, the others (including those found for later minutes with range-RAPTOR) already have been.
+     */
+    private boolean isNewInRound (McRaptorState state, int round) {
+        return state.round == round && state.departureTime == departureTime;
+    }
+
     private boolean addState (int stop, int boardStopPosition, int alightStopPosition, int time, int boardTime, int
             pattern, int trip, McRaptorState back) {
         return addState(stop, boardStopPosition, alightStopPosition, time, boardTime, pattern, trip, back, back
@@ -629,6 +686,7 @@ public class McRaptorSuboptimalPathProfileRouter {
         state.trip = trip;
         state.back = back;
         state.round = round;
+        state.departureTime = departureTime;
         state.accessMode = accessMode;
 
         // sanity check (anecdotally, this has no noticeable effect on speed)
@@ -645,7 +703,7 @@ public class McRaptorSuboptimalPathProfileRouter {
             }
         }
 
-        if (!bestStates.containsKey(stop)) bestStates.put(stop, createStateBag(departureTime));
+        if (!bestStates.containsKey(stop)) bestStates.put(stop, createStateBag(bagDepartureTime));
 
         McRaptorStateBag bag = bestStates.get(stop);
         boolean optimal = bag.add(state);
@@ -700,6 +758,12 @@ public class McRaptorSuboptimalPathProfileRouter {
         /** the round on which this state was discovered */
         public int round;
 
+        /**
+         * The departure time of the search in which this state was discovered. With range-RAPTOR this may be later
+         * than the departure time currently being searched.
+         */
+        public int departureTime;
+
         /** What stop are we at */
         public int stop;
 
@@ -95,7 +95,8 @@ public class PathWithTimes extends Path {
         while (times[0][firstTrip][0] < req.fromTime + accessTime + FastRaptorWorker.BOARD_SLACK_SECONDS) firstTrip++;
 
         // now interleave times
-        double walkSpeedMillimetersPerSecond = req.walkSpeed * 1000;
+        // Rounded to whole millimeters per second as in the routers, so transfer times match those found in routing.
+        int walkSpeedMillimetersPerSecond = (int) (req.walkSpeed * 1000);
         TIMES: while (firstTrip < times[0].length) {
             Itinerary itin = new Itinerary(this.patterns.length);
 
@@ -124,7 +125,7 @@ public class PathWithTimes extends Path {
                         for (int i = 0; i < transfers.size(); i += 2) {
                             if (transfers.get(i) == this.boardStops[patIdx + 1]) {
                                 int transferDistanceMillimeters = transfers.get(i + 1);
-                                transferTime = (int)(transferDistanceMillimeters / walkSpeedMillimetersPerSecond);
+                                transferTime = transferDistanceMillimeters / walkSpeedMillimetersPerSecond;
                                 break;
                             }
                         }
@@ -17,7 +17,6 @@ import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.transit.path.Path;
 import com.conveyal.r5.transit.path.PatternSequence;
-import gnu.trove.map.TIntIntMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +26,10 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
 
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * Given minimum travel times from a single origin point to all transit stops, this class finds minimum travel times to
  * a grid of destinations ("targets") by walking or biking or driving from the transit stops to the targets.
@@ -48,6 +51,12 @@ public class PerTargetPropagater {
     public static final int SECONDS_PER_MINUTE = 60;
     public static final int MM_PER_METER = 1000;
 
+    /** The default number of targets propagated together by the blocked propagation mode, see targetBlockSize. */
+    public static final int DEFAULT_TARGET_BLOCK_SIZE = 128;
+
+    /** The largest block of targets, whose position in the block must fit in the 16 bits given to it by packEgressLeg. */
+    public static final int MAX_TARGET_BLOCK_SIZE = 1 << 16;
+
     /**
      * We will not record or report travel times for paths this long or longer. To limit calculation time and avoid
      * overflow, places at least this many seconds from the origin are simply considered unreachable.
@@ -72,6 +81,15 @@ public class PerTargetPropagater {
     /** If non-null, methods will be called on this object to select and write out paths for a static site.*/
     public PathWriter pathWriter;
 
+    /**
+     * When no paths are being saved, targets are propagated in blocks of this many consecutive targets (which are
+     * nearby one another in gridded pointsets). All egress legs from stops to the targets in a block are gathered and
+     * applied stop by stop, so each stop's row of travel times is loaded into cache once per block rather than once
+     * per target, and the innermost loop is a tight int loop with no path bookkeeping. Set to 1 to process one
+     * target at a time.
+     */
+    private int targetBlockSize = DEFAULT_TARGET_BLOCK_SIZE;
+
     /** Times at targets using the street network */
     private final int[] nonTransitTravelTimesToTargets;
 
@@ -205,6 +223,13 @@ public class PerTargetPropagater {
         timer.fullPropagation.stop();
     }
 
+    /** Set the number of targets propagated together when no paths are saved, see targetBlockSize. */
+    public void setTargetBlockSize (int targetBlockSize) {
+        checkArgument(targetBlockSize >= 1 && targetBlockSize <= MAX_TARGET_BLOCK_SIZE,
+                "Target block size must be between 1 and %s.", MAX_TARGET_BLOCK_SIZE);
+        this.targetBlockSize = targetBlockSize;
+    }
+
     /**
      * After constructing a propagator and setting any additional options or optional fields,
      * call this method to actually perform the travel time propagation.
@@ -233,6 +258,14 @@ public class PerTargetPropagater {
             endTarget = startTarget + 1;
         }
 
+        if (savePaths == SavePaths.NONE && !oneToOne && targetBlockSize > 1) {
+            propagateBlocked(startTarget, endTarget);
+            timer.fullPropagation.stop();
+            timer.log();
+            targets = null; // Prevent later reuse of this propagator instance.
+            return travelTimeReducer.finish();
+        }
+
         for (int targetIdx = startTarget; targetIdx < endTarget; targetIdx++) {
 
             // Initialize the travel times to that achieved without transit (if any).
@@ -271,6 +304,14 @@ public class PerTargetPropagater {
                         perIterationEgress);
             }
 
+            // Record the lowest travel time before the reducer reorders the travel times to this target.
+            int minTravelTime = UNREACHED;
+            if (savePaths == SavePaths.WRITE_TAUI) {
+                for (int travelTime : perIterationTravelTimes) {
+                    minTravelTime = Math.min(minTravelTime, travelTime);
+                }
+            }
+
             // Extract the requested percentiles and save them (and/or the resulting accessibility indicator values)
             int targetToWrite = oneToOne ? 0 : targetIdx;
             timer.reducer.start();
@@ -281,10 +322,9 @@ public class PerTargetPropagater {
                 // TODO Somehow report these in-vehicle, wait and walk breakdown values alongside the total travel time.
                 // TODO WalkTime should be calculated per-iteration, as it may not hold for some summary statistics
                 //      that stat(total) = stat(in-vehicle) + stat(wait) + stat(walk).
-                // The perIterationTravelTimes are sorted as a side effect of the above travelTimeReducer call.
-                // NOTE this is currently using only the first (lowest) travel time.
+                // NOTE this is currently using only the lowest travel time.
                 Set<PatternSequence> selectedPaths = pathScorer.getTopPaths(
-                        pathWriter.nPathsPerTarget, perIterationTravelTimes[0]
+                        pathWriter.nPathsPerTarget, minTravelTime
                 );
                 pathWriter.recordPathsForTarget(selectedPaths);
             }
@@ -321,11 +361,127 @@ public class PerTargetPropagater {
         travelTimesToStop = new int[nStops][nIterations];
         for (int iteration = 0; iteration < nIterations; iteration++) {
             for (int stop = 0; stop < nStops; stop++) {
-                travelTimesToStop[stop][iteration] = travelTimesToStopsForIteration[iteration][stop];
+                // Times at or above the limit are never propagated. Clamping them to the limit (including UNREACHED)
+                // does not change results, but allows egress times to be added to them without overflow.
+                travelTimesToStop[stop][iteration] =
+                        Math.min(travelTimesToStopsForIteration[iteration][stop], maxTravelTimeSeconds);
             }
         }
     }
 
+    /**
+     * Propagate travel times to all targets in the given range, in blocks of targetBlockSize targets. This produces
+     * exactly the same travel times as propagating one target at a time, but only supports the case where no paths
+     * are being saved. For each block, every (stop, target, egress time) combination from all egress modes is packed
+     * into a long and sorted by stop, then each stop's row of travel times is applied to every target it serves
+     * before moving on to the next stop.
+     */
+    private void propagateBlocked (int startTarget, int endTarget) {
+        // One row of travel times per target in the block, reused for each block.
+        int[][] blockTravelTimes = new int[targetBlockSize][nIterations];
+        long[] egressLegs = new long[1024];
+        for (int blockStart = startTarget; blockStart < endTarget; blockStart += targetBlockSize) {
+            int blockEnd = Math.min(blockStart + targetBlockSize, endTarget);
+            timer.propagation.start();
+            int nEgressLegs = 0;
+            for (int targetIdx = blockStart; targetIdx < blockEnd; targetIdx++) {
+                Arrays.fill(blockTravelTimes[targetIdx - blockStart], nonTransitTravelTimesToTargets[targetIdx]);
+                for (LinkedPointSet linkedPointSet : linkedTargets) {
+                    EgressCostTable egressCostTable = linkedPointSet.getEgressCostTable();
+                    int start = egressCostTable.getPointToStopOffsets()[targetIdx];
+                    int end = egressCostTable.getPointToStopOffsets()[targetIdx + 1];
+                    int[] pointToStopCosts = egressCostTable.getPointToStopCosts();
+                    int speedMillimetersPerSecond =
+                            (int) (request.getSpeedForMode(linkedPointSet.streetMode) * MM_PER_METER);
+                    int egressLegTimeLimitSeconds = request.getMaxTimeSeconds(linkedPointSet.streetMode);
+                    // Make room for the new egress legs, at most one for each (stop, cost) pair.
+                    int needed = nEgressLegs + (end - start) / 2;
+                    if (needed > egressLegs.length) {
+                        egressLegs = Arrays.copyOf(egressLegs, Math.max(needed, egressLegs.length * 2));
+                    }
+                    for (int i = start; i < end; i += 2) {
+                        int stop = pointToStopCosts[i];
+                        int secondsFromStopToTarget = egressSeconds(stop, pointToStopCosts[i + 1], egressCostTable,
+                                speedMillimetersPerSecond, egressLegTimeLimitSeconds);
+                        if (secondsFromStopToTarget < 0) continue;
+                        egressLegs[nEgressLegs++] = packEgressLeg(stop, targetIdx - blockStart, secondsFromStopToTarget);
+                    }
+                }
+            }
+            // Group the egress legs by stop so that each stop's travel times are read from memory only once per block.
+            Arrays.sort(egressLegs, 0, nEgressLegs);
+            for (int i = 0; i < nEgressLegs; i++) {
+                long egressLeg = egressLegs[i];
+                int[] timesToStop = travelTimesToStop[(int) (egressLeg >>> 40)];
+                int[] timesToTarget = blockTravelTimes[(int) (egressLeg >>> 24) & 0xFFFF];
+                int egressSeconds = (int) (egressLeg & 0xFFFFFF);
+                // A branch-light loop over primitive arrays, which the JIT is able to unroll and vectorize.
+                for (int iteration = 0; iteration < nIterations; iteration++) {
+                    int timeToReachTarget = timesToStop[iteration] + egressSeconds;
+                    if (timeToReachTarget < maxTravelTimeSeconds && timeToReachTarget < timesToTarget[iteration]) {
+                        timesToTarget[iteration] = timeToReachTarget;
+                    }
+                }
+            }
+            timer.propagation.stop();
+            timer.reducer.start();
+            for (int targetIdx = blockStart; targetIdx < blockEnd; targetIdx++) {
+                travelTimeReducer.extractTravelTimePercentilesAndRecord(
+                        targetIdx, blockTravelTimes[targetIdx - blockStart]
+                );
+            }
+            timer.reducer.stop();
+        }
+    }
+
+    /**
+     * Pack an egress leg into a single long, which sorts first by stop. The position of the target in its block has 16
+     * bits, see MAX_TARGET_BLOCK_SIZE. The egress time is known to be below the egress time limit for its mode, which
+     * is far less than the 2^24 seconds available to it here.
+     */
+    private static long packEgressLeg (int stop, int targetInBlock, int egressSeconds) {
+        checkState(egressSeconds >= 0 && egressSeconds < (1 << 24), "Egress time out of range.");
+        return ((long) stop << 40) | ((long) targetInBlock << 24) | egressSeconds;
+    }
+
+    /**
+     * Find the egress time from a stop to a target using a single egress mode, including any delay waiting for pickup
+     * at the egress stop. This is shared by the per-target and blocked propagation.
+     * @param linkageCost the cost of reaching the target from the stop, in the units of the egress cost table.
+     * @return the egress time in seconds, or -1 if egress from the stop is not allowed or not within the time limit.
+     */
+    private static int egressSeconds (
+            int stop,
+            int linkageCost,
+            EgressCostTable egressCostTable,
+            int speedMillimetersPerSecond,
+            int egressLegTimeLimitSeconds
+    ) {
+        int secondsFromStopToTarget;
+        StreetRouter.State.RoutingVariable unit = egressCostTable.linkageCostUnit;
+        if (unit == StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS) {
+            secondsFromStopToTarget = linkageCost / speedMillimetersPerSecond;
+        } else if (unit == StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
+            secondsFromStopToTarget = linkageCost;
+        } else {
+            throw new UnsupportedOperationException("Linkage costs have an unknown unit.");
+        }
+        if (secondsFromStopToTarget >= egressLegTimeLimitSeconds) {
+            return -1;
+        }
+        // Account for any additional delay waiting for pickup at the egress stop. The delay does not count toward the
+        // egress time limit.
+        if (egressCostTable.egressStopDelaysSeconds != null) {
+            int delayAtEgress = egressCostTable.egressStopDelaysSeconds[stop];
+            if (delayAtEgress < 0) {
+                // Pickup for this mode not allowed at this stop.
+                return -1;
+            }
+            secondsFromStopToTarget += delayAtEgress;
+        }
+        return secondsFromStopToTarget;
+    }
+
     /**
      * Repeatedly performs propagation to the same target, for each different mode of egress.
      * Repeated propagation to the same target point works, because each propagation call checks whether it reduces
@@ -352,8 +508,9 @@ public class PerTargetPropagater {
 
         // Grab the set of nearby stops for this target, with their distances.
         EgressCostTable egressCostTable = linkedTargets.getEgressCostTable();
-        TIntIntMap pointToStopLinkageCostTable = egressCostTable.getCostTableForPoint(targetIndex);
-        StreetRouter.State.RoutingVariable unit = egressCostTable.linkageCostUnit;
+        int start = egressCostTable.getPointToStopOffsets()[targetIndex];
+        int end = egressCostTable.getPointToStopOffsets()[targetIndex + 1];
+        int[] pointToStopCosts = egressCostTable.getPointToStopCosts();
 
         /**
          * Pre-compute and retain a pre-multiplied integer speed to avoid float math in the loop below.
@@ -369,30 +526,13 @@ public class PerTargetPropagater {
         // Only try to propagate transit travel times if there are transit stops near this target.
         // Even if we don't propagate transit travel times, we still need to pass these non-transit times to
         // the reducer later in the caller, because you can walk even where there is no transit.
-        if (pointToStopLinkageCostTable != null) {
+        if (start < end) {
             // Propagate all iterations from each relevant alighting stop out to this target.
-            pointToStopLinkageCostTable.forEachEntry((stop, linkageCost) -> {
-                int secondsFromStopToTarget;
-                if (unit == StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS) {
-                    secondsFromStopToTarget = linkageCost / speedMillimetersPerSecond;
-                } else if (unit == StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
-                    secondsFromStopToTarget = linkageCost;
-                } else {
-                    throw new UnsupportedOperationException("Linkage costs have an unknown unit.");
-                }
-                if (secondsFromStopToTarget < egressLegTimeLimitSeconds){
-                    // Account for any additional delay waiting for pickup at the egress stop.
-                    if (egressCostTable.egressStopDelaysSeconds != null) {
-                        int delayAtEgress = egressCostTable.egressStopDelaysSeconds[stop];
-                        if (delayAtEgress < 0) {
-                            // Pickup for this mode not allowed at this stop, so trove iteration should
-                            // continue
-                            return true;
-                        } else {
-                            secondsFromStopToTarget += delayAtEgress;
-                        }
-                    }
-
+            for (int i = start; i < end; i += 2) {
+                int stop = pointToStopCosts[i];
+                int secondsFromStopToTarget = egressSeconds(stop, pointToStopCosts[i + 1], egressCostTable,
+                        speedMillimetersPerSecond, egressLegTimeLimitSeconds);
+                if (secondsFromStopToTarget >= 0) {
                     StreetTimesAndModes.StreetTimeAndMode egress = new StreetTimesAndModes.StreetTimeAndMode(
                             secondsFromStopToTarget,
                             linkedTargets.streetMode
@@ -425,8 +565,7 @@ public class PerTargetPropagater {
                         }
                     }
                 }
-                return true; // Trove "continue iteration" signal.
-            });
+            }
         }
     }
 
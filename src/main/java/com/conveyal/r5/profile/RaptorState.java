@@ -23,7 +23,12 @@ import static com.google.common.base.Preconditions.checkState;
  * search, we keep performing raptor searches at different departure times, stepping back in time, but operating on the
  * same set of states (one for each round). But after each one of those departure time searches, we want to run
  * sub-searches with different randomly selected schedules (the Monte Carlo draws). We don't want those sub-searches to
- * invalidate the states for the ongoing range-raptor search, so we make a protective copy.
+ * invalidate the states for the ongoing range-raptor search, so they run on a second chain of states. The worker
+ * allocates that chain once and overwrites it with copyFrom() before each draw, so the draws produce no garbage.
+ *
+ * Each field is held in a separate array for each round, rather than in one array spanning all rounds with a
+ * per-round offset. The worker's round loops and Path read the arrays of one round's state directly, and would all
+ * need to apply that offset. Pooling whole states gives the same freedom from per-draw allocation without that change.
  *
  * Note that this represents the entire state of the RAPTOR search at all stops for a single round, rather than the
  * state at a particular vertex (transit stop), as is the case with State objects in our street search algorithm.
@@ -183,6 +188,30 @@ public class RaptorState {
         return new RaptorState(this);
     }
 
+    /**
+     * Overwrite this state in place with the contents of another state for the same number of stops, reusing the
+     * existing arrays rather than allocating new ones. This has the same effect as copy() (the sets of updated stops
+     * are cleared) except that the reference to the previous round's state is left untouched, allowing a whole chain
+     * of pooled states to be reset for each Monte Carlo iteration without producing any garbage.
+     */
+    public void copyFrom (RaptorState other) {
+        checkArgument(other.bestTimes.length == this.bestTimes.length, "States must have the same number of stops.");
+        int nStops = this.bestTimes.length;
+        System.arraycopy(other.bestTimes, 0, this.bestTimes, 0, nStops);
+        System.arraycopy(other.bestNonTransferTimes, 0, this.bestNonTransferTimes, 0, nStops);
+        System.arraycopy(other.previousPatterns, 0, this.previousPatterns, 0, nStops);
+        System.arraycopy(other.previousStop, 0, this.previousStop, 0, nStops);
+        System.arraycopy(other.transferStop, 0, this.transferStop, 0, nStops);
+        System.arraycopy(other.nonTransferWaitTime, 0, this.nonTransferWaitTime, 0, nStops);
+        System.arraycopy(other.nonTransferInVehicleTravelTime, 0, this.nonTransferInVehicleTravelTime, 0, nStops);
+        System.arraycopy(other.previousWaitTime, 0, this.previousWaitTime, 0, nStops);
+        System.arraycopy(other.previousInVehicleTravelTime, 0, this.previousInVehicleTravelTime, 0, nStops);
+        this.departureTime = other.departureTime;
+        this.maxDurationSeconds = other.maxDurationSeconds;
+        this.stopsUpdated.clear();
+        this.nonTransferStopsUpdated.clear();
+    }
+
     /**
      * Merge the other state into this one, keeping the element-wise minimum travel times. Travel time components and
      * path information associated with these minimum elements is retained. This is useful for the range-raptor
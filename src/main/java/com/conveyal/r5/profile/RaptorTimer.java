@@ -1,10 +1,24 @@
 package com.conveyal.r5.profile;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+
 /**
  * This groups together all the timers recording execution time of various steps of a range raptor search.
+ * It also tracks the number of bytes allocated on the heap by the search, where the JVM is able to measure it.
  */
 public class RaptorTimer {
 
+    private static final Logger LOG = LoggerFactory.getLogger(RaptorTimer.class);
+
+    /**
+     * HotSpot and OpenJ9 extend the standard ThreadMXBean with per-thread allocation counters. This is null on JVMs
+     * that do not provide them or where they are disabled, in which case allocation is not tracked.
+     */
+    private static final com.sun.management.ThreadMXBean threadMXBean = getAllocationMeasuringBean();
+
     public final ExecutionTimer fullSearch = new ExecutionTimer("Full range-Raptor search");
 
     public final ExecutionTimer patternFiltering = new ExecutionTimer(fullSearch, "Pattern filtering");
@@ -21,8 +35,68 @@ public class RaptorTimer {
     public final ExecutionTimer frequencySearchScheduled = new ExecutionTimer(frequencySearch, "Resulting updates to scheduled component");
     public final ExecutionTimer frequencySearchTransfers = new ExecutionTimer(frequencySearch, "Transfers");
 
+    /** Total bytes allocated by the current thread between calls to startAllocation() and stopAllocation(). */
+    private long allocatedBytes = 0;
+
+    /** The number of Raptor iterations (departure minutes times Monte Carlo draws) the allocations are spread over. */
+    private long iterations = 0;
+
+    private long allocationStartBytes = -1;
+
+    private static com.sun.management.ThreadMXBean getAllocationMeasuringBean () {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+                if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+                    return allocationBean;
+                }
+            }
+        } catch (Throwable t) {
+            LOG.warn("Unable to measure per-thread allocation, it will not be tracked: {}", t.toString());
+        }
+        return null;
+    }
+
+    private static long currentThreadAllocatedBytes () {
+        if (threadMXBean == null) return -1;
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Begin measuring heap allocation on the calling thread. */
+    public void startAllocation () {
+        allocationStartBytes = currentThreadAllocatedBytes();
+    }
+
+    /**
+     * Stop measuring heap allocation on the calling thread, which must be the same one that called startAllocation().
+     * @param nIterations the number of Raptor iterations performed while measuring.
+     */
+    public void stopAllocation (int nIterations) {
+        long allocationEndBytes = currentThreadAllocatedBytes();
+        if (allocationStartBytes >= 0 && allocationEndBytes >= 0) {
+            allocatedBytes += allocationEndBytes - allocationStartBytes;
+        }
+        iterations += nIterations;
+        allocationStartBytes = -1;
+    }
+
+    /** Add the allocations measured by another timer, e.g. one used by a search running on another thread. */
+    public void addAllocation (RaptorTimer other) {
+        allocatedBytes += other.allocatedBytes;
+        iterations += other.iterations;
+    }
+
+    public long getAllocatedBytes () {
+        return allocatedBytes;
+    }
+
     public void log () {
         fullSearch.logWithChildren();
+        if (threadMXBean != null && iterations > 0) {
+            LOG.info("Allocated {} MiB in {} iterations ({} KiB per iteration)", allocatedBytes / 1024 / 1024,
+                    iterations, allocatedBytes / 1024 / iterations);
+        }
     }
 
 }
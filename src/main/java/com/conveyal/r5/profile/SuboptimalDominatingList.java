@@ -1,9 +1,11 @@
 package com.conveyal.r5.profile;
 
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter.McRaptorState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 
 /**
  * An implementation of DominatingList that conserves some sub-optimal states to obtain a wider variety of paths.
@@ -11,6 +13,9 @@ import java.util.List;
  * technically suboptimal for some personal reason.
  *
  * We may also end up using this to establish choice sets in traffic modeling. See dominates() function below.
+ *
+ * The time, round, and access mode of each state are copied into arrays parallel to the list of states, so that the
+ * dominance checks scan contiguous ints rather than following references to each state.
  */
 public class SuboptimalDominatingList implements DominatingList {
     public SuboptimalDominatingList (int suboptimalMinutes) {
@@ -23,9 +28,18 @@ public class SuboptimalDominatingList implements DominatingList {
     /** the number of seconds a state can be worse without being dominated. */
     public int suboptimalSeconds;
 
-    private List<McRaptorSuboptimalPathProfileRouter.McRaptorState> list = new LinkedList<>();
+    private ArrayList<McRaptorState> list = new ArrayList<>();
+
+    /** The clock time of each state in the list. */
+    private int[] times = new int[4];
 
-    public boolean add (McRaptorSuboptimalPathProfileRouter.McRaptorState newState) {
+    /** The round in which each state in the list was found. */
+    private int[] rounds = new int[4];
+
+    /** The ordinal of the access mode of each state in the list. */
+    private int[] accessModes = new int[4];
+
+    public boolean add (McRaptorState newState) {
         // apply strict dominance if there is a state at the previous round on the same previous pattern arriving at this
         // stop (prevents reboarding/hopping between routes on common trunks)
         // For example, consider the red line in DC, which runs from Shady Grove to Glenmont. At rush hour, every other
@@ -59,18 +73,40 @@ public class SuboptimalDominatingList implements DominatingList {
 //            }
 //        }
 
-        for (Iterator<McRaptorSuboptimalPathProfileRouter.McRaptorState> it = list.iterator(); it.hasNext(); ) {
-            McRaptorSuboptimalPathProfileRouter.McRaptorState oldState = it.next();
+        int newTime = newState.time;
+        int newRound = newState.round;
+        int newAccessMode = ordinal(newState.accessMode);
+        int size = list.size();
+
+        for (int i = 0; i < size; i++) {
+            if (dominates(times[i], rounds[i], accessModes[i], newTime, newRound, newAccessMode)) return false;
+        }
 
-            if (dominates(oldState, newState)) return false;
-            if (dominates(newState, oldState)) it.remove();
+        // The new state is non-dominated. Evict the states it dominates, compacting the remaining ones in place.
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (dominates(newTime, newRound, newAccessMode, times[i], rounds[i], accessModes[i])) continue;
+            list.set(kept, list.get(i));
+            times[kept] = times[i];
+            rounds[kept] = rounds[i];
+            accessModes[kept] = accessModes[i];
+            kept++;
         }
+        list.subList(kept, size).clear();
 
         // Update the best time at this location to reflect the new state.
-        if (newState.time < bestTime) bestTime = newState.time;
+        if (newTime < bestTime) bestTime = newTime;
 
-        // The new state is non-dominated. Keep it.
+        // Keep the new state.
+        if (kept == times.length) {
+            times = Arrays.copyOf(times, kept * 2);
+            rounds = Arrays.copyOf(rounds, kept * 2);
+            accessModes = Arrays.copyOf(accessModes, kept * 2);
+        }
         list.add(newState);
+        times[kept] = newTime;
+        rounds[kept] = newRound;
+        accessModes[kept] = newAccessMode;
 
         return true;
     }
@@ -80,12 +116,17 @@ public class SuboptimalDominatingList implements DominatingList {
      * want to document how R5 finds sub-optimal paths in detail.
      * TODO ADD explanation of why we're running multiple access mode searches at once
      */
-    public boolean dominates (McRaptorSuboptimalPathProfileRouter.McRaptorState newState, McRaptorSuboptimalPathProfileRouter.McRaptorState oldState) {
-        boolean sameAccessMode = oldState.accessMode == newState.accessMode;
+    public boolean dominates (McRaptorState newState, McRaptorState oldState) {
+        return dominates(newState.time, newState.round, ordinal(newState.accessMode),
+                oldState.time, oldState.round, ordinal(oldState.accessMode));
+    }
+
+    private boolean dominates (int newTime, int newRound, int newAccessMode, int oldTime, int oldRound, int oldAccessMode) {
+        boolean sameAccessMode = oldAccessMode == newAccessMode;
 
         // If there is any way to reach this location with less rides and the same or less time, throw away the old state
         // iff they used the same access mode.
-        if (sameAccessMode && newState.round < oldState.round && newState.time <= oldState.time) return true;
+        if (sameAccessMode && newRound < oldRound && newTime <= oldTime) return true;
 
         // looser dominance rules for states with different access modes
         // this is more efficient than what we used to do, which was to treat different access modes as completely incomparable
@@ -93,12 +134,17 @@ public class SuboptimalDominatingList implements DominatingList {
         // TODO this *5 nonsense is a huge clooge. Make separate fields for suboptimalSecondsSameMode and suboptimalSecondsDifferentMode.
         int threshold = sameAccessMode ? suboptimalSeconds : suboptimalSeconds * 5;
 
-        if (newState.time + threshold < oldState.time) return true;
+        if (newTime + threshold < oldTime) return true;
 
         return false;
     }
 
-    public Collection<McRaptorSuboptimalPathProfileRouter.McRaptorState> getNonDominatedStates () {
+    /** Access modes are stored by ordinal, with -1 standing in for a missing access mode. */
+    private static int ordinal (LegMode accessMode) {
+        return accessMode == null ? -1 : accessMode.ordinal();
+    }
+
+    public Collection<McRaptorState> getNonDominatedStates () {
         // We used to prune here, but now we prune on add.
         // I've observed in the past that pruning on add slows the algorithm down due to all of the looping.
         // I also tried pruning once per round, but that also slows the algorithm down (perhaps because it's doing
@@ -0,0 +1,580 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.util.LambdaCounter;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import static gnu.trove.impl.Constants.DEFAULT_CAPACITY;
+import static gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR;
+
+/**
+ * A contraction hierarchy over the street network for one StreetMode, which allows finding the fastest path between
+ * two points while exploring only a tiny part of the network. Unlike the A* heuristic in StreetRouter, it accounts
+ * for the speed of every edge, so it works well even for car trips across a whole metropolitan region.
+ *
+ * Turn costs and turn restrictions apply to pairs of edges, so this hierarchy is "edge-based": each node of the
+ * contracted graph is a directed edge of the street layer, and each arc is a turn from one edge onto the next. The
+ * weight of an arc is the time to make the turn and traverse the second edge, computed exactly as in
+ * EdgeStore.Edge#traverse. Preprocessing contracts the nodes one by one in order of importance, adding shortcut arcs
+ * wherever a fastest path went through a contracted node. A query then runs two small Dijkstra searches that only
+ * climb toward more important nodes, one from the origin and one backward from the destination.
+ *
+ * Turn restrictions without via edges are respected by leaving out the turns they forbid. Restrictions with via edges
+ * are ignored, so this may find a path that is actually forbidden. StreetRouter detects this when replaying the path
+ * edge by edge, and falls back on a normal search. The hierarchy describes the street layer as it was when it was
+ * built, with the speeds of the ProfileRequest it was built for. It is not used on street layers modified by a
+ * scenario, or for requests with other speeds.
+ */
+public class ContractionHierarchy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContractionHierarchy.class);
+
+    /**
+     * When looking for a path that makes a shortcut unnecessary, give up after settling this many nodes and add the
+     * shortcut anyway. This keeps preprocessing fast at the cost of some superfluous shortcuts.
+     */
+    private static final int WITNESS_SEARCH_SETTLED_LIMIT = 200;
+
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    public final StreetMode streetMode;
+
+    /** The number of edges in the street layer when this hierarchy was built. */
+    private final int nEdges;
+
+    // The request parameters affecting the weights of the arcs when this hierarchy was built.
+    private final float walkSpeed;
+    private final float bikeSpeed;
+    private final int bikeTrafficStress;
+    private final boolean wheelchair;
+
+    // Arcs leading toward more important nodes, for the forward search, in compressed sparse rows by source node.
+    private int[] upFirstArc;
+    private int[] upTargets;
+    private int[] upWeights;
+
+    /** For each upward arc, the node it is a shortcut through, or -1 if it is a turn in the street network. */
+    private int[] upMiddles;
+
+    // Arcs coming from more important nodes, for the backward search, in compressed sparse rows by target node.
+    private int[] downFirstArc;
+    private int[] downSources;
+    private int[] downWeights;
+    private int[] downMiddles;
+
+    /** The fastest path found by a query, as the sequence of edges traversed. */
+    public static class Path {
+
+        /** The edges along the path, starting with one of the origin edges and ending with one of the destinations. */
+        public final int[] edges;
+
+        /** The travel time including the costs supplied for the origin and destination edges. */
+        public final int durationSeconds;
+
+        private Path (int[] edges, int durationSeconds) {
+            this.edges = edges;
+            this.durationSeconds = durationSeconds;
+        }
+    }
+
+    private ContractionHierarchy (StreetLayer streetLayer, StreetMode streetMode, ProfileRequest request) {
+        this.streetMode = streetMode;
+        this.nEdges = streetLayer.edgeStore.nEdges();
+        this.walkSpeed = request.walkSpeed;
+        this.bikeSpeed = request.bikeSpeed;
+        this.bikeTrafficStress = request.bikeTrafficStress;
+        this.wheelchair = request.wheelchair;
+    }
+
+    /**
+     * @return whether searches on the given street layer with the given request will find the same travel times with
+     *         this hierarchy as with a StreetRouter.
+     */
+    public boolean appliesTo (StreetLayer streetLayer, ProfileRequest request) {
+        if (streetLayer.edgeStore.isExtendOnlyCopy() || streetLayer.edgeStore.nEdges() != nEdges) return false;
+        if (request.reverseSearch) return false;
+        switch (streetMode) {
+            case WALK:
+                return request.walkSpeed == walkSpeed && request.wheelchair == wheelchair;
+            case BICYCLE:
+                // Bicycles are walked where cycling is not allowed.
+                return request.bikeSpeed == bikeSpeed && request.bikeTrafficStress == bikeTrafficStress
+                        && request.walkSpeed == walkSpeed && request.wheelchair == wheelchair;
+            default:
+                // Cars travel at the speed of each edge.
+                return true;
+        }
+    }
+
+    /**
+     * @return false if a turn restriction with no via edges forbids turning directly from one edge onto the other.
+     */
+    public static boolean turnAllowed (StreetLayer streetLayer, StreetMode streetMode, int fromEdge, int toEdge) {
+        // Turn restrictions only apply to cars, as in EdgeStore.Edge#canTurnFrom.
+        if (streetMode != StreetMode.CAR || !streetLayer.edgeStore.turnRestrictions.containsKey(fromEdge)) {
+            return true;
+        }
+        for (int r : streetLayer.edgeStore.turnRestrictions.get(fromEdge).toArray()) {
+            TurnRestriction restriction = streetLayer.turnRestrictions.get(r);
+            if (restriction.viaEdges.length > 0) continue;
+            if (restriction.only != (restriction.toEdge == toEdge)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Build a contraction hierarchy for the given mode over the whole street layer, with the speeds in the given
+     * request. This should be done after the street layer is complete, including links to transit stops.
+     */
+    public static ContractionHierarchy build (StreetLayer streetLayer, StreetMode streetMode, ProfileRequest request) {
+        long startTime = System.currentTimeMillis();
+        ContractionHierarchy hierarchy = new ContractionHierarchy(streetLayer, streetMode, request);
+        new Builder(streetLayer, streetMode, request).build(hierarchy);
+        LOG.info("Built {} contraction hierarchy over {} edges with {} arcs in {} sec.", streetMode,
+                hierarchy.nEdges, hierarchy.upTargets.length + hierarchy.downSources.length,
+                (System.currentTimeMillis() - startTime) / 1000);
+        return hierarchy;
+    }
+
+    /**
+     * Find the fastest path from any of the origin edges to any of the destination edges.
+     * @param originEdges the edges at whose ends the search begins.
+     * @param originDurations the time already elapsed at the end of each origin edge.
+     * @param destinationEdges the edges from whose ends the destination can be reached.
+     * @param destinationDurations the additional time to reach the destination from the end of each destination edge.
+     * @return the fastest path, or null if no destination edge can be reached.
+     */
+    public Path route (TIntList originEdges, TIntList originDurations,
+                       TIntList destinationEdges, TIntList destinationDurations) {
+        Search forward = new Search(originEdges, originDurations);
+        Search backward = new Search(destinationEdges, destinationDurations);
+        int bestDuration = UNREACHED;
+        int meetingNode = -1;
+        while (true) {
+            long forwardMin = forward.queue.peekPriority();
+            long backwardMin = backward.queue.peekPriority();
+            if (Math.min(forwardMin, backwardMin) >= bestDuration) break;
+            boolean isForward = forwardMin <= backwardMin;
+            Search search = isForward ? forward : backward;
+            Search other = isForward ? backward : forward;
+            long entry = search.queue.poll();
+            int node = (int) entry;
+            int duration = (int) (entry >>> 32);
+            if (duration > search.durations.get(node)) continue;
+            int otherDuration = other.durations.get(node);
+            if (otherDuration != UNREACHED && duration + otherDuration < bestDuration) {
+                bestDuration = duration + otherDuration;
+                meetingNode = node;
+            }
+            if (isForward) {
+                for (int arc = upFirstArc[node]; arc < upFirstArc[node + 1]; arc++) {
+                    search.relax(upTargets[arc], duration + upWeights[arc], node);
+                }
+            } else {
+                for (int arc = downFirstArc[node]; arc < downFirstArc[node + 1]; arc++) {
+                    search.relax(downSources[arc], duration + downWeights[arc], node);
+                }
+            }
+        }
+        if (meetingNode < 0) return null;
+
+        // Unpack the arcs of the forward search from the origin to the meeting node, then those of the backward search.
+        TIntList forwardNodes = new TIntArrayList();
+        for (int node = meetingNode; node >= 0; node = forward.parents.get(node)) {
+            forwardNodes.add(node);
+        }
+        forwardNodes.reverse();
+        TIntList edges = new TIntArrayList();
+        edges.add(forwardNodes.get(0));
+        for (int i = 1; i < forwardNodes.size(); i++) {
+            unpack(forwardNodes.get(i - 1), forwardNodes.get(i), edges);
+        }
+        for (int node = meetingNode, next; (next = backward.parents.get(node)) >= 0; node = next) {
+            unpack(node, next, edges);
+        }
+        return new Path(edges.toArray(), bestDuration);
+    }
+
+    /**
+     * Append to the given list the street edges after fromNode along the arc from fromNode to toNode, replacing
+     * shortcuts with the arcs they stand for.
+     */
+    private void unpack (int fromNode, int toNode, TIntList edges) {
+        // Pairs of nodes at the ends of arcs still to be unpacked, in reverse order.
+        TIntList stack = new TIntArrayList();
+        stack.add(fromNode);
+        stack.add(toNode);
+        while (!stack.isEmpty()) {
+            int to = stack.removeAt(stack.size() - 1);
+            int from = stack.removeAt(stack.size() - 1);
+            int middle = arcMiddle(from, to);
+            if (middle < 0) {
+                edges.add(to);
+            } else {
+                stack.add(middle);
+                stack.add(to);
+                stack.add(from);
+                stack.add(middle);
+            }
+        }
+    }
+
+    /** There is at most one arc between any two nodes, stored with whichever of them was contracted first. */
+    private int arcMiddle (int from, int to) {
+        for (int arc = upFirstArc[from]; arc < upFirstArc[from + 1]; arc++) {
+            if (upTargets[arc] == to) return upMiddles[arc];
+        }
+        for (int arc = downFirstArc[to]; arc < downFirstArc[to + 1]; arc++) {
+            if (downSources[arc] == from) return downMiddles[arc];
+        }
+        throw new IllegalStateException("Contraction hierarchy is missing an arc.");
+    }
+
+    /**
+     * One direction of a query. Queries explore few nodes, so their state is kept in hash maps rather than arrays
+     * sized to the whole network.
+     */
+    private static class Search {
+
+        final TIntIntMap durations = new TIntIntHashMap(DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR, -1, UNREACHED);
+
+        /** The node from which each node was reached, or -1 for the nodes where the search began. */
+        final TIntIntMap parents = new TIntIntHashMap(DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR, -1, -1);
+
+        final NodeQueue queue = new NodeQueue();
+
+        Search (TIntList startNodes, TIntList startDurations) {
+            for (int i = 0; i < startNodes.size(); i++) {
+                relax(startNodes.get(i), startDurations.get(i), -1);
+            }
+        }
+
+        void relax (int node, int duration, int parent) {
+            if (duration < durations.get(node)) {
+                durations.put(node, duration);
+                parents.put(node, parent);
+                queue.add(node, duration);
+            }
+        }
+    }
+
+    /**
+     * A binary min-heap of nodes in the low 32 bits of each entry, prioritized by the non-negative int in the high 32
+     * bits. Nodes are not removed when their priority improves, they are just added again.
+     */
+    private static class NodeQueue {
+
+        private long[] heap = new long[64];
+
+        private int size = 0;
+
+        void add (int node, int priority) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            long entry = ((long) priority << 32) | node;
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= entry) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = entry;
+        }
+
+        /** @return the smallest priority in the queue, or Long.MAX_VALUE if it is empty. */
+        long peekPriority () {
+            return size == 0 ? Long.MAX_VALUE : heap[0] >>> 32;
+        }
+
+        boolean isEmpty () {
+            return size == 0;
+        }
+
+        long poll () {
+            long top = heap[0];
+            long last = heap[--size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heap[child + 1] < heap[child]) child += 1;
+                if (last <= heap[child]) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return top;
+        }
+
+        void clear () {
+            size = 0;
+        }
+    }
+
+    /**
+     * Holds the mutable graph while nodes are contracted. Each node's arcs are stored as triples of (other node,
+     * weight, middle node or -1) in one list of outgoing and one of incoming arcs. Arcs to contracted nodes are never
+     * removed, just skipped.
+     */
+    private static class Builder {
+
+        /** Shift priorities, which may be negative, to pack them into the high bits of queue entries. */
+        private static final int PRIORITY_OFFSET = 1 << 20;
+
+        final int nNodes;
+        final TIntArrayList[] outArcs;
+        final TIntArrayList[] inArcs;
+        final boolean[] contracted;
+        final int[] contractedNeighbors;
+
+        // Reused by every witness search.
+        final int[] witnessDurations;
+        final TIntList witnessReached = new TIntArrayList();
+        final NodeQueue witnessQueue = new NodeQueue();
+
+        Builder (StreetLayer streetLayer, StreetMode streetMode, ProfileRequest request) {
+            nNodes = streetLayer.edgeStore.nEdges();
+            outArcs = new TIntArrayList[nNodes];
+            inArcs = new TIntArrayList[nNodes];
+            for (int n = 0; n < nNodes; n++) {
+                outArcs[n] = new TIntArrayList(9);
+                inArcs[n] = new TIntArrayList(9);
+            }
+            contracted = new boolean[nNodes];
+            contractedNeighbors = new int[nNodes];
+            witnessDurations = new int[nNodes];
+            Arrays.fill(witnessDurations, UNREACHED);
+
+            // Add one arc for each turn that a StreetRouter could make, weighted as in EdgeStore.Edge#traverse.
+            // Edges that cannot be traversed have no incoming arcs, but may still have outgoing ones because the
+            // origin of a search may lie on them. Two link edges in a row are never allowed, except from an origin.
+            TraversalTimeCalculator timeCalculator = StreetRouter.defaultTimeCalculator(streetLayer);
+            EdgeStore.Edge fromEdge = streetLayer.edgeStore.getCursor();
+            EdgeStore.Edge toEdge = streetLayer.edgeStore.getCursor();
+            int[] traversalTimes = new int[nNodes];
+            StreetMode[] traversalModes = new StreetMode[nNodes];
+            for (int e = 0; e < nNodes; e++) {
+                toEdge.seek(e);
+                traversalModes[e] = toEdge.traversalMode(streetMode, request);
+                if (traversalModes[e] != null) {
+                    traversalTimes[e] = timeCalculator.traversalTimeSeconds(toEdge, traversalModes[e], request);
+                }
+            }
+            for (int from = 0; from < nNodes; from++) {
+                fromEdge.seek(from);
+                boolean fromLink = fromEdge.getFlag(EdgeStore.EdgeFlag.LINK);
+                TIntList outgoing = streetLayer.outgoingEdges.get(fromEdge.getToVertex());
+                for (int i = 0; i < outgoing.size(); i++) {
+                    int to = outgoing.get(i);
+                    // Turning from an edge back onto itself around a loop is never part of a fastest path.
+                    if (to == from || traversalModes[to] == null) continue;
+                    toEdge.seek(to);
+                    if (fromLink && toEdge.getFlag(EdgeStore.EdgeFlag.LINK)) continue;
+                    if (!turnAllowed(streetLayer, streetMode, from, to)) continue;
+                    int turnTime = timeCalculator.turnTimeSeconds(from, to, traversalModes[to]);
+                    addArc(from, to, Math.max(traversalTimes[to] + turnTime, 1), -1);
+                }
+            }
+        }
+
+        void build (ContractionHierarchy hierarchy) {
+            int[] priorities = new int[nNodes];
+            NodeQueue queue = new NodeQueue();
+            for (int n = 0; n < nNodes; n++) {
+                priorities[n] = priority(n);
+                queue.add(n, priorities[n] + PRIORITY_OFFSET);
+            }
+            int[] ranks = new int[nNodes];
+            int nextRank = 0;
+            LambdaCounter counter = new LambdaCounter(LOG, nNodes, 100_000, "Contracted {} of {} nodes.");
+            while (!queue.isEmpty()) {
+                long entry = queue.poll();
+                int node = (int) entry;
+                int priority = (int) (entry >>> 32) - PRIORITY_OFFSET;
+                if (contracted[node] || priority != priorities[node]) continue;
+                // Contracting other nodes may have made this one more important. If so, put it back in the queue.
+                int updated = priority(node);
+                if (updated > priority && updated + PRIORITY_OFFSET > queue.peekPriority()) {
+                    priorities[node] = updated;
+                    queue.add(node, updated + PRIORITY_OFFSET);
+                    continue;
+                }
+                contract(node, true);
+                contracted[node] = true;
+                ranks[node] = nextRank++;
+                for (TIntArrayList arcs : new TIntArrayList[] {outArcs[node], inArcs[node]}) {
+                    for (int i = 0; i < arcs.size(); i += 3) {
+                        int neighbor = arcs.get(i);
+                        if (contracted[neighbor]) continue;
+                        contractedNeighbors[neighbor] += 1;
+                        priorities[neighbor] = priority(neighbor);
+                        queue.add(neighbor, priorities[neighbor] + PRIORITY_OFFSET);
+                    }
+                }
+                counter.increment();
+            }
+            counter.done();
+
+            // Every arc goes either up or down the hierarchy. Store each one with its less important end.
+            int[] upFirstArc = new int[nNodes + 1];
+            int[] downFirstArc = new int[nNodes + 1];
+            for (int from = 0; from < nNodes; from++) {
+                TIntArrayList arcs = outArcs[from];
+                for (int i = 0; i < arcs.size(); i += 3) {
+                    int to = arcs.get(i);
+                    if (ranks[to] > ranks[from]) upFirstArc[from + 1] += 1;
+                    else downFirstArc[to + 1] += 1;
+                }
+            }
+            for (int n = 0; n < nNodes; n++) {
+                upFirstArc[n + 1] += upFirstArc[n];
+                downFirstArc[n + 1] += downFirstArc[n];
+            }
+            int[] upNext = Arrays.copyOf(upFirstArc, nNodes);
+            int[] downNext = Arrays.copyOf(downFirstArc, nNodes);
+            hierarchy.upTargets = new int[upFirstArc[nNodes]];
+            hierarchy.upWeights = new int[upFirstArc[nNodes]];
+            hierarchy.upMiddles = new int[upFirstArc[nNodes]];
+            hierarchy.downSources = new int[downFirstArc[nNodes]];
+            hierarchy.downWeights = new int[downFirstArc[nNodes]];
+            hierarchy.downMiddles = new int[downFirstArc[nNodes]];
+            for (int from = 0; from < nNodes; from++) {
+                TIntArrayList arcs = outArcs[from];
+                for (int i = 0; i < arcs.size(); i += 3) {
+                    int to = arcs.get(i);
+                    if (ranks[to] > ranks[from]) {
+                        int arc = upNext[from]++;
+                        hierarchy.upTargets[arc] = to;
+                        hierarchy.upWeights[arc] = arcs.get(i + 1);
+                        hierarchy.upMiddles[arc] = arcs.get(i + 2);
+                    } else {
+                        int arc = downNext[to]++;
+                        hierarchy.downSources[arc] = from;
+                        hierarchy.downWeights[arc] = arcs.get(i + 1);
+                        hierarchy.downMiddles[arc] = arcs.get(i + 2);
+                    }
+                }
+            }
+            hierarchy.upFirstArc = upFirstArc;
+            hierarchy.downFirstArc = downFirstArc;
+        }
+
+        /**
+         * Nodes adding fewer shortcuts than the arcs they remove are contracted first. Counting contracted neighbors
+         * spreads contraction evenly over the network.
+         */
+        int priority (int node) {
+            int nArcs = 0;
+            for (TIntArrayList arcs : new TIntArrayList[] {outArcs[node], inArcs[node]}) {
+                for (int i = 0; i < arcs.size(); i += 3) {
+                    if (!contracted[arcs.get(i)]) nArcs += 1;
+                }
+            }
+            return contract(node, false) - nArcs + contractedNeighbors[node];
+        }
+
+        /**
+         * Find the shortcuts needed to preserve fastest paths through the given node when it is removed, adding them
+         * to the graph only if add is true.
+         * @return the number of shortcuts needed.
+         */
+        int contract (int node, boolean add) {
+            int nShortcuts = 0;
+            TIntArrayList in = inArcs[node];
+            TIntArrayList out = outArcs[node];
+            for (int i = 0; i < in.size(); i += 3) {
+                int from = in.get(i);
+                if (contracted[from]) continue;
+                int inWeight = in.get(i + 1);
+                int maxWeight = -1;
+                for (int j = 0; j < out.size(); j += 3) {
+                    int to = out.get(j);
+                    if (contracted[to] || to == from) continue;
+                    maxWeight = Math.max(maxWeight, inWeight + out.get(j + 1));
+                }
+                if (maxWeight < 0) continue;
+                witnessSearch(from, node, maxWeight);
+                for (int j = 0; j < out.size(); j += 3) {
+                    int to = out.get(j);
+                    if (contracted[to] || to == from) continue;
+                    int weight = inWeight + out.get(j + 1);
+                    if (witnessDurations[to] > weight) {
+                        nShortcuts += 1;
+                        if (add) addArc(from, to, weight, node);
+                    }
+                }
+            }
+            return nShortcuts;
+        }
+
+        /**
+         * Find the shortest paths from the given node that avoid the excluded one and contracted nodes, up to the
+         * given weight, leaving the results in witnessDurations.
+         */
+        void witnessSearch (int source, int excluded, int maxWeight) {
+            for (int i = 0; i < witnessReached.size(); i++) {
+                witnessDurations[witnessReached.get(i)] = UNREACHED;
+            }
+            witnessReached.clear();
+            witnessQueue.clear();
+            witnessDurations[source] = 0;
+            witnessReached.add(source);
+            witnessQueue.add(source, 0);
+            int nSettled = 0;
+            while (!witnessQueue.isEmpty()) {
+                long entry = witnessQueue.poll();
+                int node = (int) entry;
+                int weight = (int) (entry >>> 32);
+                if (weight > witnessDurations[node]) continue;
+                if (weight > maxWeight || nSettled++ >= WITNESS_SEARCH_SETTLED_LIMIT) break;
+                TIntArrayList arcs = outArcs[node];
+                for (int i = 0; i < arcs.size(); i += 3) {
+                    int to = arcs.get(i);
+                    if (contracted[to] || to == excluded) continue;
+                    int toWeight = weight + arcs.get(i + 1);
+                    if (toWeight < witnessDurations[to]) {
+                        if (witnessDurations[to] == UNREACHED) witnessReached.add(to);
+                        witnessDurations[to] = toWeight;
+                        witnessQueue.add(to, toWeight);
+                    }
+                }
+            }
+        }
+
+        /** Add an arc, or lower the weight of the existing arc between the same two nodes. */
+        void addArc (int from, int to, int weight, int middle) {
+            TIntArrayList out = outArcs[from];
+            for (int i = 0; i < out.size(); i += 3) {
+                if (out.get(i) != to) continue;
+                if (out.get(i + 1) <= weight) return;
+                out.set(i + 1, weight);
+                out.set(i + 2, middle);
+                TIntArrayList in = inArcs[to];
+                for (int j = 0; j < in.size(); j += 3) {
+                    if (in.get(j) == from) {
+                        in.set(j + 1, weight);
+                        in.set(j + 2, middle);
+                        break;
+                    }
+                }
+                return;
+            }
+            out.add(new int[] {to, weight, middle});
+            inArcs[to].add(new int[] {from, weight, middle});
+        }
+    }
+
+}
@@ -7,10 +7,13 @@ import com.conveyal.r5.common.GeometryUtils;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.util.LambdaCounter;
+import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.TIntList;
+import gnu.trove.list.TShortList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Point;
@@ -21,6 +24,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -84,8 +89,11 @@ public class EgressCostTable implements Serializable {
     public List<int[]> stopToPointLinkageCostTables;
 
     /**
-     * For each PointSet point, the transit stops from which it can be reached as a map from StopID to distance or time
-     * (i.e. "cost"). For walk and bike, distance is in millimeters; for car, distance is actually time in seconds.
+     * For each PointSet point, the transit stops from which it can be reached along with the distance or time
+     * (i.e. "cost") from each stop. For walk and bike, distance is in millimeters; for car, distance is actually time in
+     * seconds. This is stored in compressed sparse row form: the (stop_index, cost) pairs for all points are packed
+     * end to end in pointToStopCosts, sorted by stop within each point, and the pairs for point p occupy the positions
+     * from pointToStopOffsets[p] up to (but not including) pointToStopOffsets[p + 1].
      *
      * This is a transposed version of stopToPointLinkageCostTables for direct use in propagation. This is used in
      * PerTargetPropagator to find all the stops near a particular point (grid cell) so we can perform propagation to
@@ -94,12 +102,14 @@ public class EgressCostTable implements Serializable {
      * We only retain a few percentiles of travel time at each target cell, so handling one cell at a time allows us to
      * keep the output size within reason.
      *
-     * TODO This appears to be transient only because the stopToPointLinkageCostTables are more compact (less references).
-     * We serialize one walk linkage and associated distance tables along with each TransportNetwork.
-     * However, keeping both of these in memory is a huge waste of space. The cost tables are one of the largest and
-     * most problematic objects in our application from a memory consumption (and S3 data transfer) point of view.
+     * These are transient because the stopToPointLinkageCostTables they are derived from are serialized instead.
+     * We serialize one walk linkage and associated distance tables along with each TransportNetwork, and only
+     * transpose the tables that are actually used for propagation.
      */
-    private transient List<TIntIntMap> pointToStopLinkageCostTables;
+    private transient int[] pointToStopOffsets;
+
+    /** The packed (stop_index, cost) pairs for all points, see pointToStopOffsets. */
+    private transient int[] pointToStopCosts;
 
     /**
      * For each transit stop, extra seconds to wait due to a pickup delay modification (e.g. for autonomous vehicle,
@@ -109,6 +119,18 @@ public class EgressCostTable implements Serializable {
      */
     public int[] egressStopDelaysSeconds;
 
+    /**
+     * For modes other than walk, the extent in fixed-point degrees of the street vertices reached by the search from
+     * each transit stop, widened to include the streets the stop could have been linked to. This records which streets
+     * each stop's table was derived from, so a scenario only needs to rebuild the tables whose searches reached an edge
+     * it changed. Walk tables are derived from the stop-to-vertex tables in the TransitLayer, which serve the same
+     * purpose. Null for walk, and for tables loaded from a serialized network where the searches were not recorded.
+     */
+    private transient Envelope[] stopReachedEnvelopes;
+
+    /** The number of stop-to-point tables copied from the base cost table and the number computed anew. */
+    public transient int nTablesReused, nTablesRebuilt;
+
     /**
      * Build an EgressCostTable for the given LinkedPointSet.
      * If the LinkedPointSet is for a scenario built on top of a baseline, elements in the EgressCostTable for the
@@ -206,12 +228,23 @@ public class EgressCostTable implements Serializable {
             // transit stops, we still need to re-link points and rebuild stop trees (both the trees to the vertices
             // and the trees to the points, because some existing stop-to-vertex trees might not include new splitter
             // vertices).
+            // Where we have a record of the street vertices reached by the search that built a baseline stop's table,
+            // that record is used instead to decide whether the stop is affected (see canBeReused). This zone is only
+            // a fallback for stops without such a record.
             rebuildZone = linkedPointSet.streetLayer.scenarioEdgesBoundingGeometry(linkingDistanceLimitMeters);
         }
 
         LOG.info("Creating EgressCostTables from each transit stop to PointSet points for mode {}.", streetMode);
+        final long startTime = System.currentTimeMillis();
+        final ScenarioChanges scenarioChanges;
         if (rebuildZone != null) {
             LOG.info("Selectively computing tables for only those stops that might be affected by the scenario.");
+            scenarioChanges = new ScenarioChanges(linkedPointSet, linkageCostUnit);
+        } else {
+            scenarioChanges = null;
+        }
+        if (streetMode != StreetMode.WALK) {
+            stopReachedEnvelopes = new Envelope[nStops];
         }
 
         // TODO create a multi-counter that can track two different numbers and include them in a single "Done" message.
@@ -244,16 +277,17 @@ public class EgressCostTable implements Serializable {
             Point stopPoint = transitLayer.getJTSPointForStopFixed(stopIndex);
             // If the stop is not linked to the street network, it should have no distance table.
             if (stopPoint == null) return null;
-            if (rebuildZone != null && !rebuildZone.contains(stopPoint) && egressStopDelaysSeconds == null) {
+            if (scenarioChanges != null && egressStopDelaysSeconds == null &&
+                    baseEgressCostTable.canBeReused(stopIndex, stopPoint, scenarioChanges, rebuildZone,
+                            linkingDistanceLimitMeters)) {
                 // This cannot be affected by the scenario. Return the existing distance table.
-                // All new stops created by a scenario should be inside the relink zone, so
-                // all stops outside the relink zone should already have a distance table entry.
-                // TODO having a rebuild zone always implies there is a baseLinkage? If it's possible to not have a base
-                //      linkage, this should return null.
-                // All stops created by the scenario should by definition be inside the relink zone.
-                // This conditional is handling stops outside the relink zone, which should always have existed before
-                // scenario application. Therefore they should be present in the base linkage cost tables.
+                // All stops created by the scenario are beyond the end of the base tables and are always rebuilt, so
+                // this conditional is handling stops that existed before scenario application.
                 copyCounter.increment();
+                // Base tables loaded with a network have no record of their searches, so neither will the copies.
+                if (stopReachedEnvelopes != null && baseEgressCostTable.stopReachedEnvelopes != null) {
+                    stopReachedEnvelopes[stopIndex] = baseEgressCostTable.stopReachedEnvelopes[stopIndex];
+                }
                 return baseEgressCostTable.stopToPointLinkageCostTables.get(stopIndex);
             }
 
@@ -323,7 +357,10 @@ public class EgressCostTable implements Serializable {
                 }
                 sr.quantityToMinimize = linkageCostUnit;
                 sr.route();
-                return linkedPointSet.extendCostsToPoints(sr.getReachedVertices()::get,
+                TIntIntMap reachedVertices = sr.getReachedVertices();
+                stopReachedEnvelopes[stopIndex] = reachedEnvelope(stopPoint, reachedVertices,
+                        linkedPointSet.streetLayer.vertexStore);
+                return linkedPointSet.extendCostsToPoints(reachedVertices::get,
                         sr.quantityToMinimize,
                         envelopeAroundStop,
                         egressArea);
@@ -331,6 +368,53 @@ public class EgressCostTable implements Serializable {
         }).collect(Collectors.toList());
         computeCounter.done();
         copyCounter.done();
+        nTablesRebuilt = computeCounter.getCount();
+        nTablesReused = copyCounter.getCount();
+        LOG.info("Egress cost tables for mode {}: rebuilt {} and reused {} of {} in {} sec.", streetMode,
+                nTablesRebuilt, nTablesReused, nStops, (System.currentTimeMillis() - startTime) / 1000.0);
+    }
+
+    /**
+     * Decide whether this table for the given stop, belonging to the baseline network, is still valid in a scenario.
+     * It is valid if the search that produced it reached neither end of any street edge the scenario changed.
+     * Where we have no record of the search (for tables loaded with a serialized network), the table is rebuilt if the
+     * stop is within the linking distance limit of any change. This is much coarser, especially for cars.
+     * @param rebuildZone the added and removed edges buffered by the linking distance limit. This does not include
+     *                    edges whose speed was changed, so changed vertices within range of the stop are also checked.
+     */
+    private boolean canBeReused (int stopIndex, Point stopPoint, ScenarioChanges changes, Geometry rebuildZone,
+                                 int linkingDistanceLimitMeters) {
+        if (stopIndex >= stopToPointLinkageCostTables.size()) {
+            // This stop was created by the scenario.
+            return false;
+        }
+        if (linkedPointSet.streetMode == StreetMode.WALK) {
+            TransitLayer baseTransitLayer = linkedPointSet.streetLayer.parentNetwork.transitLayer;
+            TIntIntMap baseVertexTable = baseTransitLayer.stopToVertexDistanceTables.get(stopIndex);
+            if (baseVertexTable != null) {
+                return !changes.reachedAny(baseVertexTable);
+            }
+        } else if (stopReachedEnvelopes != null && stopReachedEnvelopes[stopIndex] != null) {
+            return !changes.reachedAny(stopReachedEnvelopes[stopIndex]);
+        }
+        Envelope linkingRange = stopPoint.getEnvelopeInternal();
+        GeometryUtils.expandEnvelopeFixed(linkingRange, linkingDistanceLimitMeters);
+        return !rebuildZone.contains(stopPoint) && !changes.reachedAny(linkingRange);
+    }
+
+    /**
+     * The extent of the vertices reached by a search from a stop, widened to include any street within linking range
+     * of the stop: a scenario could add a street near the stop that the search would then start from.
+     */
+    private static Envelope reachedEnvelope (Point stopPoint, TIntIntMap reachedVertices, VertexStore vertexStore) {
+        Envelope envelope = new Envelope(stopPoint.getCoordinate());
+        GeometryUtils.expandEnvelopeFixed(envelope, StreetLayer.LINK_RADIUS_METERS);
+        VertexStore.Vertex vertex = vertexStore.getCursor();
+        for (TIntIterator it = reachedVertices.keySet().iterator(); it.hasNext(); ) {
+            vertex.seek(it.next());
+            envelope.expandToInclude(vertex.getFixedLon(), vertex.getFixedLat());
+        }
+        return envelope;
     }
 
     /**
@@ -343,6 +427,39 @@ public class EgressCostTable implements Serializable {
         this.linkageCostUnit = superCostTable.linkageCostUnit;
         this.stopToPointLinkageCostTables = stopToPointLinkageCostTables;
         this.egressStopDelaysSeconds = superCostTable.egressStopDelaysSeconds;
+        this.stopReachedEnvelopes = superCostTable.stopReachedEnvelopes;
+    }
+
+    /**
+     * Private constructor for tables that were stored by a LinkageDiskCache and read back in.
+     */
+    private EgressCostTable (LinkedPointSet linkedPointSet,
+                             List<int[]> stopToPointLinkageCostTables,
+                             int[] egressStopDelaysSeconds,
+                             Envelope[] stopReachedEnvelopes) {
+        this.linkedPointSet = linkedPointSet;
+        this.linkageCostUnit = (linkedPointSet.streetMode == StreetMode.CAR)
+                ? StreetRouter.State.RoutingVariable.DURATION_SECONDS
+                : StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+        this.stopToPointLinkageCostTables = stopToPointLinkageCostTables;
+        this.egressStopDelaysSeconds = egressStopDelaysSeconds;
+        this.stopReachedEnvelopes = stopReachedEnvelopes;
+    }
+
+    /**
+     * Factory method for tables that were previously built for exactly the same linkage and stored on disk.
+     * The stored tables are used as they are, so must not be shared with any other EgressCostTable.
+     */
+    public static EgressCostTable fromStoredTables (LinkedPointSet linkedPointSet,
+                                                    List<int[]> stopToPointLinkageCostTables,
+                                                    int[] egressStopDelaysSeconds,
+                                                    Envelope[] stopReachedEnvelopes) {
+        checkArgument(
+            stopToPointLinkageCostTables.size() == linkedPointSet.streetLayer.parentNetwork.transitLayer.getStopCount(),
+            "Stored egress cost tables do not have one table per transit stop."
+        );
+        return new EgressCostTable(
+                linkedPointSet, stopToPointLinkageCostTables, egressStopDelaysSeconds, stopReachedEnvelopes);
     }
 
     /**
@@ -420,39 +537,188 @@ public class EgressCostTable implements Serializable {
      * One should represent the region, or read-through crops of the whole region, and the other should be per-scenario.
      */
     public synchronized void destructivelyTransposeForPropagationAsNeeded() {
-        if (pointToStopLinkageCostTables == null) {
-            // Release reference to the source table, in order to fail fast if any other thread tries to read them.
-            // We make a local copy so we can release each reference while copying.
-            List<int[]> stopToPointTables = new ArrayList<>(this.stopToPointLinkageCostTables);
-            this.stopToPointLinkageCostTables = null;
-            TIntIntMap[] result = new TIntIntMap[linkedPointSet.size()];
-            for (int stop = 0; stop < stopToPointTables.size(); stop++) {
-                int[] stopToPointTable = stopToPointTables.get(stop);
-                if (stopToPointTable == null) {
-                    continue;
-                }
-                for (int idx = 0; idx < stopToPointTable.length; idx += 2) {
-                    int point = stopToPointTable[idx];
-                    int distance = stopToPointTable[idx + 1];
-                    if (result[point] == null) {
-                        result[point] = new TIntIntHashMap();
-                    }
-                    result[point].put(stop, distance);
-                }
-                // Release the reference to this stop's table for garbage collection.
-                stopToPointTables.set(stop, null);
+        if (pointToStopOffsets != null) {
+            return;
+        }
+        // Release reference to the source table, in order to fail fast if any other thread tries to read them.
+        // We make a local copy so we can release each reference once it has been copied.
+        List<int[]> stopToPointTables = new ArrayList<>(this.stopToPointLinkageCostTables);
+        this.stopToPointLinkageCostTables = null;
+        int nPoints = linkedPointSet.size();
+        int nStops = stopToPointTables.size();
+
+        // Count the (stop, cost) pairs that will be stored for each point.
+        AtomicIntegerArray pairsForPoint = new AtomicIntegerArray(nPoints);
+        IntStream.range(0, nStops).parallel().forEach(stop -> {
+            int[] stopToPointTable = stopToPointTables.get(stop);
+            if (stopToPointTable == null) return;
+            for (int idx = 0; idx < stopToPointTable.length; idx += 2) {
+                pairsForPoint.incrementAndGet(stopToPointTable[idx]);
             }
-            // Make the transposed table available to propagation.
-            this.pointToStopLinkageCostTables = Arrays.asList(result);
+        });
+        int[] offsets = new int[nPoints + 1];
+        long nValues = 0;
+        for (int point = 0; point < nPoints; point++) {
+            offsets[point] = (int) nValues;
+            nValues += pairsForPoint.get(point) * 2L;
+            checkState(nValues <= Integer.MAX_VALUE, "Transposed egress cost table is too large for an array.");
         }
+        offsets[nPoints] = (int) nValues;
+
+        // Copy each stop's pairs into place, using the counts as a write cursor within each point's range.
+        int[] costs = new int[(int) nValues];
+        IntStream.range(0, nStops).parallel().forEach(stop -> {
+            int[] stopToPointTable = stopToPointTables.get(stop);
+            if (stopToPointTable == null) return;
+            for (int idx = 0; idx < stopToPointTable.length; idx += 2) {
+                int point = stopToPointTable[idx];
+                int position = offsets[point + 1] - pairsForPoint.getAndDecrement(point) * 2;
+                costs[position] = stop;
+                costs[position + 1] = stopToPointTable[idx + 1];
+            }
+            // Release the reference to this stop's table for garbage collection.
+            stopToPointTables.set(stop, null);
+        });
+
+        // Stops were written in whatever order the threads reached them. Sort them for repeatable propagation.
+        IntStream.range(0, nPoints).parallel().forEach(point ->
+                sortPairsByStop(costs, offsets[point], offsets[point + 1]));
+
+        // Make the transposed table available to propagation.
+        this.pointToStopCosts = costs;
+        this.pointToStopOffsets = offsets;
+    }
+
+    /**
+     * Insertion sort of the (stop, cost) pairs in the given range of a packed array, by stop. The ranges for a single
+     * point are short, usually a few dozen stops at most.
+     */
+    private static void sortPairsByStop (int[] pairs, int start, int end) {
+        for (int i = start + 2; i < end; i += 2) {
+            int stop = pairs[i];
+            int cost = pairs[i + 1];
+            int j = i - 2;
+            while (j >= start && pairs[j] > stop) {
+                pairs[j + 2] = pairs[j];
+                pairs[j + 3] = pairs[j + 1];
+                j -= 2;
+            }
+            pairs[j + 2] = stop;
+            pairs[j + 3] = cost;
+        }
+    }
+
+    /**
+     * @return for each transit stop, the extent of the streets its table was derived from, or null if not recorded.
+     *         See the field of the same name.
+     */
+    public Envelope[] getStopReachedEnvelopes () {
+        return stopReachedEnvelopes;
     }
 
     /**
      * You should first call destructivelyTransposeForPropagationAsNeeded before calling this method.
-     * @return for the given destination point index, a map from stop_index -> cost_to_reach_point for all nearby stops
+     * @return for each destination point index p, the position of the first (stop_index, cost_to_reach_point) pair for
+     *         that point in the array returned by getPointToStopCosts(). They end where those of point p + 1 begin.
+     */
+    public int[] getPointToStopOffsets () {
+        return pointToStopOffsets;
+    }
+
+    /**
+     * You should first call destructivelyTransposeForPropagationAsNeeded before calling this method.
+     * @return the (stop_index, cost_to_reach_point) pairs for all destination points, packed end to end and located
+     *         using the offsets returned by getPointToStopOffsets().
+     */
+    public int[] getPointToStopCosts () {
+        return pointToStopCosts;
+    }
+
+    /**
+     * The street vertices at either end of every edge a scenario changed, as seen from the baseline network: edges the
+     * scenario added or deleted, edges whose car speed it changed (only for tables of travel times), and the old and new
+     * edges of every point it linked differently. A baseline stop's table can only be affected by the scenario if the
+     * search from that stop reached one of these vertices. Vertices created by the scenario are left out, as no
+     * baseline search can have reached them; the edges split to create them are deleted edges whose ends are included.
      */
-    public TIntIntMap getCostTableForPoint (int pointIndex) {
-        return pointToStopLinkageCostTables.get(pointIndex);
+    private static class ScenarioChanges {
+
+        final TIntSet vertices = new TIntHashSet();
+
+        /** Spatial index of the changed vertices, in bins large enough to hold a whole egress search in a few. */
+        final IntHashGrid index = new IntHashGrid(0.05);
+
+        final VertexStore vertexStore;
+
+        ScenarioChanges (LinkedPointSet linkedPointSet, StreetRouter.State.RoutingVariable linkageCostUnit) {
+            LinkedPointSet baseLinkage = linkedPointSet.baseLinkage;
+            StreetLayer baseStreetLayer = linkedPointSet.streetLayer.baseStreetLayer;
+            EdgeStore edgeStore = linkedPointSet.streetLayer.edgeStore;
+            vertexStore = baseStreetLayer.vertexStore;
+            EdgeStore.Edge edge = edgeStore.getCursor();
+            IntConsumer addEdge = e -> {
+                edge.seek(e);
+                addVertex(edge.getFromVertex());
+                addVertex(edge.getToVertex());
+            };
+            edgeStore.forEachTemporarilyAddedOrDeletedEdge(addEdge);
+            int nVerticesOnChangedEdges = vertices.size();
+            if (linkageCostUnit == StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
+                // Modifications like RoadCongestion replace the edge speeds without adding or deleting any edges.
+                TShortList baseSpeeds = baseStreetLayer.edgeStore.speeds;
+                for (int e = 0; e < baseSpeeds.size(); e++) {
+                    if (edgeStore.speeds.get(e) != baseSpeeds.get(e)) {
+                        addEdge.accept(e);
+                    }
+                }
+            }
+            int nVerticesOnlyRespeeded = vertices.size() - nVerticesOnChangedEdges;
+            int nRelinkedPoints = 0;
+            for (int p = 0; p < linkedPointSet.size(); p++) {
+                if (linkedPointSet.edges[p] != baseLinkage.edges[p]
+                        || linkedPointSet.distances0_mm[p] != baseLinkage.distances0_mm[p]
+                        || linkedPointSet.distancesToEdge_mm[p] != baseLinkage.distancesToEdge_mm[p]) {
+                    if (baseLinkage.edges[p] >= 0) addEdge.accept(baseLinkage.edges[p]);
+                    if (linkedPointSet.edges[p] >= 0) addEdge.accept(linkedPointSet.edges[p]);
+                    nRelinkedPoints += 1;
+                }
+            }
+            LOG.info("Scenario changed streets at {} vertices, {} of them only by changing speeds. {} points were " +
+                    "linked differently.", vertices.size(), nVerticesOnlyRespeeded, nRelinkedPoints);
+        }
+
+        private void addVertex (int vertex) {
+            if (vertex < vertexStore.getVertexCount() && vertices.add(vertex)) {
+                VertexStore.Vertex cursor = vertexStore.getCursor(vertex);
+                index.insert(new Envelope(cursor.getFixedLon(), cursor.getFixedLon(),
+                        cursor.getFixedLat(), cursor.getFixedLat()), vertex);
+            }
+        }
+
+        /** @return whether any changed vertex is a key in the given table from a baseline stop to street vertices. */
+        boolean reachedAny (TIntIntMap vertexTable) {
+            if (vertices.size() < vertexTable.size()) {
+                for (TIntIterator it = vertices.iterator(); it.hasNext(); ) {
+                    if (vertexTable.containsKey(it.next())) return true;
+                }
+            } else {
+                for (TIntIterator it = vertexTable.keySet().iterator(); it.hasNext(); ) {
+                    if (vertices.contains(it.next())) return true;
+                }
+            }
+            return false;
+        }
+
+        /** @return whether any changed vertex lies within the given envelope, in fixed-point degrees. */
+        boolean reachedAny (Envelope reachedEnvelope) {
+            VertexStore.Vertex cursor = vertexStore.getCursor();
+            for (TIntIterator it = index.query(reachedEnvelope).iterator(); it.hasNext(); ) {
+                cursor.seek(it.next());
+                if (reachedEnvelope.contains(cursor.getFixedLon(), cursor.getFixedLat())) return true;
+            }
+            return false;
+        }
+
     }
 
 }
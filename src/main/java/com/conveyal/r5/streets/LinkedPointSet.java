@@ -25,6 +25,7 @@ import java.util.stream.IntStream;
 
 import static com.conveyal.r5.streets.StreetRouter.State.RoutingVariable;
 import static com.conveyal.r5.streets.VertexStore.floatingDegreesToFixed;
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A LinkedPointSet is a PointSet that has been connected to a StreetLayer in a non-destructive, reversible way.
@@ -250,6 +251,24 @@ public class LinkedPointSet implements Serializable {
         }
     }
 
+    /**
+     * Construct a LinkedPointSet from linkage arrays that were previously computed for exactly the same PointSet,
+     * StreetLayer and StreetMode, and stored on disk by a LinkageDiskCache. The egress cost tables should be supplied
+     * with setEgressCostTable, as there is no base linkage from which to rebuild them.
+     */
+    public LinkedPointSet (PointSet pointSet, StreetLayer streetLayer, StreetMode streetMode, int[] edges,
+                           int[] distancesToEdge_mm, int[] distances0_mm, int[] distances1_mm) {
+        this.pointSet = pointSet;
+        this.streetLayer = streetLayer;
+        this.streetMode = streetMode;
+        this.baseLinkage = null;
+        this.cropped = false;
+        this.edges = edges;
+        this.distancesToEdge_mm = distancesToEdge_mm;
+        this.distances0_mm = distances0_mm;
+        this.distances1_mm = distances1_mm;
+    }
+
     /**
      * Get (and lazily build) the EgressCostTable derived from this linkage and its associated TransportNetwork.
      * The synchronization is rather crude, but should do the job as long as all outside multi-threaded access to the
@@ -274,11 +293,23 @@ public class LinkedPointSet implements Serializable {
             } else {
                 // This is a rebuild for a diff between a scenario and a baseline.
                 this.egressCostTable = new EgressCostTable(this, progressListener);
+                // Building these tables is slow, so give the network's linkage cache a chance to persist them.
+                if (streetLayer.parentNetwork != null) {
+                    streetLayer.parentNetwork.linkageCache.egressCostTableBuilt(this, egressCostTable);
+                }
             }
         }
         return this.egressCostTable;
     }
 
+    /**
+     * Supply egress cost tables that were built earlier for exactly this linkage, e.g. when reading it from disk.
+     */
+    public synchronized void setEgressCostTable (EgressCostTable egressCostTable) {
+        checkArgument(egressCostTable.linkedPointSet == this, "Egress cost table was built for a different linkage.");
+        this.egressCostTable = egressCostTable;
+    }
+
     /**
      * Fetch the egressCostTable when you expect it to be already built.
      * Eventually we should eliminate all calls to this method.
@@ -0,0 +1,265 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.util.LambdaCounter;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static gnu.trove.impl.Constants.DEFAULT_CAPACITY;
+import static gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR;
+
+/**
+ * Finds the shortest distances from up to 64 origin vertices to all street vertices within a distance limit, in a
+ * single pass over the street network. This produces exactly the same distance tables as running a separate
+ * StreetRouter search minimizing distance from each origin vertex, but is much faster when the origins are close
+ * together (e.g. the transit stops in one part of a city), because their searches explore mostly the same streets.
+ *
+ * Each search state holds 64 distances side by side, one per origin (or "lane"). Each time a state is taken off the
+ * queue, every outgoing edge is read and checked once, and then relaxed for all the lanes whose distance improved
+ * since the state was last expanded. The queue is ordered on the smallest improved distance, so lanes with larger
+ * distances may be expanded before they are final. They are simply expanded again if they later improve, which makes
+ * this a label-correcting search that still converges on the shortest distances.
+ *
+ * The StreetRouter keeps one state per edge, but when minimizing distance without turn restrictions the only thing
+ * about the edge leading to a vertex that affects what comes next is whether it was a link edge (two link edges in a
+ * row are not allowed). So this search keeps two states per vertex, one for arriving on a link edge and one for
+ * arriving on any other edge. As in the StreetRouter, the origins themselves are not states, so an origin vertex only
+ * appears in the results if the search comes back to it.
+ *
+ * Instances are not threadsafe. Use one per thread, as routeAll() does.
+ */
+public class MultiSourceStreetSearch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultiSourceStreetSearch.class);
+
+    /** The number of origins searched at once, one per bit in a long. */
+    public static final int MAX_ORIGINS = Long.SIZE;
+
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    private final StreetLayer streetLayer;
+
+    private final StreetMode streetMode;
+
+    private final int distanceLimitMillimeters;
+
+    /** Default request settings, as used by a StreetRouter whose request has not been set. */
+    private final ProfileRequest request = new ProfileRequest();
+
+    /** For each vertex, the index of the slot holding its states in this search, or -1 if it has not been reached. */
+    private final int[] slotForVertex;
+
+    private final TIntList vertexForSlot = new TIntArrayList();
+
+    /**
+     * The distances held by each state in millimeters, MAX_ORIGINS per state. There are two states per slot: the
+     * state at index (slot * 2 + 1) is for arriving on a link edge.
+     */
+    private int[] distances = new int[0];
+
+    /** For each state, a bit for each lane whose distance has improved since the state was last expanded. */
+    private long[] improvedLanes = new long[0];
+
+    /** A binary min-heap of states in the low 32 bits, prioritized by the distance in the high 32. */
+    private long[] heap = new long[64];
+
+    private int heapSize = 0;
+
+    public MultiSourceStreetSearch (StreetLayer streetLayer, StreetMode streetMode, int distanceLimitMillimeters) {
+        checkArgument(streetMode != StreetMode.CAR, "Car searches depend on turn costs and restrictions.");
+        this.streetLayer = streetLayer;
+        this.streetMode = streetMode;
+        this.distanceLimitMillimeters = distanceLimitMillimeters;
+        this.slotForVertex = new int[streetLayer.getVertexCount()];
+        Arrays.fill(slotForVertex, -1);
+    }
+
+    /**
+     * @param originVertices up to MAX_ORIGINS vertices to search from. Negative values are skipped.
+     * @return for each origin vertex, a map from each reached vertex to its distance in millimeters, in the same form
+     *         as StreetRouter.getReachedVertices(), or null where the origin vertex was negative.
+     */
+    public TIntIntMap[] route (int[] originVertices) {
+        checkArgument(originVertices.length <= MAX_ORIGINS, "Too many origins for one search.");
+        for (int lane = 0; lane < originVertices.length; lane++) {
+            if (originVertices[lane] >= 0) {
+                expand(originVertices[lane], false, -1, 1L << lane);
+            }
+        }
+        while (heapSize > 0) {
+            int state = (int) poll();
+            long lanes = improvedLanes[state];
+            // Skip states that were already expanded for all their improved lanes through another heap entry.
+            if (lanes == 0) continue;
+            improvedLanes[state] = 0;
+            expand(vertexForSlot.get(state >> 1), (state & 1) != 0, state, lanes);
+        }
+        TIntIntMap[] results = new TIntIntMap[originVertices.length];
+        for (int lane = 0; lane < originVertices.length; lane++) {
+            if (originVertices[lane] >= 0) {
+                results[lane] = new TIntIntHashMap(DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR, -1, UNREACHED);
+            }
+        }
+        for (int slot = 0; slot < vertexForSlot.size(); slot++) {
+            int vertex = vertexForSlot.get(slot);
+            int base = slot * 2 * MAX_ORIGINS;
+            for (int lane = 0; lane < originVertices.length; lane++) {
+                int distance = Math.min(distances[base + lane], distances[base + MAX_ORIGINS + lane]);
+                if (distance != UNREACHED && results[lane] != null) {
+                    results[lane].put(vertex, distance);
+                }
+            }
+            slotForVertex[vertex] = -1;
+        }
+        vertexForSlot.clear();
+        return results;
+    }
+
+    /**
+     * Relax all edges leaving the given vertex for the given lanes.
+     * @param state the state whose distances are extended, or -1 to extend a distance of zero from an origin.
+     */
+    private void expand (int vertex, boolean viaLink, int state, long lanes) {
+        TIntSet deletedEdges = streetLayer.edgeStore.temporarilyDeletedEdges;
+        TIntList edgeList = streetLayer.outgoingEdges.get(vertex);
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        for (int i = 0; i < edgeList.size(); i++) {
+            int eidx = edgeList.get(i);
+            if (deletedEdges != null && deletedEdges.contains(eidx)) continue;
+            edge.seek(eidx);
+            boolean link = edge.getFlag(EdgeStore.EdgeFlag.LINK);
+            // Two link edges in a row would be a shortcut, except when leaving an origin.
+            if (viaLink && link) continue;
+            if (edge.traversalMode(streetMode, request) == null) continue;
+            int length = Math.max(edge.getLengthMm(), 1);
+            int target = slotFor(edge.getToVertex()) * 2 + (link ? 1 : 0);
+            int targetBase = target * MAX_ORIGINS;
+            for (long remaining = lanes; remaining != 0; remaining &= remaining - 1) {
+                int lane = Long.numberOfTrailingZeros(remaining);
+                int distance = (state < 0 ? 0 : distances[state * MAX_ORIGINS + lane]) + length;
+                if (distance > distanceLimitMillimeters || distance >= distances[targetBase + lane]) continue;
+                distances[targetBase + lane] = distance;
+                improvedLanes[target] |= 1L << lane;
+                push(target, distance);
+            }
+        }
+    }
+
+    private int slotFor (int vertex) {
+        int slot = slotForVertex[vertex];
+        if (slot < 0) {
+            slot = vertexForSlot.size();
+            vertexForSlot.add(vertex);
+            slotForVertex[vertex] = slot;
+            int nStates = (slot + 1) * 2;
+            if (improvedLanes.length < nStates) {
+                int capacity = Math.max(nStates, improvedLanes.length * 2);
+                improvedLanes = Arrays.copyOf(improvedLanes, capacity);
+                distances = Arrays.copyOf(distances, capacity * MAX_ORIGINS);
+            }
+            Arrays.fill(distances, slot * 2 * MAX_ORIGINS, nStates * MAX_ORIGINS, UNREACHED);
+            improvedLanes[slot * 2] = 0;
+            improvedLanes[slot * 2 + 1] = 0;
+        }
+        return slot;
+    }
+
+    private void push (int item, int priority) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+        long packed = ((long) priority << 32) | (item & 0xFFFFFFFFL);
+        // Sift up.
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= packed) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = packed;
+    }
+
+    private long poll () {
+        long top = heap[0];
+        long last = heap[--heapSize];
+        // Sift the last element down from the root.
+        int i = 0;
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) child += 1;
+            if (last <= heap[child]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return top;
+    }
+
+    /**
+     * Find distance tables from many origin vertices, grouping nearby origins into searches of MAX_ORIGINS and running
+     * those searches in parallel.
+     * @param originVertices the vertices to search from. Negative values are skipped.
+     * @return for each origin vertex, a map from reached vertices to distances in millimeters as returned by route(),
+     *         or null where the origin vertex was negative.
+     */
+    public static List<TIntIntMap> routeAll (StreetLayer streetLayer, StreetMode streetMode,
+                                             int distanceLimitMillimeters, int[] originVertices) {
+        // Order the origins along a Z-order curve, so that each group of consecutive origins is close together.
+        VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor();
+        List<long[]> keyedOrigins = new ArrayList<>();
+        for (int i = 0; i < originVertices.length; i++) {
+            if (originVertices[i] < 0) continue;
+            vertex.seek(originVertices[i]);
+            keyedOrigins.add(new long[] {zOrder(vertex.getFixedLon(), vertex.getFixedLat()), i});
+        }
+        keyedOrigins.sort((a, b) -> Long.compareUnsigned(a[0], b[0]));
+        int nGroups = (keyedOrigins.size() + MAX_ORIGINS - 1) / MAX_ORIGINS;
+
+        TIntIntMap[] results = new TIntIntMap[originVertices.length];
+        LambdaCounter counter = new LambdaCounter(LOG, nGroups, 10,
+                String.format("Searched from {} of {} groups of up to %d origins at once.", MAX_ORIGINS));
+        ThreadLocal<MultiSourceStreetSearch> searches = ThreadLocal.withInitial(() ->
+                new MultiSourceStreetSearch(streetLayer, streetMode, distanceLimitMillimeters));
+        IntStream.range(0, nGroups).parallel().forEach(group -> {
+            int start = group * MAX_ORIGINS;
+            int end = Math.min(start + MAX_ORIGINS, keyedOrigins.size());
+            int[] groupOrigins = new int[end - start];
+            for (int i = start; i < end; i++) {
+                groupOrigins[i - start] = originVertices[(int) keyedOrigins.get(i)[1]];
+            }
+            TIntIntMap[] groupResults = searches.get().route(groupOrigins);
+            for (int i = start; i < end; i++) {
+                results[(int) keyedOrigins.get(i)[1]] = groupResults[i - start];
+            }
+            counter.increment();
+        });
+        counter.done();
+        return Arrays.asList(results);
+    }
+
+    /** Interleave the bits of two fixed-point coordinates, offset to make them non-negative. */
+    private static long zOrder (int x, int y) {
+        long ux = (long) x - Integer.MIN_VALUE;
+        long uy = (long) y - Integer.MIN_VALUE;
+        long key = 0;
+        for (int bit = 31; bit >= 0; bit--) {
+            key = (key << 2) | (((uy >>> bit) & 1) << 1) | ((ux >>> bit) & 1);
+        }
+        return key;
+    }
+
+}
@@ -48,7 +48,8 @@ public class OSMCache implements Component {
         try {
             return osmCache.get(id, () -> {
                 File osmFile = fileStorage.getFile(getKey(id));
-                OSM ret = new OSM(null);
+                // These OSM objects are only used to build street layers, which do not modify the OSM entities.
+                OSM ret = new OSM(OSM.PACKED);
                 ret.intersectionDetection = true;
                 ret.readFromFile(osmFile.getAbsolutePath());
                 return ret;
@@ -0,0 +1,399 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.TIntSet;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * The search used by StreetRouter when no state can ever be partway through a turn restriction. Turn restrictions are
+ * the only reason the general search keeps more than one state at the end of an edge, so without them the single best
+ * state at each edge can be stored in flat primitive arrays indexed by edge, and the search frontier can be a binary
+ * heap of packed longs. No State objects are created while exploring the street network: they are only materialized
+ * (by following back edges) when a caller asks for the state at a particular edge or vertex.
+ *
+ * The arrays span the whole edge store, so they are too large to allocate for every search. The StreetLayer keeps one
+ * instance per thread that is reused, with only the edges reached by the previous search being reset, and releases
+ * them along with the network. The StreetRouter that last ran a search on a thread keeps reading its results from that
+ * thread's instance until another StreetRouter on the same thread claims it. At that point a detached copy of the
+ * previous results is set aside, which the previous router picks up the next time it reads its results (see
+ * resultsFor). The copy holds only the edges that were reached, so making it costs no more than the search that
+ * reached them, however large the edge store.
+ */
+class PrimitiveStreetSearch {
+
+    /** Value in backEdges for an edge that has not been reached. */
+    private static final int UNREACHED = -1;
+
+    /**
+     * Values in backEdges at or below this one indicate that the state at the edge (or at the end of the back edge
+     * chain) is one of the origin states of the search, with index ORIGIN - backEdge in the origins list.
+     */
+    private static final int ORIGIN = -2;
+
+    private static final StreetMode[] STREET_MODES = StreetMode.values();
+
+    /** The router whose results are currently held in this instance, if it is the instance for a thread. */
+    private WeakReference<StreetRouter> owner;
+
+    /**
+     * Detached copies of the results of routers that previously owned this instance, until each router notices that it
+     * has lost ownership and takes its copy. Weakly keyed so copies are dropped along with routers that are discarded.
+     */
+    private final Map<StreetRouter, PrimitiveStreetSearch> detachedResults = new WeakHashMap<>();
+
+    private StreetRouter.State.RoutingVariable quantityToMinimize;
+
+    private boolean reverseSearch;
+
+    /**
+     * Null for the instance belonging to a thread, whose arrays are indexed by edge. In a detached copy, the position of
+     * each reached edge in the arrays, which then hold only the reached edges.
+     */
+    private TIntIntMap slotForEdge = null;
+
+    // The best state at the end of each edge, with all arrays indexed by edge (or by slot in a detached copy).
+    private int[] durationSeconds = new int[0];
+    private int[] distanceMillimeters = new int[0];
+    private int[] backEdges = new int[0];
+    private byte[] streetModes = new byte[0];
+
+    /** The edges at which a state was recorded, allowing iteration over results and resetting for the next search. */
+    private final TIntList reachedEdges = new TIntArrayList();
+
+    /**
+     * The states the search started from. Those not located at the end of an edge are placed on the heap as negative
+     * items -1 - index.
+     */
+    private final List<StreetRouter.State> origins = new ArrayList<>();
+
+    /** A binary min-heap of items (edges or origins) in the low 32 bits, prioritized by the value in the high 32. */
+    private long[] heap = new long[64];
+
+    private int heapSize = 0;
+
+    /**
+     * Get the search instance for the current thread from the router's street layer, reset and ready for a new search
+     * on behalf of the given router.
+     */
+    static PrimitiveStreetSearch claim (
+            StreetRouter router,
+            int nEdges,
+            StreetRouter.State.RoutingVariable quantityToMinimize
+    ) {
+        PrimitiveStreetSearch search = router.streetLayer.getPrimitiveStreetSearch();
+        StreetRouter previousOwner = search.owner == null ? null : search.owner.get();
+        if (previousOwner != null && previousOwner != router) {
+            // The previous router's results may still be read, so set aside a copy that will not be overwritten.
+            search.detachedResults.put(previousOwner, search.detach());
+        }
+        // Any copy set aside for this router is superseded by the new search.
+        search.detachedResults.remove(router);
+        search.owner = new WeakReference<>(router);
+        search.reset(nEdges);
+        search.quantityToMinimize = quantityToMinimize;
+        search.reverseSearch = router.profileRequest.reverseSearch;
+        return search;
+    }
+
+    private void reset (int nEdges) {
+        if (backEdges.length < nEdges) {
+            durationSeconds = new int[nEdges];
+            distanceMillimeters = new int[nEdges];
+            backEdges = new int[nEdges];
+            streetModes = new byte[nEdges];
+            Arrays.fill(backEdges, UNREACHED);
+        } else {
+            for (int i = 0; i < reachedEdges.size(); i++) {
+                backEdges[reachedEdges.get(i)] = UNREACHED;
+            }
+        }
+        reachedEdges.clear();
+        origins.clear();
+        heapSize = 0;
+    }
+
+    /**
+     * Copy the results of this search into a new instance holding only the reached edges, which can be read but not
+     * searched further until it is resumed.
+     */
+    private PrimitiveStreetSearch detach () {
+        int nReached = reachedEdges.size();
+        PrimitiveStreetSearch copy = new PrimitiveStreetSearch();
+        copy.quantityToMinimize = quantityToMinimize;
+        copy.reverseSearch = reverseSearch;
+        copy.slotForEdge = new TIntIntHashMap(nReached * 2, 0.5f, -1, -1);
+        copy.durationSeconds = new int[nReached];
+        copy.distanceMillimeters = new int[nReached];
+        copy.backEdges = new int[nReached];
+        copy.streetModes = new byte[nReached];
+        for (int slot = 0; slot < nReached; slot++) {
+            int edge = reachedEdges.get(slot);
+            copy.slotForEdge.put(edge, slot);
+            copy.durationSeconds[slot] = durationSeconds[edge];
+            copy.distanceMillimeters[slot] = distanceMillimeters[edge];
+            copy.backEdges[slot] = backEdges[edge];
+            copy.streetModes[slot] = streetModes[edge];
+        }
+        copy.reachedEdges.addAll(reachedEdges);
+        copy.origins.addAll(origins);
+        return copy;
+    }
+
+    /**
+     * Get the search holding the results of the given router, which held a reference to this one. This is this instance
+     * unless another router has since claimed it, in which case it is the copy that was set aside for the given router.
+     */
+    PrimitiveStreetSearch resultsFor (StreetRouter router) {
+        if (slotForEdge != null || (owner != null && owner.get() == router)) return this;
+        PrimitiveStreetSearch results = detachedResults.remove(router);
+        checkState(results != null, "The results of this street search have been discarded.");
+        return results;
+    }
+
+    /**
+     * Get a search holding the results of this one that can be searched further on behalf of the given router. This is
+     * this instance unless it was detached, in which case its results are copied back into the current thread's
+     * instance, claiming it.
+     */
+    PrimitiveStreetSearch resume (StreetRouter router, int nEdges) {
+        if (slotForEdge == null) return this;
+        PrimitiveStreetSearch search = claim(router, nEdges, quantityToMinimize);
+        for (int slot = 0; slot < reachedEdges.size(); slot++) {
+            search.record(reachedEdges.get(slot), durationSeconds[slot], distanceMillimeters[slot], backEdges[slot],
+                    STREET_MODES[streetModes[slot]]);
+        }
+        search.origins.addAll(origins);
+        return search;
+    }
+
+    /** @return the position of the given reached edge in the arrays, or -1 if it was not reached. */
+    private int slot (int edge) {
+        if (slotForEdge != null) return slotForEdge.get(edge);
+        return edge >= 0 && edge < backEdges.length && backEdges[edge] != UNREACHED ? edge : -1;
+    }
+
+    /**
+     * Add a state the search will start from. As in the general search, an origin state at the end of an edge is
+     * recorded as the best state at that edge unless an existing state is at least as good.
+     */
+    void addOrigin (StreetRouter.State state) {
+        checkState(slotForEdge == null, "A detached search must be resumed before adding origins.");
+        int originIndex = origins.size();
+        origins.add(state);
+        int value = state.getRoutingVariable(quantityToMinimize);
+        int edge = state.backEdge;
+        if (edge < 0) {
+            push(-1 - originIndex, value);
+        } else if (backEdges[edge] == UNREACHED || getRoutingValue(edge) > value) {
+            record(edge, state.durationSeconds, state.distance, ORIGIN - originIndex, state.streetMode);
+            push(edge, value);
+        }
+    }
+
+    /** Place the state at every reached edge back on the heap, to continue the search in another mode. */
+    void requeueReachedEdges () {
+        checkState(slotForEdge == null, "A detached search must be resumed before searching further.");
+        heapSize = 0;
+        for (int i = 0; i < reachedEdges.size(); i++) {
+            int edge = reachedEdges.get(i);
+            push(edge, getRoutingValue(edge));
+        }
+    }
+
+    /**
+     * Explore the street network from the origin states, applying the same traversal rules as
+     * {@link EdgeStore.Edge#traverse} and the same limits and target vertex as the general search in the router.
+     */
+    void route (StreetRouter router, int distanceLimitMillimeters, int timeLimitSeconds) {
+        checkState(slotForEdge == null, "A detached search must be resumed before searching further.");
+        StreetLayer streetLayer = router.streetLayer;
+        StreetMode streetMode = router.streetMode;
+        ProfileRequest request = router.profileRequest;
+        TraversalTimeCalculator timeCalculator = router.timeCalculator;
+        TIntSet deletedEdges = streetLayer.edgeStore.temporarilyDeletedEdges;
+        List<TIntList> edgeLists = reverseSearch ? streetLayer.incomingEdges : streetLayer.outgoingEdges;
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        EdgeStore.Edge backEdgeCursor = streetLayer.edgeStore.getCursor();
+
+        while (heapSize > 0) {
+            long packed = poll();
+            int item = (int) packed;
+            int vertex;
+            int backEdge;
+            int duration;
+            int distance;
+            boolean hasBackState;
+            if (item >= 0) {
+                // Skip heap entries for edges whose state has since been replaced by a better one.
+                if ((int) (packed >>> 32) != getRoutingValue(item)) continue;
+                backEdge = item;
+                duration = durationSeconds[item];
+                distance = distanceMillimeters[item];
+                int previous = backEdges[item];
+                if (previous <= ORIGIN && origins.get(ORIGIN - previous).backEdge == item) {
+                    // The origin state is itself the state at this edge, as in getState().
+                    vertex = origins.get(ORIGIN - previous).vertex;
+                    hasBackState = false;
+                } else {
+                    // The state at this edge was reached from its back edge, or by leaving an origin vertex.
+                    vertex = vertexAtEndOf(edge, item);
+                    hasBackState = true;
+                }
+            } else {
+                StreetRouter.State origin = origins.get(-1 - item);
+                vertex = origin.vertex;
+                backEdge = origin.backEdge;
+                duration = origin.durationSeconds;
+                distance = origin.distance;
+                hasBackState = false;
+            }
+
+            if (router.toVertex > 0 && router.toVertex == vertex) break;
+
+            TIntList edgeList = edgeLists.get(vertex);
+            for (int i = 0; i < edgeList.size(); i++) {
+                int eidx = edgeList.get(i);
+                if (deletedEdges != null && deletedEdges.contains(eidx)) continue;
+                edge.seek(eidx);
+                // Two link edges in a row would be a shortcut, except when leaving an origin state.
+                if (hasBackState && edge.getFlag(EdgeStore.EdgeFlag.LINK)) {
+                    backEdgeCursor.seek(backEdge);
+                    if (backEdgeCursor.getFlag(EdgeStore.EdgeFlag.LINK)) continue;
+                }
+                StreetMode traversalMode = edge.traversalMode(streetMode, request);
+                if (traversalMode == null) continue;
+
+                int incrementSeconds = timeCalculator.traversalTimeSeconds(edge, traversalMode, request);
+                if (backEdge >= 0) {
+                    incrementSeconds += reverseSearch
+                            ? timeCalculator.turnTimeSeconds(eidx, backEdge, traversalMode)
+                            : timeCalculator.turnTimeSeconds(backEdge, eidx, traversalMode);
+                }
+                // Every traversal must increase both duration and distance, or the search could loop.
+                int duration1 = duration + Math.max(incrementSeconds, 1);
+                int distance1 = distance + Math.max(edge.getLengthMm(), 1);
+                if (distance1 > distanceLimitMillimeters || duration1 >= timeLimitSeconds) continue;
+
+                int value = quantityToMinimize == StreetRouter.State.RoutingVariable.DURATION_SECONDS
+                        ? duration1 : distance1;
+                if (backEdges[eidx] != UNREACHED && getRoutingValue(eidx) <= value) continue;
+                record(eidx, duration1, distance1, item >= 0 ? item : ORIGIN - (-1 - item), traversalMode);
+                push(eidx, value);
+            }
+        }
+    }
+
+    private void record (int edge, int duration, int distance, int backEdge, StreetMode streetMode) {
+        if (backEdges[edge] == UNREACHED) {
+            reachedEdges.add(edge);
+        }
+        durationSeconds[edge] = duration;
+        distanceMillimeters[edge] = distance;
+        backEdges[edge] = backEdge;
+        streetModes[edge] = (byte) streetMode.ordinal();
+    }
+
+    private int vertexAtEndOf (EdgeStore.Edge edge, int edgeIndex) {
+        edge.seek(edgeIndex);
+        return reverseSearch ? edge.getFromVertex() : edge.getToVertex();
+    }
+
+    /** @return the edges at which a state was recorded, in the order they were first reached. */
+    TIntList getReachedEdges () {
+        return reachedEdges;
+    }
+
+    boolean isReached (int edge) {
+        return slot(edge) >= 0;
+    }
+
+    int getRoutingValue (int edge) {
+        int slot = slotForEdge == null ? edge : slotForEdge.get(edge);
+        return quantityToMinimize == StreetRouter.State.RoutingVariable.DURATION_SECONDS
+                ? durationSeconds[slot] : distanceMillimeters[slot];
+    }
+
+    int getDurationSeconds (int edge) {
+        return durationSeconds[slotForEdge == null ? edge : slotForEdge.get(edge)];
+    }
+
+    /**
+     * Materialize the best state at the end of the given edge, along with the chain of back states leading to it from
+     * an origin state.
+     * @return the state, or null if the edge was not reached.
+     */
+    StreetRouter.State getState (int edge, EdgeStore edgeStore) {
+        if (!isReached(edge)) return null;
+        TIntList chain = new TIntArrayList();
+        int previous = edge;
+        while (previous >= 0) {
+            chain.add(previous);
+            previous = backEdges[slot(previous)];
+        }
+        StreetRouter.State state = origins.get(ORIGIN - previous);
+        int i = chain.size() - 1;
+        if (state.backEdge == chain.get(i)) {
+            // The origin state is itself the state at the first edge of the chain.
+            i -= 1;
+        }
+        EdgeStore.Edge cursor = edgeStore.getCursor();
+        for (; i >= 0; i--) {
+            int e = chain.get(i);
+            int slot = slot(e);
+            StreetRouter.State next = new StreetRouter.State(vertexAtEndOf(cursor, e), e, state);
+            next.streetMode = STREET_MODES[streetModes[slot]];
+            next.durationFromOriginSeconds += durationSeconds[slot] - state.durationSeconds;
+            next.durationSeconds = durationSeconds[slot];
+            next.distance = distanceMillimeters[slot];
+            state = next;
+        }
+        return state;
+    }
+
+    private void push (int item, int priority) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+        }
+        long packed = ((long) priority << 32) | (item & 0xFFFFFFFFL);
+        // Sift up.
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= packed) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = packed;
+    }
+
+    private long poll () {
+        long top = heap[0];
+        long last = heap[--heapSize];
+        // Sift the last element down from the root.
+        int i = 0;
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) child += 1;
+            if (last <= heap[child]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return top;
+    }
+
+}
@@ -18,11 +18,14 @@ import com.conveyal.r5.labeling.TraversalPermissionLabeler;
 import com.conveyal.r5.labeling.TypeOfEdgeLabeler;
 import com.conveyal.r5.labeling.USTraversalPermissionLabeler;
 import com.conveyal.r5.point_to_point.builder.SpeedConfig;
+import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.streets.EdgeStore.Edge;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.util.P2;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntObjectMap;
@@ -197,6 +200,21 @@ public class StreetLayer implements Serializable, Cloneable {
      */
     public PickupWaitTimes pickupWaitTimes;
 
+    /**
+     * Contraction hierarchies allowing fast point-to-point searches, at most one per StreetMode. These are optional
+     * and only built on request. They describe the edges as they were when built, so they are not used once a
+     * scenario has modified the edges (see getContractionHierarchy).
+     */
+    public List<ContractionHierarchy> contractionHierarchies = new ArrayList<>();
+
+    /**
+     * Reusable scratch space for street searches, one per thread (see PrimitiveStreetSearch). This is held here rather
+     * than in a static ThreadLocal so that the edge-indexed arrays are released along with the network, and weakly
+     * keyed so they are also released when a thread ends. Scenario copies share the instances of their base layer.
+     */
+    private final transient Cache<Thread, PrimitiveStreetSearch> primitiveStreetSearches =
+            Caffeine.newBuilder().weakKeys().build();
+
     public static final EnumSet<EdgeStore.EdgeFlag> ALL_PERMISSIONS = EnumSet
         .of(EdgeStore.EdgeFlag.ALLOWS_BIKE, EdgeStore.EdgeFlag.ALLOWS_CAR,
             EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN, EdgeStore.EdgeFlag.NO_THRU_TRAFFIC,
@@ -1568,6 +1586,32 @@ public class StreetLayer implements Serializable, Cloneable {
         }
     }
 
+    /**
+     * Build a contraction hierarchy for the given mode with default request settings, replacing any existing one.
+     * This should be called once the street layer is complete, including links to transit stops.
+     */
+    public void buildContractionHierarchy (StreetMode streetMode) {
+        contractionHierarchies.removeIf(hierarchy -> hierarchy.streetMode == streetMode);
+        contractionHierarchies.add(ContractionHierarchy.build(this, streetMode, new ProfileRequest()));
+    }
+
+    /**
+     * @return a contraction hierarchy giving the same travel times as a StreetRouter with the given mode and request,
+     *         or null if there is none.
+     */
+    public ContractionHierarchy getContractionHierarchy (StreetMode streetMode, ProfileRequest request) {
+        if (contractionHierarchies == null) return null;
+        for (ContractionHierarchy hierarchy : contractionHierarchies) {
+            if (hierarchy.streetMode == streetMode && hierarchy.appliesTo(this, request)) return hierarchy;
+        }
+        return null;
+    }
+
+    /** @return the scratch space for street searches on the current thread. */
+    PrimitiveStreetSearch getPrimitiveStreetSearch () {
+        return primitiveStreetSearches.get(Thread.currentThread(), thread -> new PrimitiveStreetSearch());
+    }
+
     /**
      * @return true if this StreetLayer was created by a scenario,
      * and is therefore wrapping a base StreetLayer.
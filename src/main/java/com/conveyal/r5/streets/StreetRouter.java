@@ -11,6 +11,7 @@ import com.conveyal.r5.util.TIntObjectHashMultimap;
 import com.conveyal.r5.util.TIntObjectMultimap;
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -30,6 +31,7 @@ import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
@@ -156,6 +158,30 @@ public class StreetRouter {
     PriorityQueue<State> queue = new PriorityQueue<>(
             Comparator.comparingInt(s0 -> (s0.getRoutingVariable(quantityToMinimize) + s0.heuristic)));
 
+    /**
+     * When the search was performed with flat primitive arrays instead of State objects (see
+     * canUsePrimitiveSearch), this holds the results in place of bestStatesAtEdge. It should be read through
+     * primitiveSearch(), which picks up a private copy of the results if another router on the same thread has since
+     * reused the search.
+     */
+    PrimitiveStreetSearch primitiveSearch = null;
+
+    /**
+     * Whether the search may use flat primitive arrays in place of State objects and the multimap when no state can
+     * be partway through a turn restriction. This does not change results, but can be disabled for comparison.
+     */
+    public boolean allowPrimitiveSearch = true;
+
+    /**
+     * Whether a search from an origin point to a destination point minimizing time may use the street layer's
+     * contraction hierarchy for this mode, if it has one. This only applies to searches whose results are read with
+     * getState(getDestinationSplit()), as only the states along the fastest path are created.
+     */
+    public boolean allowContractionHierarchy = false;
+
+    /** Set by route() to whether the results were found with a contraction hierarchy rather than a normal search. */
+    public boolean usedContractionHierarchy = false;
+
     /**
      * If you set this to a non-negative number, the search will end at the vertex with the given index,
      * and will be directed toward that vertex.
@@ -218,6 +244,15 @@ public class StreetRouter {
         }
         TIntIntMap result = new TIntIntHashMap();
         TransitLayer transitLayer = streetLayer.parentNetwork.transitLayer;
+        if (primitiveSearch() != null) {
+            transitLayer.stopForStreetVertex.forEachEntry((streetVertex, stop) -> {
+                if (streetVertex == -1) return true;
+                int edge = getBestEdgeAtVertex(streetVertex);
+                if (edge >= 0) result.put(stop, primitiveSearch.getRoutingValue(edge));
+                return true; // continue iteration
+            });
+            return result;
+        }
         transitLayer.stopForStreetVertex.forEachEntry((streetVertex, stop) -> {
             if (streetVertex == -1) return true;
             State state = getStateAtVertex(streetVertex);
@@ -238,6 +273,18 @@ public class StreetRouter {
         //  Javadoc stating that MAX_VALUE always means unreachable). See suggestion in R5 #647.
         TIntIntMap result = new TIntIntHashMap(DEFAULT_CAPACITY, DEFAULT_LOAD_FACTOR, -1, Integer.MAX_VALUE);
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
+        if (primitiveSearch() != null) {
+            TIntList reachedEdges = primitiveSearch.getReachedEdges();
+            for (int i = 0; i < reachedEdges.size(); i++) {
+                int eidx = reachedEdges.get(i);
+                int value = primitiveSearch.getRoutingValue(eidx);
+                e.seek(eidx);
+                int vidx = e.getToVertex();
+                // The no-entry value of the map is MAX_VALUE, so this also handles vertices not yet in the map.
+                if (result.get(vidx) > value) result.put(vidx, value);
+            }
+            return result;
+        }
         bestStatesAtEdge.forEachEntry((eidx, states) -> {
             if (eidx < 0) return true;
             // Iterating over a little list and reducing the values with a stream might be slow.
@@ -272,6 +319,27 @@ public class StreetRouter {
         TIntObjectMap<State> result = new TIntObjectHashMap<>();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
         VertexStore.Vertex v = streetLayer.vertexStore.getCursor();
+        if (primitiveSearch() != null) {
+            // Find the best edge leading to each flagged vertex, then materialize only the states at those edges.
+            TIntIntMap bestEdgeAtVertex = new TIntIntHashMap();
+            TIntList reachedEdges = primitiveSearch.getReachedEdges();
+            for (int i = 0; i < reachedEdges.size(); i++) {
+                int eidx = reachedEdges.get(i);
+                e.seek(eidx);
+                int vidx = e.getToVertex();
+                v.seek(vidx);
+                if (v.getFlag(flag) && (!bestEdgeAtVertex.containsKey(vidx) ||
+                        primitiveSearch.getRoutingValue(bestEdgeAtVertex.get(vidx)) >
+                                primitiveSearch.getRoutingValue(eidx))) {
+                    bestEdgeAtVertex.put(vidx, eidx);
+                }
+            }
+            bestEdgeAtVertex.forEachEntry((vidx, eidx) -> {
+                result.put(vidx, getStateAtEdge(eidx));
+                return true; // continue iteration
+            });
+            return result;
+        }
         bestStatesAtEdge.forEachEntry((eidx, states) -> {
             if (eidx < 0) return true;
 
@@ -295,16 +363,22 @@ public class StreetRouter {
 
     public StreetRouter (StreetLayer streetLayer) {
         this.streetLayer = streetLayer;
-        this.timeCalculator = streetLayer.edgeStore.edgeTraversalTimes;
+        this.timeCalculator = defaultTimeCalculator(streetLayer);
+    }
+
+    /** @return the calculator for edge traversal and turn times that StreetRouters use on the given street layer. */
+    static TraversalTimeCalculator defaultTimeCalculator (StreetLayer streetLayer) {
+        TraversalTimeCalculator timeCalculator = streetLayer.edgeStore.edgeTraversalTimes;
         // If no per-edge timings were supplied in the network, fall back on simple default timings
-        if (this.timeCalculator == null) {
+        if (timeCalculator == null) {
             // TODO either: 1) don't hardwire drive-on-right, or 2) global https://en.wikipedia.org/wiki/Dagen_H
-            this.timeCalculator = new BasicTraversalTimeCalculator(streetLayer, true);
+            timeCalculator = new BasicTraversalTimeCalculator(streetLayer, true);
         }
         // If any additional costs such as hills or sun are defined, add them on to the base traversal times.
         if (notNullOrEmpty(streetLayer.edgeStore.costFields)) {
-            this.timeCalculator = new MultistageTraversalTimeCalculator(this.timeCalculator, streetLayer.edgeStore.costFields);
+            timeCalculator = new MultistageTraversalTimeCalculator(timeCalculator, streetLayer.edgeStore.costFields);
         }
+        return timeCalculator;
     }
 
 
@@ -332,6 +406,7 @@ public class StreetRouter {
         originSplit = split;
         bestStatesAtEdge.clear();
         queue.clear();
+        primitiveSearch = null;
         // The states are located at the end of edges. Vertex0 is at the end of the reverse edge (split.edge + 1).
         // In these states we must specify which edge was traversed to reach them, so that turn costs work.
         State startState0 = new State(split.vertex0, split.edge + 1, streetMode);
@@ -375,6 +450,7 @@ public class StreetRouter {
     public void setOrigin (int fromVertex) {
         bestStatesAtEdge.clear();
         queue.clear();
+        primitiveSearch = null;
 
         // sets maximal absolute origin latitude used for goal direction heuristic
         VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(fromVertex);
@@ -399,6 +475,7 @@ public class StreetRouter {
     public void setOrigin(TIntObjectMap<State> previousStates, int switchTime, int switchCost, LegMode legMode) {
         bestStatesAtEdge.clear();
         queue.clear();
+        primitiveSearch = null;
         //Maximal origin latitude is used in goal direction heuristic.
         final int[] maxOriginLatArr = { Integer.MIN_VALUE };
 
@@ -507,10 +584,31 @@ public class StreetRouter {
             LOG.debug("Using time limit of {} sec", timeLimitSeconds);
         }
 
-        if (queue.size() == 0) {
+        if (queue.size() == 0 && primitiveSearch == null) {
             LOG.warn("Routing without first setting an origin, no search will happen.");
         }
 
+        usedContractionHierarchy =
+                allowContractionHierarchy && routeWithContractionHierarchy(distanceLimitMm, tmpTimeLimitSeconds);
+        if (usedContractionHierarchy) {
+            LOG.debug("Routing with contraction hierarchy took {} msec", System.currentTimeMillis() - startTime);
+            return;
+        }
+
+        if (primitiveSearch == null && canUsePrimitiveSearch()) {
+            primitiveSearch = PrimitiveStreetSearch.claim(this, streetLayer.edgeStore.nEdges(), quantityToMinimize);
+            for (State state : queue) {
+                primitiveSearch.addOrigin(state);
+            }
+            queue.clear();
+            bestStatesAtEdge.clear();
+        }
+        if (primitiveSearch != null) {
+            primitiveSearch.route(this, distanceLimitMm, tmpTimeLimitSeconds);
+            LOG.debug("Routing took {} msec", System.currentTimeMillis() - startTime);
+            return;
+        }
+
         PrintStream debugPrintStream = null;
         if (DEBUG_OUTPUT) {
             File debugFile = new File(String.format("street-router-debug.csv"));
@@ -614,6 +712,113 @@ public class StreetRouter {
         LOG.debug("Routing took {} msec", routingTimeMsec);
     }
 
+    /**
+     * Find the fastest path to the destination split with the street layer's contraction hierarchy, then replay it
+     * edge by edge to create the same states a normal search would have found along that path. The replayed path is
+     * checked against the hierarchy, which does not know about turn restrictions with via edges.
+     * @return false if the hierarchy could not be used, leaving this router ready for a normal search.
+     */
+    private boolean routeWithContractionHierarchy (int distanceLimitMm, int timeLimitSeconds) {
+        if (originSplit == null || destinationSplit == null || queue.size() != 2 || toVertex != ALL_VERTICES
+                || quantityToMinimize != State.RoutingVariable.DURATION_SECONDS || routingVisitor != null
+                || transitStopSearch || flagSearch != null || DEBUG_OUTPUT) {
+            return false;
+        }
+        ContractionHierarchy hierarchy = streetLayer.getContractionHierarchy(streetMode, profileRequest);
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor(originSplit.edge);
+        // The hierarchy never allows two link edges in a row, but a search may start with them.
+        if (hierarchy == null || edge.getFlag(EdgeStore.EdgeFlag.LINK)) return false;
+
+        List<State> originStates = new ArrayList<>(queue);
+        TIntList originEdges = new TIntArrayList();
+        TIntList originDurations = new TIntArrayList();
+        for (State state : originStates) {
+            originEdges.add(state.backEdge);
+            originDurations.add(state.durationSeconds);
+        }
+        // Mirror the calculation of the states at the destination in getState(Split).
+        TIntList destinationEdges = new TIntArrayList();
+        TIntList destinationDurations = new TIntArrayList();
+        for (int splitEdge : new int[] {destinationSplit.edge, destinationSplit.edge + 1}) {
+            boolean forward = splitEdge == destinationSplit.edge;
+            int fromVertex = forward ? destinationSplit.vertex0 : destinationSplit.vertex1;
+            int distanceMm = forward ? destinationSplit.distance0_mm : destinationSplit.distance1_mm;
+            TIntList edgeList = streetLayer.incomingEdges.get(fromVertex);
+            for (int i = 0; i < edgeList.size(); i++) {
+                int eidx = edgeList.get(i);
+                edge.seek(eidx);
+                StreetMode mode = edge.traversalMode(streetMode, profileRequest);
+                if (originEdges.contains(eidx)) mode = streetMode;
+                if (mode == null || !ContractionHierarchy.turnAllowed(streetLayer, mode, eidx, splitEdge)) continue;
+                edge.seek(splitEdge);
+                int turnCost = timeCalculator.turnTimeSeconds(eidx, splitEdge, mode);
+                int traversalCost = (int) Math.round(distanceMm / 1000d / edge.calculateSpeed(profileRequest, mode));
+                destinationEdges.add(eidx);
+                destinationDurations.add(turnCost + traversalCost);
+            }
+        }
+        ContractionHierarchy.Path path =
+                hierarchy.route(originEdges, originDurations, destinationEdges, destinationDurations);
+        if (path == null) return false;
+
+        List<State> states = new ArrayList<>();
+        State state = originStates.get(originEdges.indexOf(path.edges[0]));
+        for (int i = 1; i < path.edges.length; i++) {
+            edge.seek(path.edges[i]);
+            state = edge.traverse(state, streetMode, profileRequest, timeCalculator);
+            if (state == null || state.distance > distanceLimitMm || state.getDurationSeconds() >= timeLimitSeconds) {
+                return false;
+            }
+            states.add(state);
+        }
+        queue.clear();
+        for (State s : states) {
+            bestStatesAtEdge.put(s.backEdge, s);
+        }
+        State atDestination = getState(destinationSplit);
+        if (atDestination == null || atDestination.durationSeconds != path.durationSeconds) {
+            LOG.debug("Path found with contraction hierarchy is not valid, falling back on a normal search.");
+            bestStatesAtEdge.clear();
+            for (State s : originStates) {
+                bestStatesAtEdge.put(s.backEdge, s);
+                queue.add(s);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the primitive search holding this router's results, or null if the search did not use one. If another
+     *         router on the same thread has claimed the search since, this switches to the copy set aside for this one.
+     */
+    private PrimitiveStreetSearch primitiveSearch () {
+        if (primitiveSearch != null) {
+            primitiveSearch = primitiveSearch.resultsFor(this);
+        }
+        return primitiveSearch;
+    }
+
+    /**
+     * The search can keep a single state per edge in flat arrays when nothing will ever be partway through a turn
+     * restriction (which only apply to cars), and when no visitor, debug output or goal direction needs to see
+     * every State as it is explored.
+     */
+    private boolean canUsePrimitiveSearch () {
+        if (!allowPrimitiveSearch || DEBUG_OUTPUT || routingVisitor != null || transitStopSearch || flagSearch != null
+                || destinationSplit != null) {
+            return false;
+        }
+        boolean noTurnRestrictions = streetLayer.turnRestrictions.isEmpty();
+        if (streetMode == StreetMode.CAR && !noTurnRestrictions) return false;
+        for (State state : queue) {
+            // Origin states with back states or bike share flags would be lost, as they are not stored in the arrays.
+            if (state.turnRestrictions != null || state.backState != null || state.isBikeShare) return false;
+            if (state.streetMode == StreetMode.CAR && !noTurnRestrictions) return false;
+        }
+        return true;
+    }
+
     /**
      * Given a new state, check whether it is dominated by any existing state that resulted from traversing the
      * same edge. Side effect: Boot out any existing states that are dominated by the new one.
@@ -693,6 +898,9 @@ public class StreetRouter {
      * There can be more than one state at the end of an edge due to turn restrictions
      */
     public State getStateAtEdge (int edgeIndex) {
+        if (primitiveSearch() != null) {
+            return primitiveSearch.getState(edgeIndex, streetLayer.edgeStore);
+        }
         Collection<State> states = bestStatesAtEdge.get(edgeIndex);
         if (states.isEmpty()) {
             return null; // Unreachable
@@ -707,6 +915,9 @@ public class StreetRouter {
      * turn costs/restrictions during propagation.
      */
     public State getStateAtVertex (int vertexIndex) {
+        if (primitiveSearch() != null) {
+            return getStateAtEdge(getBestEdgeAtVertex(vertexIndex));
+        }
         State ret = null;
 
         TIntList edgeList;
@@ -732,7 +943,34 @@ public class StreetRouter {
         return ret;
     }
 
+    /**
+     * After a search with flat primitive arrays, find the edge leading to a vertex whose state has the lowest value of
+     * the routing variable, without materializing any states.
+     * @return the edge index, or -1 if the vertex was not reached.
+     */
+    private int getBestEdgeAtVertex (int vertexIndex) {
+        TIntList edgeList;
+        if (profileRequest.reverseSearch) {
+            edgeList = streetLayer.outgoingEdges.get(vertexIndex);
+        } else {
+            edgeList = streetLayer.incomingEdges.get(vertexIndex);
+        }
+        int bestEdge = -1;
+        for (int i = 0; i < edgeList.size(); i++) {
+            int eidx = edgeList.get(i);
+            if (primitiveSearch.isReached(eidx) && (bestEdge < 0 ||
+                    primitiveSearch.getRoutingValue(bestEdge) > primitiveSearch.getRoutingValue(eidx))) {
+                bestEdge = eidx;
+            }
+        }
+        return bestEdge;
+    }
+
     public int getTravelTimeToVertex (int vertexIndex) {
+        if (primitiveSearch() != null) {
+            int edge = getBestEdgeAtVertex(vertexIndex);
+            return edge >= 0 ? primitiveSearch.getDurationSeconds(edge) : Integer.MAX_VALUE;
+        }
         State state = getStateAtVertex(vertexIndex);
         return state != null ? state.durationSeconds : Integer.MAX_VALUE;
     }
@@ -760,7 +998,7 @@ public class StreetRouter {
         }
         // TODO change iteration style to imperative
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             // NB this needs a state to copy turn restrictions into. We then don't use that state, which is fine because
             // we don't need the turn restrictions any more because we're at the end of the search
             states.stream().filter(s -> e.canTurnFrom(s, new State(-1, split.edge, s), profileRequest.reverseSearch))
@@ -791,7 +1029,7 @@ public class StreetRouter {
         }
 
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             for (State state : states) {
                 if (!e.canTurnFrom(state, new State(-1, split.edge + 1, state), profileRequest.reverseSearch)) {
                     continue;
@@ -812,6 +1050,15 @@ public class StreetRouter {
                 .orElse(null);
     }
 
+    /** @return all the states at the end of the given edge, which may be more than one inside turn restrictions. */
+    private Collection<State> getStatesAtEdge (int edgeIndex) {
+        if (primitiveSearch() != null) {
+            State state = getStateAtEdge(edgeIndex);
+            return state == null ? Collections.emptyList() : Collections.singletonList(state);
+        }
+        return bestStatesAtEdge.get(edgeIndex);
+    }
+
     public Split getDestinationSplit() {
         return destinationSplit;
     }
@@ -1200,6 +1447,13 @@ public class StreetRouter {
      * Just allowing more than one mode doesn't give the desired effect - we really want a sequence of separate modes.
      */
     public void keepRoutingOnFoot() {
+        if (primitiveSearch() != null) {
+            primitiveSearch = primitiveSearch.resume(this, streetLayer.edgeStore.nEdges());
+            primitiveSearch.requeueReachedEdges();
+            streetMode = StreetMode.WALK;
+            route();
+            return;
+        }
         queue.clear();
         bestStatesAtEdge.forEachEntry((edgeId, states) -> queue.addAll(states));
         streetMode = StreetMode.WALK;
@@ -5,7 +5,9 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Comparator;
 import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * FilteredPatterns correspond to a single specific TripPattern, indicating all the trips running on a particular day.
@@ -30,13 +32,37 @@ public class FilteredPattern {
     /** If no active schedule-based trip of this filtered pattern overtakes another. */
     public boolean noScheduledOvertaking;
 
+    /**
+     * For each stop position in the pattern, the departure times of all runningScheduledTrips from that stop, sorted
+     * in ascending order. This is a column-oriented copy of the TripSchedule departures that can be binary searched
+     * without dereferencing a TripSchedule object for every candidate trip.
+     * Dimension order is [stopInPattern][sortedTrip].
+     */
+    public final int[][] sortedDepartures;
+
+    /**
+     * Only present when the trips overtake one another. For each stop position in the pattern, the index within
+     * runningScheduledTrips of the trip having the departure time at the same position in sortedDepartures. When
+     * there is no overtaking this field is null: sortedDepartures is already in runningScheduledTrips order.
+     */
+    private final int[][] tripsBySortedDeparture;
+
     /**
      * Filter the trips in a source TripPattern, excluding trips not active in the supplied set of services, and
      * dividing them into separate scheduled and frequency trip lists. Check the runningScheduledTrips for overtaking.
      */
     public FilteredPattern (TripPattern source, BitSet servicesActive) {
+        this(source, servicesActive, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * As above, but also excluding trips that do not run at any time between fromTime and toTime (in seconds after
+     * midnight). A search departing within a time window and limited to a maximum duration can only board trips
+     * running between the start of the window and the end of the window plus the maximum duration.
+     */
+    public FilteredPattern (TripPattern source, BitSet servicesActive, int fromTime, int toTime) {
         for (TripSchedule schedule : source.tripSchedules) {
-            if (servicesActive.get(schedule.serviceCode)) {
+            if (servicesActive.get(schedule.serviceCode) && schedule.overlapsTimeRange(fromTime, toTime)) {
                 if (schedule.headwaySeconds == null) {
                     runningScheduledTrips.add(schedule);
                 } else {
@@ -53,6 +79,53 @@ public class FilteredPattern {
                 break;
             }
         }
+        // Build the per-stop departure columns used by findEarliestDeparture.
+        int nTrips = runningScheduledTrips.size();
+        int nStops = source.stops.length;
+        sortedDepartures = new int[nStops][nTrips];
+        tripsBySortedDeparture = noScheduledOvertaking ? null : new int[nStops][];
+        for (int s = 0; s < nStops; s++) {
+            if (noScheduledOvertaking) {
+                for (int t = 0; t < nTrips; t++) {
+                    sortedDepartures[s][t] = runningScheduledTrips.get(t).departures[s];
+                }
+            } else {
+                // Sort trip indexes by departure at this stop. The sort is stable, so trips with identical departure
+                // times remain in their original order, as they would be encountered by a linear scan.
+                final int stop = s;
+                int[] trips = IntStream.range(0, nTrips).boxed()
+                        .sorted(Comparator.comparingInt(t -> runningScheduledTrips.get(t).departures[stop]))
+                        .mapToInt(Integer::intValue).toArray();
+                for (int t = 0; t < nTrips; t++) {
+                    sortedDepartures[s][t] = runningScheduledTrips.get(trips[t]).departures[s];
+                }
+                tripsBySortedDeparture[s] = trips;
+            }
+        }
+    }
+
+    /**
+     * Find the trip that departs earliest from the given stop position in the pattern, strictly after the given time.
+     * This is a binary search over the precomputed departure column for that stop, and works whether or not the trips
+     * overtake one another. When several trips depart at that same earliest time, the one appearing first in
+     * runningScheduledTrips is returned.
+     * @return the index of the trip within runningScheduledTrips, or -1 if no trip departs after the given time.
+     */
+    public int findEarliestDeparture (int departAfter, int stopInPattern) {
+        int[] departures = sortedDepartures[stopInPattern];
+        // Find the first position holding a departure greater than departAfter.
+        int low = 0;
+        int high = departures.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (departures[mid] > departAfter) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        if (low == departures.length) return -1;
+        return noScheduledOvertaking ? low : tripsBySortedDeparture[stopInPattern][low];
     }
 
     private static boolean overtakes (TripSchedule a, TripSchedule b) {
@@ -1,29 +1,45 @@
 package com.conveyal.r5.transit;
 
 import com.conveyal.r5.api.util.TransitModes;
-import com.conveyal.r5.util.Tuple2;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.BitSet;
 import java.util.EnumSet;
+import java.util.Objects;
 
 /**
- * Stores the patterns and trips relevant for routing based on the transit modes and date in an analysis request.
- * We can't just cache the single most recently used filtered patterns, because a worker might need to simultaneously
- * handle two requests for the same scenario on different dates or with different modes.
+ * Stores the patterns and trips relevant for routing based on the transit modes, date and time window in an analysis
+ * request. We can't just cache the single most recently used filtered patterns, because a worker might need to
+ * simultaneously handle two requests for the same scenario on different dates or with different modes.
  *
  * There are good reasons why this cache is specific to a single TransitLayer (representing one specific scenario).
  * To create FilteredPatterns we need the source TransitLayer object. LoadingCaches must compute values based only on
  * their keys. So a system-wide FilteredPatternCache would either need to recursively look up TransportNetworks in
  * the TransportNetworkCache, or would need to have TransportNetwork or TransitLayer references in its keys. Neither
  * of these seems desirable - the latter would impede garbage collection of evicted TransportNetworks.
+ *
+ * Because entries are filtered by time window, they vary widely in size: a two hour window in the morning peak may
+ * retain only a small fraction of a day's trips. The cache is therefore bounded by the total number of stop times
+ * retained rather than the number of entries. This is measured relative to the full timetable of the TransitLayer, so
+ * the cache holds several narrow windows in the space of a couple of unwindowed entries.
  */
 public class FilteredPatternCache {
 
+    private static final Logger LOG = LoggerFactory.getLogger(FilteredPatternCache.class);
+
+    /** Entries are weighed in hundredths of the stop times in the full timetable of the TransitLayer. */
+    private static final int WEIGHT_OF_FULL_TIMETABLE = 100;
+
+    /** The cache retains FilteredPatterns with stop times adding up to this many full timetables. */
+    private static final int MAX_FULL_TIMETABLES = 2;
+
     /**
      * All FilteredPatterns stored in this cache will be derived from this single TransitLayer representing a single
-     * scenario, but for different unique combinations of (transitModes, services).
+     * scenario, but for different unique combinations of (transitModes, services, time window).
      */
     private final TransitLayer transitLayer;
 
@@ -31,20 +47,82 @@ public class FilteredPatternCache {
 
     public FilteredPatternCache (TransitLayer transitLayer) {
         this.transitLayer = transitLayer;
-        this.cache = Caffeine.newBuilder().maximumSize(2).build(key -> {
-            return new FilteredPatterns(transitLayer, key.a, key.b);
-        });
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(MAX_FULL_TIMETABLES * WEIGHT_OF_FULL_TIMETABLE)
+                .weigher(this::weigh)
+                .recordStats()
+                .build(this::load);
+    }
+
+    private FilteredPatterns load (Key key) {
+        FilteredPatterns filteredPatterns = new FilteredPatterns(
+                transitLayer, key.transitModes, key.servicesActive, key.fromTime, key.toTime
+        );
+        LOG.info("Filtered {} running trips between {} and {} seconds after midnight. Cache {}.",
+                filteredPatterns.nRunningTrips, key.fromTime, key.toTime, cache.stats());
+        return filteredPatterns;
+    }
+
+    /**
+     * The weight of each entry is proportional to the number of stop times it retains, so that the cache is bounded
+     * by memory consumption. Every entry has a weight of at least one, and a full day's timetable has a weight of
+     * WEIGHT_OF_FULL_TIMETABLE. The TransitLayer is fully built by the time anything is cached, so its size is final.
+     */
+    private int weigh (Key key, FilteredPatterns filteredPatterns) {
+        long nStopTimesInLayer = 0;
+        for (TripPattern pattern : transitLayer.tripPatterns) {
+            nStopTimesInLayer += (long) pattern.tripSchedules.size() * pattern.stops.length;
+        }
+        if (nStopTimesInLayer == 0) return 1;
+        long weight = filteredPatterns.nStopTimes * WEIGHT_OF_FULL_TIMETABLE / nStopTimesInLayer;
+        return (int) Math.max(1, Math.min(weight, WEIGHT_OF_FULL_TIMETABLE));
     }
 
     // TODO replace all keys and tuples with Java 16/17 Records
-    private static class Key extends Tuple2<EnumSet<TransitModes>, BitSet> {
-        public Key (EnumSet<TransitModes> transitModes, BitSet servicesActive) {
-            super(transitModes, servicesActive);
+    private static class Key {
+        final EnumSet<TransitModes> transitModes;
+        final BitSet servicesActive;
+        final int fromTime;
+        final int toTime;
+
+        Key (EnumSet<TransitModes> transitModes, BitSet servicesActive, int fromTime, int toTime) {
+            this.transitModes = transitModes;
+            this.servicesActive = servicesActive;
+            this.fromTime = fromTime;
+            this.toTime = toTime;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return fromTime == key.fromTime && toTime == key.toTime &&
+                    Objects.equals(transitModes, key.transitModes) && Objects.equals(servicesActive, key.servicesActive);
+        }
+
+        @Override
+        public int hashCode () {
+            return Objects.hash(transitModes, servicesActive, fromTime, toTime);
         }
     }
 
+    /** Get the patterns and trips running in the given services on the given modes at any time of day. */
     public FilteredPatterns get (EnumSet<TransitModes> transitModes, BitSet servicesActive) {
-        return cache.get(new Key(transitModes, servicesActive));
+        return get(transitModes, servicesActive, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get the patterns and trips running in the given services on the given modes at some time between fromTime and
+     * toTime, in seconds after midnight.
+     */
+    public FilteredPatterns get (EnumSet<TransitModes> transitModes, BitSet servicesActive, int fromTime, int toTime) {
+        return cache.get(new Key(transitModes, servicesActive, fromTime, toTime));
+    }
+
+    /** @return the number of hits, misses, loads and evictions of this cache since it was created. */
+    public CacheStats stats () {
+        return cache.stats();
     }
 
 }
@@ -1,7 +1,6 @@
 package com.conveyal.r5.transit;
 
 import com.conveyal.r5.api.util.TransitModes;
-import com.conveyal.r5.util.Tuple2;
 
 import java.util.ArrayList;
 import java.util.BitSet;
@@ -33,31 +32,53 @@ public class FilteredPatterns {
     /** The indexes of the trip patterns running on a given day with scheduled trips of selected modes. */
     public BitSet runningScheduledPatterns = new BitSet();
 
+    /** The total number of trips in all the filtered patterns, including both scheduled and frequency trips. */
+    public final int nRunningTrips;
+
+    /** The total number of stop times of all trips in the filtered patterns, approximating their size in memory. */
+    public final long nStopTimes;
+
     /**
-     * Construct FilteredPatterns from the given TransitLayer, filtering for the specified modes and active services.
+     * Construct FilteredPatterns from the given TransitLayer, filtering for the specified modes and active services,
+     * and for trips running at some time between fromTime and toTime (in seconds after midnight). Patterns with no
+     * trips left after filtering are recorded as null, so searches never explore them.
      * It's tempting to use List.of() or Collectors.toUnmodifiableList() but these cause an additional array copy.
      */
-    public FilteredPatterns (TransitLayer transitLayer, EnumSet<TransitModes> modes, BitSet services) {
+    public FilteredPatterns (
+            TransitLayer transitLayer, EnumSet<TransitModes> modes, BitSet services, int fromTime, int toTime
+    ) {
         List<TripPattern> sourcePatterns = transitLayer.tripPatterns;
         patterns = new ArrayList<>(sourcePatterns.size());
+        int nRunningTrips = 0;
+        long nStopTimes = 0;
         for (int patternIndex = 0; patternIndex < sourcePatterns.size(); patternIndex++) {
             TripPattern pattern = sourcePatterns.get(patternIndex);
             RouteInfo routeInfo = transitLayer.routes.get(pattern.routeIndex);
             TransitModes mode = getTransitModes(routeInfo.route_type);
+            FilteredPattern filteredPattern = null;
             if (pattern.servicesActive.intersects(services) && modes.contains(mode)) {
-                patterns.add(new FilteredPattern(pattern, services));
+                filteredPattern = new FilteredPattern(pattern, services, fromTime, toTime);
                 // At least one trip on this pattern is relevant, based on the profile request's date and modes.
-                if (pattern.hasFrequencies) {
+                // It may still have no trips in the time window.
+                if (!filteredPattern.runningFrequencyTrips.isEmpty()) {
                     runningFrequencyPatterns.set(patternIndex);
                 }
                 // Schedule case is not an "else" clause because we support patterns with both frequency and schedule.
-                if (pattern.hasSchedules) {
+                if (!filteredPattern.runningScheduledTrips.isEmpty()) {
                     runningScheduledPatterns.set(patternIndex);
                 }
-            } else {
-                patterns.add(null);
+                int nTrips = filteredPattern.runningScheduledTrips.size() + filteredPattern.runningFrequencyTrips.size();
+                if (nTrips == 0) {
+                    filteredPattern = null;
+                } else {
+                    nRunningTrips += nTrips;
+                    nStopTimes += (long) nTrips * pattern.stops.length;
+                }
             }
+            patterns.add(filteredPattern);
         }
+        this.nRunningTrips = nRunningTrips;
+        this.nStopTimes = nStopTimes;
     }
 
 }
@@ -179,6 +179,13 @@ public class TransferFinder {
                 }
             }
         }
+
+        // Pack the transfers for use in routing. When a scenario adds no stops, the transfers are unchanged and the
+        // packed transfers of the base network (shallow-copied into the scenario's transit layer) can be reused.
+        if (nStopsToProcess > 0 || transitLayer.transferGraph == null) {
+            transitLayer.transferGraph = new TransferGraph(transitLayer.transfersForStop);
+            LOG.info("Packed {} transfers out of {} stops.", transitLayer.transferGraph.getTransferCount(), nStopsTotal);
+        }
     }
 
 
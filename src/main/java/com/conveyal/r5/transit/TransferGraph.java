@@ -0,0 +1,106 @@
+package com.conveyal.r5.transit;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The walking transfers between transit stops, in compressed sparse row form. The transfers out of stop s occupy the
+ * positions from offsets[s] up to (but not including) offsets[s + 1] in the parallel targetStops and
+ * distancesMillimeters arrays. Relaxing the transfers out of a stop is then a scan over two contiguous ranges of
+ * primitive ints, rather than a walk over one Trove list per stop converting each distance to a time.
+ *
+ * The walk time of each transfer depends only on the walk speed of the request, and nearly all requests use one of a
+ * few speeds. So rather than dividing every distance by the speed every time a transfer is relaxed, we compute the
+ * times for all transfers once per speed and keep the most recently used ones. This is immutable once built and
+ * shared between threads, so it is rebuilt from TransitLayer.transfersForStop whenever a scenario adds transfers.
+ */
+public class TransferGraph implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of walk speeds for which transfer times are retained. */
+    private static final int MAX_CACHED_WALK_SPEEDS = 4;
+
+    /** For each stop, the position of its first transfer; one entry per stop plus a final one. */
+    public int[] offsets;
+
+    /** For each transfer, the stop it leads to. */
+    public int[] targetStops;
+
+    /** For each transfer, the walking distance to its target stop in millimeters. */
+    public int[] distancesMillimeters;
+
+    /** For each walk speed in millimeters per second, the time in seconds to walk each transfer. Not serialized. */
+    private transient LoadingCache<Integer, int[]> secondsForWalkSpeed = makeCache();
+
+    /** No-arg constructor for deserialization, so the transient cache is initialized. */
+    private TransferGraph () { }
+
+    /** Pack the given transfers, a list of (target stop, distance) pairs for each stop, into a new TransferGraph. */
+    public TransferGraph (List<TIntList> transfersForStop) {
+        int nStops = transfersForStop.size();
+        offsets = new int[nStops + 1];
+        for (int stop = 0; stop < nStops; stop++) {
+            offsets[stop + 1] = offsets[stop] + transfersForStop.get(stop).size() / 2;
+        }
+        targetStops = new int[offsets[nStops]];
+        distancesMillimeters = new int[offsets[nStops]];
+        for (int stop = 0; stop < nStops; stop++) {
+            TIntList transfers = transfersForStop.get(stop);
+            for (int i = 0, t = offsets[stop]; i < transfers.size(); i += 2, t++) {
+                targetStops[t] = transfers.get(i);
+                distancesMillimeters[t] = transfers.get(i + 1);
+            }
+        }
+    }
+
+    private LoadingCache<Integer, int[]> makeCache () {
+        return Caffeine.newBuilder().maximumSize(MAX_CACHED_WALK_SPEEDS).build(this::computeSeconds);
+    }
+
+    private int[] computeSeconds (int walkSpeedMillimetersPerSecond) {
+        int[] seconds = new int[distancesMillimeters.length];
+        for (int t = 0; t < seconds.length; t++) {
+            seconds[t] = distancesMillimeters[t] / walkSpeedMillimetersPerSecond;
+        }
+        return seconds;
+    }
+
+    /**
+     * @return the time in seconds to walk each transfer at the given speed, parallel to targetStops. Times are rounded
+     *         down to whole seconds. The returned array is shared and must not be modified.
+     */
+    public int[] getSeconds (int walkSpeedMillimetersPerSecond) {
+        return secondsForWalkSpeed.get(walkSpeedMillimetersPerSecond);
+    }
+
+    public int getStopCount () {
+        return offsets.length - 1;
+    }
+
+    public int getTransferCount () {
+        return targetStops.length;
+    }
+
+    /** @return the transfers out of each stop as packed (target stop, distance) pairs, as in transfersForStop. */
+    public List<TIntList> toTransfersForStop () {
+        int nStops = getStopCount();
+        List<TIntList> transfersForStop = new ArrayList<>(nStops);
+        for (int stop = 0; stop < nStops; stop++) {
+            TIntList transfers = new TIntArrayList((offsets[stop + 1] - offsets[stop]) * 2);
+            for (int t = offsets[stop]; t < offsets[stop + 1]; t++) {
+                transfers.add(targetStops[t]);
+                transfers.add(distancesMillimeters[t]);
+            }
+            transfersForStop.add(transfers);
+        }
+        return transfersForStop;
+    }
+
+}
@@ -12,11 +12,16 @@ import com.conveyal.gtfs.model.StopTime;
 import com.conveyal.gtfs.model.Trip;
 import com.conveyal.r5.api.util.TransitModes;
 import com.conveyal.r5.common.GeometryUtils;
+import com.conveyal.r5.profile.FrequencyOffsetBank;
+import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.streets.MultiSourceStreetSearch;
 import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.streets.VertexStore;
 import com.conveyal.r5.util.LambdaCounter;
 import com.conveyal.r5.util.LocationIndexedLineInLocalCoordinateSystem;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.common.base.Strings;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
@@ -104,15 +109,32 @@ public class TransitLayer implements Serializable, Cloneable {
     /** Stores the relevant patterns and trips based on the transit modes and date in an analysis request. */
     public transient FilteredPatternCache filteredPatternCache = new FilteredPatternCache(this);
 
+    /**
+     * Banks of Monte Carlo draws of frequency offsets, shared by all searches on this layer that request them (see
+     * AnalysisWorkerTask.sharedFrequencyOffsets), keyed on the number of draws. A regional job uses a single size.
+     * The size of a bank is the number of draws times the number of frequency entries, so the cache is bounded by
+     * the total number of offsets retained rather than the number of banks.
+     */
+    public transient LoadingCache<Integer, FrequencyOffsetBank> frequencyOffsetBanks = newFrequencyOffsetBankCache();
+
+    /** The frequency offset banks cached on each layer together hold at most this many offsets (4 bytes each). */
+    private static final int MAX_CACHED_FREQUENCY_OFFSETS = 50_000_000;
+
     // Maybe we need a StopStore that has (streetVertexForStop, transfers, flags, etc.)
     public TIntList streetVertexForStop = new TIntArrayList();
 
     // Inverse map of streetVertexForStop, and reconstructed from that list.
     public transient TIntIntMap stopForStreetVertex;
 
-    // For each stop, a packed list of transfers to other stops
-    // FIXME we may currently be storing weight or time to reach other stop, which we did to avoid floating point division. Instead, store distances in millimeters, and divide by speed in mm/sec.
-    public List<TIntList> transfersForStop = new ArrayList<>();
+    /**
+     * For each stop, a packed list of transfers to other stops as pairs of (target stop index, distance in mm).
+     * These lists are extended by TransferFinder when scenarios add stops. They are not serialized, but reconstructed
+     * from the transferGraph when a network is loaded.
+     */
+    public transient List<TIntList> transfersForStop = new ArrayList<>();
+
+    /** The same transfers as transfersForStop in compressed sparse row form, for use in routing. */
+    public TransferGraph transferGraph;
 
     /** Information about a route */
     public List<RouteInfo> routes = new ArrayList<>();
@@ -531,6 +553,11 @@ public class TransitLayer implements Serializable, Cloneable {
             }
         }
 
+        // 5. What are the transfers out of each stop? When a network has been loaded, only the packed form is present.
+        if (transfersForStop.isEmpty() && transferGraph != null) {
+            transfersForStop = transferGraph.toTransfersForStop();
+        }
+
         LOG.info("Done rebuilding transient indices.");
     }
 
@@ -545,30 +572,59 @@ public class TransitLayer implements Serializable, Cloneable {
      * @param rebuildZone the zone within which to rebuild tables in FIXED-POINT DEGREES, or null to build all tables.
      */
     public void buildDistanceTables(Geometry rebuildZone) {
+        buildDistanceTables(rebuildZone, true);
+    }
+
+    /**
+     * @param multiSource if true, search from many nearby stops at once rather than with one StreetRouter search per
+     *                    stop. The tables are identical, the per-stop searches only remain to allow comparing the two.
+     */
+    public void buildDistanceTables(Geometry rebuildZone, boolean multiSource) {
 
         LOG.info("Pre-computing distances from transit stops to street vertices (WALK mode only).");
         if (rebuildZone != null) {
             LOG.info("Selectively finding distances for only those stops potentially affected by scenario application.");
         }
 
-        LambdaCounter buildCounter = new LambdaCounter(LOG, getStopCount(), 1000,
-                "Computed distances to street vertices from {} of {} transit stops.");
-
-        // Working in parallel, create a new list containing one distance table for each stop index, optionally
-        // skipping stops falling outside the specified geometry.
-        stopToVertexDistanceTables = IntStream.range(0, getStopCount()).parallel().mapToObj(stopIndex -> {
+        // Find the stops that need new tables, keeping any existing tables for stops outside the zone that may be
+        // affected by the scenario.
+        List<TIntIntMap> existingTables = stopToVertexDistanceTables;
+        int[] originVertices = new int[getStopCount()];
+        for (int stopIndex = 0; stopIndex < getStopCount(); stopIndex++) {
+            originVertices[stopIndex] = streetVertexForStop.get(stopIndex);
             if (rebuildZone != null) {
-                // Skip existing or new stops outside the zone that may be affected by the scenario.
                 Point p = getJTSPointForStopFixed(stopIndex);
                 if (p == null || !rebuildZone.contains(p)) {
-                    // This stop can't be affected, return any existing one.
-                    return stopIndex < stopToVertexDistanceTables.size() ? stopToVertexDistanceTables.get(stopIndex) : null;
+                    originVertices[stopIndex] = -1;
                 }
             }
-            buildCounter.increment();
-            return this.buildOneDistanceTable(stopIndex);
-        }).collect(Collectors.toList());
-        buildCounter.done();
+        }
+        long startTime = System.currentTimeMillis();
+        if (multiSource) {
+            // Search from many nearby stops at once, as their searches mostly cover the same streets.
+            stopToVertexDistanceTables = new ArrayList<>(MultiSourceStreetSearch.routeAll(parentNetwork.streetLayer,
+                    StreetMode.WALK, WALK_DISTANCE_LIMIT_METERS * 1000, originVertices));
+        } else {
+            LambdaCounter buildCounter = new LambdaCounter(LOG, getStopCount(), 1000,
+                    "Computed distances to street vertices from {} of {} transit stops.");
+            stopToVertexDistanceTables = IntStream.range(0, getStopCount()).parallel().mapToObj(stopIndex -> {
+                if (originVertices[stopIndex] < 0) return null;
+                buildCounter.increment();
+                return this.buildOneDistanceTable(stopIndex);
+            }).collect(Collectors.toList());
+            buildCounter.done();
+        }
+        int nBuilt = 0;
+        for (int stopIndex = 0; stopIndex < getStopCount(); stopIndex++) {
+            if (originVertices[stopIndex] >= 0) {
+                nBuilt += 1;
+            } else if (rebuildZone != null && stopIndex < existingTables.size()) {
+                // This stop can't be affected, retain any existing table.
+                stopToVertexDistanceTables.set(stopIndex, existingTables.get(stopIndex));
+            }
+        }
+        LOG.info("Computed distances to street vertices from {} transit stops in {} sec.", nBuilt,
+                (System.currentTimeMillis() - startTime) / 1000.0);
     }
 
     /**
@@ -751,10 +807,19 @@ public class TransitLayer implements Serializable, Cloneable {
             // scenarioId remains unchanged as is done in StreetLayer.
             copy.scenarioId = newScenarioNetwork.scenarioId;
             copy.filteredPatternCache = new FilteredPatternCache(copy);
+            copy.frequencyOffsetBanks = copy.newFrequencyOffsetBankCache();
         }
         return copy;
     }
 
+    private LoadingCache<Integer, FrequencyOffsetBank> newFrequencyOffsetBankCache () {
+        return Caffeine.newBuilder()
+                .maximumWeight(MAX_CACHED_FREQUENCY_OFFSETS)
+                .weigher((Integer nDraws, FrequencyOffsetBank bank) ->
+                        (int) Math.max(1, Math.min(bank.nOffsets(), MAX_CACHED_FREQUENCY_OFFSETS)))
+                .build(nDraws -> new FrequencyOffsetBank(this, nDraws));
+    }
+
     /**
      * Finds all the transit stops in given envelope and returns it. Stops also have mode which is mode of route in
      * first pattern that this stop is found in. Stop coordinates are jittered
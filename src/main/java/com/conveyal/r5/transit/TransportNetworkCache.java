@@ -6,6 +6,7 @@ import com.conveyal.file.FileStorage;
 import com.conveyal.file.FileStorageKey;
 import com.conveyal.file.FileUtils;
 import com.conveyal.gtfs.GTFSCache;
+import com.conveyal.r5.analyst.LinkageDiskCache;
 import com.conveyal.r5.analyst.cluster.ScenarioCache;
 import com.conveyal.r5.analyst.cluster.TransportNetworkConfig;
 import com.conveyal.r5.analyst.scenario.Modification;
@@ -14,6 +15,7 @@ import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.analyst.scenario.ShapefileLts;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.kryo.KryoNetworkSerializer;
+import com.conveyal.r5.kryo.MappedStreetColumns;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.streets.OSMCache;
 import com.conveyal.r5.streets.StreetLayer;
@@ -61,6 +63,7 @@ public class TransportNetworkCache implements Component {
     private final FileStorage fileStorage;
     private final GTFSCache gtfsCache;
     private final OSMCache osmCache;
+    private final LinkageDiskCache linkageDiskCache;
 
     /**
      * A table of already seen scenarios, avoiding downloading them repeatedly from S3 and allowing us to replace
@@ -74,6 +77,7 @@ public class TransportNetworkCache implements Component {
         this.gtfsCache = gtfsCache;
         this.cache = createCache(DEFAULT_CACHE_SIZE);
         this.fileStorage = fileStorage;
+        this.linkageDiskCache = new LinkageDiskCache(fileStorage);
     }
 
     /**
@@ -159,6 +163,12 @@ public class TransportNetworkCache implements Component {
         return new FileStorageKey(BUNDLES, getR5NetworkFilename(networkId));
     }
 
+    /** The street layer columns that are memory-mapped when loading networks built with memoryMapStreetColumns. */
+    private static FileStorageKey getStreetColumnsFileStorageKey (String networkId) {
+        String filename = String.format("%s_%s.columns", networkId, KryoNetworkSerializer.NETWORK_FORMAT_VERSION);
+        return new FileStorageKey(BUNDLES, filename);
+    }
+
     /** @return the network configuration (AKA manifest) for the given network ID, or null if no config file exists. */
     private TransportNetworkConfig loadNetworkConfig (String networkId) {
         FileStorageKey configFileKey = new FileStorageKey(BUNDLES, getNetworkConfigFilename(networkId));
@@ -209,7 +219,14 @@ public class TransportNetworkCache implements Component {
         // Cache the serialized network on the local filesystem and mirror it to any remote storage.
         try {
             File cacheLocation = FileUtils.createScratchFile();
-            KryoNetworkSerializer.write(network, cacheLocation);
+            if (networkConfig != null && Boolean.TRUE.equals(networkConfig.memoryMapStreetColumns)) {
+                // Store the columns first, so they are always present when the network file itself is found.
+                File columnsLocation = FileUtils.createScratchFile();
+                MappedStreetColumns.write(network, cacheLocation, columnsLocation);
+                fileStorage.moveIntoStorage(getStreetColumnsFileStorageKey(networkId), columnsLocation);
+            } else {
+                KryoNetworkSerializer.write(network, cacheLocation);
+            }
             fileStorage.moveIntoStorage(getR5NetworkFileStorageKey(networkId), cacheLocation);
         } catch (Exception e) {
             // Tolerate exceptions here as we do have a network to return, we just failed to cache it.
@@ -375,18 +392,27 @@ public class TransportNetworkCache implements Component {
             networkId, KryoNetworkSerializer.NETWORK_FORMAT_VERSION
         );
         try {
+            TransportNetwork network;
             FileStorageKey r5Key = getR5NetworkFileStorageKey(networkId);
             if (fileStorage.exists(r5Key)) {
                 File networkFile = fileStorage.getFile(r5Key);
                 LOG.debug("Loading cached transport network at {}", networkFile);
-                return KryoNetworkSerializer.read(networkFile);
+                FileStorageKey columnsKey = getStreetColumnsFileStorageKey(networkId);
+                if (fileStorage.exists(columnsKey)) {
+                    network = MappedStreetColumns.read(networkFile, fileStorage.getFile(columnsKey));
+                } else {
+                    network = KryoNetworkSerializer.read(networkFile);
+                }
             } else {
                 LOG.debug(
                     "Cached transport network for ID {} with file format version {} was not found. Building from scratch.",
                     networkId, KryoNetworkSerializer.NETWORK_FORMAT_VERSION
                 );
-                return buildNetwork(networkId);
+                network = buildNetwork(networkId);
             }
+            // Linkages of this network and its scenarios are persisted alongside it for reuse by later workers.
+            network.linkageCache.diskCache = linkageDiskCache;
+            return network;
         } catch (Exception e) {
             throw new TransportNetworkException("Exception occurred retrieving or building network.", e);
         }
@@ -0,0 +1,49 @@
+package com.conveyal.r5.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size set of bits that can be set concurrently by many threads without locking. Unlike java.util.BitSet,
+ * setting a bit reports whether this call was the one that changed it, so threads racing to record the same item can
+ * agree on which of them did so.
+ */
+public class AtomicBitSet {
+
+    private final AtomicLongArray words;
+
+    public AtomicBitSet (int nBits) {
+        words = new AtomicLongArray((nBits + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    /** @return true if the bit was previously clear and has been set by this call, false if it was already set. */
+    public boolean set (int index) {
+        int wordIndex = index / Long.SIZE;
+        long mask = 1L << (index % Long.SIZE);
+        while (true) {
+            long word = words.get(wordIndex);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(wordIndex, word, word | mask)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean get (int index) {
+        return (words.get(index / Long.SIZE) & (1L << (index % Long.SIZE))) != 0;
+    }
+
+    /**
+     * @return the number of bits set. This scans the whole set, and bits set concurrently with the scan may or may
+     *         not be counted.
+     */
+    public int cardinality () {
+        int cardinality = 0;
+        for (int i = 0; i < words.length(); i++) {
+            cardinality += Long.bitCount(words.get(i));
+        }
+        return cardinality;
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.conveyal.analysis.components.broker;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Run a small broker load simulation, checking that when many workers poll and acknowledge results at once every
+ * task is delivered and completed exactly once.
+ */
+public class BrokerLoadSimulatorTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BrokerLoadSimulatorTest.class);
+
+    @Test
+    public void testEveryTaskCompletedOnce () {
+        BrokerLoadSimulator simulator = new BrokerLoadSimulator();
+        simulator.nCategories = 3;
+        simulator.nJobsPerCategory = 3;
+        simulator.nTasksPerJob = 10_000;
+        simulator.nWorkers = 32;
+        simulator.run();
+        // The simulation only ends when every task is complete. No task should have been delivered more than once.
+        assertEquals(3 * 3 * 10_000, simulator.nAcks);
+        LOG.info("{} polls/sec, {} acks/sec, {} status requests/sec.",
+                simulator.nPolls * 1000 / simulator.elapsedMillis,
+                simulator.nAcks * 1000 / simulator.elapsedMillis,
+                simulator.nStatusRequests * 1000 / simulator.elapsedMillis);
+    }
+
+}
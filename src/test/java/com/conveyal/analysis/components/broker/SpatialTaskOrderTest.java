@@ -0,0 +1,135 @@
+package com.conveyal.analysis.components.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that tasks ordered along a Hilbert curve include every task exactly once, and that the tasks a worker has in
+ * its backlog at once reach a much smaller area when delivered in that order than in row-major order.
+ */
+public class SpatialTaskOrderTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpatialTaskOrderTest.class);
+
+    /** The number of consecutive tasks a worker might have queued or running at once. */
+    private static final int WINDOW_SIZE = 256;
+
+    /** The distance in grid cells within which the searches from each origin reach the same streets and stops. */
+    private static final int REACH = 10;
+
+    private static final WorkerTags WORKER_TAGS = new WorkerTags("group", "user", "region");
+
+    @Test
+    public void testHilbertCurveSteps () {
+        // On a square grid whose side is a power of two, each step along the curve moves to an adjacent cell.
+        int bits = 5;
+        int size = 1 << bits;
+        int[] order = SpatialTaskOrder.forGrid(size, size);
+        for (int i = 1; i < order.length; i++) {
+            int dx = Math.abs(order[i] % size - order[i - 1] % size);
+            int dy = Math.abs(order[i] / size - order[i - 1] / size);
+            assertEquals(1, dx + dy);
+            assertEquals(i, SpatialTaskOrder.hilbertIndex(bits, order[i] % size, order[i] / size));
+        }
+    }
+
+    @Test
+    public void testGridBatches () {
+        for (int[] dimensions : new int[][] {{1, 1}, {7, 3}, {300, 200}, {1000, 40}}) {
+            int width = dimensions[0];
+            int height = dimensions[1];
+            int[] order = SpatialTaskOrder.forGrid(width, height);
+            int[] sorted = order.clone();
+            Arrays.sort(sorted);
+            assertArrayEquals(IntStream.range(0, width * height).toArray(), sorted);
+            if (width * height < WINDOW_SIZE * 10) continue;
+            checkLocality(IntStream.range(0, width * height).toArray(), order, width);
+        }
+    }
+
+    /**
+     * The batches of tasks a job actually hands out to workers, rather than the sequence they are taken from, must
+     * cover a much smaller area when the job uses spatial task order.
+     */
+    @Test
+    public void testJobBatches () {
+        int width = 300;
+        int height = 200;
+        int[] taskIdOrder = deliveredTaskIds(new Job(makeTemplateTask(width, height), WORKER_TAGS, false));
+        int[] spatialOrder = deliveredTaskIds(new Job(makeTemplateTask(width, height), WORKER_TAGS, true));
+        assertArrayEquals(IntStream.range(0, width * height).toArray(), taskIdOrder);
+        checkLocality(taskIdOrder, spatialOrder, width);
+    }
+
+    private static RegionalTask makeTemplateTask (int width, int height) {
+        RegionalTask templateTask = new RegionalTask();
+        templateTask.jobId = "job";
+        templateTask.graphId = "graph";
+        templateTask.workerVersion = "v1";
+        templateTask.zoom = 9;
+        templateTask.west = 0;
+        templateTask.north = 0;
+        templateTask.width = width;
+        templateTask.height = height;
+        return templateTask;
+    }
+
+    /** Take all the tasks of a job in batches of WINDOW_SIZE, as workers would. */
+    private static int[] deliveredTaskIds (Job job) {
+        TIntList taskIds = new TIntArrayList();
+        List<RegionalTask> tasks;
+        while (!(tasks = job.generateSomeTasksToDeliver(WINDOW_SIZE)).isEmpty()) {
+            tasks.forEach(task -> taskIds.add(task.taskId));
+        }
+        return taskIds.toArray();
+    }
+
+    /**
+     * Check that consecutive tasks in spatial order reach on average at most a quarter of the area they reach in
+     * row-major order, and that no window of them reaches more than half that average.
+     */
+    private static void checkLocality (int[] rowMajorOrder, int[] spatialOrder, int width) {
+        long[] rowMajorAreas = windowAreas(rowMajorOrder, width);
+        long[] spatialAreas = windowAreas(spatialOrder, width);
+        double rowMajorMean = LongStream.of(rowMajorAreas).average().getAsDouble();
+        double spatialMean = LongStream.of(spatialAreas).average().getAsDouble();
+        long spatialMax = LongStream.of(spatialAreas).max().getAsLong();
+        LOG.info("{} consecutive tasks reach {} cells in row-major order and {} (at most {}) in spatial order.",
+                WINDOW_SIZE, rowMajorMean, spatialMean, spatialMax);
+        assertTrue(spatialMean < rowMajorMean / 4);
+        assertTrue(spatialMax < rowMajorMean / 2);
+    }
+
+    /**
+     * The area in grid cells within REACH of the bounding box of each window of consecutive tasks in the given
+     * order, approximating the street and transit data the searches from those origins all work on.
+     */
+    private static long[] windowAreas (int[] order, int width) {
+        long[] areas = new long[order.length / WINDOW_SIZE];
+        for (int w = 0; w < areas.length; w++) {
+            int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+            for (int i = w * WINDOW_SIZE; i < (w + 1) * WINDOW_SIZE; i++) {
+                minX = Math.min(minX, order[i] % width);
+                maxX = Math.max(maxX, order[i] % width);
+                minY = Math.min(minY, order[i] / width);
+                maxY = Math.max(maxY, order[i] / width);
+            }
+            areas[w] = (long) (maxX - minX + 1 + 2 * REACH) * (maxY - minY + 1 + 2 * REACH);
+        }
+        return areas;
+    }
+
+}
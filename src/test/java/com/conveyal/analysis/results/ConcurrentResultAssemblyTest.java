@@ -0,0 +1,189 @@
+package com.conveyal.analysis.results;
+
+import com.conveyal.analysis.components.broker.Job;
+import com.conveyal.analysis.components.broker.WorkerTags;
+import com.conveyal.analysis.models.RegionalAnalysis;
+import com.conveyal.file.FileStorage;
+import com.conveyal.file.FileStorageKey;
+import com.conveyal.file.TemporaryFileStorage;
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.AccessibilityResult;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.google.common.io.LittleEndianDataInputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import static com.conveyal.file.FileCategory.RESULTS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Load test for regional result assembly: replay synthetic RegionalWorkResults (including redeliveries of the same
+ * origin) from many threads at once, as the broker does when hundreds of workers return results, and check that the
+ * assembled files contain exactly the expected values.
+ */
+public class ConcurrentResultAssemblyTest {
+
+    private static final int WIDTH = 200;
+
+    private static final int HEIGHT = 200;
+
+    private static final int N_THREADS = 16;
+
+    @Test
+    public void testConcurrentGridAssembly () throws Exception {
+        FileStorage fileStorage = TemporaryFileStorage.create("r5-results-test");
+        RegionalTask task = makeTask();
+        task.recordAccessibility = true;
+        RegionalAnalysis regionalAnalysis = new RegionalAnalysis();
+        regionalAnalysis._id = task.jobId;
+        regionalAnalysis.destinationPointSetIds = new String[] {"destinations"};
+        Job job = new Job(task, new WorkerTags("group", "user", "region"));
+        MultiOriginAssembler assembler = new MultiOriginAssembler(regionalAnalysis, job, fileStorage);
+
+        // Results for every origin in a random order, with one in ten origins delivered twice.
+        List<RegionalWorkResult> results = new ArrayList<>();
+        for (int origin = 0; origin < WIDTH * HEIGHT; origin++) {
+            results.add(makeAccessibilityResult(task, origin));
+            if (origin % 10 == 0) {
+                results.add(makeAccessibilityResult(task, origin));
+            }
+        }
+        Collections.shuffle(results, new Random(42));
+
+        replay(results, assembler::handleMessage);
+
+        assertEquals(WIDTH * HEIGHT, assembler.nComplete.get());
+        assertTrue(regionalAnalysis.complete);
+        String fileName = String.format("%s_%s_P%d.access", task.jobId, "destinations", task.percentiles[0]);
+        try (LittleEndianDataInputStream input = new LittleEndianDataInputStream(new GZIPInputStream(
+                new FileInputStream(fileStorage.getFile(new FileStorageKey(RESULTS, fileName)))))) {
+            input.skipBytes(9 * Integer.BYTES);
+            for (int origin = 0; origin < WIDTH * HEIGHT; origin++) {
+                // Values are delta-coded within each origin.
+                int first = input.readInt();
+                int second = first + input.readInt();
+                assertEquals(origin, first);
+                assertEquals(origin * 2, second);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentCsvWriting () throws Exception {
+        FileStorage fileStorage = TemporaryFileStorage.create("r5-results-test");
+        RegionalTask task = makeTask();
+        OriginCsvResultWriter writer = new OriginCsvResultWriter(task, fileStorage);
+        List<RegionalWorkResult> results = new ArrayList<>();
+        for (int origin = 0; origin < WIDTH * HEIGHT; origin++) {
+            results.add(makeAccessibilityResult(task, origin));
+        }
+        replay(results, writer::writeOneWorkResult);
+        writer.finish();
+
+        boolean[] seen = new boolean[WIDTH * HEIGHT];
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                new FileInputStream(fileStorage.getFile(new FileStorageKey(RESULTS, writer.fileName))))))) {
+            assertEquals("origin,value", reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] values = line.split(",");
+                int origin = Integer.parseInt(values[0]);
+                assertEquals(origin * 2, Integer.parseInt(values[1]));
+                seen[origin] = true;
+            }
+        }
+        for (boolean originSeen : seen) {
+            assertTrue(originSeen);
+        }
+    }
+
+    private interface ResultHandler {
+        void handle (RegionalWorkResult result) throws Exception;
+    }
+
+    /** Deliver all the results to the handler from N_THREADS threads at once. */
+    private static void replay (List<RegionalWorkResult> results, ResultHandler handler) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < N_THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int r = thread; r < results.size(); r += N_THREADS) {
+                    handler.handle(results.get(r));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    private static RegionalTask makeTask () {
+        RegionalTask task = new RegionalTask();
+        task.jobId = "concurrent-assembly-test";
+        task.zoom = 9;
+        task.west = 1000;
+        task.north = 2000;
+        task.width = WIDTH;
+        task.height = HEIGHT;
+        task.percentiles = new int[] {50};
+        task.cutoffsMinutes = new int[] {30, 60};
+        task.destinationPointSetKeys = new String[] {"destinations.grid"};
+        return task;
+    }
+
+    /** Make a result for the given origin, with the origin number and twice the origin number as its values. */
+    private static RegionalWorkResult makeAccessibilityResult (RegionalTask task, int origin) {
+        task.taskId = origin;
+        AccessibilityResult accessibility = new AccessibilityResult(task);
+        accessibility.incrementAccessibility(0, 0, 0, origin);
+        accessibility.incrementAccessibility(0, 0, 1, origin * 2);
+        return new RegionalWorkResult(new OneOriginResult(null, accessibility, null), task);
+    }
+
+    /** A minimal CSV writer recording the second accessibility value of each origin. */
+    private static class OriginCsvResultWriter extends CsvResultWriter {
+
+        OriginCsvResultWriter (RegionalTask task, FileStorage fileStorage) throws IOException {
+            super(task, fileStorage);
+        }
+
+        @Override
+        public CsvResultType resultType () {
+            return CsvResultType.ACCESS;
+        }
+
+        @Override
+        protected String[] columnHeaders () {
+            return new String[] {"origin", "value"};
+        }
+
+        @Override
+        protected Iterable<String[]> rowValues (RegionalWorkResult workResult) {
+            return List.<String[]>of(new String[] {
+                Integer.toString(workResult.taskId), Integer.toString(workResult.accessibilityValues[0][0][1])
+            });
+        }
+
+        @Override
+        protected void checkDimension (RegionalWorkResult workResult) { }
+
+    }
+
+}
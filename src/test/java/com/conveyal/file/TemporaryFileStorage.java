@@ -0,0 +1,26 @@
+package com.conveyal.file;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Creates LocalFileStorage in a new temporary directory, for tests that need to store and read back files.
+ */
+public abstract class TemporaryFileStorage {
+
+    public static LocalFileStorage create (String directoryPrefix) throws IOException {
+        String directory = Files.createTempDirectory(directoryPrefix).toString();
+        return new LocalFileStorage(new LocalFileStorage.Config() {
+            @Override
+            public String localCacheDirectory () {
+                return directory;
+            }
+
+            @Override
+            public int serverPort () {
+                return 0;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.conveyal.osmlib;
+
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that decoding PBF blocks on several threads delivers exactly the same entities to the sink, in the same order,
+ * as decoding them on a single thread.
+ */
+public class PBFInputTest {
+
+    static final String TEST_FILE = "./src/test/resources/porto_portugal.osm.pbf";
+
+    @Test
+    public void testParallelDecodingPreservesOrder () throws Exception {
+        RecordingSink sequential = read(1);
+        RecordingSink parallel = read(4);
+        assertTrue(sequential.ids.size() > 1);
+        assertEquals(sequential.ids, parallel.ids);
+        assertEquals(sequential.entities, parallel.entities);
+        assertEquals(sequential.timestamp, parallel.timestamp);
+    }
+
+    private static RecordingSink read (int decodingThreads) throws Exception {
+        RecordingSink sink = new RecordingSink();
+        PBFInput input = new PBFInput(new FileInputStream(TEST_FILE));
+        input.decodingThreads = decodingThreads;
+        input.copyTo(sink);
+        return sink;
+    }
+
+    private static class RecordingSink implements OSMEntitySink {
+
+        TLongList ids = new TLongArrayList();
+        List<OSMEntity> entities = new ArrayList<>();
+        long timestamp;
+
+        @Override
+        public void writeBegin () { }
+
+        @Override
+        public void setReplicationTimestamp (long secondsSinceEpoch) {
+            timestamp = secondsSinceEpoch;
+        }
+
+        @Override
+        public void writeNode (long id, Node node) {
+            ids.add(id);
+            entities.add(node);
+        }
+
+        @Override
+        public void writeWay (long id, Way way) {
+            ids.add(id);
+            entities.add(way);
+        }
+
+        @Override
+        public void writeRelation (long id, Relation relation) {
+            ids.add(id);
+            entities.add(relation);
+        }
+
+        @Override
+        public void writeEnd () { }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.conveyal.osmlib;
+
+import com.conveyal.r5.streets.StreetLayer;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Check that OSM data stored in off-heap columns (OSM.PACKED) is identical to that stored in MapDB, and that both
+ * give the same street layer.
+ */
+public class PackedOSMTest {
+
+    static final String TEST_FILE = "./src/test/resources/porto_portugal.osm.pbf";
+
+    @Test
+    public void testPackedMatchesMapDb () {
+        OSM mapDbOsm = new OSM(null);
+        mapDbOsm.readFromFile(TEST_FILE);
+        OSM packedOsm = new OSM(OSM.PACKED);
+        packedOsm.readFromFile(TEST_FILE);
+        assertEquals(mapDbOsm.nodes.size(), packedOsm.nodes.size());
+        assertEquals(mapDbOsm.ways.size(), packedOsm.ways.size());
+        assertEquals(mapDbOsm.relations.size(), packedOsm.relations.size());
+        for (Map.Entry<Long, Node> entry : mapDbOsm.nodes.entrySet()) {
+            assertEquals(entry.getValue(), packedOsm.nodes.get(entry.getKey()));
+        }
+        for (Map.Entry<Long, Way> entry : mapDbOsm.ways.entrySet()) {
+            assertEquals(entry.getValue(), packedOsm.ways.get(entry.getKey()));
+        }
+        // Iteration must visit every entity, in the same order as MapDB.
+        assertEquals(mapDbOsm.ways.keySet().iterator().next(), packedOsm.ways.keySet().iterator().next());
+        long previousId = Long.MIN_VALUE;
+        int nWays = 0;
+        for (long wayId : packedOsm.ways.keySet()) {
+            assertFalse(wayId <= previousId);
+            previousId = wayId;
+            nWays += 1;
+        }
+        assertEquals(mapDbOsm.ways.size(), nWays);
+        mapDbOsm.close();
+        packedOsm.close();
+    }
+
+    @Test
+    public void testOutOfOrderUpdates () {
+        OSM osm = new OSM(OSM.PACKED);
+        osm.nodes.put(10L, new Node(1, 1));
+        osm.nodes.put(20L, new Node(2, 2));
+        // Out of order, replacing, and removing.
+        osm.nodes.put(5L, new Node(0.5, 0.5));
+        osm.nodes.put(20L, new Node(3, 3));
+        osm.nodes.remove(10L);
+        osm.nodes.put(30L, new Node(4, 4));
+        assertEquals(3, osm.nodes.size());
+        assertNull(osm.nodes.get(10L));
+        assertFalse(osm.nodes.containsKey(10L));
+        assertEquals(new Node(0.5, 0.5), osm.nodes.get(5L));
+        assertEquals(new Node(3, 3), osm.nodes.get(20L));
+        assertEquals(new Node(4, 4), osm.nodes.get(30L));
+        assertEquals(3, osm.nodes.values().size());
+        int nIterated = 0;
+        for (Node node : osm.nodes.values()) nIterated++;
+        assertEquals(3, nIterated);
+        osm.close();
+    }
+
+    /** A street layer built from either storage backend must have the same number of edges. */
+    @Test
+    public void testSameStreetLayer () {
+        int nEdgesMapDb = buildStreetLayer(null);
+        int nEdgesPacked = buildStreetLayer(OSM.PACKED);
+        assertEquals(nEdgesMapDb, nEdgesPacked);
+    }
+
+    private static int buildStreetLayer (String diskPath) {
+        OSM osm = new OSM(diskPath);
+        osm.intersectionDetection = true;
+        osm.readFromFile(TEST_FILE);
+        StreetLayer streetLayer = new StreetLayer();
+        streetLayer.loadFromOsm(osm);
+        osm.close();
+        return streetLayer.edgeStore.nEdges();
+    }
+
+}
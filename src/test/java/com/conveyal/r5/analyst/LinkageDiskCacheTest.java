@@ -0,0 +1,92 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.file.TemporaryFileStorage;
+import com.conveyal.r5.analyst.network.GridLayout;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.EgressCostTable;
+import com.conveyal.r5.streets.EgressCostTableTest;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.BitSet;
+
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that linkages and egress cost tables read back from disk are identical to the ones that were stored.
+ */
+public class LinkageDiskCacheTest {
+
+    @Test
+    public void testRoundTrip () throws Exception {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 40);
+        gridLayout.addHorizontalFrequencyRoute(20, 20);
+        gridLayout.addVerticalFrequencyRoute(20, 20);
+        TransportNetwork network = gridLayout.generateNetwork();
+        LinkageDiskCache diskCache = new LinkageDiskCache(TemporaryFileStorage.create("r5-linkage-test"));
+        PointSet pointSet = network.fullExtentGridPointSet;
+
+        for (StreetMode streetMode : new StreetMode[] {StreetMode.WALK, StreetMode.BICYCLE, StreetMode.CAR}) {
+            assertNull(diskCache.read(pointSet, network.streetLayer, streetMode));
+            LinkedPointSet built = new LinkedPointSet(pointSet, network.streetLayer, streetMode, null);
+            EgressCostTable builtTable = built.getEgressCostTable();
+            diskCache.writeBehind(built, builtTable).get();
+
+            LinkedPointSet read = diskCache.read(pointSet, network.streetLayer, streetMode);
+            assertNotNull(read);
+            assertArrayEquals(built.edges, read.edges);
+            assertArrayEquals(built.distancesToEdge_mm, read.distancesToEdge_mm);
+            assertArrayEquals(built.distances0_mm, read.distances0_mm);
+            assertArrayEquals(built.distances1_mm, read.distances1_mm);
+            EgressCostTable readTable = read.getEgressCostTable();
+            assertEquals(builtTable.linkageCostUnit, readTable.linkageCostUnit);
+            assertEquals(builtTable.stopToPointLinkageCostTables.size(), readTable.stopToPointLinkageCostTables.size());
+            for (int s = 0; s < builtTable.stopToPointLinkageCostTables.size(); s++) {
+                assertArrayEquals(builtTable.stopToPointLinkageCostTables.get(s),
+                        readTable.stopToPointLinkageCostTables.get(s));
+            }
+            // Stored envelopes are rounded outward, so may be slightly larger than the ones that were built.
+            Envelope[] builtEnvelopes = builtTable.getStopReachedEnvelopes();
+            Envelope[] readEnvelopes = readTable.getStopReachedEnvelopes();
+            if (builtEnvelopes == null) {
+                assertNull(readEnvelopes);
+            } else {
+                assertEquals(builtEnvelopes.length, readEnvelopes.length);
+                for (int s = 0; s < builtEnvelopes.length; s++) {
+                    if (builtEnvelopes[s] == null) {
+                        assertNull(readEnvelopes[s]);
+                    } else {
+                        assertTrue(readEnvelopes[s].contains(builtEnvelopes[s]));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tables read back from disk keep the record of the streets their searches reached, so a scenario can reuse as
+     * many of them as it could reuse of the tables they were built from.
+     */
+    @Test
+    public void testScenarioReusesStoredTables () throws Exception {
+        TransportNetwork network = EgressCostTableTest.makeNetwork();
+        PointSet pointSet = network.fullExtentGridPointSet;
+        LinkageDiskCache diskCache = new LinkageDiskCache(TemporaryFileStorage.create("r5-linkage-test"));
+        LinkedPointSet built = new LinkedPointSet(pointSet, network.streetLayer, StreetMode.BICYCLE, null);
+        diskCache.writeBehind(built, built.getEgressCostTable()).get();
+        LinkedPointSet read = diskCache.read(pointSet, network.streetLayer, StreetMode.BICYCLE);
+        assertNotNull(read);
+        TransportNetwork scenarioNetwork = EgressCostTableTest.applyScenario(network);
+        BitSet reusedFromBuilt = EgressCostTableTest.checkScenarioTables(built, scenarioNetwork);
+        BitSet reusedFromRead = EgressCostTableTest.checkScenarioTables(read, scenarioNetwork);
+        assertEquals(reusedFromBuilt, reusedFromRead);
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.conveyal.r5.analyst;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Check that PercentileSelector finds exactly the same values as a full sort, on travel time distributions with the
+ * characteristics seen in analysis (many repeated values, unreachable iterations).
+ */
+public class PercentileSelectorTest {
+
+    private static final int[][] PERCENTILE_INDEXES_FOR_1200 = new int[][] {
+        {599},
+        {0, 299, 599, 899, 1199},
+        {59, 59, 599, 1139},
+        {1199}
+    };
+
+    @Test
+    public void testMatchesFullSort () {
+        Random random = new Random(42);
+        for (int trial = 0; trial < 2000; trial++) {
+            int[] times = randomTravelTimes(random, 1200, trial % 4);
+            for (int[] indexes : PERCENTILE_INDEXES_FOR_1200) {
+                int[] sorted = times.clone();
+                Arrays.sort(sorted);
+                int[] expected = new int[indexes.length];
+                for (int i = 0; i < indexes.length; i++) expected[i] = sorted[indexes[i]];
+                int[] selected = new int[indexes.length];
+                PercentileSelector.select(times.clone(), indexes, selected);
+                assertArrayEquals(expected, selected);
+            }
+        }
+        // Short arrays, including those handled entirely by insertion sort.
+        for (int length = 1; length < 40; length++) {
+            int[] times = randomTravelTimes(random, length, 0);
+            int[] sorted = times.clone();
+            Arrays.sort(sorted);
+            int[] indexes = new int[] {0, length / 2, length - 1};
+            int[] selected = new int[indexes.length];
+            PercentileSelector.select(times, indexes, selected);
+            assertArrayEquals(new int[] {sorted[0], sorted[length / 2], sorted[length - 1]}, selected);
+        }
+    }
+
+    /**
+     * @param kind 0 for uniformly distributed times, 1 for times with many duplicates (as from scheduled transit),
+     *             2 for a mix of times and UNREACHED, and 3 for already sorted times.
+     */
+    private static int[] randomTravelTimes (Random random, int n, int kind) {
+        int[] times = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (kind == 1) {
+                times[i] = 1800 + random.nextInt(6) * 60;
+            } else if (kind == 2 && random.nextBoolean()) {
+                times[i] = UNREACHED;
+            } else {
+                times[i] = random.nextInt(7200);
+            }
+        }
+        if (kind == 3) Arrays.sort(times);
+        return times;
+    }
+
+}
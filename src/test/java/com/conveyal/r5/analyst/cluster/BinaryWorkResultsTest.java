@@ -0,0 +1,113 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.conveyal.r5.common.JsonUtilities;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that worker statuses survive a round trip through the binary format unchanged, and that the binary format is
+ * more compact than JSON.
+ */
+public class BinaryWorkResultsTest {
+
+    static final int N_ORIGINS = 50;
+
+    private static final int N_DESTINATIONS = 20_000;
+
+    @Test
+    public void testRoundTrip () throws Exception {
+        WorkerStatus workerStatus = makeWorkerStatus(new Random(42));
+        for (boolean gzip : new boolean[] {false, true}) {
+            WorkerStatus decoded = BinaryWorkResults.decode(
+                    new ByteArrayInputStream(BinaryWorkResults.encode(workerStatus, gzip)), gzip);
+            assertEquals(workerStatus.workerId, decoded.workerId);
+            assertEquals(workerStatus.networks, decoded.networks);
+            assertEquals(workerStatus.results.size(), decoded.results.size());
+            for (int r = 0; r < workerStatus.results.size(); r++) {
+                RegionalWorkResult expected = workerStatus.results.get(r);
+                RegionalWorkResult actual = decoded.results.get(r);
+                assertEquals(expected.jobId, actual.jobId);
+                assertEquals(expected.taskId, actual.taskId);
+                assertEquals(expected.error, actual.error);
+                assertArrayEquals(expected.travelTimeValues, actual.travelTimeValues);
+                assertArrayEquals(expected.accessibilityValues, actual.accessibilityValues);
+                if (expected.pathResult == null) {
+                    assertNull(actual.pathResult);
+                } else {
+                    assertEquals(expected.pathResult.length, actual.pathResult.length);
+                    for (int t = 0; t < expected.pathResult.length; t++) {
+                        if (expected.pathResult[t] == null) {
+                            assertNull(actual.pathResult[t]);
+                            continue;
+                        }
+                        assertEquals(expected.pathResult[t].size(), actual.pathResult[t].size());
+                        for (int p = 0; p < expected.pathResult[t].size(); p++) {
+                            assertArrayEquals(expected.pathResult[t].get(p), actual.pathResult[t].get(p));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Both binary encodings must be smaller than the JSON they replace. */
+    @Test
+    public void testSmallerThanJson () throws Exception {
+        WorkerStatus workerStatus = makeWorkerStatus(new Random(43));
+        byte[] json = JsonUtilities.objectMapper.writeValueAsBytes(workerStatus);
+        for (boolean gzip : new boolean[] {false, true}) {
+            byte[] binary = BinaryWorkResults.encode(workerStatus, gzip);
+            assertTrue(binary.length < json.length);
+        }
+    }
+
+    /**
+     * Make results resembling travel times to a grid of destinations: values change gradually from one destination to
+     * the next and increase with the percentile, and some destinations are unreached.
+     */
+    static WorkerStatus makeWorkerStatus (Random random) {
+        WorkerStatus workerStatus = new WorkerStatus();
+        workerStatus.workerId = "worker";
+        workerStatus.networks.add("network");
+        workerStatus.results = new ArrayList<>();
+        for (int o = 0; o < N_ORIGINS; o++) {
+            RegionalTask task = new RegionalTask();
+            task.jobId = "job";
+            task.taskId = o;
+            if (o == 7) {
+                workerStatus.results.add(new RegionalWorkResult(new RuntimeException("Failed"), task));
+                continue;
+            }
+            RegionalWorkResult result = new RegionalWorkResult();
+            result.jobId = task.jobId;
+            result.taskId = task.taskId;
+            int[][] travelTimes = new int[3][N_DESTINATIONS];
+            int minutes = 30;
+            for (int d = 0; d < N_DESTINATIONS; d++) {
+                minutes = Math.max(0, minutes + random.nextInt(5) - 2);
+                for (int p = 0; p < travelTimes.length; p++) {
+                    travelTimes[p][d] = (minutes > 100) ? UNREACHED : minutes + p * random.nextInt(4);
+                }
+            }
+            result.travelTimeValues = travelTimes;
+            result.accessibilityValues = new int[][][] {{{10, 2000, 35000}, {5, 1500, 30000}, {0, 1000, 28000}}};
+            if (o % 2 == 0) {
+                ArrayList<String[]> paths = new ArrayList<>();
+                paths.add(new String[] {"A|B", "5", null});
+                result.pathResult = new ArrayList[] {paths, null};
+            }
+            workerStatus.results.add(result);
+        }
+        return workerStatus;
+    }
+
+}
@@ -11,6 +11,7 @@ import static com.conveyal.r5.analyst.decay.DecayFunction.TWO_HOURS_IN_SECONDS;
 import static com.conveyal.r5.analyst.decay.DecayFunction.ZERO_EPSILON;
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 public class TestDecayFunctions {
 
@@ -59,6 +60,36 @@ public class TestDecayFunctions {
         }
     }
 
+    /**
+     * Check that the precomputed weight tables exactly reproduce the weights computed on the fly, for every type of
+     * decay function.
+     */
+    @Test
+    public void testWeightTables () {
+        LogisticDecayFunction logistic = new LogisticDecayFunction();
+        logistic.standardDeviationMinutes = 10;
+        LinearDecayFunction linear = new LinearDecayFunction();
+        linear.widthMinutes = 10;
+        FixedExponentialDecayFunction fixedExponential = new FixedExponentialDecayFunction();
+        fixedExponential.decayConstant = -(FastMath.log(0.5) / TEN_MINUTES_IN_SECONDS);
+        DecayFunction[] functions = new DecayFunction[] {
+            new StepDecayFunction(), linear, logistic, new ExponentialDecayFunction(), fixedExponential
+        };
+        int[] cutoffsSeconds = new int[] {15 * 60, 30 * 60, 45 * 60, 60 * 60, 90 * 60};
+        for (DecayFunction function : functions) {
+            function.prepare();
+            for (int cutoffSeconds : cutoffsSeconds) {
+                double[] table = function.getWeightTable(cutoffSeconds);
+                assertEquals(function.reachesZeroAt(cutoffSeconds), table.length);
+                for (int s = 0; s < table.length; s++) {
+                    assertEquals(function.computeWeight(cutoffSeconds, s), table[s]);
+                }
+                // The table should be computed once and reused for later requests with the same cutoff.
+                assertSame(table, function.getWeightTable(cutoffSeconds));
+            }
+        }
+    }
+
     /**
      * This method can be called from within a test to print out a table of function values, which can be plotted
      * as a visual sanity check.
@@ -0,0 +1,34 @@
+package com.conveyal.r5.analyst.fare.nyc;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds LIRR transfer allowances for tests outside this package. The fare override maps of the calculator are only
+ * initialized when NYC fare data is loaded for a network, so here they are left empty and only the zonal fares bundled
+ * on the classpath are used.
+ */
+public abstract class LIRRTestAllowances {
+
+    /** Stops in fare zones 7, 14 and 9, between all of which there are zonal fares. */
+    public static final LIRRStop[] STOPS = { LIRRStop.LIRR1, LIRRStop.LIRR4, LIRRStop.LIRR8 };
+
+    private static final NYCInRoutingFareCalculator FARE_CALCULATOR = new NYCInRoutingFareCalculator();
+    static {
+        FARE_CALCULATOR.lirrPeakDirectFareOverrides = Collections.emptyMap();
+        FARE_CALCULATOR.lirrOffPeakDirectFareOverrides = Collections.emptyMap();
+    }
+
+    /** The allowance after a single LIRR ride, which must be between two different stops in STOPS. */
+    public static LIRRTransferAllowance singleRide (LIRRStop boardStop, LIRRStop alightStop,
+            LIRRTransferAllowance.LIRRDirection direction, int boardTime, boolean peak) {
+        BitSet peakRides = new BitSet();
+        peakRides.set(0, peak);
+        return new LIRRTransferAllowance(List.of(boardStop), List.of(alightStop), List.of(direction),
+                TIntArrayList.wrap(new int[] { boardTime }), peakRides, FARE_CALCULATOR);
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.conveyal.r5.analyst.network;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.PointSet;
+import com.conveyal.r5.analyst.TravelTimeReducer;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.profile.PerTargetPropagater;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that propagating travel times to blocks of targets at once (see PerTargetPropagater.targetBlockSize) gives
+ * the same results as propagating to one target at a time.
+ */
+public class BlockedPropagationTest {
+
+    /**
+     * Propagate synthetic travel times to every stop of a frequency-based grid network out to all destination cells,
+     * with and without blocking.
+     */
+    @Test
+    public void testBlockedPropagationMatchesPerTarget () {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 100);
+        for (int row = 10; row <= 90; row += 10) {
+            gridLayout.addHorizontalFrequencyRoute(row, 20);
+            gridLayout.addVerticalFrequencyRoute(row, 20);
+        }
+        TransportNetwork network = gridLayout.generateNetwork();
+        AnalysisWorkerTask task = gridLayout.newTaskBuilder()
+                .weekdayMorningPeak()
+                .setOrigin(50, 50)
+                .uniformOpportunityDensity(10)
+                .build();
+        PointSet destinations = AnalysisWorkerTask.gridPointSetCache.get(
+                task.getWebMercatorExtents(), network.fullExtentGridPointSet
+        );
+
+        // Random travel times to stops, with some stops unreached in some iterations.
+        int nIterations = task.getTotalIterations(network.transitLayer.hasFrequencies);
+        int nStops = network.transitLayer.getStopCount();
+        Random random = new Random(42);
+        int[][] travelTimesToStops = new int[nIterations][nStops];
+        for (int[] travelTimes : travelTimesToStops) {
+            for (int s = 0; s < nStops; s++) {
+                travelTimes[s] = random.nextInt(10) == 0 ? UNREACHED : random.nextInt(task.maxTripDurationMinutes * 60);
+            }
+        }
+        int[] nonTransitTravelTimes = new int[destinations.featureCount()];
+        Arrays.fill(nonTransitTravelTimes, UNREACHED);
+
+        OneOriginResult perTarget = null;
+        for (int blockSize : new int[] {1, 64, 128, 256}) {
+            PerTargetPropagater propagater = new PerTargetPropagater(
+                    destinations,
+                    network.streetLayer,
+                    LegMode.toStreetModeSet(task.egressModes),
+                    task,
+                    travelTimesToStops,
+                    nonTransitTravelTimes
+            );
+            propagater.travelTimeReducer = new TravelTimeReducer(task, network);
+            propagater.setTargetBlockSize(blockSize);
+            assertThrows(IllegalArgumentException.class,
+                    () -> propagater.setTargetBlockSize(PerTargetPropagater.MAX_TARGET_BLOCK_SIZE + 1));
+            OneOriginResult result = propagater.propagate();
+            if (perTarget == null) {
+                perTarget = result;
+            } else {
+                for (int target = 0; target < destinations.featureCount(); target++) {
+                    assertArrayEquals(perTarget.travelTimes.getTarget(target), result.travelTimes.getTarget(target));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.conveyal.r5.analyst.network;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.TravelTimeComputer;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.jupiter.api.Test;
+
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Checks that splitting the departure time window into sub-windows routed in parallel (see
+ * FastRaptorWorker.departureMinuteShards) does not change results.
+ */
+public class DepartureMinuteShardingTest {
+
+    /**
+     * On a network with only scheduled routes and no overtaking, each departure minute has a single deterministic
+     * result, which range-RAPTOR must reproduce regardless of where the window is split.
+     */
+    @Test
+    public void testScheduledShardsMatchUnsharded () throws Exception {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 100);
+        gridLayout.addHorizontalRoute(20, 20);
+        gridLayout.addHorizontalRoute(40, 20);
+        gridLayout.addVerticalRoute(40, 20);
+        gridLayout.addVerticalRoute(60, 15);
+        TransportNetwork network = gridLayout.generateNetwork();
+
+        AnalysisWorkerTask unshardedTask = gridLayout.newTaskBuilder()
+                .weekdayMorningPeak()
+                .setOrigin(20, 20)
+                .uniformOpportunityDensity(10)
+                .build();
+        OneOriginResult unsharded = new TravelTimeComputer(unshardedTask, network).computeTravelTimes();
+
+        for (int shards : new int[] {2, 3, 7}) {
+            AnalysisWorkerTask shardedTask = gridLayout.copyTask(unshardedTask).departureMinuteShards(shards).build();
+            OneOriginResult sharded = new TravelTimeComputer(shardedTask, network).computeTravelTimes();
+            for (int target = 0; target < unsharded.travelTimes.nPoints; target++) {
+                assertArrayEquals(unsharded.travelTimes.getTarget(target), sharded.travelTimes.getTarget(target));
+            }
+        }
+    }
+
+    /**
+     * On a frequency-heavy network, where each shard makes its own Monte Carlo draws, the results for any number of
+     * shards must still match the theoretical travel time distribution.
+     */
+    @Test
+    public void testFrequencyShardsMatchDistribution () throws Exception {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 100);
+        for (int row = 10; row <= 90; row += 10) {
+            gridLayout.addHorizontalFrequencyRoute(row, 20);
+            gridLayout.addVerticalFrequencyRoute(row, 20);
+        }
+        TransportNetwork network = gridLayout.generateNetwork();
+
+        AnalysisWorkerTask task = gridLayout.newTaskBuilder()
+                .weekdayMorningPeak()
+                .setOrigin(20, 20)
+                .uniformOpportunityDensity(10)
+                .monteCarloDraws(2400)
+                .build();
+        int destination = gridLayout.pointIndex(task, 40, 40);
+
+        // Two rides with 20 minute headways, as in SimpsonDesertTests.testGridFrequency.
+        Distribution ride = new Distribution(2, 20);
+        Distribution expected = Distribution.convolution(ride, ride).delay(20);
+
+        for (int shards : new int[] {1, 2, 4}) {
+            AnalysisWorkerTask shardedTask = gridLayout.copyTask(task).departureMinuteShards(shards).build();
+            OneOriginResult result = new TravelTimeComputer(shardedTask, network).computeTravelTimes();
+            DistributionTester.assertExpectedDistribution(expected, result.travelTimes.getTarget(destination));
+        }
+    }
+
+}
@@ -133,6 +133,16 @@ public class GridSinglePointTaskBuilder {
         return this;
     }
 
+    public GridSinglePointTaskBuilder departureMinuteShards (int shards) {
+        task.departureMinuteShards = shards;
+        return this;
+    }
+
+    public GridSinglePointTaskBuilder sharedFrequencyOffsets (boolean shared) {
+        task.sharedFrequencyOffsets = shared;
+        return this;
+    }
+
     public AnalysisWorkerTask build () {
         return task;
     }
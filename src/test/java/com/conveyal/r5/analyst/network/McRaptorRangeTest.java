@@ -0,0 +1,76 @@
+package com.conveyal.r5.analyst.network;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.TravelTimeComputer;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.analyst.fare.SimpleInRoutingFareCalculator;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.jupiter.api.Test;
+
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Checks that reusing McRAPTOR state bags across departure minutes (see AnalysisWorkerTask.fareSearchRangeRaptor)
+ * does not change the results of fare-constrained searches.
+ */
+public class McRaptorRangeTest {
+
+    private TransportNetwork network;
+
+    /**
+     * On a network with only scheduled routes, each departure minute has a single set of Pareto-optimal paths, so the
+     * fastest path within the fare limit found with range-RAPTOR must be the same as with a fresh search each minute.
+     */
+    @Test
+    public void testRangeMatchesFreshSearches () throws Exception {
+        AnalysisWorkerTask task = makeTask();
+        // Allow two rides, so that some destinations are only reachable within the fare limit on slower paths.
+        task.maxFare = 250;
+        checkRangeMatchesFreshSearches(task);
+    }
+
+    /**
+     * When the number of rides rather than the fare is the binding limit, states found in late rounds for later
+     * departure minutes must not prevent states found in early rounds for earlier minutes from being explored further.
+     */
+    @Test
+    public void testRangeMatchesFreshSearchesWithLimitedRides () throws Exception {
+        AnalysisWorkerTask task = makeTask();
+        task.maxFare = 10_000;
+        task.maxRides = 2;
+        checkRangeMatchesFreshSearches(task);
+    }
+
+    /** A task from a stop on a grid of crossing scheduled routes, with a fixed fare for every ride. */
+    private AnalysisWorkerTask makeTask () {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 100);
+        gridLayout.addHorizontalRoute(20, 20);
+        gridLayout.addHorizontalRoute(40, 20);
+        gridLayout.addVerticalRoute(40, 20);
+        gridLayout.addVerticalRoute(60, 15);
+        network = gridLayout.generateNetwork();
+
+        AnalysisWorkerTask task = gridLayout.newTaskBuilder()
+                .weekdayMorningPeak()
+                .setOrigin(20, 20)
+                .monteCarloDraws(30)
+                .uniformOpportunityDensity(10)
+                .build();
+        SimpleInRoutingFareCalculator fareCalculator = new SimpleInRoutingFareCalculator();
+        fareCalculator.fare = 100;
+        task.inRoutingFareCalculator = fareCalculator;
+        return task;
+    }
+
+    private void checkRangeMatchesFreshSearches (AnalysisWorkerTask task) {
+        task.fareSearchRangeRaptor = false;
+        OneOriginResult fresh = new TravelTimeComputer(task, network).computeTravelTimes();
+        task.fareSearchRangeRaptor = true;
+        OneOriginResult range = new TravelTimeComputer(task, network).computeTravelTimes();
+        for (int target = 0; target < fresh.travelTimes.nPoints; target++) {
+            assertArrayEquals(fresh.travelTimes.getTarget(target), range.travelTimes.getTarget(target));
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.conveyal.r5.analyst.network;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.TravelTimeComputer;
+import com.conveyal.r5.analyst.cluster.AnalysisWorkerTask;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that taking frequency route offsets from a bank of draws shared across origins (see
+ * AnalysisWorkerTask.sharedFrequencyOffsets) gives the same travel time distributions as randomizing them separately
+ * for each origin.
+ */
+public class SharedFrequencyOffsetsTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedFrequencyOffsetsTest.class);
+
+    static GridLayout frequencyGrid () {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 100);
+        for (int row = 10; row <= 90; row += 10) {
+            gridLayout.addHorizontalFrequencyRoute(row, 20);
+            gridLayout.addVerticalFrequencyRoute(row, 20);
+        }
+        return gridLayout;
+    }
+
+    /**
+     * Both ways of drawing offsets must match the theoretical distribution at a destination where it is known, and
+     * should give statistically indistinguishable results at all other destinations.
+     */
+    @Test
+    public void testSharedOffsetsMatchIndependentOffsets () throws Exception {
+        GridLayout gridLayout = frequencyGrid();
+        TransportNetwork network = gridLayout.generateNetwork();
+        AnalysisWorkerTask independentTask = gridLayout.newTaskBuilder()
+                .weekdayMorningPeak()
+                .setOrigin(20, 20)
+                .uniformOpportunityDensity(10)
+                .monteCarloDraws(2400)
+                .build();
+        AnalysisWorkerTask sharedTask = gridLayout.copyTask(independentTask).sharedFrequencyOffsets(true).build();
+        OneOriginResult independent = new TravelTimeComputer(independentTask, network).computeTravelTimes();
+        OneOriginResult shared = new TravelTimeComputer(sharedTask, network).computeTravelTimes();
+
+        // Two rides with 20 minute headways, as in SimpsonDesertTests.testGridFrequency.
+        Distribution ride = new Distribution(2, 20);
+        Distribution expected = Distribution.convolution(ride, ride).delay(20);
+        int destination = gridLayout.pointIndex(independentTask, 40, 40);
+        DistributionTester.assertExpectedDistribution(expected, independent.travelTimes.getTarget(destination));
+        DistributionTester.assertExpectedDistribution(expected, shared.travelTimes.getTarget(destination));
+
+        // Elsewhere, compare the two samples with each other. Each has its own sampling noise, so rather than bounding
+        // every percentile at every destination, check that they differ by less than a minute on average.
+        long totalDifference = 0;
+        int maxDifference = 0;
+        int nComparisons = 0;
+        for (int target = 0; target < independent.travelTimes.nPoints; target++) {
+            int[] independentPercentiles = independent.travelTimes.getTarget(target);
+            int[] sharedPercentiles = shared.travelTimes.getTarget(target);
+            for (int p = 0; p < independentPercentiles.length; p++) {
+                if (independentPercentiles[p] == UNREACHED || sharedPercentiles[p] == UNREACHED) continue;
+                int difference = Math.abs(independentPercentiles[p] - sharedPercentiles[p]);
+                totalDifference += difference;
+                maxDifference = Math.max(maxDifference, difference);
+                nComparisons += 1;
+            }
+        }
+        double meanDifference = (double) totalDifference / nComparisons;
+        LOG.info("Percentiles with independent and shared offsets differ by {} minutes on average, {} at most.",
+                meanDifference, maxDifference);
+        assertTrue(nComparisons > 0);
+        assertTrue(meanDifference < 1);
+
+        // The bank is generated once, and a repeated search from the same origin then gives identical results.
+        assertEquals(1, network.transitLayer.frequencyOffsetBanks.estimatedSize());
+        OneOriginResult sharedAgain = new TravelTimeComputer(sharedTask, network).computeTravelTimes();
+        for (int target = 0; target < shared.travelTimes.nPoints; target++) {
+            assertArrayEquals(shared.travelTimes.getTarget(target), sharedAgain.travelTimes.getTarget(target));
+        }
+    }
+
+}
@@ -4,15 +4,27 @@ import ch.qos.logback.classic.Logger;
 import com.conveyal.object_differ.ObjectDiffer;
 import com.conveyal.r5.analyst.scenario.FakeGraph;
 import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.EdgeStore;
 import com.conveyal.r5.streets.IntHashGrid;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.VertexStore;
+import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.trove.TByteMappedList;
+import com.conveyal.r5.trove.TIntMappedList;
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.util.BitSet;
 
 import static com.conveyal.r5.analyst.scenario.FakeGraph.buildNetwork;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Tests that serialization and deserialization of TransportNetworks functions as expected and does not corrupt objects.
@@ -50,6 +62,88 @@ public class KryoNetworkSerializerTest {
         assertNoDifferences(copiedNetwork1, copiedNetwork2);
     }
 
+    /**
+     * Write a network with its street layer columns stored separately, and check that the network is left intact,
+     * that the re-loaded network has memory-mapped columns holding the same values, and that street searches on the
+     * re-loaded network give the same results.
+     */
+    @Test
+    public void testMappedStreetColumnsRoundTrip () throws Exception {
+        TransportNetwork originalNetwork = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        originalNetwork.rebuildLinkedGridPointSet(StreetMode.WALK);
+        EdgeStore originalEdges = originalNetwork.streetLayer.edgeStore;
+        VertexStore originalVertices = originalNetwork.streetLayer.vertexStore;
+
+        File tempFile = File.createTempFile("r5-serialization-test-", ".dat");
+        tempFile.deleteOnExit();
+        File columnsFile = File.createTempFile("r5-serialization-test-", ".columns");
+        columnsFile.deleteOnExit();
+        MappedStreetColumns.write(originalNetwork, tempFile, columnsFile);
+        assertTrue(originalEdges.flags instanceof TIntArrayList);
+        assertTrue(originalVertices.vertexFlags instanceof TByteArrayList);
+
+        TransportNetwork mappedNetwork = MappedStreetColumns.read(tempFile, columnsFile);
+        EdgeStore mappedEdges = mappedNetwork.streetLayer.edgeStore;
+        VertexStore mappedVertices = mappedNetwork.streetLayer.vertexStore;
+        assertTrue(mappedEdges.flags instanceof TIntMappedList);
+        assertTrue(mappedVertices.vertexFlags instanceof TByteMappedList);
+        assertArrayEquals(originalEdges.flags.toArray(), mappedEdges.flags.toArray());
+        assertArrayEquals(originalEdges.fromVertices.toArray(), mappedEdges.fromVertices.toArray());
+        assertArrayEquals(originalEdges.toVertices.toArray(), mappedEdges.toVertices.toArray());
+        assertArrayEquals(originalEdges.lengths_mm.toArray(), mappedEdges.lengths_mm.toArray());
+        assertArrayEquals(originalEdges.streetClasses.toArray(), mappedEdges.streetClasses.toArray());
+        assertArrayEquals(originalEdges.inAngles.toArray(), mappedEdges.inAngles.toArray());
+        assertArrayEquals(originalEdges.outAngles.toArray(), mappedEdges.outAngles.toArray());
+        assertArrayEquals(originalVertices.fixedLats.toArray(), mappedVertices.fixedLats.toArray());
+        assertArrayEquals(originalVertices.fixedLons.toArray(), mappedVertices.fixedLons.toArray());
+        assertArrayEquals(originalVertices.vertexFlags.toArray(), mappedVertices.vertexFlags.toArray());
+        // Everything other than the columns should have gone through Kryo as usual.
+        assertEquals(originalNetwork.transitLayer.getStopCount(), mappedNetwork.transitLayer.getStopCount());
+        assertEquals(originalEdges.nEdges(), mappedEdges.nEdges());
+
+        int nVertices = originalNetwork.streetLayer.getVertexCount();
+        for (StreetMode streetMode : new StreetMode[] {StreetMode.WALK, StreetMode.CAR}) {
+            for (int origin = 0; origin < nVertices; origin += nVertices / 10) {
+                assertEquals(
+                        routeFromVertex(originalNetwork, origin, streetMode),
+                        routeFromVertex(mappedNetwork, origin, streetMode)
+                );
+            }
+        }
+    }
+
+    private static TIntIntMap routeFromVertex (TransportNetwork network, int origin, StreetMode streetMode) {
+        StreetRouter router = new StreetRouter(network.streetLayer);
+        router.streetMode = streetMode;
+        router.timeLimitSeconds = 1200;
+        router.setOrigin(origin);
+        router.route();
+        return router.getReachedVertices();
+    }
+
+    /**
+     * Check that the packed transfers are saved with the network and unpacked into the same per-stop transfer lists
+     * when it is re-loaded.
+     */
+    @Test
+    public void testTransferGraphRoundTrip () throws Exception {
+        TransportNetwork originalNetwork = buildNetwork(FakeGraph.TransitNetwork.MULTIPLE_LINES);
+        TransitLayer originalTransit = originalNetwork.transitLayer;
+        assertEquals(originalTransit.getStopCount(), originalTransit.transferGraph.getStopCount());
+        assertEquals(originalTransit.transfersForStop, originalTransit.transferGraph.toTransfersForStop());
+
+        File tempFile = File.createTempFile("r5-serialization-test-", ".dat");
+        tempFile.deleteOnExit();
+        KryoNetworkSerializer.write(originalNetwork, tempFile);
+        TransitLayer copiedTransit = KryoNetworkSerializer.read(tempFile).transitLayer;
+        assertEquals(originalTransit.transfersForStop, copiedTransit.transfersForStop);
+        assertArrayEquals(originalTransit.transferGraph.offsets, copiedTransit.transferGraph.offsets);
+        assertArrayEquals(originalTransit.transferGraph.targetStops, copiedTransit.transferGraph.targetStops);
+        assertArrayEquals(
+                originalTransit.transferGraph.getSeconds(1300), copiedTransit.transferGraph.getSeconds(1300)
+        );
+    }
+
     /**
      * Create an ObjectDiffer configured to work on R5 TransportNetworks.
      * Make some exclusions for classes that are inherently transient or contain unordered lists we can't yet compare.
@@ -69,6 +163,10 @@ public class KryoNetworkSerializerTest {
         // Skip the linkage LoadingCache which can have its values evicted.
         // It and the map are keyed on street layers, which have identity equality so don't compare properly here.
         objectDiffer.ignoreFields("linkageCache", "linkageMap");
+        // Skip the cache of transfer walk times, which is filled as requests are routed.
+        objectDiffer.ignoreFields("secondsForWalkSpeed");
+        // Skip the per-thread scratch space for street searches, which is created as requests are routed.
+        objectDiffer.ignoreFields("primitiveStreetSearches");
         objectDiffer.useEquals(BitSet.class);
         // IntHashGrid contains unordered lists of elements in each bin. Lists are compared as ordered.
         objectDiffer.ignoreClasses(IntHashGrid.class);
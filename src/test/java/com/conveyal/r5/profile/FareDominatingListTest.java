@@ -0,0 +1,142 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.analyst.fare.FareBounds;
+import com.conveyal.r5.analyst.fare.SimpleInRoutingFareCalculator;
+import com.conveyal.r5.analyst.fare.nyc.LIRRStop;
+import com.conveyal.r5.analyst.fare.nyc.LIRRTestAllowances;
+import com.conveyal.r5.analyst.fare.nyc.LIRRTransferAllowance;
+import com.conveyal.r5.analyst.fare.nyc.NYCInRoutingFareCalculator;
+import com.conveyal.r5.analyst.fare.nyc.NYCPatternType;
+import com.conveyal.r5.analyst.fare.nyc.NYCTransferAllowance;
+import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter.McRaptorState;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Check that FareDominatingList, which compares transfer allowances using ints and interned redemption rules, keeps
+ * exactly the same states as a straightforward list comparing New York transfer allowances field by field, the way
+ * NYCTransferAllowance and LIRRTransferAllowance compared themselves before their redemption rules were interned.
+ */
+public class FareDominatingListTest {
+
+    static final int MAX_FARE = 1000;
+
+    static final int MAX_CLOCK_TIME = 10 * 60 * 60;
+
+    /** The number of states added to each list, which approximates the number of states reaching a busy stop. */
+    static final int N_STATES = 2000;
+
+    @Test
+    public void testSameStatesAsObjectComparison () {
+        Random random = new Random(42);
+        SimpleInRoutingFareCalculator fareCalculator = new SimpleInRoutingFareCalculator();
+        for (int l = 0; l < 20; l++) {
+            FareDominatingList list = new FareDominatingList(fareCalculator, MAX_FARE, MAX_CLOCK_TIME);
+            List<McRaptorState> expected = new ArrayList<>();
+            for (McRaptorState state : makeStates(random)) {
+                assertEquals(addByObjectComparison(expected, state), list.add(state));
+                assertEquals(expected, list.getNonDominatedStates());
+            }
+        }
+    }
+
+    /**
+     * The dominance rules of FareDominatingList, applied directly to the states and their transfer allowances. Like
+     * FareDominatingList, a state that is dominated does not evict any others.
+     */
+    static boolean addByObjectComparison (List<McRaptorState> list, McRaptorState newState) {
+        if (newState.time > MAX_CLOCK_TIME) return false;
+        if (newState.fare.cumulativeFarePaid - newState.fare.transferAllowance.value > MAX_FARE) return false;
+        for (McRaptorState existing : list) {
+            if (betterOrEqual(existing, newState)) return false;
+        }
+        for (Iterator<McRaptorState> it = list.iterator(); it.hasNext();) {
+            if (betterOrEqual(newState, it.next())) it.remove();
+        }
+        list.add(newState);
+        return true;
+    }
+
+    private static boolean betterOrEqual (McRaptorState dominator, McRaptorState dominatee) {
+        if (dominator.time > dominatee.time) return false;
+        NYCTransferAllowance dominateeAllowance = (NYCTransferAllowance) dominatee.fare.transferAllowance;
+        if (dominator.fare.cumulativeFarePaid <= dominatee.fare.cumulativeFarePaid - dominateeAllowance.value) {
+            return true;
+        }
+        return dominator.fare.cumulativeFarePaid <= dominatee.fare.cumulativeFarePaid &&
+                atLeastAsGood((NYCTransferAllowance) dominator.fare.transferAllowance, dominateeAllowance);
+    }
+
+    /**
+     * NYCTransferAllowance.atLeastAsGoodForAllFutureRedemptions as it was written before redemption rules were
+     * interned, kept here as the reference the interned comparison must agree with.
+     */
+    private static boolean atLeastAsGood (NYCTransferAllowance a, NYCTransferAllowance o) {
+        if (a.lirr != null && !atLeastAsGood(a.lirr, o.lirr)) return false;
+        if (a.lirr == null && o.lirr != null) return false;
+        if (a.metrocardTransferSource != o.metrocardTransferSource && o.metrocardTransferSource != null) return false;
+        if (a.metrocardTransferExpiry < o.metrocardTransferExpiry) return false;
+        if (!a.inSubwayPaidArea && o.inSubwayPaidArea) return false;
+        return a.metroNorthBoardStop == o.metroNorthBoardStop &&
+                a.metroNorthPeak == o.metroNorthPeak &&
+                a.metroNorthDirection == o.metroNorthDirection &&
+                a.metroNorthLine == o.metroNorthLine;
+    }
+
+    /** LIRRTransferAllowance.atLeastAsGoodForAllFutureRedemptions as it was before redemption rules were interned. */
+    private static boolean atLeastAsGood (LIRRTransferAllowance a, LIRRTransferAllowance o) {
+        if (o == null) return false;
+        return a.boardStop.equals(o.boardStop) &&
+                a.viaStop == o.viaStop &&
+                a.initialDirection.equals(o.initialDirection) &&
+                a.peakBeforeDirectionChange == o.peakBeforeDirectionChange &&
+                a.peakAfterDirectionChange == o.peakAfterDirectionChange;
+    }
+
+    /**
+     * Make states reaching one stop with New York transfer allowances, varying in all the fields that are compared.
+     * A few values are used for each field so that many pairs of states are comparable. LIRR allowances are all for
+     * a single ride, so they vary in board stop, direction and peak but never have a via stop.
+     */
+    static List<McRaptorState> makeStates (Random random) {
+        NYCPatternType[] transferSources = {null, NYCPatternType.METROCARD_LOCAL_BUS, NYCPatternType.METROCARD_SUBWAY,
+                NYCPatternType.METROCARD_EXPRESS_BUS, NYCPatternType.STATEN_ISLAND_RWY};
+        NYCInRoutingFareCalculator.MetroNorthLine[] metroNorthLines = NYCInRoutingFareCalculator.MetroNorthLine.values();
+        LIRRTransferAllowance.LIRRDirection[] lirrDirections = LIRRTransferAllowance.LIRRDirection.values();
+        LIRRStop[] lirrStops = LIRRTestAllowances.STOPS;
+        List<McRaptorState> states = new ArrayList<>();
+        for (int s = 0; s < N_STATES; s++) {
+            McRaptorState state = new McRaptorState();
+            state.time = 8 * 60 * 60 + random.nextInt(2 * 60 * 60);
+            boolean metroNorth = random.nextInt(10) == 0;
+            LIRRTransferAllowance lirr = null;
+            if (random.nextInt(4) == 0) {
+                int board = random.nextInt(lirrStops.length);
+                int alight = (board + 1 + random.nextInt(lirrStops.length - 1)) % lirrStops.length;
+                lirr = LIRRTestAllowances.singleRide(lirrStops[board], lirrStops[alight],
+                        lirrDirections[random.nextInt(lirrDirections.length)],
+                        state.time - random.nextInt(60 * 60), random.nextBoolean());
+            }
+            NYCTransferAllowance allowance = new NYCTransferAllowance(
+                    lirr,
+                    transferSources[random.nextInt(transferSources.length)],
+                    state.time + random.nextInt(2 * 60 * 60),
+                    random.nextBoolean(),
+                    metroNorth ? random.nextInt(5) : -1,
+                    metroNorth ? random.nextInt(2) : -1,
+                    metroNorth && random.nextBoolean(),
+                    metroNorth ? metroNorthLines[random.nextInt(metroNorthLines.length)] : null
+            );
+            state.fare = new FareBounds(275 * random.nextInt(4), allowance);
+            states.add(state);
+        }
+        return states;
+    }
+
+}
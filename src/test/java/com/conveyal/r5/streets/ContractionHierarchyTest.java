@@ -0,0 +1,120 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.osmlib.OSM;
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that point-to-point searches using a contraction hierarchy find paths as fast as a StreetRouter exploring the
+ * whole network.
+ */
+public class ContractionHierarchyTest {
+
+    private static final String TEST_FILE = "./src/test/resources/porto_portugal.osm.pbf";
+
+    private static final int TIME_LIMIT_SECONDS = 3600;
+
+    private static StreetLayer streetLayer;
+
+    @BeforeAll
+    public static void buildStreetLayer () {
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.readFromFile(TEST_FILE);
+        streetLayer = new StreetLayer();
+        streetLayer.loadFromOsm(osm);
+        osm.close();
+        streetLayer.indexStreets();
+        streetLayer.buildContractionHierarchy(StreetMode.CAR);
+        streetLayer.buildContractionHierarchy(StreetMode.BICYCLE);
+    }
+
+    @Test
+    public void testCarPaths () {
+        comparePaths(StreetMode.CAR, new Random(42));
+    }
+
+    @Test
+    public void testBicyclePaths () {
+        comparePaths(StreetMode.BICYCLE, new Random(43));
+    }
+
+    /** Scenarios modifying the streets must not use a hierarchy built before the modification. */
+    @Test
+    public void testScenarioCopyFallsBack () {
+        StreetLayer copy = streetLayer.scenarioCopy(new TransportNetwork(), true);
+        assertNotNull(streetLayer.getContractionHierarchy(StreetMode.CAR, new ProfileRequest()));
+        assertNull(copy.getContractionHierarchy(StreetMode.CAR, new ProfileRequest()));
+        // The hierarchy was built for the default speeds.
+        ProfileRequest request = new ProfileRequest();
+        request.bikeSpeed *= 2;
+        assertNull(streetLayer.getContractionHierarchy(StreetMode.BICYCLE, request));
+    }
+
+    private static void comparePaths (StreetMode streetMode, Random random) {
+        Envelope envelope = streetLayer.getEnvelope();
+        int nPaths = 0;
+        int nReachable = 0;
+        int nHierarchyPaths = 0;
+        while (nPaths < 50) {
+            double fromLat = envelope.getMinY() + random.nextDouble() * envelope.getHeight();
+            double fromLon = envelope.getMinX() + random.nextDouble() * envelope.getWidth();
+            double toLat = envelope.getMinY() + random.nextDouble() * envelope.getHeight();
+            double toLon = envelope.getMinX() + random.nextDouble() * envelope.getWidth();
+
+            // Explore the whole network within the time limit, so the result does not depend on the A* heuristic.
+            StreetRouter exhaustive = new StreetRouter(streetLayer);
+            exhaustive.streetMode = streetMode;
+            exhaustive.timeLimitSeconds = TIME_LIMIT_SECONDS;
+            if (!exhaustive.setOrigin(fromLat, fromLon)) continue;
+            exhaustive.route();
+            Split destination = streetLayer.findSplit(toLat, toLon, StreetLayer.LINK_RADIUS_METERS, streetMode);
+            if (destination == null) continue;
+            StreetRouter.State expected = exhaustive.getState(destination);
+            assertFalse(exhaustive.usedContractionHierarchy);
+
+            StreetRouter hierarchy = new StreetRouter(streetLayer);
+            hierarchy.streetMode = streetMode;
+            hierarchy.timeLimitSeconds = TIME_LIMIT_SECONDS;
+            hierarchy.allowContractionHierarchy = true;
+            // Ensure the A* heuristic never overestimates, in case the router falls back on a normal search.
+            hierarchy.profileRequest.carSpeed = 50;
+            assertTrue(hierarchy.setOrigin(fromLat, fromLon));
+            assertTrue(hierarchy.setDestination(toLat, toLon));
+            hierarchy.route();
+            StreetRouter.State state = hierarchy.getState(hierarchy.getDestinationSplit());
+
+            if (expected == null) {
+                assertNull(state);
+            } else {
+                nReachable += 1;
+                if (hierarchy.usedContractionHierarchy) nHierarchyPaths += 1;
+                assertNotNull(state);
+                assertEquals(expected.durationSeconds, state.durationSeconds);
+                // The path must be made of real states leading back to the origin.
+                while (state.backState != null) state = state.backState;
+                Split origin = hierarchy.getOriginSplit();
+                assertTrue(state.backEdge == origin.edge || state.backEdge == origin.edge + 1);
+            }
+            nPaths += 1;
+        }
+        // The router falls back on a normal search when a path through the hierarchy breaks a turn restriction with
+        // via edges, which should be rare. Otherwise the paths above would not show that the hierarchy works at all.
+        assertTrue(nReachable > 0);
+        assertTrue(nHierarchyPaths * 10 >= nReachable * 9,
+                String.format("Only %d of %d paths used the contraction hierarchy.", nHierarchyPaths, nReachable));
+    }
+
+}
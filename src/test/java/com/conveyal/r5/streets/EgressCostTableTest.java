@@ -0,0 +1,245 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.analysis.components.WorkerComponents;
+import com.conveyal.file.FileStorage;
+import com.conveyal.file.FileStorageKey;
+import com.conveyal.file.TemporaryFileStorage;
+import com.conveyal.r5.analyst.PointSet;
+import com.conveyal.r5.analyst.network.GridLayout;
+import com.conveyal.r5.analyst.scenario.ModifyStreets;
+import com.conveyal.r5.analyst.scenario.RoadCongestion;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.conveyal.file.FileCategory.DATASOURCES;
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that the egress cost tables of a scenario, which reuse the baseline tables of stops whose searches could not
+ * have reached any street the scenario changed, are identical to tables rebuilt from scratch for every stop.
+ */
+public class EgressCostTableTest {
+
+    /** The size of the grid for the congestion test, wider than a car egress search can reach. */
+    private static final int CONGESTION_GRID_BLOCKS = 180;
+
+    /** Congestion slows the streets east of this column of the grid, at full height. */
+    private static final int CONGESTION_WEST_COLUMN = 169;
+
+    /**
+     * Bicycle tables built with the baseline network record the streets their searches reached. Stops whose searches
+     * reached the edited corner of the grid must be rebuilt, and all the others reused.
+     */
+    @Test
+    public void testReusedTablesMatchRebuiltTables () {
+        TransportNetwork network = makeNetwork();
+        PointSet pointSet = network.fullExtentGridPointSet;
+        LinkedPointSet baseLinkage = new LinkedPointSet(pointSet, network.streetLayer, StreetMode.BICYCLE, null);
+        checkScenarioTables(baseLinkage, applyScenario(network));
+    }
+
+    /**
+     * Base tables loaded with a serialized network have no record of the streets their searches reached. Stops must
+     * then be rebuilt or reused based on their distance from the changed streets alone, which reuses fewer tables.
+     */
+    @Test
+    public void testReusedTablesWithoutSearchRecordsMatchRebuiltTables () {
+        TransportNetwork network = makeNetwork();
+        PointSet pointSet = network.fullExtentGridPointSet;
+        LinkedPointSet baseLinkage = new LinkedPointSet(pointSet, network.streetLayer, StreetMode.BICYCLE, null);
+        TransportNetwork scenarioNetwork = applyScenario(network);
+        BitSet reusedWithRecords = checkScenarioTables(baseLinkage, scenarioNetwork);
+        BitSet reusedWithoutRecords = checkScenarioTables(withoutSearchRecords(baseLinkage), scenarioNetwork);
+        assertTrue(reusedWithoutRecords.cardinality() <= reusedWithRecords.cardinality());
+    }
+
+    /**
+     * Congestion changes car speeds in place, without adding or removing any edges. The car tables of exactly those
+     * stops whose searches reached a slowed street must be rebuilt.
+     */
+    @Test
+    public void testCongestionRebuildsOnlyTablesReachingSlowedStreets () throws Exception {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, CONGESTION_GRID_BLOCKS);
+        gridLayout.addHorizontalRoute(CONGESTION_GRID_BLOCKS / 2, 20);
+        TransportNetwork network = gridLayout.generateNetwork();
+        TransportNetwork scenarioNetwork = applyCongestion(network, gridLayout);
+        PointSet pointSet = network.fullExtentGridPointSet;
+        LinkedPointSet baseLinkage = new LinkedPointSet(pointSet, network.streetLayer, StreetMode.CAR, null);
+        BitSet reused = checkScenarioTables(baseLinkage, scenarioNetwork);
+
+        // Independently of the egress cost tables, find the street vertices at either end of every slowed edge.
+        EdgeStore baseEdgeStore = network.streetLayer.edgeStore;
+        EdgeStore.Edge edge = baseEdgeStore.getCursor();
+        TIntSet slowedVertices = new TIntHashSet();
+        for (int e = 0; e < baseEdgeStore.nEdges(); e++) {
+            if (scenarioNetwork.streetLayer.edgeStore.speeds.get(e) != baseEdgeStore.speeds.get(e)) {
+                edge.seek(e);
+                slowedVertices.add(edge.getFromVertex());
+                slowedVertices.add(edge.getToVertex());
+            }
+        }
+        assertFalse(slowedVertices.isEmpty());
+
+        // Repeat the baseline car search from each stop, and check whether it reached a slowed street.
+        TransitLayer transitLayer = network.transitLayer;
+        for (int s = 0; s < transitLayer.getStopCount(); s++) {
+            int stopVertex = transitLayer.streetVertexForStop.get(s);
+            if (stopVertex < 0) continue;
+            VertexStore.Vertex vertex = network.streetLayer.vertexStore.getCursor(stopVertex);
+            StreetRouter router = new StreetRouter(network.streetLayer);
+            router.streetMode = StreetMode.CAR;
+            router.timeLimitSeconds = EgressCostTable.CAR_TIME_LINKING_LIMIT_SECONDS;
+            router.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+            router.setOrigin(vertex.getLat(), vertex.getLon());
+            router.route();
+            boolean reachedSlowedStreet = Arrays.stream(router.getReachedVertices().keys())
+                    .anyMatch(slowedVertices::contains);
+            assertEquals(!reachedSlowedStreet, reused.get(s), "Table reuse for stop " + s);
+        }
+    }
+
+    /** A grid 16 km across, with stops along a street near each of its south and north edges. */
+    public static TransportNetwork makeNetwork () {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 80);
+        gridLayout.addHorizontalRoute(10, 20);
+        gridLayout.addHorizontalRoute(70, 20);
+        return gridLayout.generateNetwork();
+    }
+
+    /** Forbid cycling on the streets in the southwest corner of the grid, within bicycle range of only a few stops. */
+    public static TransportNetwork applyScenario (TransportNetwork network) {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 80);
+        Coordinate southWest = gridLayout.getIntersectionLatLon(5, 5);
+        Coordinate northEast = gridLayout.getIntersectionLatLon(15, 15);
+        ModifyStreets modifyStreets = new ModifyStreets();
+        modifyStreets.allowedModes = EnumSet.of(StreetMode.WALK);
+        modifyStreets.polygons = new double[][][] {{
+                {southWest.x, northEast.y},
+                {northEast.x, northEast.y},
+                {northEast.x, southWest.y},
+                {southWest.x, southWest.y},
+                {southWest.x, northEast.y}
+        }};
+        Scenario scenario = new Scenario();
+        scenario.modifications = List.of(modifyStreets);
+        TransportNetwork scenarioNetwork = scenario.applyToTransportNetwork(network);
+        assertEquals(0, scenarioNetwork.scenarioApplicationWarnings.size());
+        return scenarioNetwork;
+    }
+
+    /**
+     * Halve car speeds on every street east of CONGESTION_WEST_COLUMN. The west side of the polygon passes halfway
+     * between that column and the next one in every row, so the same edges are slowed in every row of the grid.
+     */
+    private static TransportNetwork applyCongestion (TransportNetwork network, GridLayout gridLayout) throws Exception {
+        int westColumn = CONGESTION_WEST_COLUMN;
+        int eastColumn = gridLayout.widthAndHeightInBlocks + 2;
+        List<Coordinate> ring = new ArrayList<>();
+        for (int y = -1; y <= gridLayout.widthAndHeightInBlocks + 1; y++) {
+            Coordinate west = gridLayout.getIntersectionLatLon(westColumn, y);
+            Coordinate east = gridLayout.getIntersectionLatLon(westColumn + 1, y);
+            ring.add(new Coordinate((west.x + east.x) / 2, west.y));
+        }
+        ring.add(gridLayout.getIntersectionLatLon(eastColumn, gridLayout.widthAndHeightInBlocks + 1));
+        ring.add(gridLayout.getIntersectionLatLon(eastColumn, -1));
+        ring.add(ring.get(0));
+        String coordinates = ring.stream()
+                .map(c -> "[" + c.x + "," + c.y + "]")
+                .collect(Collectors.joining(","));
+        String geoJson = "{\"type\":\"FeatureCollection\",\"features\":[{\"type\":\"Feature\"," +
+                "\"properties\":{\"name\":\"east\",\"scale\":0.5,\"priority\":1}," +
+                "\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[" + coordinates + "]]}}]}";
+        File geoJsonFile = File.createTempFile("congestion", ".geojson");
+        Files.writeString(geoJsonFile.toPath(), geoJson);
+
+        // RoadCongestion reads its polygons from the file storage of the worker components.
+        FileStorage previousFileStorage = WorkerComponents.fileStorage;
+        try {
+            WorkerComponents.fileStorage = TemporaryFileStorage.create("r5-congestion-test");
+            WorkerComponents.fileStorage.moveIntoStorage(new FileStorageKey(DATASOURCES, "congestion.geojson"), geoJsonFile);
+            RoadCongestion roadCongestion = new RoadCongestion();
+            roadCongestion.polygonLayer = "congestion.geojson";
+            Scenario scenario = new Scenario();
+            scenario.modifications = List.of(roadCongestion);
+            TransportNetwork scenarioNetwork = scenario.applyToTransportNetwork(network);
+            assertEquals(0, scenarioNetwork.scenarioApplicationWarnings.size());
+            return scenarioNetwork;
+        } finally {
+            WorkerComponents.fileStorage = previousFileStorage;
+        }
+    }
+
+    /**
+     * A copy of the given linkage whose egress cost tables have no record of the streets their searches reached, like
+     * tables loaded with a serialized network.
+     */
+    private static LinkedPointSet withoutSearchRecords (LinkedPointSet linkage) {
+        EgressCostTable table = linkage.getEgressCostTable();
+        LinkedPointSet copy = new LinkedPointSet(linkage.pointSet, linkage.streetLayer, linkage.streetMode,
+                linkage.edges, linkage.distancesToEdge_mm, linkage.distances0_mm, linkage.distances1_mm);
+        copy.setEgressCostTable(EgressCostTable.fromStoredTables(
+                copy, table.stopToPointLinkageCostTables, table.egressStopDelaysSeconds, null));
+        return copy;
+    }
+
+    /**
+     * Check that the tables built for the scenario by reusing those of the base linkage are identical to tables built
+     * from scratch, and that the reported numbers of reused and rebuilt tables are correct.
+     * @return the stops whose base tables were reused.
+     */
+    public static BitSet checkScenarioTables (LinkedPointSet baseLinkage, TransportNetwork scenarioNetwork) {
+        PointSet pointSet = baseLinkage.pointSet;
+        StreetMode streetMode = baseLinkage.streetMode;
+        EgressCostTable baseTable = baseLinkage.getEgressCostTable();
+        EgressCostTable selective = new LinkedPointSet(
+                pointSet, scenarioNetwork.streetLayer, streetMode, baseLinkage
+        ).getEgressCostTable();
+        EgressCostTable rebuilt = new LinkedPointSet(
+                pointSet, scenarioNetwork.streetLayer, streetMode, null
+        ).getEgressCostTable();
+        assertEquals(rebuilt.stopToPointLinkageCostTables.size(), selective.stopToPointLinkageCostTables.size());
+        BitSet reused = new BitSet();
+        int nRebuilt = 0;
+        int nChangedByScenario = 0;
+        for (int s = 0; s < rebuilt.stopToPointLinkageCostTables.size(); s++) {
+            int[] expected = rebuilt.stopToPointLinkageCostTables.get(s);
+            int[] table = selective.stopToPointLinkageCostTables.get(s);
+            assertArrayEquals(expected, table);
+            if (expected == null) continue;
+            // Reused tables are not copied, so they are the very same arrays as the base tables.
+            if (table == baseTable.stopToPointLinkageCostTables.get(s)) {
+                reused.set(s);
+            } else {
+                nRebuilt += 1;
+            }
+            if (!Arrays.equals(expected, baseTable.stopToPointLinkageCostTables.get(s))) nChangedByScenario += 1;
+        }
+        assertEquals(reused.cardinality(), selective.nTablesReused);
+        assertEquals(nRebuilt, selective.nTablesRebuilt);
+        assertTrue(selective.nTablesReused > 0);
+        assertTrue(selective.nTablesRebuilt > 0);
+        // The scenario must change some tables, or reusing every table would also pass.
+        assertTrue(nChangedByScenario > 0);
+        return reused;
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.osmlib.OSM;
+import com.conveyal.r5.analyst.network.GridLayout;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.map.TIntIntMap;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.conveyal.r5.analyst.network.SimpsonDesertTests.SIMPSON_DESERT_CORNER;
+import static com.conveyal.r5.transit.TransitLayer.WALK_DISTANCE_LIMIT_METERS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Check that searching from many origins at once gives exactly the same distance tables as one StreetRouter search
+ * per origin.
+ */
+public class MultiSourceStreetSearchTest {
+
+    private static final String TEST_FILE = "./src/test/resources/porto_portugal.osm.pbf";
+
+    private static StreetLayer streetLayer;
+
+    @BeforeAll
+    public static void buildStreetLayer () {
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.readFromFile(TEST_FILE);
+        streetLayer = new StreetLayer();
+        streetLayer.loadFromOsm(osm);
+        osm.close();
+    }
+
+    /** Origins scattered over the whole city, as well as clustered ones, with one unlinked origin. */
+    @Test
+    public void testSameTablesAsStreetRouter () {
+        Random random = new Random(42);
+        int nVertices = streetLayer.getVertexCount();
+        int[] origins = new int[300];
+        for (int i = 0; i < origins.length; i++) {
+            origins[i] = (i < 100) ? random.nextInt(nVertices) : Math.min(origins[i % 100] + i / 100, nVertices - 1);
+        }
+        origins[7] = -1;
+        for (StreetMode streetMode : new StreetMode[] {StreetMode.WALK, StreetMode.BICYCLE}) {
+            List<TIntIntMap> expected = new ArrayList<>();
+            for (int origin : origins) {
+                expected.add(origin < 0 ? null : route(origin, streetMode));
+            }
+            List<TIntIntMap> tables = MultiSourceStreetSearch.routeAll(streetLayer, streetMode,
+                    WALK_DISTANCE_LIMIT_METERS * 1000, origins);
+            assertNull(tables.get(7));
+            assertEquals(expected, tables);
+        }
+    }
+
+    /** Build the stop-to-vertex tables for a grid network both ways, which must give the same tables. */
+    @Test
+    public void testTransitLayerDistanceTables () {
+        GridLayout gridLayout = new GridLayout(SIMPSON_DESERT_CORNER, 100);
+        for (int row = 10; row <= 90; row += 10) {
+            gridLayout.addHorizontalFrequencyRoute(row, 20);
+            gridLayout.addVerticalFrequencyRoute(row, 20);
+        }
+        TransportNetwork network = gridLayout.generateNetwork();
+        List<List<TIntIntMap>> results = new ArrayList<>();
+        for (boolean multiSource : new boolean[] {false, true}) {
+            network.transitLayer.buildDistanceTables(null, multiSource);
+            results.add(network.transitLayer.stopToVertexDistanceTables);
+        }
+        assertEquals(results.get(0), results.get(1));
+    }
+
+    private static TIntIntMap route (int origin, StreetMode streetMode) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        // Compare against the general search rather than the primitive search, whose approach the multi-source search shares.
+        router.allowPrimitiveSearch = false;
+        router.streetMode = streetMode;
+        router.distanceLimitMeters = WALK_DISTANCE_LIMIT_METERS;
+        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+        router.setOrigin(origin);
+        router.route();
+        return router.getReachedVertices();
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.osmlib.OSM;
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.map.TIntIntMap;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that street searches storing their states in flat primitive arrays produce the same results as the general
+ * search using State objects.
+ */
+public class PrimitiveStreetSearchTest {
+
+    private static final String TEST_FILE = "./src/test/resources/porto_portugal.osm.pbf";
+
+    private static StreetLayer streetLayer;
+
+    @BeforeAll
+    public static void buildStreetLayer () {
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.readFromFile(TEST_FILE);
+        streetLayer = new StreetLayer();
+        streetLayer.loadFromOsm(osm);
+        osm.close();
+    }
+
+    @Test
+    public void testWalkDurationSearches () {
+        Random random = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            int origin = random.nextInt(streetLayer.getVertexCount());
+            StreetRouter general = route(origin, StreetMode.WALK, false);
+            StreetRouter primitive = route(origin, StreetMode.WALK, true);
+            assertNull(general.primitiveSearch);
+            assertNotNull(primitive.primitiveSearch);
+            assertEquals(general.getReachedVertices(), primitive.getReachedVertices());
+            for (int vertex = 0; vertex < streetLayer.getVertexCount(); vertex += 97) {
+                assertEquals(general.getTravelTimeToVertex(vertex), primitive.getTravelTimeToVertex(vertex));
+            }
+        }
+    }
+
+    @Test
+    public void testBicycleDistanceSearchesContinuedOnFoot () {
+        Random random = new Random(43);
+        for (int i = 0; i < 20; i++) {
+            int origin = random.nextInt(streetLayer.getVertexCount());
+            StreetRouter general = route(origin, StreetMode.BICYCLE, false);
+            general.keepRoutingOnFoot();
+            StreetRouter primitive = route(origin, StreetMode.BICYCLE, true);
+            primitive.keepRoutingOnFoot();
+            assertEquals(general.getReachedVertices(), primitive.getReachedVertices());
+        }
+    }
+
+    /**
+     * A search whose results were detached by a later search on the same thread must still be able to continue on
+     * foot, and the later search must not be disturbed by that. The later search must leave the first router alone,
+     * which only switches to its detached results when it next reads them.
+     */
+    @Test
+    public void testDetachedSearchContinuedOnFoot () {
+        Random random = new Random(45);
+        for (int i = 0; i < 5; i++) {
+            int origin = random.nextInt(streetLayer.getVertexCount());
+            StreetRouter general = route(origin, StreetMode.BICYCLE, false);
+            general.keepRoutingOnFoot();
+            StreetRouter primitive = route(origin, StreetMode.BICYCLE, true);
+            PrimitiveStreetSearch sharedSearch = primitive.primitiveSearch;
+            StreetRouter later = route(origin, StreetMode.WALK, true);
+            assertSame(sharedSearch, primitive.primitiveSearch);
+            assertSame(sharedSearch, later.primitiveSearch);
+            TIntIntMap reachedByLater = later.getReachedVertices();
+            primitive.keepRoutingOnFoot();
+            assertEquals(general.getReachedVertices(), primitive.getReachedVertices());
+            assertEquals(reachedByLater, later.getReachedVertices());
+        }
+    }
+
+    @Test
+    public void testMaterializedStates () {
+        VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(streetLayer.getVertexCount() / 2);
+        StreetRouter general = new StreetRouter(streetLayer);
+        general.allowPrimitiveSearch = false;
+        general.timeLimitSeconds = 1200;
+        assertTrue(general.setOrigin(vertex.getLat(), vertex.getLon()));
+        general.route();
+        StreetRouter primitive = new StreetRouter(streetLayer);
+        primitive.timeLimitSeconds = 1200;
+        assertTrue(primitive.setOrigin(vertex.getLat(), vertex.getLon()));
+        primitive.route();
+
+        // Another search on the same thread must not overwrite the results of the first one.
+        route(0, StreetMode.WALK, true);
+
+        TIntIntMap reached = general.getReachedVertices();
+        assertEquals(reached, primitive.getReachedVertices());
+        for (int v : reached.keys()) {
+            StreetRouter.State expected = general.getStateAtVertex(v);
+            StreetRouter.State state = primitive.getStateAtVertex(v);
+            assertEquals(expected.getDurationSeconds(), state.getDurationSeconds());
+            assertEquals(v, state.vertex);
+            // Every state chain must lead back to one of the two origin states at the ends of the split edge.
+            int previousDuration = state.getDurationSeconds();
+            while (state.backState != null) {
+                state = state.backState;
+                assertTrue(state.getDurationSeconds() < previousDuration);
+                previousDuration = state.getDurationSeconds();
+            }
+            Split split = primitive.getOriginSplit();
+            assertTrue(state.backEdge == split.edge || state.backEdge == split.edge + 1);
+        }
+    }
+
+    private static StreetRouter route (int origin, StreetMode streetMode, boolean allowPrimitiveSearch) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.allowPrimitiveSearch = allowPrimitiveSearch;
+        router.streetMode = streetMode;
+        if (streetMode == StreetMode.WALK) {
+            router.timeLimitSeconds = 1800;
+        } else {
+            router.distanceLimitMeters = 5000;
+            router.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+        }
+        router.setOrigin(origin);
+        router.route();
+        return router;
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.r5.api.util.TransitModes;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check that the binary search over precomputed departure columns in FilteredPattern finds the same trips as a linear
+ * scan over the TripSchedules, with and without overtaking, including on a dense pattern. Also check that trimming
+ * trips to a time window and caching the results in FilteredPatternCache work as expected.
+ */
+public class FilteredPatternTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FilteredPatternTest.class);
+
+    private static final int N_STOPS = 20;
+
+    @Test
+    public void testNoOvertaking () {
+        FilteredPattern filteredPattern = makeFilteredPattern(300, false, new Random(42));
+        assertTrue(filteredPattern.noScheduledOvertaking);
+        checkAgainstLinearScan(filteredPattern, new Random(43));
+    }
+
+    @Test
+    public void testOvertaking () {
+        FilteredPattern filteredPattern = makeFilteredPattern(300, true, new Random(44));
+        assertFalse(filteredPattern.noScheduledOvertaking);
+        checkAgainstLinearScan(filteredPattern, new Random(45));
+    }
+
+    /** Check lookups on a dense pattern (one trip per minute all day), where the binary search matters most. */
+    @Test
+    public void testDensePattern () {
+        FilteredPattern filteredPattern = makeFilteredPattern(1200, false, new Random(46));
+        assertTrue(filteredPattern.noScheduledOvertaking);
+        checkAgainstLinearScan(filteredPattern, new Random(47));
+    }
+
+    /**
+     * Trimming trips to a morning time window must keep exactly the trips running in that window, and boarding
+     * within the window must find a trip departing at the same time as without trimming.
+     */
+    @Test
+    public void testTimeWindow () {
+        final int nTrips = 1200;
+        final int fromTime = 7 * 60 * 60;
+        final int toTime = 11 * 60 * 60;
+        TripPattern pattern = makePattern(nTrips, false, new Random(48));
+        BitSet servicesActive = new BitSet();
+        servicesActive.set(0);
+        FilteredPattern allDay = new FilteredPattern(pattern, servicesActive);
+        FilteredPattern windowed = new FilteredPattern(pattern, servicesActive, fromTime, toTime);
+        assertEquals(nTrips, allDay.runningScheduledTrips.size());
+        int nOverlapping = 0;
+        for (TripSchedule schedule : pattern.tripSchedules) {
+            boolean overlaps = schedule.overlapsTimeRange(fromTime, toTime);
+            assertEquals(overlaps, windowed.runningScheduledTrips.contains(schedule));
+            if (overlaps) nOverlapping += 1;
+        }
+        LOG.info("Trimming to a {} hour window keeps {} of {} trips.", (toTime - fromTime) / 3600, nOverlapping, nTrips);
+        assertTrue(nOverlapping < nTrips / 3);
+        checkAgainstLinearScan(windowed, new Random(49));
+
+        Random random = new Random(50);
+        for (int i = 0; i < 10_000; i++) {
+            int departAfter = fromTime + random.nextInt(toTime - fromTime);
+            int stop = random.nextInt(N_STOPS);
+            int allDayTrip = allDay.findEarliestDeparture(departAfter, stop);
+            if (allDayTrip == -1) continue;
+            TripSchedule schedule = allDay.runningScheduledTrips.get(allDayTrip);
+            if (schedule.departures[stop] > toTime) continue;
+            // Compare departure times rather than trips, as trips rounded to the same minute are interchangeable.
+            int windowedTrip = windowed.findEarliestDeparture(departAfter, stop);
+            assertTrue(windowedTrip >= 0);
+            assertEquals(schedule.departures[stop], windowed.runningScheduledTrips.get(windowedTrip).departures[stop]);
+        }
+    }
+
+    /**
+     * The cache must reuse FilteredPatterns for the same modes, services and window, record hits and misses, and drop
+     * patterns with no trips in the window from the sets of patterns that searches explore.
+     */
+    @Test
+    public void testCache () {
+        TransitLayer transitLayer = new TransitLayer();
+        RouteInfo routeInfo = new RouteInfo();
+        routeInfo.route_type = 3;
+        transitLayer.routes.add(routeInfo);
+        Random random = new Random(51);
+        for (int p = 0; p < 10; p++) {
+            TripPattern pattern = makePattern(100, false, random);
+            pattern.routeIndex = 0;
+            transitLayer.tripPatterns.add(pattern);
+        }
+        // A pattern with a single trip late in the evening.
+        int[] stopIds = new int[N_STOPS];
+        int[] times = new int[N_STOPS];
+        for (int s = 0; s < N_STOPS; s++) {
+            stopIds[s] = s;
+            times[s] = 22 * 60 * 60 + s * 60;
+        }
+        TripPattern eveningPattern = new TripPattern(new TIntArrayList(stopIds));
+        eveningPattern.routeIndex = 0;
+        Trip trip = new Trip();
+        trip.feed_id = "FEED";
+        trip.trip_id = "EVENING";
+        eveningPattern.addTrip(TripSchedule.create(trip, times, times, null, stopIds, 0));
+        transitLayer.tripPatterns.add(eveningPattern);
+
+        EnumSet<TransitModes> modes = EnumSet.allOf(TransitModes.class);
+        BitSet servicesActive = new BitSet();
+        servicesActive.set(0);
+        FilteredPatternCache cache = new FilteredPatternCache(transitLayer);
+        FilteredPatterns allDay = cache.get(modes, servicesActive);
+        FilteredPatterns morning = cache.get(modes, servicesActive, 7 * 60 * 60, 11 * 60 * 60);
+        assertSame(morning, cache.get(modes, servicesActive, 7 * 60 * 60, 11 * 60 * 60));
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(2, cache.stats().missCount());
+
+        assertEquals(1001, allDay.nRunningTrips);
+        assertTrue(morning.nRunningTrips < allDay.nRunningTrips / 3);
+        assertEquals(11, allDay.runningScheduledPatterns.cardinality());
+        assertEquals(10, morning.runningScheduledPatterns.cardinality());
+        assertNull(morning.patterns.get(10));
+        assertTrue(morning.runningFrequencyPatterns.isEmpty());
+    }
+
+    private static void checkAgainstLinearScan (FilteredPattern filteredPattern, Random random) {
+        for (int i = 0; i < 10_000; i++) {
+            int departAfter = random.nextInt(26 * 60 * 60);
+            int stop = random.nextInt(N_STOPS);
+            assertEquals(linearScan(filteredPattern, departAfter, stop),
+                    filteredPattern.findEarliestDeparture(departAfter, stop));
+        }
+    }
+
+    /** The linear scan previously used by FastRaptorWorker to find the earliest departure. */
+    static int linearScan (FilteredPattern filteredPattern, int departAfter, int stopInPattern) {
+        List<TripSchedule> trips = filteredPattern.runningScheduledTrips;
+        int bestTrip = -1;
+        int bestDeparture = Integer.MAX_VALUE;
+        for (int t = 0; t < trips.size(); t++) {
+            final int departure = trips.get(t).departures[stopInPattern];
+            if (departure > departAfter && departure < bestDeparture) {
+                bestTrip = t;
+                bestDeparture = departure;
+                if (filteredPattern.noScheduledOvertaking) break;
+            }
+        }
+        return bestTrip;
+    }
+
+    /**
+     * Make a pattern with trips spread evenly over the day. Trips run at a common speed (so never overtake) unless
+     * overtaking is requested, in which case some trips run much faster than the others. Some trips share departure
+     * times to exercise tie-breaking.
+     */
+    private static FilteredPattern makeFilteredPattern (int nTrips, boolean overtaking, Random random) {
+        BitSet servicesActive = new BitSet();
+        servicesActive.set(0);
+        return new FilteredPattern(makePattern(nTrips, overtaking, random), servicesActive);
+    }
+
+    private static TripPattern makePattern (int nTrips, boolean overtaking, Random random) {
+        int[] stopIds = new int[N_STOPS];
+        for (int s = 0; s < N_STOPS; s++) stopIds[s] = s;
+        TripPattern pattern = new TripPattern(new TIntArrayList(stopIds));
+        int headway = 24 * 60 * 60 / nTrips;
+        for (int t = 0; t < nTrips; t++) {
+            // Round start times to the minute so that some of them coincide.
+            int startTime = (t * headway + random.nextInt(headway)) / 60 * 60;
+            int hopTime = (overtaking && random.nextInt(5) == 0) ? 60 : 300;
+            int[] times = new int[N_STOPS];
+            for (int s = 0; s < N_STOPS; s++) times[s] = startTime + s * hopTime;
+            Trip trip = new Trip();
+            trip.feed_id = "FEED";
+            trip.trip_id = "TRIP" + t;
+            pattern.addTrip(TripSchedule.create(trip, times, times, null, stopIds, 0));
+        }
+        return pattern;
+    }
+
+}